@@ -0,0 +1,107 @@
+package benchmarks;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.MoveCoalescer;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.gen3.S3GDeviceEmulator;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+
+/**
+ * Sending curved perimeters to an emulated board over a link with a
+ * millisecond round trip, the way Direct does, with and without merging
+ * the segments first. Moves run instantly on the board, so the time is
+ * all spent on the link.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CoalescerBenchmark {
+
+	private static final String PORT = "sim:coalescer-benchmark";
+
+	@Param({ "false", "true" })
+	public boolean coalesce;
+
+	private List<String> code;
+	private S3GDeviceEmulator board;
+	private Sanguino3GDriver driver;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		code = SyntheticInputs.circles(4, 500);
+		board = new S3GDeviceEmulator();
+		board.setTimeScale(0);
+		board.setLatency(1000, 0);
+		Serial.registerVirtualPort(PORT, board);
+		driver = new Sanguino3GDriver();
+		driver.setMachine(SyntheticInputs.machine());
+		driver.openSerial(PORT);
+		driver.initialize();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		driver.dispose();
+		Serial.unregisterVirtualPort(PORT);
+	}
+
+	/** @return packets sent */
+	@Benchmark
+	public long build() throws Exception {
+		GCodeParser parser = new GCodeParser();
+		MoveCoalescer coalescer = null;
+		if (coalesce) {
+			coalescer = new MoveCoalescer(driver, 0.02);
+			parser.init(coalescer);
+		} else {
+			parser.init(driver);
+		}
+		long before = board.getPacketCount();
+		Queue<DriverCommand> parsed = new LinkedList<DriverCommand>();
+		Queue<DriverCommand> out = new LinkedList<DriverCommand>();
+		for (String line : code) {
+			parser.parse(line, coalesce ? parsed : out);
+			if (coalesce) coalescer.process(parsed, out);
+			drain(out);
+		}
+		if (coalesce) coalescer.flush(out);
+		drain(out);
+		while (!board.isFinished()) Thread.sleep(1);
+		return board.getPacketCount() - before;
+	}
+
+	private void drain(Queue<DriverCommand> out) throws Exception {
+		while (!out.isEmpty()) {
+			try {
+				out.peek().run(driver);
+				out.remove();
+			} catch (RetryException e) {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeEstimator;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Parsing lines, turning them into driver commands, and estimating a
+ * whole build. The per-line benchmarks report time per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GCodeBenchmark {
+
+	static final int LINES = 10000;
+
+	private String[] lines;
+	private MutableGCodeSource build;
+	private MachineModel model;
+	private GCodeParser parser;
+	private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+	@Setup
+	public void setUp() {
+		List<String> generated = SyntheticInputs.gcode(200, 250);
+		lines = generated.subList(0, LINES).toArray(new String[LINES]);
+		build = new MutableGCodeSource(generated);
+		model = SyntheticInputs.machine();
+		EstimationDriver driver = new EstimationDriver();
+		driver.setMachine(model);
+		parser = new GCodeParser();
+		parser.init(driver);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void parseLine(Blackhole bh) {
+		for (String line : lines) bh.consume(new GCodeCommand(line));
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public void buildCommands(Blackhole bh) {
+		for (String line : lines) {
+			parser.parse(line, queue);
+			for (DriverCommand c : queue) bh.consume(c);
+			queue.clear();
+		}
+	}
+
+	/** All 50,000-odd lines of the generated build */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public double estimateFile() {
+		return GCodeEstimator.estimate(model, build);
+	}
+
+	/** The pre-build safety check of the same build */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public GCodeAnalyzer.Report safetyCheckFile() {
+		return new GCodeAnalyzer(model).analyze(build);
+	}
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.j3d.loaders.stl.STLFileReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Reading every facet of a binary STL, as loading a model does. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MeshBenchmark {
+
+	/** rings of the sphere; facets are about 4 * rings^2 */
+	@Param({ "50", "250" })
+	public int rings;
+
+	private File file;
+	private URL url;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = File.createTempFile("bench", ".stl");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(SyntheticInputs.stlSphere(rings, rings * 2, 20));
+		} finally {
+			out.close();
+		}
+		url = file.toURI().toURL();
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public double loadStl() throws IOException {
+		// sniffs for ASCII first, as loading a model does
+		STLFileReader reader = new STLFileReader(url);
+		double[] normal = new double[3];
+		double[][] vertices = new double[3][3];
+		double sum = 0;
+		try {
+			// getNextFacet() never says when it's done, so go by the header's count
+			int facets = reader.getNumOfFacets()[0];
+			for (int i = 0; i < facets; i++) {
+				reader.getNextFacet(normal, vertices);
+				sum += Math.abs(vertices[0][2]);
+			}
+		} finally {
+			reader.close();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import replicatorg.drivers.MotionKernel;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Planning a single move: steps, safe feedrate and step timing, both with
+ * the kernel the drivers use and the way they used to do it with fresh
+ * points at every step. Run with -prof gc to see the allocation per move.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionBenchmark {
+
+	private Point5d[] points;
+	private MachineModel model;
+	private final MotionKernel kernel = new MotionKernel();
+	private int step = 0;
+
+	@Setup
+	public void setUp() {
+		model = SyntheticInputs.machine();
+		Random r = new Random(1);
+		points = new Point5d[1024];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = new Point5d(r.nextDouble() * 100, r.nextDouble() * 100, r.nextDouble() * 10, i * 0.05, 0);
+		}
+	}
+
+	@Benchmark
+	public long kernel() {
+		int s = step++;
+		Point5d current = points[s & 1023];
+		Point5d target = points[(s + 1) & 1023];
+		if (!kernel.plan(current, target, model.getStepsPerMM(), model.getMaximumFeedrates(), 3000)) return 0;
+		return (long)kernel.getSteps().x() + kernel.getStepDelay();
+	}
+
+	/** As Sanguino3GDriver.queuePoint did before the kernel */
+	@Benchmark
+	public long points() {
+		int s = step++;
+		Point5d current = new Point5d(points[s & 1023]);
+		Point5d target = points[(s + 1) & 1023];
+		Point5d absDelta = new Point5d();
+		absDelta.sub(target, current);
+		absDelta.absolute();
+		Point5d deltaSteps = model.mmToSteps(absDelta);
+		double master = deltaSteps.absolute_maximum();
+		if (master == 0) return 0;
+		Point5d steps = model.mmToSteps(target);
+		Point5d delta = new Point5d();
+		delta.sub(target, new Point5d(current));
+		delta.absolute();
+		double feedrate = MotionKernel.limitFeedrate(3000, delta, delta.length(), model.getMaximumFeedrates());
+		Point5d again = new Point5d();
+		again.sub(target, new Point5d(current));
+		again.absolute();
+		double micros = again.magnitude() / feedrate * 60000000.0;
+		return (long)steps.x() + Math.round(micros / model.mmToSteps(again).absolute_maximum());
+	}
+}
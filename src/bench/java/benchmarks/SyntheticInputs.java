@@ -0,0 +1,201 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Generated inputs for the benchmarks. Everything is built from a fixed
+ * seed, so runs on different machines and revisions see the same bytes.
+ */
+public class SyntheticInputs {
+
+	static final long SEED = 0x5EED;
+
+	/** A single extruder cartesian bot, roughly a Replicator 2 */
+	public static MachineModel machine() {
+		String xml = "<machine><name>Benchmark Bot</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"285\" maxfeedrate=\"18000\" stepspermm=\"88.57\"/>" +
+			"<axis id=\"y\" length=\"153\" maxfeedrate=\"18000\" stepspermm=\"88.57\"/>" +
+			"<axis id=\"z\" length=\"155\" maxfeedrate=\"1170\" stepspermm=\"400\"/>" +
+			"<axis id=\"a\" length=\"100000\" maxfeedrate=\"1600\" stepspermm=\"96.27\"/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" material=\"pla\" motor=\"true\" heater=\"true\"/></tools>" +
+			"<driver name=\"null\"/></machine>";
+		try {
+			MachineModel model = new MachineModel();
+			model.loadXML(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement());
+			return model;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * A build of the given number of layers, mixed the way sliced files
+	 * are: mostly extruding moves, some travel, and the odd temperature,
+	 * fan and comment line.
+	 */
+	public static List<String> gcode(int layers, int movesPerLayer) {
+		Random r = new Random(SEED);
+		List<String> lines = new ArrayList<String>();
+		lines.add("(generated benchmark build)");
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("M104 S220 T0");
+		lines.add("M109 S110");
+		lines.add("G92 X0 Y0 Z0 A0");
+		double e = 0;
+		double x = 0, y = 0;
+		for (int layer = 0; layer < layers; layer++) {
+			double z = 0.2 + layer * 0.27;
+			lines.add("(<layer> " + fmt(z) + " )");
+			lines.add("G1 Z" + fmt(z) + " F1200");
+			if (layer == 2) lines.add("M106 (fan on)");
+			for (int i = 0; i < movesPerLayer; i++) {
+				double nx = (r.nextDouble() - 0.5) * 100;
+				double ny = (r.nextDouble() - 0.5) * 100;
+				int kind = r.nextInt(100);
+				if (kind < 15) {
+					lines.add("G1 X" + fmt(nx) + " Y" + fmt(ny) + " F4800");
+				} else if (kind < 17) {
+					lines.add("M108 R" + fmt(1 + r.nextDouble()) + " (speed change)");
+				} else if (kind < 18) {
+					lines.add("(perimeter " + i + ")");
+					continue;
+				} else {
+					e += Math.hypot(nx - x, ny - y) * 0.03;
+					lines.add("G1 X" + fmt(nx) + " Y" + fmt(ny) + " A" + fmt(e) + " F1800");
+				}
+				x = nx;
+				y = ny;
+			}
+		}
+		lines.add("M107");
+		lines.add("M104 S0 T0");
+		lines.add("G1 Z" + fmt(layers * 0.27 + 10) + " F1200");
+		return lines;
+	}
+
+	/**
+	 * Circles cut into tiny extruding segments, as slicers leave curved
+	 * perimeters: the case move coalescing is for.
+	 */
+	public static List<String> circles(int circles, int segments) {
+		List<String> lines = new ArrayList<String>();
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("G92 X0 Y0 Z0 A0");
+		lines.add("G1 Z0.3 F1200");
+		double e = 0;
+		for (int c = 0; c < circles; c++) {
+			double radius = 10 + c;
+			lines.add("G1 X" + fmt(radius) + " Y0 F1800");
+			double step = 2 * Math.PI * radius / segments;
+			for (int i = 1; i <= segments; i++) {
+				double angle = 2 * Math.PI * i / segments;
+				e += step * 0.04;
+				lines.add("G1 X" + fmt(radius * Math.cos(angle)) + " Y" + fmt(radius * Math.sin(angle))
+						+ " A" + fmt(e));
+			}
+		}
+		return lines;
+	}
+
+	private static String fmt(double v) {
+		return String.format(Locale.US, "%.3f", v);
+	}
+
+	/** A binary STL of a UV sphere, with about 2 * rings * segments facets */
+	public static byte[] stlSphere(int rings, int segments, double radius) {
+		List<float[]> facets = new ArrayList<float[]>();
+		for (int i = 0; i < rings; i++) {
+			double t0 = Math.PI * i / rings, t1 = Math.PI * (i + 1) / rings;
+			for (int j = 0; j < segments; j++) {
+				double p0 = 2 * Math.PI * j / segments, p1 = 2 * Math.PI * (j + 1) / segments;
+				float[] a = point(radius, t0, p0), b = point(radius, t1, p0);
+				float[] c = point(radius, t1, p1), d = point(radius, t0, p1);
+				if (i > 0) facets.add(facet(a, b, d));
+				if (i < rings - 1) facets.add(facet(b, c, d));
+			}
+		}
+		ByteBuffer buf = ByteBuffer.allocate(84 + facets.size() * 50).order(ByteOrder.LITTLE_ENDIAN);
+		buf.put(new byte[80]);
+		buf.putInt(facets.size());
+		for (float[] f : facets) {
+			for (float v : f) buf.putFloat(v);
+			buf.putShort((short)0);
+		}
+		return buf.array();
+	}
+
+	private static float[] point(double r, double theta, double phi) {
+		return new float[] {
+			(float)(r * Math.sin(theta) * Math.cos(phi)),
+			(float)(r * Math.sin(theta) * Math.sin(phi)),
+			(float)(r * Math.cos(theta)) };
+	}
+
+	private static float[] facet(float[] a, float[] b, float[] c) {
+		double ux = b[0] - a[0], uy = b[1] - a[1], uz = b[2] - a[2];
+		double vx = c[0] - a[0], vy = c[1] - a[1], vz = c[2] - a[2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (len == 0) len = 1;
+		return new float[] { (float)(nx / len), (float)(ny / len), (float)(nz / len),
+			a[0], a[1], a[2], b[0], b[1], b[2], c[0], c[1], c[2] };
+	}
+
+	/**
+	 * Responses as a bot sends them during a build: mostly bare OKs to
+	 * queued moves, with position and temperature answers and the odd
+	 * buffer overflow.
+	 */
+	public static byte[][] s3gResponses(int count) {
+		Random r = new Random(SEED);
+		byte[][] packets = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			int kind = r.nextInt(100);
+			byte[] payload;
+			if (kind < 80) {
+				payload = new byte[] { (byte)0x81 };
+			} else if (kind < 90) {
+				// GET_POSITION: x, y, z as int32, then endstops
+				payload = new byte[14];
+				payload[0] = (byte)0x81;
+				for (int k = 1; k < payload.length; k++) payload[k] = (byte)r.nextInt(256);
+			} else if (kind < 97) {
+				// temperature, int16
+				payload = new byte[] { (byte)0x81, (byte)r.nextInt(256), 0 };
+			} else {
+				payload = new byte[] { (byte)0x82 };
+			}
+			packets[i] = packet(payload);
+		}
+		return packets;
+	}
+
+	static byte[] packet(byte[] payload) {
+		byte[] p = new byte[payload.length + 3];
+		IButtonCrc crc = new IButtonCrc();
+		p[0] = (byte)0xD5;
+		p[1] = (byte)payload.length;
+		for (int i = 0; i < payload.length; i++) {
+			p[i + 2] = payload[i];
+			crc.update(payload[i]);
+		}
+		p[p.length - 1] = crc.getCrc();
+		return p;
+	}
+}
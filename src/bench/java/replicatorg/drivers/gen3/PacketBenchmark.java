@@ -0,0 +1,83 @@
+package replicatorg.drivers.gen3;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import replicatorg.app.tools.IButtonCrc;
+import benchmarks.SyntheticInputs;
+
+/**
+ * Encoding S3G packets and decoding a canned stream of responses. Lives
+ * in the driver's package since the packet classes are package-private.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	static final int RESPONSES = 1000;
+
+	private byte[][] responses;
+	private byte[] block;
+	private int step = 0;
+
+	@Setup
+	public void setUp() {
+		responses = SyntheticInputs.s3gResponses(RESPONSES);
+		block = new byte[4096];
+		new java.util.Random(1).nextBytes(block);
+	}
+
+	/** A five-axis move, the packet sent most often during a build */
+	@Benchmark
+	public byte[] encodeQueuePoint() {
+		int s = step++;
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
+		pb.add32(s * 47);
+		pb.add32(-s * 47);
+		pb.add32(s * 400);
+		pb.add32(s * 96);
+		pb.add32(0);
+		pb.add32(1250);
+		pb.add8(0x1f);
+		pb.addFloat(1.5f);
+		pb.add16(200);
+		return pb.getPacket();
+	}
+
+	/** Per response, with a processor per packet as runCommand does it */
+	@Benchmark
+	@OperationsPerInvocation(RESPONSES)
+	public void decodeResponses(Blackhole bh) throws PacketProcessor.CRCException {
+		for (byte[] packet : responses) {
+			PacketProcessor pp = new PacketProcessor();
+			for (byte b : packet) {
+				if (pp.processByte(b)) bh.consume(pp.getResponse());
+			}
+		}
+	}
+
+	/** Per kilobyte */
+	@Benchmark
+	@OperationsPerInvocation(4)
+	public byte crc() {
+		IButtonCrc crc = new IButtonCrc();
+		for (byte b : block) crc.update(b);
+		return crc.getCrc();
+	}
+}
@@ -0,0 +1,400 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MotionKernel;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueueArc;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SetFeedrate;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.PlannerModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Plans acceleration on the host for firmware that runs each move at one
+ * constant step rate. Without it, every corner and every start and stop is
+ * an instant change of speed, so the feedrate has to be kept low enough for
+ * the motors to take those changes without skipping steps.
+ *
+ * This sits between the parser and the driver, and holds back a window of
+ * upcoming moves. Each move is sent once the window is full, split into
+ * pieces of constant speed: steps up from the speed it enters at, a cruise,
+ * and steps down to the speed it leaves at. No step changes the speed of any
+ * axis by more than half its jerk, and the corner speed between moves is
+ * kept low enough that turning the corner changes the speed of any axis by
+ * at most half its jerk as well, so a corner and a step together stay within
+ * it. Each step lasts long enough that the speed rises no faster than the
+ * acceleration allows, and no piece is shorter than the minimum segment. A
+ * backward pass over the window makes sure the machine can always slow down
+ * in time to stop at the end of it.
+ *
+ * Arcs are broken into chords here, and each chord planned like any other
+ * move. Anything else is treated as a stop: the window is
+ * sent, slowing down to a speed the machine can stop from, and the command
+ * goes out after it. While moves are held back, the parser must ask this for
+ * the current position rather than the driver.
+ */
+public class AccelerationPlanner implements DriverQueryInterface {
+	private static final int AXES = 5;
+
+	/** A move waiting to be planned */
+	private static class Move {
+		final Point5d start = new Point5d();
+		final Point5d end = new Point5d();
+		final double[] direction = new double[AXES];
+		double length;
+		/** top speed, in mm/s */
+		double nominal;
+		/** the most the speed can change at once along this move */
+		double step;
+		/** the most pieces it can be split into */
+		int pieces;
+		/** the fastest it can turn the corner into this move */
+		double junction;
+		/** the most the speed can jump at the corner into this move */
+		double gap;
+		/** the fastest it can leave at and still stop by the end of the window */
+		double maxExit;
+	}
+
+	private final DriverQueryInterface driver;
+	private final double acceleration;
+	private final double[] jerk = new double[AXES];
+	private final int lookahead;
+	private final double minSegment;
+
+	private final List<Move> window = new ArrayList<Move>();
+	// moves already sent, to be used again; this runs on the machine thread,
+	// so it keeps what it allocates per move to the commands it sends
+	private final List<Move> spare = new ArrayList<Move>();
+	private final Point5d scratch = new Point5d();
+	// where the last move sent ends, until something else goes out
+	private final Point5d sentEnd = new Point5d();
+	private boolean haveSentEnd = false;
+
+	// for breaking arcs into chords
+	private ArcInterpolator arc = null;
+	private final double[] chords = new double[16 * ArcInterpolator.STRIDE];
+	private final Point5d chordEnd = new Point5d();
+
+	// the pieces of the move being sent: speeds, lengths, and the cruise
+	// between the steps up and the steps down; see ramps()
+	private double[] speeds = new double[16];
+	private double[] lengths = new double[16];
+	private int count;
+	private int cruiseIndex;
+	private double rampLength;
+
+	// how the last piece went out, to work out the corner into the next move
+	private boolean moving = false;
+	private double exitSpeed = 0;
+	private double exitStep = 0;
+	private final double[] exitDirection = new double[AXES];
+
+	private double feedrate = Double.NaN;
+	private double sentFeedrate = Double.NaN;
+
+	private long movesIn = 0;
+	private long piecesOut = 0;
+	private double distance = 0;
+	private double plannedMillis = 0;
+	private double nominalMillis = 0;
+
+	public AccelerationPlanner(DriverQueryInterface driver, PlannerModel planner) {
+		this.driver = driver;
+		this.acceleration = planner.getAcceleration();
+		for (int i = 0; i < AXES; i++) jerk[i] = planner.getJerk().get(i);
+		this.lookahead = Math.max(1, planner.getLookahead());
+		this.minSegment = planner.getMinSegment();
+	}
+
+	/**
+	 * Take the commands parsed from a line, and pass on those that can go to
+	 * the driver now.
+	 */
+	public void process(Queue<DriverCommand> in, Queue<DriverCommand> out) {
+		while (!in.isEmpty()) {
+			DriverCommand c = in.remove();
+			if (c instanceof SetFeedrate) {
+				feedrate = ((SetFeedrate)c).getFeedrate();
+			} else if (c instanceof QueuePoint && !Double.isNaN(feedrate)) {
+				movesIn++;
+				add(((QueuePoint)c).getDestination());
+				while (window.size() > lookahead) send(out);
+			} else if (c instanceof QueueArc && !Double.isNaN(feedrate)) {
+				addArc((QueueArc)c, out);
+			} else {
+				flush(out);
+				sendFeedrate(feedrate, out);
+				out.add(c);
+				haveSentEnd = false;
+			}
+		}
+	}
+
+	/** Send every move held back, bringing the machine down to a stop. */
+	public void flush(Queue<DriverCommand> out) {
+		while (!window.isEmpty()) send(out);
+		moving = false;
+		exitSpeed = 0;
+	}
+
+	private void sendFeedrate(double f, Queue<DriverCommand> out) {
+		if (Double.isNaN(f) || f == sentFeedrate) return;
+		out.add(new SetFeedrate(f));
+		sentFeedrate = f;
+	}
+
+	/** The fastest the speed along a direction can change at once */
+	private double stepFor(double[] direction) {
+		double step = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < AXES; i++) {
+			if (direction[i] != 0) step = Math.min(step, jerk[i] / (2 * Math.abs(direction[i])));
+		}
+		return step;
+	}
+
+	/** The fastest a corner between two directions can be taken */
+	private double junctionFor(double[] from, double[] to) {
+		double speed = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < AXES; i++) {
+			double change = Math.abs(to[i] - from[i]);
+			if (change > 1e-12) speed = Math.min(speed, jerk[i] / (2 * change));
+		}
+		return speed;
+	}
+
+	private void add(Point5d to) {
+		Move m = spare.isEmpty() ? new Move() : spare.remove(spare.size() - 1);
+		if (!window.isEmpty()) {
+			m.start.set(window.get(window.size() - 1).end);
+		} else if (haveSentEnd) {
+			m.start.set(sentEnd);
+		} else {
+			m.start.set(driver.getCurrentPosition(false));
+		}
+		m.end.set(to);
+		double lengthSq = 0;
+		for (int i = 0; i < AXES; i++) {
+			double d = m.end.get(i) - m.start.get(i);
+			scratch.set(i, Math.abs(d));
+			lengthSq += d * d;
+		}
+		m.length = Math.sqrt(lengthSq);
+		if (m.length == 0) {
+			spare.add(m);
+			return;
+		}
+		for (int i = 0; i < AXES; i++) m.direction[i] = (m.end.get(i) - m.start.get(i)) / m.length;
+		MachineModel machine = driver.getMachine();
+		m.nominal = MotionKernel.limitFeedrate(feedrate, scratch, m.length, machine.getMaximumFeedrates()) / 60.0;
+		m.step = stepFor(m.direction);
+		m.pieces = (int)Math.max(1, Math.min(Integer.MAX_VALUE, Math.floor(m.length / minSegment)));
+
+		if (!window.isEmpty()) {
+			Move prev = window.get(window.size() - 1);
+			m.junction = junctionFor(prev.direction, m.direction);
+			m.gap = Math.min(prev.step, m.step);
+		} else if (moving) {
+			m.junction = junctionFor(exitDirection, m.direction);
+			m.gap = Math.min(exitStep, m.step);
+		} else {
+			// starting from a standstill
+			m.junction = Double.POSITIVE_INFINITY;
+			m.gap = m.step;
+		}
+		window.add(m);
+	}
+
+	/** Add the chords of an arc as moves, sending any that fall out of the window */
+	private void addArc(QueueArc a, Queue<DriverCommand> out) {
+		if (arc == null || arc.getTolerance() != a.getTolerance()) arc = new ArcInterpolator(a.getTolerance());
+		arc.start(getCurrentPosition(false), a.getCenter(), a.getEndpoint(), a.isClockwise());
+		while (arc.hasNext()) {
+			int n = arc.next(chords);
+			for (int i = 0; i < n; i++) {
+				for (int axis = 0; axis < AXES; axis++) {
+					chordEnd.set(axis, chords[i * ArcInterpolator.STRIDE + axis]);
+				}
+				movesIn++;
+				add(chordEnd);
+				while (window.size() > lookahead) send(out);
+			}
+		}
+	}
+
+	/** Plan the window, and send the oldest move in it. */
+	private void send(Queue<DriverCommand> out) {
+		// backward: how fast each move can go and still stop in time
+		int n = window.size();
+		Move last = window.get(n - 1);
+		double maxExit = Math.min(last.nominal, last.step);
+		double maxEntry = 0;
+		for (int i = n - 1; i >= 0; i--) {
+			Move m = window.get(i);
+			m.maxExit = maxExit;
+			maxEntry = Math.min(Math.min(m.nominal, m.junction),
+					Math.min(maxExit + (m.pieces - 1) * m.step,
+							Math.sqrt(maxExit * maxExit + 2 * acceleration * m.length)));
+			if (i > 0) {
+				Move prev = window.get(i - 1);
+				maxExit = Math.min(Math.min(prev.nominal, m.junction), maxEntry + m.gap);
+			}
+		}
+
+		// forward, for the move going out
+		Move m = window.remove(0);
+		double entry = Math.min(maxEntry, (moving ? exitSpeed : 0) + m.gap);
+		double exit = Math.min(m.maxExit, Math.min(entry + (m.pieces - 1) * m.step,
+				Math.sqrt(entry * entry + 2 * acceleration * m.length)));
+		emit(m, entry, exit, out);
+		sentEnd.set(m.end);
+		haveSentEnd = true;
+
+		moving = true;
+		exitSpeed = exit;
+		exitStep = m.step;
+		System.arraycopy(m.direction, 0, exitDirection, 0, AXES);
+		spare.add(m);
+	}
+
+	/**
+	 * Lay out the steps up from entry to cruise, and down from cruise to exit,
+	 * in speeds and lengths, with the cruise between them left at no length.
+	 */
+	private void ramps(Move m, double entry, double cruise, double exit) {
+		int up = cruise > entry ? (int)Math.ceil((cruise - entry) / m.step - 1e-9) : 0;
+		int down = cruise > exit ? (int)Math.ceil((cruise - exit) / m.step - 1e-9) : 0;
+		count = up + 1 + down;
+		rampLength = 0;
+		if (count > speeds.length) {
+			int size = Math.max(count, 2 * speeds.length);
+			speeds = new double[size];
+			lengths = new double[size];
+		}
+		int n = 0;
+		for (int k = 0; k < up; k++) {
+			double rise = (cruise - entry) / up;
+			double speed = entry + k * rise;
+			speeds[n] = speed;
+			lengths[n++] = Math.max(speed * rise / acceleration, minSegment);
+		}
+		cruiseIndex = n;
+		speeds[n] = cruise;
+		lengths[n++] = 0;
+		for (int k = 1; k <= down; k++) {
+			double fall = (cruise - exit) / down;
+			double speed = cruise - k * fall;
+			speeds[n] = speed;
+			lengths[n++] = Math.max(speed * fall / acceleration, minSegment);
+		}
+		for (int i = 0; i < n; i++) rampLength += lengths[i];
+	}
+
+	/** True if the pieces laid out by the last ramps() fit in the move */
+	private boolean fits(Move m) {
+		return count <= m.pieces && rampLength <= m.length;
+	}
+
+	private void emit(Move m, double entry, double exit, Queue<DriverCommand> out) {
+		double low = Math.max(entry, exit);
+		double high = Math.max(low, Math.min(m.nominal,
+				Math.sqrt((2 * acceleration * m.length + entry * entry + exit * exit) / 2)));
+		ramps(m, entry, high, exit);
+		if (!fits(m)) {
+			// find the fastest cruise that leaves room for the steps up and down
+			for (int i = 0; i < 40; i++) {
+				double mid = (low + high) / 2;
+				ramps(m, entry, mid, exit);
+				if (fits(m)) low = mid;
+				else high = mid;
+			}
+			ramps(m, entry, low, exit);
+		}
+
+		// the cruise is whatever length is left over; if that's too short to
+		// be worth sending, the steps share it out instead
+		double left = m.length - rampLength;
+		if (left >= minSegment || count == 1 || rampLength == 0) {
+			lengths[cruiseIndex] = left;
+		} else {
+			count--;
+			System.arraycopy(speeds, cruiseIndex + 1, speeds, cruiseIndex, count - cruiseIndex);
+			System.arraycopy(lengths, cruiseIndex + 1, lengths, cruiseIndex, count - cruiseIndex);
+			double scale = m.length / rampLength;
+			for (int i = 0; i < count; i++) lengths[i] *= scale;
+		}
+
+		// each piece's point is kept by its command until the driver runs it,
+		// so unlike everything else here it can't be used again
+		double done = 0;
+		for (int i = 0; i < count; i++) {
+			double speed = speeds[i];
+			double length = lengths[i];
+			if (length <= 0) continue;
+			done += length;
+			Point5d to = new Point5d();
+			if (i < count - 1) {
+				for (int a = 0; a < AXES; a++) {
+					to.set(a, m.start.get(a) + (m.end.get(a) - m.start.get(a)) * (done / m.length));
+				}
+			} else {
+				to.set(m.end);
+			}
+			sendFeedrate(speed * 60.0, out);
+			out.add(new QueuePoint(to));
+			piecesOut++;
+			plannedMillis += length / speed * 1000.0;
+		}
+		distance += m.length;
+		nominalMillis += m.length / m.nominal * 1000.0;
+	}
+
+	/** Moves taken in, counting each chord of an arc */
+	public long getMovesIn() { return movesIn; }
+
+	/** Pieces passed on to the driver */
+	public long getPiecesOut() { return piecesOut; }
+
+	/** Time the planned moves take, in milliseconds */
+	public double getPlannedMillis() { return plannedMillis; }
+
+	/** Time the same moves would take at their full feedrates, with no acceleration at all */
+	public double getNominalMillis() { return nominalMillis; }
+
+	public String toString() {
+		return String.format("Planned %d moves as %d pieces: %.1f mm/s on average, %.0f%% of the requested speed",
+				movesIn, piecesOut, plannedMillis == 0 ? 0 : distance / plannedMillis * 1000.0,
+				plannedMillis == 0 ? 100 : 100 * nominalMillis / plannedMillis);
+	}
+
+	/** Where the driver will be once everything passed on and held back has run */
+	public Point5d getCurrentPosition(boolean b) {
+		if (!window.isEmpty()) return new Point5d(window.get(window.size() - 1).end);
+		if (haveSentEnd) return new Point5d(sentEnd);
+		return driver.getCurrentPosition(b);
+	}
+
+	public Point3d getOffset(int i) { return driver.getOffset(i); }
+	public Point5d getMaximumFeedrates() { return driver.getMaximumFeedrates(); }
+	public double getSpindleRPM() { return driver.getSpindleRPM(); }
+	public double getMotorRPM() { return driver.getMotorRPM(); }
+	public int getMotorSpeedPWM() { return driver.getMotorSpeedPWM(); }
+	public double getTemperature(int toolhead) { return driver.getTemperature(toolhead); }
+	public double getTemperatureSetting() { return driver.getTemperatureSetting(); }
+	public boolean hasAutomatedBuildPlatform() { return driver.hasAutomatedBuildPlatform(); }
+	public double getPlatformTemperature(int toolhead) { return driver.getPlatformTemperature(toolhead); }
+	public double getPlatformTemperatureSetting() { return driver.getPlatformTemperatureSetting(); }
+	public boolean isPassthroughDriver() { return driver.isPassthroughDriver(); }
+	public Version getVersion() { return driver.getVersion(); }
+	public Version getPreferredVersion() { return driver.getPreferredVersion(); }
+	public String getConfigValue(String value, String baseline) { return driver.getConfigValue(value, baseline); }
+	public MachineModel getMachine() { return driver.getMachine(); }
+}
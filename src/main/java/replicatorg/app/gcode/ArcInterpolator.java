@@ -0,0 +1,131 @@
+package replicatorg.app.gcode;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Breaks a G2/G3 arc into straight segments. The number of segments is
+ * chosen so that no chord strays further than a given tolerance from the
+ * true arc, and the points are produced by rotating the radius vector by a
+ * fixed step rather than evaluating sin and cos for every one of them.
+ *
+ * Points are written five doubles (x, y, z, a, b) at a time into a buffer
+ * the caller owns, so an arc can be drained a few segments at a time.
+ */
+public class ArcInterpolator {
+	/** Number of rotations between exact recomputations of the radius vector */
+	private static final int CORRECTION_INTERVAL = 25;
+
+	/** Doubles written per point */
+	public static final int STRIDE = 5;
+
+	private final double tolerance;
+
+	// the arc being drawn
+	private double centerX, centerY, radius, startAngle, stepAngle;
+	private double cosStep, sinStep;
+	private double vectorX, vectorY;
+	private final double[] start = new double[STRIDE];
+	private final double[] end = new double[STRIDE];
+	private int segments;
+	private int done;
+
+	/**
+	 * @param tolerance the furthest, in mm, a segment may stray from the arc
+	 */
+	public ArcInterpolator(double tolerance) {
+		if (tolerance <= 0) throw new IllegalArgumentException("Arc tolerance must be positive");
+		this.tolerance = tolerance;
+	}
+
+	public double getTolerance() { return tolerance; }
+
+	/**
+	 * The number of chords needed to follow an arc within the tolerance.
+	 * @param radius of the arc
+	 * @param angle swept by the arc, in radians
+	 */
+	public static int segmentsFor(double radius, double angle, double tolerance) {
+		if (radius <= tolerance) return 1;
+		// a chord spanning theta radians sits r(1 - cos(theta/2)) inside the arc
+		double theta = 2 * Math.acos(1 - tolerance / radius);
+		return Math.max(1, (int)Math.ceil(Math.abs(angle) / theta));
+	}
+
+	/**
+	 * Start a new arc, abandoning any points left over from the last one.
+	 * Only x and y follow the arc; z, a and b move linearly from start to end.
+	 * @return the number of segments the arc will be drawn with
+	 */
+	public int start(Point5d from, Point5d center, Point5d to, boolean clockwise) {
+		centerX = center.x();
+		centerY = center.y();
+		double aX = from.x() - centerX;
+		double aY = from.y() - centerY;
+		double bX = to.x() - centerX;
+		double bY = to.y() - centerY;
+		radius = Math.sqrt(aX * aX + aY * aY);
+		startAngle = Math.atan2(aY, aX);
+
+		// the angle swept, in the direction of travel; matching ends
+		// make a complete circle
+		double angle = Math.atan2(aX * bY - aY * bX, aX * bX + aY * bY);
+		if (clockwise) {
+			if (angle >= 0) angle -= 2 * Math.PI;
+		} else {
+			if (angle <= 0) angle += 2 * Math.PI;
+		}
+
+		segments = segmentsFor(radius, angle, tolerance);
+		stepAngle = angle / segments;
+		cosStep = Math.cos(stepAngle);
+		sinStep = Math.sin(stepAngle);
+		vectorX = aX;
+		vectorY = aY;
+		for (int i = 0; i < STRIDE; i++) {
+			start[i] = from.get(i);
+			end[i] = to.get(i);
+		}
+		done = 0;
+		return segments;
+	}
+
+	public int getSegments() { return segments; }
+
+	public boolean hasNext() { return done < segments; }
+
+	/**
+	 * Write as many of the remaining segment ends as fit into the buffer.
+	 * The last one is always exactly the endpoint the arc was started with.
+	 * @return the number of points written
+	 */
+	public int next(double[] buffer) {
+		int count = 0;
+		int offset = 0;
+		while (done < segments && offset + STRIDE <= buffer.length) {
+			done++;
+			if (done == segments) {
+				System.arraycopy(end, 0, buffer, offset, STRIDE);
+			} else {
+				if (done % CORRECTION_INTERVAL == 0) {
+					// rounding creeps in as the vector is rotated over and over
+					double a = startAngle + stepAngle * done;
+					vectorX = radius * Math.cos(a);
+					vectorY = radius * Math.sin(a);
+				} else {
+					double x = vectorX * cosStep - vectorY * sinStep;
+					vectorY = vectorX * sinStep + vectorY * cosStep;
+					vectorX = x;
+				}
+				double t = (double)done / segments;
+				buffer[offset] = centerX + vectorX;
+				buffer[offset + 1] = centerY + vectorY;
+				for (int i = 2; i < STRIDE; i++) {
+					buffer[offset + i] = start[i] + (end[i] - start[i]) * t;
+				}
+			}
+			offset += STRIDE;
+			count++;
+		}
+		return count;
+	}
+}
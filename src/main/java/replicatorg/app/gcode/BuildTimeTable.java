@@ -0,0 +1,129 @@
+package replicatorg.app.gcode;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+
+/**
+ * The estimated time from the start of a build to each point in its code, so
+ * that progress and time remaining can follow the time a build takes rather
+ * than its line count. Slow infill and quick perimeter segments are
+ * otherwise counted the same.
+ *
+ * Times are kept as floats, one for each bucket of lines. Buckets start a
+ * line long and double in size whenever the table fills, so even a very long
+ * file takes a fixed amount of memory; lookups interpolate within a bucket
+ * and take constant time.
+ */
+public class BuildTimeTable {
+	static final int MAX_BUCKETS = 1 << 15;
+
+	/** Below this much estimated time, the build is too young to judge how far off the estimate is */
+	static final double DRIFT_MIN_MILLIS = 30 * 1000;
+	/** How far the estimate may be corrected, either way */
+	static final double DRIFT_LIMIT = 3.0;
+
+	private float[] times;
+	private int buckets = 0;
+	private int shift = 0;
+	private int lines = 0;
+	private double total = 0;
+
+	BuildTimeTable(int capacity) {
+		times = new float[Math.max(2, capacity)];
+	}
+
+	/** An empty table, to be filled a line at a time with {@link #add(double)} */
+	public BuildTimeTable() {
+		this(MAX_BUCKETS);
+	}
+
+	/** Estimate the whole source, keeping the time at each point along the way. */
+	public static BuildTimeTable estimate(MachineModel model, GCodeSource source) {
+		GCodeEstimator e = new GCodeEstimator(model);
+		BuildTimeTable table = new BuildTimeTable();
+		for (String line : source) {
+			e.add(line);
+			table.add(e.getBuildTime());
+		}
+		return table;
+	}
+
+	/** Record the time at the end of the next line. */
+	public void add(double millis) {
+		lines++;
+		total = millis;
+		if ((lines & ((1 << shift) - 1)) != 0) return;
+		if (buckets == times.length) {
+			// fold pairs of buckets together
+			for (int i = 0; i < buckets / 2; i++) times[i] = times[2 * i + 1];
+			buckets /= 2;
+			shift++;
+			if ((lines & ((1 << shift) - 1)) != 0) return;
+		}
+		times[buckets++] = (float)millis;
+	}
+
+	public int getLineCount() { return lines; }
+
+	/**
+	 * The same times, for the code after lines that take no time were put in
+	 * among the lines that were estimated.
+	 * @param lineCount the number of lines now
+	 */
+	public BuildTimeTable remap(LineShifts shifts, int lineCount) {
+		BuildTimeTable moved = new BuildTimeTable(times.length);
+		int done = 0;
+		for (int line = 0; line < lineCount; line++) {
+			if (done < lines && shifts.map(done) == line) done++;
+			moved.add(getMillisAt(done));
+		}
+		return moved;
+	}
+
+	/** Estimated time for all of it, in milliseconds */
+	public double getTotalMillis() { return total; }
+
+	/** Lines in each bucket */
+	int getBucketSize() { return 1 << shift; }
+
+	/**
+	 * Estimated time to get through the given number of lines.
+	 */
+	public double getMillisAt(int done) {
+		if (done <= 0) return 0;
+		if (done >= lines) return total;
+		int bucket = done >> shift;
+		int first = bucket << shift;
+		double from = bucket == 0 ? 0 : times[bucket - 1];
+		double to = bucket < buckets ? times[bucket] : total;
+		int size = Math.min(first + (1 << shift), lines) - first;
+		return from + (to - from) * (done - first) / size;
+	}
+
+	/** Proportion of the build's time spent by the given line, from 0 to 1 */
+	public double getProportion(int done) {
+		if (total <= 0) return lines == 0 ? 0 : Math.min(1, (double)done / lines);
+		return getMillisAt(done) / total;
+	}
+
+	/**
+	 * Estimated time left after the given line, corrected by how much faster
+	 * or slower than estimated the build has gone so far.
+	 * @param elapsedMillis the time actually taken to get this far
+	 */
+	public double getRemainingMillis(int done, double elapsedMillis) {
+		double expected = getMillisAt(done);
+		double remaining = total - expected;
+		if (expected < DRIFT_MIN_MILLIS || elapsedMillis <= 0) return remaining;
+		double ratio = Math.max(1 / DRIFT_LIMIT, Math.min(DRIFT_LIMIT, elapsedMillis / expected));
+		// trust what has been seen more as more of it has been seen
+		double weight = Math.min(1, expected / (0.2 * total));
+		return remaining * (1 + (ratio - 1) * weight);
+	}
+
+	public String toString() {
+		return "BuildTimeTable(" + lines + " lines, " + buckets + " buckets of " + (1 << shift)
+				+ ", " + EstimationDriver.getBuildTimeString(total) + ")";
+	}
+}
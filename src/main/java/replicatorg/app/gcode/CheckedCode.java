@@ -0,0 +1,94 @@
+package replicatorg.app.gcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+
+/**
+ * The safety check and time estimate for some code, worked out ahead of
+ * time, as they are while a slicer's output is post-processed. A build of
+ * exactly that code, for the same machine, can use them rather than working
+ * them out again.
+ *
+ * The code is recognised by its line count and a hash of its lines, which
+ * takes one quick pass over it.
+ */
+public class CheckedCode {
+	private static volatile CheckedCode latest = null;
+
+	private final MachineModel model;
+	private final int lineCount;
+	private final int hash;
+	private final GCodeAnalyzer.Report report;
+	private final BuildTimeTable timeTable;
+
+	/**
+	 * @param model the machine the code was checked against
+	 * @param lineCount the number of lines checked
+	 * @param hash the lines, hashed with {@link #hash(int, String)}
+	 */
+	public CheckedCode(MachineModel model, int lineCount, int hash,
+			GCodeAnalyzer.Report report, BuildTimeTable timeTable) {
+		this.model = model;
+		this.lineCount = lineCount;
+		this.hash = hash;
+		this.report = report;
+		this.timeTable = timeTable;
+	}
+
+	/** Add a line to a hash of lines; start from 0 */
+	public static int hash(int hash, String line) {
+		return 31 * hash + line.hashCode();
+	}
+
+	public GCodeAnalyzer.Report getReport() { return report; }
+
+	public BuildTimeTable getTimeTable() { return timeTable; }
+
+	/**
+	 * True if this was worked out for the given code on the given machine.
+	 * A final empty line, as a text editor shows after the last newline, is
+	 * ignored.
+	 */
+	public boolean matches(MachineModel model, GCodeSource source) {
+		if (model != this.model) return false;
+		int count = source.getLineCount();
+		if (count != lineCount && count != lineCount + 1) return false;
+		int h = 0, n = 0;
+		Iterator<String> i = source.iterator();
+		while (n < lineCount && i.hasNext()) {
+			h = hash(h, i.next());
+			n++;
+		}
+		try {
+			if (n != lineCount || h != hash) return false;
+			return !i.hasNext() || (i.next().length() == 0 && !i.hasNext());
+		} finally {
+			if (i instanceof Closeable) {
+				try {
+					((Closeable)i).close();
+				} catch (IOException e) {
+					// only read from
+				}
+			}
+		}
+	}
+
+	/** Keep these results for the next build, in place of any kept before */
+	public static void offer(CheckedCode checked) {
+		latest = checked;
+	}
+
+	/**
+	 * @return the results kept for the given code on the given machine, or
+	 * null if it has to be checked and estimated afresh
+	 */
+	public static CheckedCode lookup(MachineModel model, GCodeSource source) {
+		CheckedCode checked = latest;
+		if (checked == null || source == null || !checked.matches(model, source)) return null;
+		return checked;
+	}
+}
@@ -0,0 +1,567 @@
+package replicatorg.app.gcode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.Endstops;
+import replicatorg.machine.model.ExclusionZoneModel;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Static checks run over a block of GCode before it is sent to a machine.
+ *
+ * The source is read once, in order, and handed out in chunks to a pool of
+ * worker threads. Every rule is evaluated for a line in the same pass, using a
+ * single {@link GCodeScanner} per worker instead of building a GCodeCommand for
+ * every line. The per-chunk results are merged, in file order, into a
+ * {@link Report} holding a count of every rule that fired and the first few
+ * offending lines of each.
+ *
+ * Rules that depend on the positioning mode (G90/G91) can't know the mode at
+ * the start of a chunk, so until a chunk sees its own G90 or G91 those
+ * findings are held back and only kept at merge time if the preceding chunks
+ * left the machine in absolute mode. Coordinates are assumed to be in
+ * millimeters.
+ */
+public class GCodeAnalyzer {
+
+	public enum Rule {
+		UNPARSEABLE(Level.SEVERE, "ReplicatorG can't parse"),
+		UNKNOWN_CODE(Level.SEVERE, "ReplicatorG doesn't recognize GCode"),
+		HOMING_DIRECTION(Level.SEVERE, "Homing in the wrong direction for selected machine"),
+		TOOL_INDEX(Level.SEVERE, "Toolhead index error! This machine has no such toolhead"),
+		NEGATIVE_FEEDRATE(Level.SEVERE, "Negative feedrate detected, this causes crashes in the reprap driver"),
+		FEEDRATE_TOO_HIGH(Level.WARNING, "You're moving too fast! At least one axis turns faster than its max speed"),
+		OUT_OF_BOUNDS(Level.WARNING, "Extruding outside of the build volume"),
+		EXCLUSION_ZONE(Level.WARNING, "Moving into an exclusion zone");
+
+		public final Level level;
+		public final String description;
+
+		private Rule(Level level, String description) {
+			this.level = level;
+			this.description = description;
+		}
+	}
+
+	/** One line that broke one rule. */
+	public static class Finding {
+		private final Rule rule;
+		private final int lineNumber;
+		private final String line;
+
+		Finding(Rule rule, int lineNumber, String line) {
+			this.rule = rule;
+			this.lineNumber = lineNumber;
+			this.line = line;
+		}
+
+		public Rule getRule() { return rule; }
+		/** zero-based index of the offending line in the source */
+		public int getLineNumber() { return lineNumber; }
+		public String getLine() { return line; }
+
+		public String getMessage() {
+			return rule.description + ": '" + line.trim() + "'";
+		}
+
+		@Override
+		public String toString() {
+			return "Line " + (lineNumber + 1) + ": " + getMessage();
+		}
+	}
+
+	/** The outcome of a run: counts per rule plus a bounded sample of findings. */
+	public static class Report {
+		private final EnumMap<Rule, Integer> counts = new EnumMap<Rule, Integer>(Rule.class);
+		private final EnumMap<Rule, List<Finding>> findings = new EnumMap<Rule, List<Finding>>(Rule.class);
+		private int lineCount = 0;
+		private long elapsedMillis = 0;
+		private boolean complete = true;
+
+		Report() {
+			for (Rule r : Rule.values()) {
+				counts.put(r, 0);
+				findings.put(r, new ArrayList<Finding>());
+			}
+		}
+
+		void add(Rule rule, int count, List<Finding> sample) {
+			counts.put(rule, counts.get(rule) + count);
+			List<Finding> kept = findings.get(rule);
+			for (Iterator<Finding> i = sample.iterator(); i.hasNext() && kept.size() < MAX_FINDINGS_PER_RULE;) {
+				kept.add(i.next());
+			}
+		}
+
+		/** Number of lines that broke the given rule */
+		public int getCount(Rule rule) {
+			return counts.get(rule);
+		}
+
+		public int getTotalCount() {
+			int total = 0;
+			for (Integer c : counts.values()) total += c;
+			return total;
+		}
+
+		public boolean isEmpty() {
+			return getTotalCount() == 0;
+		}
+
+		/** The first few findings for the given rule, in line order */
+		public List<Finding> getFindings(Rule rule) {
+			return Collections.unmodifiableList(findings.get(rule));
+		}
+
+		/** The recorded findings for every rule, grouped by rule */
+		public List<Finding> getFindings() {
+			List<Finding> all = new ArrayList<Finding>();
+			for (List<Finding> l : findings.values()) all.addAll(l);
+			return all;
+		}
+
+		public int getLineCount() { return lineCount; }
+		public long getElapsedMillis() { return elapsedMillis; }
+
+		/**
+		 * False if some of the code couldn't be checked, so an empty report
+		 * proves nothing; treat it as a failed check.
+		 */
+		public boolean isComplete() { return complete; }
+
+		/**
+		 * The same findings, for the code after lines that break no rule were
+		 * put in among the lines that were checked.
+		 * @param lineCount the number of lines now
+		 */
+		public Report remap(LineShifts shifts, int lineCount) {
+			Report moved = new Report();
+			for (Rule r : Rule.values()) {
+				moved.counts.put(r, counts.get(r));
+				for (Finding f : findings.get(r)) {
+					moved.findings.get(r).add(new Finding(r, shifts.map(f.lineNumber), f.line));
+				}
+			}
+			moved.lineCount = lineCount;
+			moved.elapsedMillis = elapsedMillis;
+			moved.complete = complete;
+			return moved;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Checked ").append(lineCount).append(" lines in ").append(elapsedMillis).append(" ms");
+			if (!complete) sb.append(", but not all of them");
+			for (Rule r : Rule.values()) {
+				if (counts.get(r) > 0) sb.append("; ").append(r.name()).append('=').append(counts.get(r));
+			}
+			return sb.toString();
+		}
+	}
+
+	/** Only this many findings per rule are kept for display; the count is always exact. */
+	public static final int MAX_FINDINGS_PER_RULE = 20;
+
+	/** Lines handed to a worker at a time */
+	static final int CHUNK_SIZE = 32768;
+
+	private static final int MAX_CODE_NUMBER = 512;
+
+	// Lookup tables for GCodeEnumeration, so we don't build a key string per line
+	private static final boolean[] knownG = new boolean[MAX_CODE_NUMBER];
+	private static final boolean[] knownM = new boolean[MAX_CODE_NUMBER];
+	private static final boolean[] knownT = new boolean[MAX_CODE_NUMBER];
+	static {
+		for (GCodeEnumeration e : GCodeEnumeration.values()) {
+			if (e.number >= MAX_CODE_NUMBER) continue;
+			if ("G".equals(e.letter)) knownG[e.number] = true;
+			else if ("M".equals(e.letter)) knownM[e.number] = true;
+			else if ("T".equals(e.letter)) knownT[e.number] = true;
+		}
+	}
+
+	// Machine configuration, copied so the analysis can't race with a reload
+	private final int nToolheads;
+	private final Point5d maxRates;
+	private final Endstops xstop, ystop, zstop;
+	private final Point5d buildMin, buildMax;
+	private final List<ExclusionZoneModel> exclusionZones;
+	private final int threads;
+	private final ExecutorService sharedPool;
+
+	public GCodeAnalyzer(MachineModel model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	public GCodeAnalyzer(MachineModel model, int threads) {
+		this(model, threads, null);
+	}
+
+	/**
+	 * Check chunks on a pool shared with other analyzers, rather than one of
+	 * our own. The pool is left running when the analysis is done.
+	 */
+	public GCodeAnalyzer(MachineModel model, ExecutorService pool) {
+		this(model, 2, pool);
+	}
+
+	private GCodeAnalyzer(MachineModel model, int threads, ExecutorService sharedPool) {
+		nToolheads = model.getTools().size();
+		maxRates = new Point5d(model.getMaximumFeedrates());
+		xstop = endstopsFor(model, AxisId.X);
+		ystop = endstopsFor(model, AxisId.Y);
+		zstop = endstopsFor(model, AxisId.Z);
+		buildMin = new Point5d(model.getBuildMinimum());
+		buildMax = new Point5d(model.getBuildMaximum());
+		exclusionZones = new ArrayList<ExclusionZoneModel>(model.getExclusionZones());
+		this.threads = Math.max(1, threads);
+		this.sharedPool = sharedPool;
+	}
+
+	private static Endstops endstopsFor(MachineModel model, AxisId axis) {
+		Endstops e = model.getEndstops(axis);
+		return e == null ? Endstops.BOTH : e;
+	}
+
+	/**
+	 * Run every rule over the given source.
+	 */
+	public Report analyze(GCodeSource source) {
+		Session session = new Session();
+		for (String line : source) session.add(line);
+		return session.finish();
+	}
+
+	/**
+	 * Start an incremental analysis, for code that is still being produced.
+	 */
+	public Session newSession() {
+		return new Session();
+	}
+
+	/**
+	 * An analysis fed one line at a time. Each full chunk is handed to a
+	 * worker as soon as it fills, so checking overlaps with whatever is
+	 * producing the lines; a source that fits in one chunk is checked on the
+	 * calling thread. A session is not thread safe and can only be used once.
+	 */
+	public class Session {
+		private final long start = System.currentTimeMillis();
+		private final List<Future<ChunkResult>> futures = new ArrayList<Future<ChunkResult>>();
+		private ExecutorService pool = null;
+		private String[] chunk = new String[CHUNK_SIZE];
+		private int filled = 0;
+		private int lineCount = 0;
+		private Report report = null;
+
+		private Session() { }
+
+		public void add(String line) {
+			if (report != null) throw new IllegalStateException("Session already finished");
+			chunk[filled++] = line;
+			if (filled == CHUNK_SIZE) {
+				submit();
+			}
+		}
+
+		private void submit() {
+			ChunkScanner scanner = new ChunkScanner(chunk, filled, lineCount);
+			lineCount += filled;
+			chunk = new String[CHUNK_SIZE];
+			filled = 0;
+			if (threads == 1) {
+				futures.add(new CompletedResult(scanner.call()));
+				return;
+			}
+			if (pool == null && sharedPool != null) {
+				pool = sharedPool;
+			} else if (pool == null) {
+				pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "GCode Analyzer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			futures.add(pool.submit(scanner));
+		}
+
+		/** Number of lines added so far */
+		public int getLineCount() {
+			return lineCount + filled;
+		}
+
+		/**
+		 * Wait for every chunk to be checked and merge the results. Calling
+		 * this again returns the same report. If a chunk couldn't be checked,
+		 * or the wait was interrupted, the report is marked incomplete.
+		 */
+		public Report finish() {
+			if (report != null) return report;
+			List<ChunkResult> results = new ArrayList<ChunkResult>();
+			boolean complete = false;
+			try {
+				if (filled > 0 || futures.isEmpty()) {
+					// the tail is small; not worth a trip through the pool
+					ChunkScanner scanner = new ChunkScanner(chunk, filled, lineCount);
+					lineCount += filled;
+					filled = 0;
+					futures.add(new CompletedResult(scanner.call()));
+				}
+				for (Future<ChunkResult> f : futures) {
+					results.add(f.get());
+				}
+				complete = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Base.logger.log(Level.SEVERE, "GCode safety check failed", e.getCause());
+			} finally {
+				if (pool != null && pool != sharedPool) pool.shutdownNow();
+				chunk = null;
+			}
+
+			report = merge(results);
+			report.lineCount = lineCount;
+			report.elapsedMillis = System.currentTimeMillis() - start;
+			report.complete = complete;
+			if (!complete) Base.logger.severe(report.toString());
+			Base.logger.fine(report.toString());
+			return report;
+		}
+	}
+
+	/** A chunk that was checked on the calling thread. */
+	private static class CompletedResult implements Future<ChunkResult> {
+		private final ChunkResult result;
+		CompletedResult(ChunkResult result) { this.result = result; }
+		public boolean cancel(boolean mayInterruptIfRunning) { return false; }
+		public boolean isCancelled() { return false; }
+		public boolean isDone() { return true; }
+		public ChunkResult get() { return result; }
+		public ChunkResult get(long timeout, TimeUnit unit) { return result; }
+	}
+
+	/** Combine chunk results in file order, resolving any mode-dependent findings. */
+	private Report merge(List<ChunkResult> results) {
+		Report report = new Report();
+		boolean absolute = true; // machines start out in G90
+		for (ChunkResult r : results) {
+			for (Rule rule : Rule.values()) {
+				int i = rule.ordinal();
+				if (absolute) {
+					report.add(rule, r.counts[i] + r.pendingCounts[i],
+							byLine(r.findings.get(i), r.pendingFindings.get(i)));
+				} else {
+					report.add(rule, r.counts[i], r.findings.get(i));
+				}
+			}
+			if (r.absoluteAtEnd != null) absolute = r.absoluteAtEnd;
+		}
+		for (Rule rule : Rule.values()) {
+			if (report.getCount(rule) > 0) {
+				Base.logger.log(rule.level, rule.description + " (" + report.getCount(rule) + " lines)");
+			}
+		}
+		return report;
+	}
+
+	/** Merge two lists of findings that are each in line order */
+	private static List<Finding> byLine(List<Finding> a, List<Finding> b) {
+		if (b.isEmpty()) return a;
+		if (a.isEmpty()) return b;
+		List<Finding> merged = new ArrayList<Finding>(a.size() + b.size());
+		int i = 0, j = 0;
+		while (i < a.size() || j < b.size()) {
+			if (j == b.size() || (i < a.size() && a.get(i).lineNumber <= b.get(j).lineNumber)) {
+				merged.add(a.get(i++));
+			} else {
+				merged.add(b.get(j++));
+			}
+		}
+		return merged;
+	}
+
+	private static class ChunkResult {
+		final int[] counts = new int[Rule.values().length];
+		final int[] pendingCounts = new int[Rule.values().length];
+		/** One list per rule, by ordinal */
+		final List<List<Finding>> findings = newFindingLists();
+		final List<List<Finding>> pendingFindings = newFindingLists();
+		/** The positioning mode left by this chunk, or null if it never set one */
+		Boolean absoluteAtEnd = null;
+
+		private static List<List<Finding>> newFindingLists() {
+			int rules = Rule.values().length;
+			List<List<Finding>> lists = new ArrayList<List<Finding>>(rules);
+			for (int i = 0; i < rules; i++) lists.add(new ArrayList<Finding>());
+			return lists;
+		}
+	}
+
+	private class ChunkScanner implements Callable<ChunkResult> {
+		private final String[] lines;
+		private final int count;
+		private final int firstLine;
+
+		private final GCodeScanner scanner = new GCodeScanner();
+		private final ChunkResult result = new ChunkResult();
+		/** null until this chunk sees a G90 or G91 */
+		private Boolean absolute;
+		private double x = Double.NaN, y = Double.NaN, z = Double.NaN;
+
+		ChunkScanner(String[] lines, int count, int firstLine) {
+			this.lines = lines;
+			this.count = count;
+			this.firstLine = firstLine;
+			this.absolute = firstLine == 0 ? Boolean.TRUE : null;
+		}
+
+		public ChunkResult call() {
+			for (int i = 0; i < count; i++) {
+				check(lines[i], firstLine + i);
+			}
+			result.absoluteAtEnd = absolute;
+			return result;
+		}
+
+		private void report(Rule rule, int lineNumber, String line) {
+			int i = rule.ordinal();
+			result.counts[i]++;
+			if (result.findings.get(i).size() < MAX_FINDINGS_PER_RULE) {
+				result.findings.get(i).add(new Finding(rule, lineNumber, line));
+			}
+		}
+
+		/** Report a rule that only applies in absolute mode */
+		private void reportAbsolute(Rule rule, int lineNumber, String line) {
+			if (absolute != null) {
+				report(rule, lineNumber, line);
+				return;
+			}
+			int i = rule.ordinal();
+			result.pendingCounts[i]++;
+			if (result.pendingFindings.get(i).size() < MAX_FINDINGS_PER_RULE) {
+				result.pendingFindings.get(i).add(new Finding(rule, lineNumber, line));
+			}
+		}
+
+		private void check(String line, int lineNumber) {
+			GCodeScanner gcode = scanner.scan(line);
+			if (gcode.isMalformed()) {
+				report(Rule.UNPARSEABLE, lineNumber, line);
+				return;
+			}
+			if (gcode.isEmpty()) return;
+
+			char letter = gcode.getMainLetter();
+			int number = gcode.getMainNumber();
+			if (!isKnown(letter, number, gcode.hasWellFormedMainCode())) {
+				report(Rule.UNKNOWN_CODE, lineNumber, line);
+			}
+
+			boolean isG = letter == 'G';
+			if (isG && (number == 161 || number == 162) && !homingDirectionIsSafe(gcode, number)) {
+				report(Rule.HOMING_DIRECTION, lineNumber, line);
+			}
+
+			if (gcode.getCodeValue('T') > nToolheads - 1) {
+				double m = gcode.getCodeValue('M');
+				if (m != 109 && m != 106 && m != 107) {
+					report(Rule.TOOL_INDEX, lineNumber, line);
+				}
+			}
+
+			if (gcode.hasCode('F')) {
+				double f = gcode.getCodeValue('F');
+				// Z is left out on purpose: most of the time it isn't actually moving
+				if ((gcode.hasCode('X') && f > maxRates.x()) ||
+					(gcode.hasCode('Y') && f > maxRates.y()) ||
+					(gcode.hasCode('A') && f > maxRates.a()) ||
+					(gcode.hasCode('B') && f > maxRates.b())) {
+					report(Rule.FEEDRATE_TOO_HIGH, lineNumber, line);
+				}
+				if (f < 0) {
+					report(Rule.NEGATIVE_FEEDRATE, lineNumber, line);
+				}
+			}
+
+			if (isG) {
+				if (number == 90) {
+					absolute = Boolean.TRUE;
+				} else if (number == 91) {
+					absolute = Boolean.FALSE;
+					x = y = z = Double.NaN;
+				} else if (number >= 0 && number <= 3) {
+					checkMove(gcode, lineNumber, line);
+				} else if (number == 92 || number == 28 || number == 161 || number == 162) {
+					// the coordinate system has moved under us
+					x = y = z = Double.NaN;
+				}
+			}
+		}
+
+		private void checkMove(GCodeScanner gcode, int lineNumber, String line) {
+			if (Boolean.FALSE.equals(absolute)) return;
+			if (gcode.hasCode('X')) x = gcode.getCodeValue('X');
+			if (gcode.hasCode('Y')) y = gcode.getCodeValue('Y');
+			if (gcode.hasCode('Z')) z = gcode.getCodeValue('Z');
+
+			boolean extruding = gcode.hasCode('E') || gcode.hasCode('A') || gcode.hasCode('B');
+			if (extruding &&
+				((gcode.hasCode('X') && (x < buildMin.x() || x > buildMax.x())) ||
+				 (gcode.hasCode('Y') && (y < buildMin.y() || y > buildMax.y())) ||
+				 (gcode.hasCode('Z') && (z < buildMin.z() || z > buildMax.z())))) {
+				reportAbsolute(Rule.OUT_OF_BOUNDS, lineNumber, line);
+			}
+
+			if (!exclusionZones.isEmpty() && !Double.isNaN(x) && !Double.isNaN(y) && !Double.isNaN(z)) {
+				for (ExclusionZoneModel zone : exclusionZones) {
+					if (zone.contains(x, y, z)) {
+						reportAbsolute(Rule.EXCLUSION_ZONE, lineNumber, line);
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isKnown(char letter, int number, boolean wellFormed) {
+		if (!wellFormed || number < 0 || number >= MAX_CODE_NUMBER) return false;
+		switch (letter) {
+		case 'G': return knownG[number];
+		case 'M': return knownM[number];
+		case 'T': return knownT[number];
+		default: return false;
+		}
+	}
+
+	private boolean homingDirectionIsSafe(GCodeScanner gcode, int code) {
+		// If it doesn't have the code, ignore it
+		Endstops x = gcode.hasCode('X') ? xstop : Endstops.BOTH;
+		Endstops y = gcode.hasCode('Y') ? ystop : Endstops.BOTH;
+		Endstops z = gcode.hasCode('Z') ? zstop : Endstops.BOTH;
+		Endstops wanted = (code == 161) ? Endstops.MIN : Endstops.MAX;
+		return (x == wanted || x == Endstops.BOTH) &&
+			(y == wanted || y == Endstops.BOTH) &&
+			(z == wanted || z == Endstops.BOTH);
+	}
+}
@@ -0,0 +1,69 @@
+package replicatorg.app.gcode;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Estimates build time one line at a time, so that code can be estimated
+ * while it is still being produced.
+ */
+public class GCodeEstimator {
+
+	private final EstimationDriver estimator = new EstimationDriver();
+	private final GCodeParser parser = new GCodeParser();
+	private final Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+	private int lineCount = 0;
+
+	public GCodeEstimator(MachineModel model) {
+		// TODO: Is this correct?
+		estimator.setMachine(model);
+		parser.init(estimator);
+	}
+
+	/** Run a single line through the estimator. */
+	public void add(String line) {
+		// TODO: Hooks for plugins to add estimated time?
+		parser.parse(line, queue);
+
+		for (DriverCommand command : queue) {
+			try {
+				command.run(estimator);
+			} catch (RetryException r) {
+				// Ignore.
+			} catch (StopException e) {
+				// TODO: Should we stop the estimator when we get a stop???
+			}
+		}
+		queue.clear();
+		lineCount++;
+	}
+
+	/** Estimated build time so far, in milliseconds */
+	public double getBuildTime() {
+		return estimator.getBuildTime();
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	public EstimationDriver getDriver() {
+		return estimator;
+	}
+
+	/** Estimate a whole source; returns the build time in milliseconds */
+	public static double estimate(MachineModel model, GCodeSource source) {
+		GCodeEstimator e = new GCodeEstimator(model);
+		for (String line : source) {
+			e.add(line);
+		}
+		return e.getBuildTime();
+	}
+}
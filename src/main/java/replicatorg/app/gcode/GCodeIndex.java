@@ -0,0 +1,456 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.FileUtils;
+
+/**
+ * An index of a gcode file, kept in a sidecar file beside it, so that a
+ * line or layer can be found without reading everything before it.
+ *
+ * It holds the byte offset of every Nth line, where each layer starts and
+ * at what height, where the tool changes and, if it was built for a
+ * machine, the estimated time at the start of each layer. It is built in a
+ * single pass over the file, and belongs to the exact contents it was built
+ * from: a file whose size or modification time has changed is hashed
+ * again, and the index rebuilt if the contents differ.
+ */
+public class GCodeIndex {
+
+	/** Lines between offsets kept in the index */
+	public static final int DEFAULT_STRIDE = 1024;
+
+	static final String SUFFIX = ".rgidx";
+	private static final int MAGIC = 0x52474349; // "RGCI"
+	private static final int FORMAT = 1;
+
+	/** Where a layer starts */
+	public static class LayerStart {
+		/** Index of the line that moves up to the layer */
+		public final int line;
+		public final long offset;
+		public final double z;
+		/** Estimated time from the start of the file, or NaN if not estimated */
+		public final double startMillis;
+
+		LayerStart(int line, long offset, double z, double startMillis) {
+			this.line = line;
+			this.offset = offset;
+			this.z = z;
+			this.startMillis = startMillis;
+		}
+	}
+
+	public static class ToolChange {
+		public final int line;
+		public final int tool;
+
+		ToolChange(int line, int tool) {
+			this.line = line;
+			this.tool = tool;
+		}
+	}
+
+	private final File file;
+	private long length;
+	private long modified;
+	private byte[] hash;
+	private String timing;
+	private int stride;
+	private int lineCount;
+	private long[] offsets;
+	private final List<LayerStart> layers = new ArrayList<LayerStart>();
+	private final List<ToolChange> toolChanges = new ArrayList<ToolChange>();
+	private double totalMillis = Double.NaN;
+
+	private GCodeIndex(File file) {
+		this.file = file;
+	}
+
+	public static File sidecarFor(File gcode) {
+		return new File(gcode.getPath() + SUFFIX);
+	}
+
+	/**
+	 * What decides the estimated times for a machine; an index built for
+	 * one machine has the wrong times for another.
+	 */
+	static String timingKey(MachineModel model) {
+		if (model == null) return "";
+		return "feedrates " + model.getMaximumFeedrates() + " steps " + model.getStepsPerMM();
+	}
+
+	/**
+	 * The index for a file: from its sidecar if that's up to date, and
+	 * otherwise built afresh and saved for next time.
+	 * @param model the machine to estimate times for, or null for no times
+	 */
+	public static GCodeIndex forFile(File gcode, MachineModel model) throws IOException {
+		GCodeIndex index = load(gcode, model);
+		if (index != null) return index;
+		index = build(gcode, model, DEFAULT_STRIDE);
+		try {
+			index.save(sidecarFor(gcode));
+		} catch (IOException e) {
+			Base.logger.log(Level.FINE, "Could not save gcode index for " + gcode, e);
+		}
+		return index;
+	}
+
+	/**
+	 * Read a file's sidecar index.
+	 * @param model the machine the times must be for, or null if times don't matter
+	 * @return the index, or null if there is none or it's out of date
+	 */
+	public static GCodeIndex load(File gcode, MachineModel model) {
+		File sidecar = sidecarFor(gcode);
+		if (!sidecar.exists() || !gcode.exists()) return null;
+		GCodeIndex index = new GCodeIndex(gcode);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1 << 16));
+			try {
+				index.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.FINE, "Ignoring unreadable gcode index " + sidecar, e);
+			return null;
+		}
+		if (model != null && (index.timing.length() == 0 || !index.timing.equals(timingKey(model)))) return null;
+		if (index.length != gcode.length()) return null;
+		if (index.modified != gcode.lastModified()) {
+			// touched; see if it has really changed
+			try {
+				if (!Arrays.equals(index.hash, FileUtils.sha256(gcode))) return null;
+			} catch (IOException e) {
+				return null;
+			}
+			index.modified = gcode.lastModified();
+			try {
+				index.save(sidecar);
+			} catch (IOException e) {
+				// it'll be hashed again next time
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Index a file, reading it once.
+	 * @param model the machine to estimate times for, or null for no times
+	 * @param stride lines between kept offsets
+	 */
+	public static GCodeIndex build(File gcode, MachineModel model, int stride) throws IOException {
+		GCodeIndex index = new GCodeIndex(gcode);
+		index.stride = stride;
+		index.timing = timingKey(model);
+		index.modified = gcode.lastModified();
+		Builder b = new Builder(index, model == null ? null : new GCodeEstimator(model));
+		MessageDigest md = FileUtils.sha256();
+		InputStream in = new FileInputStream(gcode);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				md.update(buffer, 0, n);
+				b.bytes(buffer, n);
+			}
+		} finally {
+			in.close();
+		}
+		b.finish();
+		index.hash = md.digest();
+		return index;
+	}
+
+	/** Splits the file into lines as BufferedReader.readLine() would, and indexes each. */
+	private static class Builder {
+		private final GCodeIndex index;
+		private final GCodeEstimator estimator;
+		private final GCodeScanner scanner = new GCodeScanner();
+		private long[] offsets = new long[64];
+		private int checkpoints = 0;
+
+		private final StringBuilder line = new StringBuilder(128);
+		private boolean pending = false;
+		private boolean lastWasCR = false;
+		private long position = 0;
+		private long lineStart = 0;
+		private int lineNumber = 0;
+
+		private boolean relative = false;
+		private boolean relativeE = false;
+		private boolean extruderOn = false;
+		private double z = 0;
+		private double e = 0;
+		private int tool = -1;
+		private double layerZ = Double.NEGATIVE_INFINITY;
+		/** Where the current height was reached */
+		private int zLine = 0;
+		private long zOffset = 0;
+		private double zMillis = 0;
+
+		Builder(GCodeIndex index, GCodeEstimator estimator) {
+			this.index = index;
+			this.estimator = estimator;
+		}
+
+		void bytes(byte[] buffer, int n) {
+			for (int i = 0; i < n; i++, position++) {
+				byte c = buffer[i];
+				if (c == '\n') {
+					if (lastWasCR) {
+						// the rest of a \r\n
+						lastWasCR = false;
+						lineStart = position + 1;
+						continue;
+					}
+					endLine(position + 1);
+				} else if (c == '\r') {
+					endLine(position + 1);
+					lastWasCR = true;
+				} else {
+					line.append((char)(c & 0xff));
+					pending = true;
+					lastWasCR = false;
+				}
+			}
+		}
+
+		void finish() {
+			if (pending) endLine(position);
+			index.lineCount = lineNumber;
+			index.length = position;
+			index.offsets = Arrays.copyOf(offsets, checkpoints);
+			if (estimator != null) index.totalMillis = estimator.getBuildTime();
+		}
+
+		private void endLine(long next) {
+			if (lineNumber % index.stride == 0) {
+				if (checkpoints == offsets.length) offsets = Arrays.copyOf(offsets, checkpoints * 2);
+				offsets[checkpoints++] = lineStart;
+			}
+			String text = line.toString();
+			line.setLength(0);
+			pending = false;
+			lastWasCR = false;
+			look(text);
+			if (estimator != null) estimator.add(text);
+			lineNumber++;
+			lineStart = next;
+		}
+
+		private double millis() {
+			return estimator == null ? Double.NaN : estimator.getBuildTime();
+		}
+
+		/** Follow the height, extrusion and tool, to find layers and tool changes. */
+		private void look(String text) {
+			GCodeScanner s = scanner.scan(text);
+			char letter = s.getMainLetter();
+			int number = s.getMainNumber();
+			if (s.hasCode('T') && (letter == 'T' || (letter == 'M' && (number == 6 || number == 108 || number == 135)))) {
+				int t = (int)s.getCodeValue('T');
+				if (t != tool) {
+					index.toolChanges.add(new ToolChange(lineNumber, t));
+					tool = t;
+				}
+			}
+			if (letter == 'M') {
+				if (number == 101) extruderOn = true;
+				else if (number == 103) extruderOn = false;
+				else if (number == 82) relativeE = false;
+				else if (number == 83) relativeE = true;
+				return;
+			}
+			if (letter != 'G') return;
+			switch (number) {
+			case 90: relative = false; relativeE = false; return;
+			case 91: relative = true; relativeE = true; return;
+			case 92:
+				if (s.hasCode('Z')) z = s.getCodeValue('Z');
+				if (s.hasCode('E')) e = s.getCodeValue('E');
+				return;
+			case 0:
+			case 1:
+				break;
+			default:
+				return;
+			}
+			if (s.hasCode('Z')) {
+				double newZ = relative ? z + s.getCodeValue('Z') : s.getCodeValue('Z');
+				if (newZ != z) {
+					z = newZ;
+					zLine = lineNumber;
+					zOffset = lineStart;
+					zMillis = millis();
+				}
+			}
+			boolean extruding = false;
+			if (s.hasCode('E')) {
+				double v = s.getCodeValue('E');
+				double newE = relativeE ? e + v : v;
+				extruding = number == 1 && newE > e;
+				e = newE;
+			} else {
+				extruding = number == 1 && extruderOn;
+			}
+			if (extruding && (s.hasCode('X') || s.hasCode('Y')) && z > layerZ + 1e-6) {
+				index.layers.add(new LayerStart(zLine, zOffset, z, zMillis));
+				layerZ = z;
+			}
+		}
+	}
+
+	/** Write the index to a file, replacing it all at once. */
+	public void save(File sidecar) throws IOException {
+		File tmp = new File(sidecar.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(length);
+			out.writeLong(modified);
+			out.write(hash);
+			out.writeUTF(timing);
+			out.writeInt(stride);
+			out.writeInt(lineCount);
+			out.writeDouble(totalMillis);
+			out.writeInt(offsets.length);
+			for (long o : offsets) out.writeLong(o);
+			out.writeInt(layers.size());
+			for (LayerStart l : layers) {
+				out.writeInt(l.line);
+				out.writeLong(l.offset);
+				out.writeDouble(l.z);
+				out.writeDouble(l.startMillis);
+			}
+			out.writeInt(toolChanges.size());
+			for (ToolChange t : toolChanges) {
+				out.writeInt(t.line);
+				out.writeInt(t.tool);
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			FileUtils.replace(tmp, sidecar);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	private void read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT) throw new IOException("Not a gcode index");
+		length = in.readLong();
+		modified = in.readLong();
+		hash = new byte[32];
+		in.readFully(hash);
+		timing = in.readUTF();
+		stride = in.readInt();
+		lineCount = in.readInt();
+		totalMillis = in.readDouble();
+		offsets = new long[in.readInt()];
+		for (int i = 0; i < offsets.length; i++) offsets[i] = in.readLong();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			layers.add(new LayerStart(in.readInt(), in.readLong(), in.readDouble(), in.readDouble()));
+		}
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			toolChanges.add(new ToolChange(in.readInt(), in.readInt()));
+		}
+	}
+
+	public File getFile() { return file; }
+
+	public int getLineCount() { return lineCount; }
+
+	public int getStride() { return stride; }
+
+	public List<LayerStart> getLayers() { return Collections.unmodifiableList(layers); }
+
+	public List<ToolChange> getToolChanges() { return Collections.unmodifiableList(toolChanges); }
+
+	/** True if the index has estimated times */
+	public boolean hasTimes() { return !Double.isNaN(totalMillis); }
+
+	/** Estimated time for the whole file, or NaN if not estimated */
+	public double getEstimatedMillis() { return totalMillis; }
+
+	/**
+	 * The layer a line belongs to.
+	 * @return the layer's number, or -1 if the line comes before the first layer
+	 */
+	public int getLayerForLine(int line) {
+		int lo = 0, hi = layers.size() - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (layers.get(mid).line <= line) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/** The tool in use at a line, or -1 if none has been chosen by then */
+	public int getToolAtLine(int line) {
+		int tool = -1;
+		for (ToolChange t : toolChanges) {
+			if (t.line > line) break;
+			tool = t.tool;
+		}
+		return tool;
+	}
+
+	/**
+	 * Open the file for reading from the given line on, jumping straight to
+	 * the nearest offset kept in the index.
+	 */
+	public BufferedReader openAt(int line) throws IOException {
+		if (line < 0) line = 0;
+		int checkpoint = Math.min(line / stride, offsets.length - 1);
+		InputStream in = new FileInputStream(file);
+		try {
+			if (checkpoint > 0) {
+				long skip = offsets[checkpoint];
+				while (skip > 0) {
+					long n = in.skip(skip);
+					if (n <= 0) throw new IOException("Could not seek in " + file);
+					skip -= n;
+				}
+			}
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in), 1 << 16);
+			for (int i = Math.max(checkpoint, 0) * stride; i < line; i++) {
+				if (reader.readLine() == null) break;
+			}
+			return reader;
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+}
@@ -49,7 +49,6 @@
 package replicatorg.app.gcode;
 
 import java.util.EnumSet;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
 
@@ -76,92 +75,9 @@ public class GCodeParser {
 	 * Now it's gone.
 	 */
 	
-	// Arc drawing routine
-	// Note: 5D is not supported
-	Queue< DriverCommand > drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
-		// System.out.println("Arc from " + current.toString() + " to " +
-		// endpoint.toString() + " with center " + center);
-
-		Queue< DriverCommand > points = new LinkedList< DriverCommand >();
-		
-		// angle variables.
-		double angleA;
-		double angleB;
-		double angle;
-		double radius;
-		double length;
-
-		// delta variables.
-		double aX;
-		double aY;
-		double bX;
-		double bY;
-
-		// figure out our deltas
-		Point5d current = driver.getCurrentPosition(false);
-		aX = current.x() - center.x();
-		aY = current.y() - center.y();
-		bX = endpoint.x() - center.x();
-		bY = endpoint.y() - center.y();
-
-		// Clockwise
-		if (clockwise) {
-			angleA = Math.atan2(bY, bX);
-			angleB = Math.atan2(aY, aX);
-		}
-		// Counterclockwise
-		else {
-			angleA = Math.atan2(aY, aX);
-			angleB = Math.atan2(bY, bX);
-		}
-
-		// Make sure angleB is always greater than angleA
-		// and if not add 2PI so that it is (this also takes
-		// care of the special case of angleA == angleB,
-		// ie we want a complete circle)
-		if (angleB <= angleA)
-			angleB += 2 * Math.PI;
-		angle = angleB - angleA;
-		// calculate a couple useful things.
-		radius = Math.sqrt(aX * aX + aY * aY);
-		length = radius * angle;
-
-		// for doing the actual move.
-		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
-
-		// this is the real draw action.
-		Point5d newPoint = new Point5d(current);
-		double arcStartZ = current.z();
-		for (s = 1; s <= steps; s++) {
-			// Forwards for CCW, backwards for CW
-			if (!clockwise)
-				step = s;
-			else
-				step = steps - s;
-
-			// calculate our waypoint.
-			newPoint.setX(center.x() + radius * Math.cos(angleA + angle * ((double) step / steps)));
-			newPoint.setY(center.y() + radius * Math.sin(angleA + angle * ((double) step / steps)));
-			newPoint.setZ(arcStartZ + (endpoint.z() - arcStartZ) * s / steps);
-
-			// start the move
-			points.add(new replicatorg.drivers.commands.QueuePoint(newPoint));
-		}
-		
-		return points;
-	}
-	
-	// our curve section variables.
-	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
-	public static double curveSectionInches = curveSectionMM / 25.4;
-
-	protected double curveSection = 0.0;
+	// how far, in mm, the chords of an arc may stray from it. Coordinates
+	// are converted to mm before they get here, so this holds for G20 too.
+	public static double arcToleranceMM = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.01);
 
 	// our offset variables 0 = master, 1-6 = offsets 1-6
 	protected Point3d currentOffset;
@@ -191,7 +107,6 @@ public class GCodeParser {
 	public GCodeParser() {
 		// we default to millimeters
 		units = UNITS_MM;
-		curveSection = curveSectionMM;
 
 		// init our offset
 		currentOffset = new Point3d();
@@ -755,8 +670,7 @@ public class GCodeParser {
 		case G2:
 			// Counterclockwise arc
 		case G3: {
-			// call our arc drawing function.
-			// Note: We don't support 5D
+			// A and B move linearly along the arc
 			if (gcode.hasCode('I') || gcode.hasCode('J')) {
 				// our centerpoint
 				Point5d center = new Point5d();
@@ -764,11 +678,10 @@ public class GCodeParser {
 				center.setX(current.x() + iVal);
 				center.setY(current.y() + jVal);
 
-				// Get the points for the arc
-				if (codeEnum == GCodeEnumeration.G2)
-					commands.addAll(drawArc(center, pos, true));
-				else
-					commands.addAll(drawArc(center, pos, false));
+				// The arc is broken into chords as it runs, or handed to
+				// drivers that can draw it themselves
+				commands.add(new replicatorg.drivers.commands.QueueArc(center, pos,
+						codeEnum == GCodeEnumeration.G2, arcToleranceMM));
 			}
 			// or we want a radius based one
 			else if (gcode.hasCode('R')) {
@@ -799,13 +712,11 @@ public class GCodeParser {
 		case G20:
 		case G70:
 			units = UNITS_INCHES;
-			curveSection = curveSectionInches;
 			break;
 		// mm for Units
 		case G21:
 		case G71:
 			units = UNITS_MM;
-			curveSection = curveSectionMM;
 			break;
 		// This should be "return to home".  We need to introduce new GCodes for homing.
 			//replaced by G161, G162
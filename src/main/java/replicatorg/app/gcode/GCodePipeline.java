@@ -0,0 +1,194 @@
+package replicatorg.app.gcode;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.model.GCodeSource;
+import replicatorg.util.FileUtils;
+
+/**
+ * A chain of line-by-line GCode transformations that runs in one pass.
+ *
+ * Lines are pushed through every stage in turn and out into a {@link Sink}, so
+ * no intermediate copy of the file is ever built. Each line is scanned once
+ * when it enters the pipeline, and that scan is shared by every stage that
+ * passes the line along unchanged; only lines that a stage inserts or rewrites
+ * are scanned again.
+ *
+ * Typical use:
+ * <pre>
+ * GCodePipeline pipeline = new GCodePipeline(new GCodePipeline.WriterSink(out));
+ * pipeline.add(new GCodeTransforms.ToolheadSwap(ToolheadAlias.LEFT));
+ * pipeline.add(new GCodeTransforms.ProgressUpdates(source.getLineCount()));
+ * pipeline.feed(source);
+ * pipeline.finish();
+ * </pre>
+ */
+public class GCodePipeline {
+
+	/** Where the transformed lines end up. */
+	public interface Sink {
+		void write(String line) throws IOException;
+	}
+
+	/** Writes each line to a Writer, followed by a newline. */
+	public static class WriterSink implements Sink {
+		private final Writer writer;
+		public WriterSink(Writer writer) { this.writer = writer; }
+		public void write(String line) throws IOException {
+			writer.write(line);
+			writer.write('\n');
+		}
+	}
+
+	/** Collects lines into a list. */
+	public static class ListSink implements Sink {
+		private final List<String> lines;
+		public ListSink(List<String> lines) { this.lines = lines; }
+		public void write(String line) { lines.add(line); }
+	}
+
+	/**
+	 * Hands lines on to the next stage of the pipeline. A stage may call
+	 * {@link #emit(String)} any number of times per input line: not at all to
+	 * drop the line, once to pass it on or replace it, or several times to
+	 * insert new lines around it.
+	 */
+	public final class Emitter {
+		private final int next;
+		private final GCodeScanner scanner = new GCodeScanner();
+		/** the line the upstream stage is working on, and its scan */
+		private String current;
+		private GCodeScanner currentScan;
+
+		private Emitter(int next) {
+			this.next = next;
+		}
+
+		public void emit(String line) throws IOException {
+			if (next == stages.size()) {
+				sink.write(line);
+				return;
+			}
+			GCodeScanner scan = (line == current) ? currentScan : scanner.scan(line);
+			Emitter out = emitters.get(next + 1);
+			out.current = line;
+			out.currentScan = scan;
+			stages.get(next).process(line, scan, out);
+		}
+	}
+
+	/**
+	 * One step of the pipeline. Implementations may keep state between lines,
+	 * but must not hold on to the scanner they are given.
+	 */
+	public static abstract class Stage {
+		/** Transform a single line, emitting the results. */
+		protected abstract void process(String line, GCodeScanner gcode, Emitter out) throws IOException;
+
+		/** Called once after the last line, to flush anything held back. */
+		protected void finish(Emitter out) throws IOException { }
+	}
+
+	/** A stage that only decides whether to keep each line. */
+	public static abstract class Filter extends Stage {
+		protected abstract boolean accept(String line, GCodeScanner gcode);
+
+		protected final void process(String line, GCodeScanner gcode, Emitter out) throws IOException {
+			if (accept(line, gcode)) out.emit(line);
+		}
+	}
+
+	/** A stage that replaces each line with exactly one line. */
+	public static abstract class Rewriter extends Stage {
+		/** Return the line itself to leave it unchanged. */
+		protected abstract String rewrite(String line, GCodeScanner gcode);
+
+		protected final void process(String line, GCodeScanner gcode, Emitter out) throws IOException {
+			out.emit(rewrite(line, gcode));
+		}
+	}
+
+	private final Sink sink;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final List<Emitter> emitters = new ArrayList<Emitter>();
+	private boolean started = false;
+
+	public GCodePipeline(Sink sink) {
+		this.sink = sink;
+		emitters.add(new Emitter(0));
+	}
+
+	/** Append a stage; stages run in the order they were added. */
+	public GCodePipeline add(Stage stage) {
+		if (started) throw new IllegalStateException("Can't add stages once lines have been fed in");
+		stages.add(stage);
+		emitters.add(new Emitter(stages.size()));
+		return this;
+	}
+
+	public boolean isEmpty() {
+		return stages.isEmpty();
+	}
+
+	/** Push a single line through every stage. */
+	public void feed(String line) throws IOException {
+		started = true;
+		emitters.get(0).emit(line);
+	}
+
+	/** Push every line of the given source through every stage, in order. */
+	public void feed(Iterable<String> lines) throws IOException {
+		started = true;
+		Emitter head = emitters.get(0);
+		for (String line : lines) {
+			head.emit(line);
+		}
+	}
+
+	/** Write a line straight to the sink, bypassing every stage. */
+	public void bypass(String line) throws IOException {
+		sink.write(line);
+	}
+
+	/** Let each stage flush anything it is holding, in order. */
+	public void finish() throws IOException {
+		for (int i = 0; i < stages.size(); i++) {
+			Emitter out = emitters.get(i + 1);
+			out.current = null;
+			out.currentScan = null;
+			stages.get(i).finish(out);
+		}
+	}
+
+	/**
+	 * Rewrite a gcode file in place. The header lines are written as they are,
+	 * then each part is fed through the stages in order; the file itself
+	 * should be one of the parts. The output goes to a temporary file next to
+	 * the original, which replaces it once everything has been written, so at
+	 * no point is the whole file held in memory.
+	 */
+	public static void rewriteFile(File file, List<String> header, List<GCodeSource> parts,
+			List<Stage> stages) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new FileWriter(temp), 1 << 16);
+		try {
+			GCodePipeline pipeline = new GCodePipeline(new WriterSink(writer));
+			for (Stage stage : stages)
+				pipeline.add(stage);
+			for (String line : header)
+				pipeline.bypass(line);
+			for (GCodeSource part : parts)
+				pipeline.feed(part);
+			pipeline.finish();
+		} finally {
+			writer.close();
+		}
+		FileUtils.replace(temp, file);
+	}
+}
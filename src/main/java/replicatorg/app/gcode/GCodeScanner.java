@@ -0,0 +1,238 @@
+package replicatorg.app.gcode;
+
+/**
+ * A reusable, allocation-free reader for the letter codes on a single line of
+ * GCode. It understands the same codes and comment styles as
+ * {@link GCodeCommand}, but does not use regular expressions and does not
+ * copy the line, so one instance can be reset and reused for every line of a
+ * large file.
+ *
+ * Instances are not thread safe; give each worker its own scanner.
+ */
+public class GCodeScanner {
+
+	private final double[] values = new double[26];
+	private int present = 0;
+
+	private String line = "";
+	private int commandEnd = 0;
+	private int commentStart = -1;
+	private int commentEnd = -1;
+
+	private char mainLetter = 0;
+	private int mainNumber = -1;
+	private boolean mainIsInteger = false;
+	private boolean malformed = false;
+
+	/**
+	 * Scan a new line, discarding the results of the previous one.
+	 * @return this scanner, for chaining
+	 */
+	public GCodeScanner scan(String line) {
+		this.line = line;
+		present = 0;
+		commandEnd = line.length();
+		commentStart = commentEnd = -1;
+		mainLetter = 0;
+		mainNumber = -1;
+		mainIsInteger = false;
+		malformed = false;
+
+		boolean seenToken = false;
+		final int len = line.length();
+		int i = 0;
+		while (i < len) {
+			char c = line.charAt(i);
+			if (c == ';') {
+				commentStart = i + 1;
+				commentEnd = len;
+				if (commandEnd == len) commandEnd = i;
+				break;
+			}
+			if (c == '(') {
+				int close = line.lastIndexOf(')');
+				if (close > i) {
+					// only the first comment counts, as in GCodeCommand
+					if (commentStart < 0) {
+						commentStart = i + 1;
+						commentEnd = close;
+					}
+					i = close + 1;
+					continue;
+				}
+			}
+			if (c >= 'A' && c <= 'Z') {
+				int bit = 1 << (c - 'A');
+				int end = numberEnd(i + 1);
+				boolean first = (present & bit) == 0;
+				if (first) {
+					present |= bit;
+					values[c - 'A'] = (end > i + 1) ? parseNumber(i + 1, end) : 0;
+				}
+				if (!seenToken && c != 'N') {
+					mainLetter = c;
+					mainIsInteger = end > i + 1 && isInteger(i + 1, end);
+					mainNumber = mainIsInteger ? (int) parseNumber(i + 1, end) : -1;
+				}
+				if (c != 'N') seenToken = true;
+				i = end;
+				continue;
+			}
+			if (c != ' ' && c != '\t') seenToken = true;
+			i++;
+		}
+		return this;
+	}
+
+	private int numberEnd(int start) {
+		int i = start;
+		final int len = line.length();
+		while (i < len) {
+			char c = line.charAt(i);
+			if ((c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-') i++;
+			else break;
+		}
+		return i;
+	}
+
+	private boolean isInteger(int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+
+	/** Parses simple decimal numbers by hand; anything odd is flagged as malformed. */
+	private double parseNumber(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = line.charAt(i);
+		if (c == '-' || c == '+') {
+			negative = (c == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < end; i++) {
+			c = line.charAt(i);
+			if (c == '.') {
+				if (fraction >= 0) { malformed = true; return 0; }
+				fraction = 0;
+			} else if (c >= '0' && c <= '9') {
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (fraction >= 0) fraction++;
+				} else if (fraction < 0) {
+					// too long to hold exactly; let the JDK deal with it
+					try {
+						return Double.parseDouble(line.substring(start, end));
+					} catch (NumberFormatException nfe) {
+						malformed = true;
+						return 0;
+					}
+				}
+				digits++;
+			} else {
+				malformed = true;
+				return 0;
+			}
+		}
+		if (digits == 0) { malformed = true; return 0; }
+		double value = mantissa;
+		if (fraction > 0) value /= POWERS_OF_TEN[fraction];
+		return negative ? -value : value;
+	}
+
+	private static final double[] POWERS_OF_TEN = new double[19];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	/**
+	 * Quickly pull the M number out of a line without scanning the rest of it.
+	 * A leading line number is skipped.
+	 * @return the M code, or -1 if the line does not start with an M code
+	 */
+	public static int peekMCode(String line) {
+		final int len = line.length();
+		int i = skipBlanks(line, 0);
+		if (i < len && line.charAt(i) == 'N') {
+			i++;
+			while (i < len && line.charAt(i) >= '0' && line.charAt(i) <= '9') i++;
+			i = skipBlanks(line, i);
+		}
+		if (i >= len || line.charAt(i) != 'M') return -1;
+		i++;
+		int value = 0;
+		int digits = 0;
+		while (i < len) {
+			char c = line.charAt(i);
+			if (c < '0' || c > '9') break;
+			value = value * 10 + (c - '0');
+			digits++;
+			i++;
+		}
+		return digits > 0 ? value : -1;
+	}
+
+	private static int skipBlanks(String line, int i) {
+		while (i < line.length() && (line.charAt(i) == ' ' || line.charAt(i) == '\t')) i++;
+		return i;
+	}
+
+	public String getLine() {
+		return line;
+	}
+
+	public boolean hasCode(char code) {
+		return code >= 'A' && code <= 'Z' && (present & (1 << (code - 'A'))) != 0;
+	}
+
+	/** Returns the value of the given code, or -1 if absent (matching GCodeCommand) */
+	public double getCodeValue(char code) {
+		return hasCode(code) ? values[code - 'A'] : -1;
+	}
+
+	/** True if the line holds no codes at all (blank or comment only) */
+	public boolean isEmpty() {
+		return present == 0;
+	}
+
+	/** True if some number on the line could not be read */
+	public boolean isMalformed() {
+		return malformed;
+	}
+
+	/** The letter of the first word on the line, ignoring any N line number, or 0 */
+	public char getMainLetter() {
+		return mainLetter;
+	}
+
+	/** The integer number of the first word on the line, or -1 if it has none */
+	public int getMainNumber() {
+		return mainNumber;
+	}
+
+	/** True if the first word is a letter followed only by digits, e.g. "G1" or "M104" */
+	public boolean hasWellFormedMainCode() {
+		return mainLetter != 0 && mainIsInteger;
+	}
+
+	public boolean hasComment() {
+		return commentStart >= 0;
+	}
+
+	/** Returns the (trimmed) comment text; this allocates, so avoid it on hot paths */
+	public String getComment() {
+		if (commentStart < 0) return "";
+		return line.substring(commentStart, commentEnd).trim();
+	}
+
+	/** Returns the line with any trailing ';' comment removed; allocates only when needed */
+	public String getCommandText() {
+		return commandEnd == line.length() ? line : line.substring(0, commandEnd);
+	}
+}
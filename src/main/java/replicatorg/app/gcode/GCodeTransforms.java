@@ -0,0 +1,123 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+
+import replicatorg.app.gcode.GCodePipeline.Emitter;
+import replicatorg.app.gcode.GCodePipeline.Filter;
+import replicatorg.app.gcode.GCodePipeline.Rewriter;
+import replicatorg.app.gcode.GCodePipeline.Stage;
+import replicatorg.machine.model.ToolheadAlias;
+
+/**
+ * The standard post-processing steps, as {@link GCodePipeline} stages.
+ *
+ * @see MutableGCodeSource
+ */
+public final class GCodeTransforms {
+
+	private GCodeTransforms() { }
+
+	/**
+	 * Swaps all references to the current toolhead to instead reference the
+	 * given one. Alters select G and T codes.
+	 */
+	public static class ToolheadSwap extends Rewriter {
+		private final ToolheadAlias tool;
+		private final String recallOffset;
+
+		public ToolheadSwap(ToolheadAlias tool) {
+			this.tool = tool;
+			this.recallOffset = tool.getRecallOffsetGcodeCommand();
+		}
+
+		protected String rewrite(String line, GCodeScanner gcode) {
+			if (gcode.hasCode('T')) {
+				int value = (int) gcode.getCodeValue('T');
+				if (value != tool.number) {
+					if (value == 0)
+						line = line.replace("T0", "T1");
+					else if (value == 1)
+						line = line.replace("T1", "T0");
+				}
+			}
+			double g = gcode.getCodeValue('G');
+			if (g == 54 && !recallOffset.equals("G54"))
+				line = line.replace("G54", recallOffset);
+			if (g == 55 && !recallOffset.equals("G55"))
+				line = line.replace("G55", recallOffset);
+			return line;
+		}
+
+		@Override
+		public String toString() {
+			return "ToolheadSwap(" + tool.name() + ")";
+		}
+	}
+
+	/**
+	 * Adds an M73 build percentage message every time the line count crosses
+	 * another percent, for display on The Replicator.
+	 */
+	public static class ProgressUpdates extends Stage {
+		private final int totalLines;
+		private int index = 0;
+		private int lastPercent = 0;
+
+		/** @param totalLines the number of lines that will pass through this stage */
+		public ProgressUpdates(int totalLines) {
+			this.totalLines = Math.max(1, totalLines);
+		}
+
+		protected void process(String line, GCodeScanner gcode, Emitter out) throws IOException {
+			int percentDone = (int)(index * 100L / totalLines);
+			if (percentDone != lastPercent) {
+				out.emit(progressLine(percentDone));
+				lastPercent = percentDone;
+			}
+			out.emit(line);
+			index++;
+		}
+	}
+
+	/**
+	 * Adds an M73 build percentage message before each "(&lt;layer&gt;" tag,
+	 * as emitted by Slic3r.
+	 */
+	public static class LayerProgressUpdates extends Stage {
+		private final int totalLines;
+		private int index = 0;
+
+		/** @param totalLines the number of lines that will pass through this stage */
+		public LayerProgressUpdates(int totalLines) {
+			this.totalLines = Math.max(1, totalLines);
+		}
+
+		protected void process(String line, GCodeScanner gcode, Emitter out) throws IOException {
+			if (line.startsWith("(<layer>")) {
+				out.emit(progressLine((int)(index * 100L / totalLines)));
+			}
+			out.emit(line);
+			index++;
+		}
+	}
+
+	/// TRICKY: M73 P0 is required by The Replicator to enable % display
+	// and M73 P100 is required at the end. These are in TheReplicator start.gcode
+	// and end.gcode, so the only 'M73 P100' that should happen is part of the end.gcode:
+	// it sends an s3g 'BUILD_DONE', and more than one of those confuses the firmware.
+	// The only M73 P0 should be part of the start gcode, to specify the filename.
+	static String progressLine(int percentDone) {
+		if (percentDone <= 0) percentDone = 1;
+		if (percentDone >= 100) percentDone = 99;
+		return "M73 P" + percentDone + " (display progress)";
+	}
+
+	/**
+	 * Removes all skeinforge tag comments, except for layer tags.
+	 */
+	public static class StripNonLayerTags extends Filter {
+		protected boolean accept(String line, GCodeScanner gcode) {
+			return !(line.startsWith("(<") && !(line.startsWith("(<layer>") || line.startsWith("(</layer")));
+		}
+	}
+}
@@ -0,0 +1,583 @@
+package replicatorg.app.gcode;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline.Emitter;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * A post-processing stage that reorders the islands within each layer to
+ * cut down on travel. Slicers tend to lay islands down in whatever order
+ * they come out of the slicing, which can send the head back and forth
+ * across the bed.
+ *
+ * An island is everything from a travel move to the next travel move that
+ * follows some extrusion: the travel, any unretract, the extrusion, and any
+ * retract or Z hop after it. Within each layer, found by its
+ * "(&lt;layer&gt;" tags, the islands are toured nearest neighbour first and
+ * then improved with 2-opt. The first island stays first if it doesn't begin
+ * with a travel of its own, and the last always stays last, so the machine
+ * leaves every layer exactly as it would have. Before an island that has
+ * moved, the feedrate and the extruder position it expects are restored with
+ * a G1 F and a G92. A layer is left alone unless every island that might
+ * move starts from the same height, retraction and extruder state, and holds
+ * nothing but straight moves, extruder on and off, and extruder resets.
+ *
+ * Layers are reordered on a pool of worker threads as they come in, and
+ * passed on in their original order.
+ */
+public class IslandReorderer extends GCodePipeline.Stage {
+
+	/** Totals over every layer that has passed through. */
+	public static class Stats {
+		int layers = 0;
+		int reordered = 0;
+		int islands = 0;
+		double travelBefore = 0;
+		double travelAfter = 0;
+		double millisBefore = 0;
+		double millisAfter = 0;
+
+		void add(LayerJob job) {
+			layers++;
+			islands += job.islands;
+			travelBefore += job.travelBefore;
+			travelAfter += job.travelAfter;
+			if (job.reordered) {
+				reordered++;
+				millisBefore += job.millisBefore;
+				millisAfter += job.millisAfter;
+			}
+		}
+
+		public int getLayers() { return layers; }
+		public int getReorderedLayers() { return reordered; }
+		public int getIslands() { return islands; }
+		/** Travel between islands, in mm, in the original order */
+		public double getTravelBefore() { return travelBefore; }
+		/** Travel between islands, in mm, after reordering */
+		public double getTravelAfter() { return travelAfter; }
+		/** Estimated time saved over all reordered layers, in milliseconds */
+		public double getMillisSaved() { return millisBefore - millisAfter; }
+
+		public String toString() {
+			double saved = travelBefore == 0 ? 0 : 100 * (1 - travelAfter / travelBefore);
+			String result = String.format("Reordered islands in %d of %d layers: %.0fmm of travel down to %.0fmm (%.1f%% less)",
+					reordered, layers, travelBefore, travelAfter, saved);
+			if (getMillisSaved() >= 1000) {
+				result += ", about " + EstimationDriver.getBuildTimeString(getMillisSaved(), true) + " saved";
+			}
+			return result;
+		}
+	}
+
+	private final MachineModel model;
+	private final int threads;
+	private ExecutorService pool = null;
+	private final LinkedList<LayerJob> pending = new LinkedList<LayerJob>();
+	private final Stats stats = new Stats();
+
+	// where the machine is as each line comes in
+	private final State state = new State();
+	private State layerStart = null;
+	private List<String> layer = null;
+
+	/** @param model the machine to estimate time savings for, or null for none */
+	public IslandReorderer(MachineModel model) {
+		this(model, Runtime.getRuntime().availableProcessors());
+	}
+
+	public IslandReorderer(MachineModel model, int threads) {
+		this.model = model;
+		this.threads = Math.max(1, threads);
+	}
+
+	public Stats getStats() {
+		return stats;
+	}
+
+	protected void process(String line, GCodeScanner gcode, Emitter out) throws IOException {
+		if (line.startsWith("(<layer>")) {
+			if (layer != null) submit(out);
+			layer = new ArrayList<String>();
+			layerStart = state.copy();
+		}
+		state.update(gcode);
+		if (layer != null) {
+			layer.add(line);
+			if (line.startsWith("(</layer>")) submit(out);
+		} else if (pending.isEmpty()) {
+			out.emit(line);
+		} else {
+			// hold it until the layers before it have gone out
+			pending.getLast().after.add(line);
+		}
+	}
+
+	protected void finish(Emitter out) throws IOException {
+		if (layer != null) submit(out);
+		while (!pending.isEmpty()) emitHead(out);
+		if (pool != null) pool.shutdownNow();
+		pool = null;
+		if (stats.layers > 0) Base.logger.info(stats.toString());
+	}
+
+	private void submit(Emitter out) throws IOException {
+		LayerJob job = new LayerJob(layer, layerStart, model);
+		layer = null;
+		layerStart = null;
+		if (threads == 1) {
+			job.call();
+		} else {
+			if (pool == null) {
+				pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Island Reorderer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			job.future = pool.submit(job);
+		}
+		pending.add(job);
+		// pass on whatever is finished, and don't get too far ahead of the workers
+		while (!pending.isEmpty() && (pending.getFirst().isDone() || pending.size() > 2 * threads)) {
+			emitHead(out);
+		}
+	}
+
+	private void emitHead(Emitter out) throws IOException {
+		LayerJob job = pending.removeFirst();
+		try {
+			if (job.future != null) job.future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			job.output = null;
+		} catch (ExecutionException e) {
+			// call() catches its own failures; this would be the pool going away
+			job.output = null;
+		}
+		if (job.output == null) {
+			job.reordered = false;
+			job.travelAfter = job.travelBefore;
+		}
+		stats.add(job);
+		for (String line : job.output != null ? job.output : job.input) out.emit(line);
+		for (String line : job.after) out.emit(line);
+	}
+
+	public String toString() {
+		return "IslandReorderer";
+	}
+
+	/**
+	 * The machine state the reordering cares about. Positions are NaN until
+	 * something sets them; extruder positions start at zero.
+	 */
+	static class State {
+		static final String EXTRUDERS = "EAB";
+
+		boolean absolute = true;
+		boolean inches = false;
+		boolean motorOn = false;
+		double x = Double.NaN, y = Double.NaN, z = Double.NaN;
+		double feedrate = Double.NaN;
+		final double[] e = new double[3];
+		/** the furthest each extruder has been pushed, to tell how far it's retracted */
+		final double[] eMax = new double[3];
+
+		State copy() {
+			State s = new State();
+			s.absolute = absolute;
+			s.inches = inches;
+			s.motorOn = motorOn;
+			s.x = x;
+			s.y = y;
+			s.z = z;
+			s.feedrate = feedrate;
+			System.arraycopy(e, 0, s.e, 0, 3);
+			System.arraycopy(eMax, 0, s.eMax, 0, 3);
+			return s;
+		}
+
+		void update(GCodeScanner gcode) {
+			char letter = gcode.getMainLetter();
+			int number = gcode.getMainNumber();
+			if (letter == 'G') {
+				switch (number) {
+				case 0: case 1: case 2: case 3:
+					if (gcode.hasCode('X')) x = absolute ? gcode.getCodeValue('X') : x + gcode.getCodeValue('X');
+					if (gcode.hasCode('Y')) y = absolute ? gcode.getCodeValue('Y') : y + gcode.getCodeValue('Y');
+					if (gcode.hasCode('Z')) z = absolute ? gcode.getCodeValue('Z') : z + gcode.getCodeValue('Z');
+					for (int i = 0; i < 3; i++) {
+						char c = EXTRUDERS.charAt(i);
+						if (gcode.hasCode(c)) {
+							e[i] = absolute ? gcode.getCodeValue(c) : e[i] + gcode.getCodeValue(c);
+							eMax[i] = Math.max(eMax[i], e[i]);
+						}
+					}
+					if (gcode.hasCode('F')) feedrate = gcode.getCodeValue('F');
+					break;
+				case 20: inches = true; break;
+				case 21: inches = false; break;
+				case 28:
+					boolean all = !(gcode.hasCode('X') || gcode.hasCode('Y') || gcode.hasCode('Z'));
+					if (all || gcode.hasCode('X')) x = Double.NaN;
+					if (all || gcode.hasCode('Y')) y = Double.NaN;
+					if (all || gcode.hasCode('Z')) z = Double.NaN;
+					break;
+				case 90: absolute = true; break;
+				case 91: absolute = false; break;
+				case 92:
+					if (gcode.hasCode('X')) x = gcode.getCodeValue('X');
+					if (gcode.hasCode('Y')) y = gcode.getCodeValue('Y');
+					if (gcode.hasCode('Z')) z = gcode.getCodeValue('Z');
+					for (int i = 0; i < 3; i++) {
+						char c = EXTRUDERS.charAt(i);
+						if (gcode.hasCode(c)) {
+							// keep how far it's retracted
+							eMax[i] += gcode.getCodeValue(c) - e[i];
+							e[i] = gcode.getCodeValue(c);
+						}
+					}
+					break;
+				}
+			} else if (letter == 'M') {
+				if (number == 101) motorOn = true;
+				else if (number == 103) motorOn = false;
+			}
+		}
+
+		/** Whether an island could start from here as well as from the other */
+		boolean sameBoundary(State o) {
+			if (absolute != o.absolute || inches != o.inches || motorOn != o.motorOn) return false;
+			if (!(Math.abs(z - o.z) < 1e-6)) return false;
+			for (int i = 0; i < 3; i++) {
+				if (Math.abs((eMax[i] - e[i]) - (o.eMax[i] - o.e[i])) > 1e-4) return false;
+			}
+			return true;
+		}
+	}
+
+	/** One island: its lines, where it starts extruding and where it ends */
+	static class Island {
+		int from, to;
+		State start, end;
+		double entryX, entryY;
+		boolean extrudes = false;
+		/** the island's own first move says where it starts */
+		boolean selfContained = false;
+		/** it holds nothing that would change if it ran at another point in the layer */
+		boolean movable = true;
+	}
+
+	/** Reorders one layer. */
+	static class LayerJob implements Callable<LayerJob> {
+		/** Most passes of 2-opt over a layer */
+		static final int MAX_PASSES = 50;
+
+		final List<String> input;
+		final List<String> after = new ArrayList<String>();
+		final State entry;
+		final MachineModel model;
+
+		/** set if the job was handed to the pool */
+		Future<LayerJob> future = null;
+		List<String> output = null;
+		boolean reordered = false;
+		int islands = 0;
+		double travelBefore = 0, travelAfter = 0;
+		double millisBefore = 0, millisAfter = 0;
+
+		LayerJob(List<String> input, State entry, MachineModel model) {
+			this.input = input;
+			this.entry = entry;
+			this.model = model;
+		}
+
+		boolean isDone() {
+			return future == null || future.isDone();
+		}
+
+		public LayerJob call() {
+			try {
+				reorder();
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.SEVERE, "Could not reorder the islands in a layer", e);
+				output = null;
+			}
+			return this;
+		}
+
+		private void reorder() {
+			output = input;
+			List<Island> found = findIslands();
+			islands = found.size();
+			if (found.size() < 3 || !canReorder(found)) {
+				travelBefore = travelAfter = travel(found, identity(found.size()));
+				return;
+			}
+
+			int[] order = plan(found);
+			travelBefore = travel(found, identity(found.size()));
+			travelAfter = travel(found, order);
+			if (travelAfter >= travelBefore - 1e-6) {
+				travelAfter = travelBefore;
+				return;
+			}
+			output = emit(found, order);
+			reordered = true;
+			if (model != null) {
+				millisBefore = estimate(input);
+				millisAfter = estimate(output);
+			}
+		}
+
+		private List<Island> findIslands() {
+			List<Island> found = new ArrayList<Island>();
+			GCodeScanner gcode = new GCodeScanner();
+			State s = entry.copy();
+			Island current = null;
+			for (int i = 0; i < input.size(); i++) {
+				gcode.scan(input.get(i));
+				char letter = gcode.getMainLetter();
+				int number = gcode.getMainNumber();
+				boolean move = letter == 'G' && (number == 0 || number == 1)
+						&& (gcode.hasCode('X') || gcode.hasCode('Y'));
+				boolean extruding = move && extrudes(gcode, s);
+				if (move && (current == null || (!extruding && current.extrudes))) {
+					if (current != null) close(current, i, s);
+					current = new Island();
+					current.from = i;
+					current.start = s.copy();
+					current.selfContained = !extruding && gcode.hasCode('X') && gcode.hasCode('Y');
+					found.add(current);
+				}
+				if (current != null) {
+					if (extruding && !current.extrudes) {
+						current.extrudes = true;
+						current.entryX = s.x;
+						current.entryY = s.y;
+					}
+					if (!allowed(gcode)) current.movable = false;
+				}
+				s.update(gcode);
+			}
+			if (current != null) close(current, input.size(), s);
+			return found;
+		}
+
+		private static void close(Island island, int to, State s) {
+			island.to = to;
+			island.end = s.copy();
+			if (!island.extrudes) {
+				island.entryX = s.x;
+				island.entryY = s.y;
+			}
+		}
+
+		/** Whether a move lays down plastic, given the state before it */
+		private static boolean extrudes(GCodeScanner gcode, State s) {
+			boolean any = false;
+			for (int i = 0; i < 3; i++) {
+				char c = State.EXTRUDERS.charAt(i);
+				if (gcode.hasCode(c)) {
+					any = true;
+					double v = gcode.getCodeValue(c);
+					if (s.absolute ? v > s.e[i] : v > 0) return true;
+				}
+			}
+			return !any && s.motorOn;
+		}
+
+		/** Lines that mean the same thing wherever the island runs */
+		private static boolean allowed(GCodeScanner gcode) {
+			if (gcode.isEmpty()) return true;
+			char letter = gcode.getMainLetter();
+			int number = gcode.getMainNumber();
+			if (letter == 'G') {
+				if (number == 0 || number == 1) return true;
+				if (number == 92) return !(gcode.hasCode('X') || gcode.hasCode('Y') || gcode.hasCode('Z'));
+				return false;
+			}
+			return letter == 'M' && (number == 101 || number == 103);
+		}
+
+		private boolean canReorder(List<Island> found) {
+			Island first = found.get(0);
+			int movableFrom = first.selfContained ? 0 : 1;
+			State boundary = null;
+			for (int i = movableFrom; i < found.size(); i++) {
+				Island island = found.get(i);
+				if (!island.selfContained || !island.start.absolute) return false;
+				if (Double.isNaN(island.start.feedrate)) return false;
+				// only the last island may hold anything else, since it won't move
+				if (i < found.size() - 1 && !island.movable) return false;
+				if (boundary == null) boundary = island.start;
+				else if (!boundary.sameBoundary(island.start)) return false;
+			}
+			State from = movableFrom == 0 ? first.start : first.end;
+			return !Double.isNaN(from.x) && !Double.isNaN(from.y);
+		}
+
+		private static int[] identity(int n) {
+			int[] order = new int[n];
+			for (int i = 0; i < n; i++) order[i] = i;
+			return order;
+		}
+
+		/** Where the head is before the island at this point in the order */
+		private static double exitX(List<Island> found, int[] order, int i) {
+			return i == 0 ? found.get(0).start.x : found.get(order[i - 1]).end.x;
+		}
+
+		private static double exitY(List<Island> found, int[] order, int i) {
+			return i == 0 ? found.get(0).start.y : found.get(order[i - 1]).end.y;
+		}
+
+		/** Travel from the end of each island to the start of the next, in mm */
+		private static double travel(List<Island> found, int[] order) {
+			double total = 0;
+			for (int i = 0; i < order.length; i++) {
+				double fx = exitX(found, order, i), fy = exitY(found, order, i);
+				if (Double.isNaN(fx) || Double.isNaN(fy)) continue;
+				Island to = found.get(order[i]);
+				total += Math.hypot(to.entryX - fx, to.entryY - fy);
+			}
+			return total;
+		}
+
+		/** Nearest neighbour, then 2-opt, between the fixed first and last islands */
+		private int[] plan(List<Island> found) {
+			int n = found.size();
+			int fixedFirst = found.get(0).selfContained ? 0 : 1;
+			int[] order = identity(n);
+
+			// route points: the place we start from, then each movable island
+			int m = n - 1 - fixedFirst;
+			State from = fixedFirst == 0 ? found.get(0).start : found.get(0).end;
+			double x = from.x, y = from.y;
+			boolean[] used = new boolean[n];
+			for (int k = 0; k < m; k++) {
+				int best = -1;
+				double bestDistance = Double.POSITIVE_INFINITY;
+				for (int j = fixedFirst; j < n - 1; j++) {
+					if (used[j]) continue;
+					double d = Math.hypot(found.get(j).entryX - x, found.get(j).entryY - y);
+					if (d < bestDistance) {
+						bestDistance = d;
+						best = j;
+					}
+				}
+				used[best] = true;
+				order[fixedFirst + k] = best;
+				x = found.get(best).end.x;
+				y = found.get(best).end.y;
+			}
+
+			// 2-opt: reverse a stretch of islands if that shortens the trip; each
+			// island still runs forwards, so the reversed stretch costs what it
+			// costs to go from each island's end back to the start of the one
+			// before it
+			int lo = fixedFirst, hi = n - 2;
+			double[] forward = new double[n];
+			double[] backward = new double[n];
+			sums(found, order, forward, backward);
+			boolean improved = true;
+			for (int pass = 0; improved && pass < MAX_PASSES; pass++) {
+				improved = false;
+				for (int i = lo; i < hi; i++) {
+					for (int j = i + 1; j <= hi; j++) {
+						double inX = exitX(found, order, i), inY = exitY(found, order, i);
+						Island first = found.get(order[i]), last = found.get(order[j]), next = found.get(order[j + 1]);
+						double before = Math.hypot(first.entryX - inX, first.entryY - inY)
+								+ (forward[j] - forward[i])
+								+ Math.hypot(next.entryX - last.end.x, next.entryY - last.end.y);
+						double after = Math.hypot(last.entryX - inX, last.entryY - inY)
+								+ (backward[j] - backward[i])
+								+ Math.hypot(next.entryX - first.end.x, next.entryY - first.end.y);
+						if (after < before - 1e-9) {
+							for (int a = i, b = j; a < b; a++, b--) {
+								int t = order[a];
+								order[a] = order[b];
+								order[b] = t;
+							}
+							sums(found, order, forward, backward);
+							improved = true;
+						}
+					}
+				}
+			}
+			return order;
+		}
+
+		/**
+		 * Running totals of the travel into each island in order (forward), and
+		 * of the travel from each island back to the one before it (backward)
+		 */
+		private static void sums(List<Island> found, int[] order, double[] forward, double[] backward) {
+			forward[0] = backward[0] = 0;
+			for (int k = 1; k < order.length; k++) {
+				Island a = found.get(order[k - 1]), b = found.get(order[k]);
+				forward[k] = forward[k - 1] + Math.hypot(b.entryX - a.end.x, b.entryY - a.end.y);
+				backward[k] = backward[k - 1] + Math.hypot(a.entryX - b.end.x, a.entryY - b.end.y);
+			}
+		}
+
+		private List<String> emit(List<Island> found, int[] order) {
+			DecimalFormat nf = new DecimalFormat("0.0####", new DecimalFormatSymbols(Locale.US));
+			List<String> result = new ArrayList<String>(input.size() + 2 * order.length);
+			result.addAll(input.subList(0, found.get(0).from));
+			State current = found.get(0).start;
+			for (int k = 0; k < order.length; k++) {
+				Island island = found.get(order[k]);
+				// put back what the island expects from the one before it; nothing
+				// needs doing where it follows the island it always did
+				if (island.start.feedrate != current.feedrate) {
+					result.add("G1 F" + nf.format(island.start.feedrate));
+				}
+				for (int i = 0; i < 3; i++) {
+					if (island.start.e[i] != current.e[i]) {
+						result.add("G92 " + State.EXTRUDERS.charAt(i) + nf.format(island.start.e[i]));
+					}
+				}
+				result.addAll(input.subList(island.from, island.to));
+				current = island.end;
+			}
+			return result;
+		}
+
+		/** Estimated time for the layer on its own, in milliseconds */
+		private double estimate(List<String> lines) {
+			DecimalFormat nf = new DecimalFormat("0.0####", new DecimalFormatSymbols(Locale.US));
+			GCodeEstimator estimator = new GCodeEstimator(model);
+			estimator.add(entry.inches ? "G20" : "G21");
+			estimator.add("G90");
+			StringBuilder reset = new StringBuilder("G92");
+			if (!Double.isNaN(entry.x)) reset.append(" X").append(nf.format(entry.x));
+			if (!Double.isNaN(entry.y)) reset.append(" Y").append(nf.format(entry.y));
+			if (!Double.isNaN(entry.z)) reset.append(" Z").append(nf.format(entry.z));
+			estimator.add(reset.toString());
+			if (!Double.isNaN(entry.feedrate)) estimator.add("G1 F" + nf.format(entry.feedrate));
+			if (!entry.absolute) estimator.add("G91");
+			for (String line : lines) estimator.add(line);
+			return estimator.getBuildTime();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package replicatorg.app.gcode;
+
+/**
+ * Where each line of some code ended up after more lines were put in among
+ * it, as when build progress updates are added to code that has already
+ * been estimated and checked. Only the points where the shift changes are
+ * kept, so this stays small however long the code is.
+ */
+public class LineShifts {
+	private int[] from = new int[16];
+	private int[] by = new int[16];
+	private int size = 0;
+
+	/**
+	 * From the given line on, every original line is moved down by the given
+	 * number of lines. Lines must be given in order.
+	 */
+	public void add(int line, int shift) {
+		if (size > 0 && from[size - 1] >= line) throw new IllegalArgumentException("Line " + line + " out of order");
+		if (size == from.length) {
+			int[] biggerFrom = new int[size * 2];
+			int[] biggerBy = new int[size * 2];
+			System.arraycopy(from, 0, biggerFrom, 0, size);
+			System.arraycopy(by, 0, biggerBy, 0, size);
+			from = biggerFrom;
+			by = biggerBy;
+		}
+		from[size] = line;
+		by[size] = shift;
+		size++;
+	}
+
+	/** @return where the given original line is now */
+	public int map(int line) {
+		int lo = 0, hi = size - 1, shift = 0;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (from[mid] <= line) {
+				shift = by[mid];
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return line + shift;
+	}
+
+	public boolean isEmpty() { return size == 0; }
+}
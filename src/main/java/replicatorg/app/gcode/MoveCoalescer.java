@@ -0,0 +1,227 @@
+package replicatorg.app.gcode;
+
+import java.util.Queue;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SetFeedrate;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Merges runs of short, nearly collinear moves into single moves, between
+ * the parser and the driver. Slicers cut curves into many tiny segments,
+ * and sending each of them as its own packet or line can leave the serial
+ * link, rather than the motors, setting the speed of a build.
+ *
+ * A run is merged only while every point along it stays within the
+ * tolerance of the straight line from its start to its end, it carries on
+ * in the same direction, the feedrate stays the same and the extrusion per
+ * millimetre of travel stays the same, so the merged move lays down the
+ * same plastic. Anything other than a straight move ends the run: tool
+ * changes, M-codes, arcs, dwells and so on all reach the driver in their
+ * place. Moving from extruding to not extruding, or back, ends it too.
+ *
+ * While a move is being held back, the driver hasn't been told about it,
+ * so the parser must ask this for the current position rather than the
+ * driver; the coalescer passes every other query straight on.
+ *
+ * Only drivers that take parsed moves benefit. Passthrough drivers, such as
+ * the RepRap ones, are sent each line as it was written, so there are no
+ * moves here to merge and Direct doesn't use a coalescer for them.
+ */
+public class MoveCoalescer implements DriverQueryInterface {
+	/** Most points merged into one move, so checking a run stays cheap */
+	static final int MAX_RUN = 32;
+	/** How far the extrusion per mm may differ along a run, as a fraction of it */
+	static final double EXTRUSION_TOLERANCE = 0.05;
+
+	private final DriverQueryInterface driver;
+	private final double tolerance;
+
+	// the run being held back: its start, end, and the points in between
+	private boolean holding = false;
+	private final Point5d start = new Point5d();
+	private final Point5d end = new Point5d();
+	private final double[] points = new double[3 * MAX_RUN];
+	private int count = 0;
+	private double runFeedrate;
+	private double rateA, rateB;
+
+	// where the last move went, if there's been one since anything else
+	private boolean known = false;
+	private final Point5d last = new Point5d();
+
+	private double feedrate = Double.NaN;
+	private double sentFeedrate = Double.NaN;
+
+	private long movesIn = 0;
+	private long movesOut = 0;
+
+	/**
+	 * @param tolerance the furthest, in mm, a merged move may pass from any of
+	 * the points it replaces
+	 */
+	public MoveCoalescer(DriverQueryInterface driver, double tolerance) {
+		this.driver = driver;
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Take the commands parsed from a line, and pass on those that can go to
+	 * the driver now. A move may be held back until later lines show whether
+	 * it can be merged.
+	 */
+	public void process(Queue<DriverCommand> in, Queue<DriverCommand> out) {
+		while (!in.isEmpty()) {
+			DriverCommand c = in.remove();
+			if (c instanceof SetFeedrate) {
+				feedrate = ((SetFeedrate)c).getFeedrate();
+			} else if (c instanceof QueuePoint) {
+				movesIn++;
+				move(((QueuePoint)c).getDestination(), out);
+			} else {
+				flush(out);
+				sendFeedrate(feedrate, out);
+				out.add(c);
+				known = false;
+			}
+		}
+	}
+
+	/** Pass on any move still held back. */
+	public void flush(Queue<DriverCommand> out) {
+		if (!holding) return;
+		sendFeedrate(runFeedrate, out);
+		out.add(new QueuePoint(new Point5d(end)));
+		movesOut++;
+		holding = false;
+	}
+
+	private void sendFeedrate(double f, Queue<DriverCommand> out) {
+		if (Double.isNaN(f) || f == sentFeedrate) return;
+		out.add(new SetFeedrate(f));
+		sentFeedrate = f;
+	}
+
+	private void move(Point5d to, Queue<DriverCommand> out) {
+		if (!known) {
+			last.set(driver.getCurrentPosition(false));
+			known = true;
+		}
+		if (holding && canExtend(to)) {
+			// the old end is now a point along the way
+			addPoint(end);
+			end.set(to);
+		} else {
+			flush(out);
+			holding = true;
+			start.set(last);
+			end.set(to);
+			count = 0;
+			runFeedrate = feedrate;
+			double length = distance(start, end);
+			rateA = length == 0 ? 0 : (end.a() - start.a()) / length;
+			rateB = length == 0 ? 0 : (end.b() - start.b()) / length;
+		}
+		last.set(to);
+	}
+
+	private void addPoint(Point5d p) {
+		points[3 * count] = p.x();
+		points[3 * count + 1] = p.y();
+		points[3 * count + 2] = p.z();
+		count++;
+	}
+
+	private static double distance(Point5d a, Point5d b) {
+		double dx = b.x() - a.x(), dy = b.y() - a.y(), dz = b.z() - a.z();
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	private static boolean sameRate(double run, double segment) {
+		if (run == 0 || segment == 0) return run == segment;
+		if ((run > 0) != (segment > 0)) return false;
+		return Math.abs(segment - run) <= EXTRUSION_TOLERANCE * Math.abs(run);
+	}
+
+	/** Whether a move to the given point can be merged into the run held back */
+	private boolean canExtend(Point5d to) {
+		if (count + 1 >= MAX_RUN || feedrate != runFeedrate) return false;
+		double runLength = distance(start, end);
+		double segLength = distance(end, to);
+		if (runLength == 0 || segLength == 0) return false;
+		if (!sameRate(rateA, (to.a() - end.a()) / segLength)) return false;
+		if (!sameRate(rateB, (to.b() - end.b()) / segLength)) return false;
+
+		// carrying on the same way, not doubling back
+		double cx = to.x() - start.x(), cy = to.y() - start.y(), cz = to.z() - start.z();
+		double sx = to.x() - end.x(), sy = to.y() - end.y(), sz = to.z() - end.z();
+		double rx = end.x() - start.x(), ry = end.y() - start.y(), rz = end.z() - start.z();
+		if (sx * rx + sy * ry + sz * rz <= 0) return false;
+		double chordSq = cx * cx + cy * cy + cz * cz;
+		if (chordSq == 0) return false;
+
+		// every point passed through stays close to the new chord
+		double tolSq = tolerance * tolerance;
+		if (offsetSq(end.x(), end.y(), end.z(), cx, cy, cz, chordSq) > tolSq) return false;
+		for (int i = 0; i < count; i++) {
+			if (offsetSq(points[3 * i], points[3 * i + 1], points[3 * i + 2], cx, cy, cz, chordSq) > tolSq) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** Squared distance from a point to the chord from the run's start along (cx,cy,cz) */
+	private double offsetSq(double px, double py, double pz, double cx, double cy, double cz, double chordSq) {
+		double vx = px - start.x(), vy = py - start.y(), vz = pz - start.z();
+		double t = (vx * cx + vy * cy + vz * cz) / chordSq;
+		if (t < 0 || t > 1) return Double.POSITIVE_INFINITY;
+		double dx = vx - t * cx, dy = vy - t * cy, dz = vz - t * cz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/** Moves taken in */
+	public long getMovesIn() { return movesIn; }
+
+	/** Moves passed on to the driver */
+	public long getMovesOut() { return movesOut; }
+
+	/** The fraction of moves that didn't need sending, from 0 to 1 */
+	public double getReduction() {
+		return movesIn == 0 ? 0 : 1.0 - (double)movesOut / movesIn;
+	}
+
+	public String toString() {
+		return String.format("Merged %d moves into %d: %.1f%% fewer to send, %.2fx the moves per packet",
+				movesIn, movesOut, 100 * getReduction(),
+				movesOut == 0 ? 1.0 : (double)movesIn / movesOut);
+	}
+
+	/** Where the driver will be once everything passed on and held back has run */
+	public Point5d getCurrentPosition(boolean b) {
+		if (holding) return new Point5d(end);
+		return driver.getCurrentPosition(b);
+	}
+
+	public Point3d getOffset(int i) { return driver.getOffset(i); }
+	public Point5d getMaximumFeedrates() { return driver.getMaximumFeedrates(); }
+	public double getSpindleRPM() { return driver.getSpindleRPM(); }
+	public double getMotorRPM() { return driver.getMotorRPM(); }
+	public int getMotorSpeedPWM() { return driver.getMotorSpeedPWM(); }
+	public double getTemperature(int toolhead) { return driver.getTemperature(toolhead); }
+	public double getTemperatureSetting() { return driver.getTemperatureSetting(); }
+	public boolean hasAutomatedBuildPlatform() { return driver.hasAutomatedBuildPlatform(); }
+	public double getPlatformTemperature(int toolhead) { return driver.getPlatformTemperature(toolhead); }
+	public double getPlatformTemperatureSetting() { return driver.getPlatformTemperatureSetting(); }
+	public boolean isPassthroughDriver() { return driver.isPassthroughDriver(); }
+	public Version getVersion() { return driver.getVersion(); }
+	public Version getPreferredVersion() { return driver.getPreferredVersion(); }
+	public String getConfigValue(String value, String baseline) { return driver.getConfigValue(value, baseline); }
+	public MachineModel getMachine() { return driver.getMachine(); }
+}
@@ -138,43 +138,29 @@ public class MutableGCodeSource implements GCodeSource {
 //	}
 	
 
-	/// Runs through this gcode file, swapping all references to the the current toolhead 
-	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
-	public void changeToolhead(ToolheadAlias tool) {
-		GCodeCommand gcode;
-		int value;
-		String line;
-		///FUTURE: create a synchronize block here someday
+	/// Runs the given stages over this gcode in a single pass, replacing its contents
+	/// with the result.
+	public void transform(GCodePipeline.Stage... stages) {
 		ArrayList<String> newSource = new ArrayList<String>(source.size());
-		for(Iterator<String> it = source.iterator(); it.hasNext(); )
-		{
-			line = it.next();
-			gcode = new GCodeCommand(line);
-
-			if(gcode.hasCode('T'))
-			{
-				value = (int)gcode.getCodeValue('T');
-				if(value != tool.number)
-				{
-					if(value == 0)
-						line = line.replace("T0", "T1");
-					else if(value == 1)
-						line = line.replace("T1", "T0");
-				}
-			}
-			if(gcode.getCodeValue('G') == 54 && !(tool.getRecallOffsetGcodeCommand().equals("G54")))
-			{
-				line = line.replace("G54", tool.getRecallOffsetGcodeCommand());
-			}
-			if(gcode.getCodeValue('G') == 55 && !(tool.getRecallOffsetGcodeCommand().equals("G55")))
-			{
-				line = line.replace("G55", tool.getRecallOffsetGcodeCommand());
-			}
-			newSource.add(line);
+		GCodePipeline pipeline = new GCodePipeline(new GCodePipeline.ListSink(newSource));
+		for (GCodePipeline.Stage stage : stages)
+			pipeline.add(stage);
+		try {
+			pipeline.feed(source);
+			pipeline.finish();
+		} catch (IOException e) {
+			// can't happen, a ListSink doesn't throw
+			Base.logger.log(Level.SEVERE, "Could not transform MutableGCodeSource.", e);
+			return;
 		}
-		
 		source = newSource;
 	}
+
+	/// Runs through this gcode file, swapping all references to the the current toolhead 
+	/// to instread reference the specified toolhead.  Alters select G, M and T Codes.
+	public void changeToolhead(ToolheadAlias tool) {
+		transform(new GCodeTransforms.ToolheadSwap(tool));
+	}
 	
 	/**
 	 * If only one toolhead is used, a cool command for the unused head is added
@@ -183,7 +169,7 @@ public class MutableGCodeSource implements GCodeSource {
 	 */
 	public void coolUnusedToolhead()
 	{		
-		GCodeCommand gcode;
+		GCodeScanner gcode = new GCodeScanner();
 		String line;
 
 		double tval;
@@ -196,7 +182,7 @@ public class MutableGCodeSource implements GCodeSource {
 		for(Iterator<String> it = source.iterator(); it.hasNext(); )
 		{
 			line = it.next();
-			gcode = new GCodeCommand(line);
+			gcode.scan(line);
 			
 			tval = gcode.getCodeValue('T');
 			
@@ -223,66 +209,16 @@ public class MutableGCodeSource implements GCodeSource {
 	/// by that layer via using line count
 	public void addSlic3rProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-		for(String line : source)
-		{
-			if( line.startsWith("(<layer>") )
-			{
-				int percentDone = (int)(index*100)/sourceSize;
-				if(percentDone == 0) percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		transform(new GCodeTransforms.LayerProgressUpdates(source.size()));
 	}
-	// Footnote 1: The only 'M37 100' that should happen is part of the end.gcode, since 
-	// 'M73 100' sends an s3g 'BUILD_DONE', and more than 1 'BUILD_DONE' message 
-	// causes problems for the firmware.
-    // the only M73 0 that happens should be part of the start gcode to specify the filename
 
-	
-	/// Scans gcode for layer start/ends. Adds gcode for approx % done 
-	/// by that layer via using line count
+	/// Adds gcode for approx % done every time another percent of the
+	/// lines have gone by
 	public void addProgressUpdates()
 	{
-		int index = 0;
-		int sourceSize = source.size();
-		ArrayList<String> newSource = new ArrayList<String>();
-		/// TRICKY: M73 P0 is required by The Replicator to enable % display
-		// and M73 P100. is required at the end. These are in TheReplicator start.gcode
-		// and end.gcode.  P0 and P100 are flags to send the build_start and build_end  notifications
-		// to the firmware.  A possible less tricky fix is to make a separate command for these
-    int last_percent = 0;
-		for(String line : source)
-		{
-      
-      int percentDone = (int)(index*100)/sourceSize;
-      if (percentDone != last_percent)
-			{
-				if(percentDone == 0)	percentDone = 1; 
-				if(percentDone == 100)	percentDone = 99; 
-				//^^See Footnote 1
-				newSource.add("M73 P"+percentDone+" (display progress)");
-        last_percent = percentDone;
-			}
-			newSource.add(line);
-			index++;
-		}
-		source = newSource;
+		transform(new GCodeTransforms.ProgressUpdates(source.size()));
 	}
 
-
-	
 	/// Make a deep copy of this MutableGCodeSource and returns it to the caller.
 	public MutableGCodeSource copy() {
 		MutableGCodeSource newSource = new MutableGCodeSource();
@@ -475,8 +475,14 @@ public class DualStrusionWindow extends JFrame{
 						return;
 					}
 					
-					completed.countDown();
-					if(completed.getCount() == 0)
+					// both halves are sliced at once, so only the last one to finish combines them
+					boolean last;
+					synchronized(completed)
+					{
+						completed.countDown();
+						last = completed.getCount() == 0;
+					}
+					if(last)
 					{
 						combineGcodes();
 					}
@@ -163,13 +163,8 @@ public class MachineStatusPanel extends BGPanel implements MachineListener {
 	public void updateBuildStatus(MachineProgressEvent event) {
 		if (isBuilding) {
 			/** Calculate the % of the build that is complete **/
-			double proportion = (double)event.getLines()/(double)event.getTotalLines();
-			double percentComplete = Math.round(proportion*10000.0)/100.0;
-	
-			double remaining= event.getEstimated() * (1.0 - proportion);
-			if (event.getTotalLines() == 0) {
-				remaining = 0;
-			}
+			double percentComplete = Math.round(event.getProportion()*10000.0)/100.0;
+			double remaining = event.getRemaining();
 				
 			final String s = String.format(
 					"Commands: %1$7d / %2$7d  (%3$3.2f%%) | Elapsed: %4$s  |  Est. done in:  %5$s",
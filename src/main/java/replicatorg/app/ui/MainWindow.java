@@ -69,6 +69,7 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.prefs.BackingStoreException;
@@ -111,6 +112,7 @@ import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
 import replicatorg.app.Base.InitialOpenBehavior;
 import replicatorg.app.MRUList;
+import replicatorg.app.gcode.CheckedCode;
 import replicatorg.app.gcode.GCodeEnumeration;
 import replicatorg.app.gcode.MutableGCodeSource;
 import replicatorg.app.syntax.JEditTextArea;
@@ -126,6 +128,8 @@ import replicatorg.app.util.PythonUtils;
 import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.app.util.SwingPythonSelector;
 import replicatorg.app.util.serial.Name;
+import replicatorg.app.util.serial.PortDiscovery;
+import replicatorg.app.util.serial.PortFingerprint;
 import replicatorg.app.util.serial.Serial;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.EstimationDriver;
@@ -148,7 +152,9 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
-import replicatorg.model.JEditTextAreaSource;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.SnapshotGCodeSource;
+import replicatorg.plugin.toolpath.SlicerOutputFollower;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
 import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
@@ -159,6 +165,7 @@ import replicatorg.plugin.toolpath.skeinforge.SkeinforgeGenerator;
 import replicatorg.plugin.toolpath.skeinforge.SkeinforgePostProcessor;
 import replicatorg.plugin.toolpath.miraclegrue.MiracleGrueGenerator;
 import replicatorg.plugin.toolpath.miraclegrue.MiracleGruePostProcessor;
+import replicatorg.plugin.toolpath.slic3r.Slic3rGenerator;
 import replicatorg.uploader.FirmwareUploader;
 
 import com.apple.mrj.MRJAboutHandler;
@@ -646,6 +653,13 @@ ToolpathGenerator.GeneratorListener
             (machineLoader.getMachineInterface().getMachineType() == MachineType.REPLICATOR_2) ||
             (machineLoader.getDriver().getDriverName().equals("Makerbot4GSailfish")))
 				spp.setAddProgressUpdates(true);
+			spp.setReorderIslands(Base.preferences.getBoolean("replicatorg.postprocess.reorderIslands", false),
+					machineLoader.getMachineInterface().getModel());
+		}
+		else if (generator instanceof Slic3rGenerator) {
+			((Slic3rGenerator)generator).getPostProcessor().setReorderIslands(
+					Base.preferences.getBoolean("replicatorg.postprocess.reorderIslands", false),
+					machineLoader.getMachineInterface().getModel());
 		}
 		else if (generator instanceof MiracleGrueGenerator) {
 			MiracleGruePostProcessor spp = ((MiracleGrueGenerator)generator).getPostProcessor();
@@ -704,6 +718,7 @@ ToolpathGenerator.GeneratorListener
 
 		currentName = Base.preferences.get("serial.last_selected", null);
 
+		Serial.setPortLabeler(PortDiscovery.getDiscovery());
 		Vector<Name> names = Serial.scanSerialNames();
 		Collections.sort(names);
 
@@ -751,6 +766,21 @@ ToolpathGenerator.GeneratorListener
 			}
 		});
 		serialMenu.add(item);
+		item = new JMenuItem("Identify machines on all ports");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				new Thread("Port discovery") {
+					public void run() {
+						Map<String,PortFingerprint> found = PortDiscovery.getDiscovery().discover();
+						Base.logger.info("Found " + found.size() + " machine(s): " + found.values());
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() { reloadSerialMenu(); }
+						});
+					}
+				}.start();
+			}
+		});
+		serialMenu.add(item);
 	}
 
 	
@@ -2041,7 +2071,7 @@ ToolpathGenerator.GeneratorListener
 		// loadSimulator();
 
 		// fire off our thread.
-		estimationThread = new EstimationThread(this);
+		estimationThread = new EstimationThread(this, SnapshotGCodeSource.fromTextArea(textarea));
 		estimationThread.start();
 	}
 
@@ -2060,7 +2090,7 @@ ToolpathGenerator.GeneratorListener
 		setEditorBusy(true);
 
 		// fire off our thread.
-		simulationThread = new SimulationThread(this);
+		simulationThread = new SimulationThread(this, SnapshotGCodeSource.fromTextArea(textarea));
 		simulationThread.start();
 	}
 
@@ -2177,9 +2207,9 @@ ToolpathGenerator.GeneratorListener
 			message("Building...");
 			buildStart = new Date();
 			
-			machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().buildDirect(SnapshotGCodeSource.fromTextArea(textarea));
 			//doing this check allows us to recover from pre-build stuff
-//			if(machineLoader.getMachineInterface().buildDirect(new JEditTextAreaSource(textarea)) == false)
+//			if(machineLoader.getMachineInterface().buildDirect(SnapshotGCodeSource.fromTextArea(textarea)) == false)
 //			{
 //				buildStart = null;
 //				setEditorBusy(false);
@@ -2215,7 +2245,7 @@ ToolpathGenerator.GeneratorListener
 
 			message("Uploading...");
 			buildStart = new Date();
-			machineLoader.getMachineInterface().upload(new JEditTextAreaSource(textarea), path);
+			machineLoader.getMachineInterface().upload(SnapshotGCodeSource.fromTextArea(textarea), path);
 		}
 	}
 
@@ -2385,7 +2415,7 @@ ToolpathGenerator.GeneratorListener
 			// start our building thread.
 			buildStart = new Date();
 			machineLoader.getDriver().setBuildToFileVersion((getExtension(path).equals(".x3g")) ? 4 : 3);
-			machineLoader.getMachineInterface().buildToFile(new JEditTextAreaSource(textarea), path);
+			machineLoader.getMachineInterface().buildToFile(SnapshotGCodeSource.fromTextArea(textarea), path);
 		}
 	}
 
@@ -2634,16 +2664,18 @@ ToolpathGenerator.GeneratorListener
 
 	class SimulationThread extends Thread {
 		MainWindow editor;
+		GCodeSource source;
 
-		public SimulationThread(MainWindow edit) {
+		public SimulationThread(MainWindow edit, GCodeSource source) {
 			super("Simulation Thread");
 
 			editor = edit;
+			this.source = source;
 		}
 
 		public void run() {
 			message("Simulating...");
-			machineLoader.getMachineInterface().simulate(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().simulate(source);
 			EventQueue.invokeLater(new Runnable() {
 				public void run() {
 					simulationOver();
@@ -2670,16 +2702,18 @@ ToolpathGenerator.GeneratorListener
 
 	class EstimationThread extends Thread {
 		MainWindow editor;
+		GCodeSource source;
 
-		public EstimationThread(MainWindow edit) {
+		public EstimationThread(MainWindow edit, GCodeSource source) {
 			super("Estimation Thread");
 
 			editor = edit;
+			this.source = source;
 		}
 
 		public void run() {
 			message("Estimating...");
-			machineLoader.getMachineInterface().estimate(new JEditTextAreaSource(textarea));
+			machineLoader.getMachineInterface().estimate(source);
 			editor.estimationOver();
 		}
 	}
@@ -3493,6 +3527,12 @@ ToolpathGenerator.GeneratorListener
 		// if success, update header and switch to code view
 		if (evt.getCompletion() == Completion.SUCCESS) {
 			
+			// keep the estimate and safety check done while slicing, for the build
+			if (evt.getSource() instanceof ToolpathGenerator) {
+				SlicerOutputFollower follower = ((ToolpathGenerator)evt.getSource()).getOutputFollower();
+				if (follower != null && follower.isComplete())
+					CheckedCode.offer(follower.getCheckedCode());
+			}
 			
 			if (build.getCode() != null) {
 
@@ -2,6 +2,7 @@ package replicatorg.app.ui;
 
 import java.awt.AWTException;
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.MenuItem;
 import java.awt.PopupMenu;
@@ -10,6 +11,7 @@ import java.awt.TrayIcon;
 import java.awt.TrayIcon.MessageType;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
 
@@ -39,7 +41,9 @@ public interface NotificationHandler {
 		private Factory() { throw new AssertionError(); }
 		
 		public static NotificationHandler getHandler(MainWindow editor, boolean preferSystray) {
-			if (preferSystray && SystemTray.isSupported()) {
+			if (GraphicsEnvironment.isHeadless()) {
+				return new LoggingNotificationHandler();
+			} else if (preferSystray && SystemTray.isSupported()) {
 				return new SystemTrayNotifactionHandler(editor);
 			} else {
 				return new JOptionPaneNotificationHandler();
@@ -108,6 +112,22 @@ public interface NotificationHandler {
 
 	}
 
+	/** With no display to pop anything up on, notifications just go to the log. */
+	static class LoggingNotificationHandler implements NotificationHandler {
+
+		public void showMessage(String title, String message) {
+			Base.logger.info(title + ": " + message);
+		}
+
+		public void showWarning(String title, String message, Throwable e) {
+			Base.logger.log(Level.WARNING, title + ": " + message, e);
+		}
+
+		public void showError(String title, String message, Throwable e) {
+			Base.logger.log(Level.SEVERE, title + ": " + message, e);
+		}
+	}
+
 	static class SystemTrayNotifactionHandler extends BaseNotificationHandler {
 
 		private TrayIcon trayIcon;
@@ -255,15 +255,15 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 		content.add(firmwareUpdateUrlField,"growx, wrap");
 
 		{
-			JLabel arcResolutionLabel = new JLabel("Arc resolution (in mm): ");
+			JLabel arcResolutionLabel = new JLabel("Arc tolerance (in mm): ");
 			content.add(arcResolutionLabel,"split");
-			double value = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
+			double value = Base.preferences.getDouble("replicatorg.parser.arc_tolerance_mm", 0.01);
 			JFormattedTextField arcResolutionField = new JFormattedTextField(Base.getLocalFormat());
 			arcResolutionField.setValue(new Double(value));
 			content.add(arcResolutionField);
 			String arcResolutionHelp = "<html><small><em>" +
-				"The arc resolution is the default segment length that the gcode parser will break arc codes <br>"+
-				"like G2 and G3 into.  Drivers that natively handle arcs will ignore this setting." +
+				"The arc tolerance is how far the straight segments that the gcode parser breaks arc codes <br>"+
+				"like G2 and G3 into may stray from the true arc.  Drivers that natively handle arcs will ignore this setting." +
 				"</em></small></html>";
 			arcResolutionField.setToolTipText(arcResolutionHelp);
 			arcResolutionLabel.setToolTipText(arcResolutionHelp);
@@ -274,8 +274,8 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 					if (evt.getPropertyName() == "value") {
 						try {
 							Double v = (Double)evt.getNewValue();
-							if (v == null) return;
-							Base.preferences.putDouble("replicatorg.parser.curve_segment_mm", v.doubleValue());
+							if (v == null || v.doubleValue() <= 0) return;
+							Base.preferences.putDouble("replicatorg.parser.arc_tolerance_mm", v.doubleValue());
 						} catch (ClassCastException cce) {
 							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
 						}
@@ -120,9 +120,9 @@
 	 }
 
 	 /** 
-	  * commit machine onboard parameters 
+	  * write the onboard parameters from the UI into the target's EEPROM
 	  **/
-	 private void commit() {
+	 private void storeParameters() {
 		 String newName = machineNameField.getText();
 		 if(newName.length() > MAX_NAME_LENGTH)
 			 machineNameField.setText(newName.substring(0, MAX_NAME_LENGTH ) );
@@ -197,6 +197,18 @@
     
 		 // Set acceleration related parameters
 		 accelUI.setEEPROMFromUI();
+	 }
+
+	 /** 
+	  * commit machine onboard parameters, sending only what changed
+	  **/
+	 private void commit() {
+		 target.beginEEPROMWrites();
+		 try {
+			 storeParameters();
+		 } finally {
+			 target.commitEEPROMWrites();
+		 }
 
 		 String extendedMessage = null;
 
@@ -278,6 +290,8 @@
 	
 
 	private void loadParameters() {
+		// the board's own menus may have changed things since we last looked
+		target.refreshEEPROM();
 		machineNameField.setText( this.target.getMachineName() );
 
 		if(target.hasToolCountOnboard()){
@@ -4,6 +4,8 @@ import java.awt.Frame;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
@@ -27,6 +29,10 @@ public class PythonUtils {
 	 * Preference name for preferred Python path.
 	 */
 	final static String PYTON_PATH_PREF = "python.default_path";
+	/**
+	 * Prefix of the preferences that remember what we found out about each python.
+	 */
+	final static String PROBE_PREF = "python.probe.";
 	
 	/**
 	 * Callback for Python selector method.
@@ -159,11 +165,6 @@ public class PythonUtils {
 			}
 		}
 		
-		for (String c : candidates) {
-			@SuppressWarnings("unused")
-			Version v = checkVersion(c,minVersion,maxVersion);
-		}
-		
 		// Filter candidates by version
 		Vector<String> viableCandidates = new Vector<String>();
 		for (String candidate : candidates) {
@@ -221,44 +222,98 @@ public class PythonUtils {
 	 * @return null if python is not installed, or the version of python found. 
 	 */
 	public static Version checkVersion(String path) {
+		String cached = getProbe("version", path);
+		if (cached != null) {
+			return cached.length() == 0 ? null : parseVersion(cached);
+		}
 		ProcessBuilder pb = new ProcessBuilder(path,"-V");
 		pb.redirectErrorStream(true);
 		try {
 			Process p = pb.start();
 			BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-			int returnCode = p.waitFor();
-			if (returnCode != 0) { return null; }
-	
+			Version v = null;
 			String line = reader.readLine();
-			Pattern pattern = Pattern.compile("Python ([0-9]+)\\.([0-9]+)(?:\\.([0-9]+))?");
 			while (line != null) {
-				Matcher m = pattern.matcher(line);
-				if (m.find()) {
-					int major = Integer.parseInt(m.group(1));
-					int minor = Integer.parseInt(m.group(2));
-					int revision = m.group(3)!=null?Integer.parseInt(m.group(3)):0;
-					return new Version(major,minor,revision);
-				}
+				if (v == null) v = parseVersion(line);
 				line = reader.readLine();
 			}
+			int returnCode = p.waitFor();
+			if (returnCode != 0) { v = null; }
+			putProbe("version", path, v == null ? "" : v.toString());
+			return v;
 		} catch (Exception e) {
 			Base.logger.log(Level.SEVERE,"Error attempting to detect python",e);
 		}
 		return null;
 	}
 	
+	private static Version parseVersion(String line) {
+		Matcher m = VERSION_PATTERN.matcher(line);
+		if (m.find()) {
+			int major = Integer.parseInt(m.group(1));
+			int minor = Integer.parseInt(m.group(2));
+			int revision = m.group(3)!=null?Integer.parseInt(m.group(3)):0;
+			return new Version(major,minor,revision);
+		}
+		return null;
+	}
+	
+	private static final Pattern VERSION_PATTERN = Pattern.compile("Python ([0-9]+)\\.([0-9]+)(?:\\.([0-9]+))?");
+	
+	/**
+	 * Results of running an interpreter to find something out about it, kept
+	 * for as long as the interpreter's file is unchanged. Starting python
+	 * takes long enough that doing it every time adds up.
+	 */
+	private static final Map<String,String> probes = new HashMap<String,String>();
+	
+	private static String probeStamp(String path) {
+		File f = new File(path);
+		if (!f.isFile()) return null;
+		return f.getAbsolutePath() + "|" + f.lastModified() + "|" + f.length() + "|";
+	}
+	
+	private static String probeKey(String kind, String path) {
+		return PROBE_PREF + kind + "." + Integer.toHexString(new File(path).getAbsolutePath().hashCode());
+	}
+	
+	private static synchronized String getProbe(String kind, String path) {
+		String stamp = probeStamp(path);
+		if (stamp == null) return null;
+		String key = probeKey(kind, path);
+		String value = probes.get(key);
+		if (value == null) {
+			value = Base.preferences.get(key, null);
+		}
+		if (value == null || !value.startsWith(stamp)) return null;
+		probes.put(key, value);
+		return value.substring(stamp.length());
+	}
+	
+	private static synchronized void putProbe(String kind, String path, String result) {
+		String stamp = probeStamp(path);
+		if (stamp == null) return;
+		String key = probeKey(kind, path);
+		probes.put(key, stamp + result);
+		Base.preferences.put(key, stamp + result);
+	}
+	
 	/**
 	 * Check for a successful TkInter installation.  This should be installed by default on Windows
 	 * and OS X, but needs to be explicitly installed on many Linux distributions.
 	 * @return true if TkInter is successfully installed, false otherwise
 	 */
 	public static boolean checkTkInter() {
-		if (getPythonPath() == null) { return false; }
-		ProcessBuilder pb = new ProcessBuilder(getPythonPath(),"-c","import Tkinter");
+		String python = getPythonPath();
+		if (python == null) { return false; }
+		// Only a working install is remembered; a missing one may be installed at any time.
+		if ("1".equals(getProbe("tkinter", python))) { return true; }
+		ProcessBuilder pb = new ProcessBuilder(python,"-c","import Tkinter");
 		try {
 			Process p = pb.start();
 			int returnCode = p.waitFor();
 			if (returnCode != 0) { return false; }
+			putProbe("tkinter", python, "1");
 		} catch (Exception e) {
 			Base.logger.log(Level.SEVERE,"Error attempting to detect TkInter",e);
 		}
@@ -24,6 +24,7 @@ public class Name implements Comparable<Name> {
 		this.name = name;
 		this.alias = alias;
 		this.available = available;
+		this.hardwareId = UsbHardwareId.NONE;
 	}
 	
 	public void setAlias(String alias) {
@@ -38,6 +39,15 @@ public class Name implements Comparable<Name> {
 		this.hardwareId = newId;
 	}
 
+	UsbHardwareId getHardwareId() {
+		return hardwareId;
+	}
+
+	/** @return the alias, if one has been found for this port */
+	public String getAlias() {
+		return alias;
+	}
+
 	/** Checks if this Serial.name is a valid connection port
 	 * for a machine name (as specified in machines.xml
 	 */
@@ -0,0 +1,223 @@
+package replicatorg.app.util.serial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.prefs.Preferences;
+
+import replicatorg.app.Base;
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.drivers.gen3.S3GPortProbe;
+import replicatorg.drivers.reprap.RepRapPortProbe;
+
+/**
+ * Finds out which machine is on which serial port.
+ *
+ * Every candidate port is probed at once, each with a short, bounded
+ * handshake per protocol, so finding a dozen machines takes about as long as
+ * finding one. What was found is remembered for each port (in the
+ * preferences, for the shared discovery), so a known machine can be
+ * reconnected by checking the port it was last seen on before scanning the
+ * rest, and a port is asked first in the protocol it last answered.
+ */
+public class PortDiscovery implements Serial.PortLabeler {
+	static final String PREF_PREFIX = "serial.fingerprint.";
+
+	private static PortDiscovery instance = null;
+
+	/**
+	 * The shared discovery, probing for S3G and RepRap boards, with its
+	 * findings kept in the preferences. Each probe waits long enough for a
+	 * board that resets when its port is opened.
+	 */
+	public static synchronized PortDiscovery getDiscovery() {
+		if (instance == null) {
+			instance = new PortDiscovery(Arrays.asList(new S3GPortProbe(), new RepRapPortProbe()),
+					Base.preferences.getInt("replicatorg.discovery.threads", 16),
+					Base.preferences.getInt("replicatorg.discovery.timeoutMillis", 3000));
+			instance.persistent = true;
+		}
+		return instance;
+	}
+
+	private final List<PortProbe> probes;
+	private final int timeoutMillis;
+	private final int rate;
+	private final ExecutorService executor;
+	private final Map<String,PortFingerprint> cache = new ConcurrentHashMap<String,PortFingerprint>();
+	private boolean persistent = false;
+
+	/**
+	 * @param probes tried on each port in turn, until one recognises it
+	 * @param threads most ports to probe at once
+	 * @param timeoutMillis time each probe is given on each port
+	 */
+	public PortDiscovery(List<PortProbe> probes, int threads, int timeoutMillis) {
+		this.probes = new ArrayList<PortProbe>(probes);
+		this.timeoutMillis = timeoutMillis;
+		this.rate = Base.preferences.getInt("replicatorg.discovery.rate", 115200);
+		executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PortDiscovery-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * What was last found on the given port, without probing it.
+	 * @return the fingerprint, or null if nothing is known
+	 */
+	public PortFingerprint getCached(String port) {
+		PortFingerprint f = cache.get(port);
+		if (f == null && persistent) {
+			f = PortFingerprint.parse(Base.preferences.get(PREF_PREFIX + port, null));
+			if (f != null) cache.put(port, f);
+		}
+		return f;
+	}
+
+	/** @return a description of what was last found on the port, or null */
+	public String getLabel(String port) {
+		PortFingerprint f = getCached(port);
+		return f == null ? null : f.getDescription();
+	}
+
+	private void remember(String port, PortFingerprint f) {
+		if (f != null) cache.put(port, f);
+		else cache.remove(port);
+		String key = PREF_PREFIX + port;
+		if (!persistent || key.length() > Preferences.MAX_KEY_LENGTH) return;
+		if (f != null) Base.preferences.put(key, f.toPreference());
+		else Base.preferences.remove(key);
+	}
+
+	/**
+	 * Probe a single port, in this thread.
+	 * @return what's on it, or null if nothing answered or it couldn't be opened
+	 */
+	public PortFingerprint identify(String port) {
+		return identify(port, UsbHardwareId.NONE, getCached(port));
+	}
+
+	/**
+	 * @param expected what was found on the port before, if anything; its
+	 * protocol is tried first, since it's most likely still there
+	 */
+	private PortFingerprint identify(String port, UsbHardwareId usbId, PortFingerprint expected) {
+		Serial serial;
+		try {
+			serial = new Serial(port, rate, 'N', 8, 1);
+		} catch (SerialException e) {
+			Base.logger.log(Level.FINE, "Could not open " + port + " to identify it", e);
+			return null;
+		}
+		PortFingerprint found = null;
+		try {
+			List<PortProbe> order = new ArrayList<PortProbe>(probes);
+			for (PortProbe probe : probes) {
+				if (expected != null && probe.getProtocol() == expected.getProtocol()) {
+					order.remove(probe);
+					order.add(0, probe);
+				}
+			}
+			for (PortProbe probe : order) {
+				found = probe.probe(serial, timeoutMillis);
+				if (found != null) break;
+			}
+		} finally {
+			serial.dispose();
+		}
+		// A board that didn't say what it's in may still be known by its USB id
+		if (found != null && found.getMachine().length() == 0 && usbId.isVerified()) {
+			found = new PortFingerprint(port, found.getProtocol(), found.getFirmware(), found.getVersion(),
+					usbId.getName());
+		}
+		remember(port, found);
+		return found;
+	}
+
+	/**
+	 * Probe every available port in the list at once.
+	 * @return what was found, by port name; ports where nothing answered are left out
+	 */
+	public Map<String,PortFingerprint> discover(Collection<Name> ports) {
+		Map<String,Future<PortFingerprint>> pending = new TreeMap<String,Future<PortFingerprint>>();
+		for (final Name name : ports) {
+			if (!name.isAvailable()) continue;
+			pending.put(name.getName(), executor.submit(new Callable<PortFingerprint>() {
+				public PortFingerprint call() {
+					return identify(name.getName(), name.getHardwareId(), getCached(name.getName()));
+				}
+			}));
+		}
+		// Every probe is bounded, but allow for the threads being busy
+		long waitMillis = (long)timeoutMillis * probes.size() * (1 + pending.size()) + 5000;
+		long deadline = System.currentTimeMillis() + waitMillis;
+		Map<String,PortFingerprint> found = new TreeMap<String,PortFingerprint>();
+		for (Map.Entry<String,Future<PortFingerprint>> e : pending.entrySet()) {
+			try {
+				long left = Math.max(0, deadline - System.currentTimeMillis());
+				PortFingerprint f = e.getValue().get(left, TimeUnit.MILLISECONDS);
+				if (f != null) found.put(e.getKey(), f);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (ExecutionException ee) {
+				Base.logger.log(Level.FINE, "Probing " + e.getKey() + " failed", ee.getCause());
+			} catch (TimeoutException te) {
+				Base.logger.warning("Gave up waiting for " + e.getKey() + " to answer");
+				e.getValue().cancel(true);
+			}
+		}
+		return found;
+	}
+
+	/** Probe every available serial port on this computer. */
+	public Map<String,PortFingerprint> discover() {
+		return discover(Serial.scanSerialNames());
+	}
+
+	/**
+	 * Find the port a known machine is now on. The port it was last seen on
+	 * is tried first, alone; only if it has moved are the rest probed.
+	 * @return the port, or null if the machine wasn't found
+	 */
+	public String reconnect(PortFingerprint known, Collection<Name> ports) {
+		for (Name name : ports) {
+			if (name.getName().equals(known.getPort()) && name.isAvailable()) {
+				PortFingerprint now = identify(name.getName(), name.getHardwareId(), known);
+				if (known.sameMachine(now)) return known.getPort();
+				break;
+			}
+		}
+		List<Name> others = new ArrayList<Name>();
+		for (Name name : ports) {
+			if (!name.getName().equals(known.getPort())) others.add(name);
+		}
+		for (PortFingerprint f : discover(others).values()) {
+			if (known.sameMachine(f)) return f.getPort();
+		}
+		return null;
+	}
+
+	public String reconnect(PortFingerprint known) {
+		return reconnect(known, Serial.scanSerialNames());
+	}
+}
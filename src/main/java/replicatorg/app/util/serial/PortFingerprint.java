@@ -0,0 +1,83 @@
+package replicatorg.app.util.serial;
+
+/**
+ * What a port discovery found on a serial port: which protocol the board
+ * answered in, and as much as it would say about its firmware and what
+ * machine it belongs to.
+ */
+public class PortFingerprint {
+	public enum Protocol {
+		S3G,
+		REPRAP
+	};
+
+	private final String port;
+	private final Protocol protocol;
+	private final String firmware;
+	private final String version;
+	private final String machine;
+
+	/**
+	 * @param firmware the firmware's name for itself, or "" if it didn't give one
+	 * @param version the firmware or protocol version, or ""
+	 * @param machine the kind of machine the board says it's in, or ""
+	 */
+	public PortFingerprint(String port, Protocol protocol, String firmware, String version, String machine) {
+		this.port = port;
+		this.protocol = protocol;
+		this.firmware = firmware == null ? "" : firmware;
+		this.version = version == null ? "" : version;
+		this.machine = machine == null ? "" : machine;
+	}
+
+	public String getPort() { return port; }
+	public Protocol getProtocol() { return protocol; }
+	public String getFirmware() { return firmware; }
+	public String getVersion() { return version; }
+	public String getMachine() { return machine; }
+
+	/** The same fingerprint, on another port */
+	public PortFingerprint onPort(String otherPort) {
+		return new PortFingerprint(otherPort, protocol, firmware, version, machine);
+	}
+
+	/**
+	 * True if the other fingerprint looks like the same board, on whatever
+	 * port. The version isn't compared, so a board is still recognised after
+	 * a firmware update.
+	 */
+	public boolean sameMachine(PortFingerprint other) {
+		return other != null && protocol == other.protocol &&
+			firmware.equals(other.firmware) && machine.equals(other.machine);
+	}
+
+	/** A one line form that {@link #parse(String)} reads back */
+	public String toPreference() {
+		return port + "\t" + protocol + "\t" + firmware + "\t" + version + "\t" + machine;
+	}
+
+	/** @return the fingerprint, or null if the text isn't one */
+	public static PortFingerprint parse(String text) {
+		if (text == null) return null;
+		String[] parts = text.split("\t", -1);
+		if (parts.length != 5) return null;
+		try {
+			return new PortFingerprint(parts[0], Protocol.valueOf(parts[1]), parts[2], parts[3], parts[4]);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/** A short description for the serial port menu */
+	public String getDescription() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(machine.length() > 0 ? machine : protocol.toString());
+		if (firmware.length() > 0) sb.append(", ").append(firmware);
+		if (version.length() > 0) sb.append(" v").append(version);
+		return sb.toString();
+	}
+
+	public String toString() {
+		return port + ": " + getDescription();
+	}
+}
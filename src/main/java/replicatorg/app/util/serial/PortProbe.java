@@ -0,0 +1,16 @@
+package replicatorg.app.util.serial;
+
+/**
+ * One way of asking a board what it is. A probe gets an open port and a
+ * time limit, and must give up when the limit is reached: it is run on
+ * every port, most of which won't speak its protocol.
+ */
+public interface PortProbe {
+	/** The protocol this probe recognises */
+	public PortFingerprint.Protocol getProtocol();
+
+	/**
+	 * @return what was found on the port, or null if nothing answered this probe
+	 */
+	public PortFingerprint probe(Serial serial, long timeoutMillis);
+}
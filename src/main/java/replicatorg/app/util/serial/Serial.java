@@ -35,11 +35,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,6 +50,7 @@ import java.util.regex.Pattern;
 import replicatorg.app.Base;
 import replicatorg.app.exceptions.SerialException;
 import replicatorg.app.exceptions.UnknownSerialPortException;
+import replicatorg.drivers.WireTrace;
 
 
 public class Serial implements SerialPortEventListener {
@@ -55,7 +59,36 @@ public class Serial implements SerialPortEventListener {
 	 * We maintain our own set of ports in current use, because RXTX can't be trusted.
 	 * (NB: may be obsoleted at some point on some platforms?)
 	 */
-	private static Set<Serial> portsInUse = new HashSet<Serial>();
+	private static Set<Serial> portsInUse = Collections.synchronizedSet(new HashSet<Serial>());
+
+	/** Simulated ports, by name, that are opened in place of a real one */
+	private static final ConcurrentHashMap<String,VirtualPort> virtualPorts =
+		new ConcurrentHashMap<String,VirtualPort>();
+
+	/**
+	 * Make a simulated port available under the given name. Opening a Serial
+	 * with that name connects to it instead of looking for a real port.
+	 */
+	public static void registerVirtualPort(String name, VirtualPort port) {
+		virtualPorts.put(name, port);
+	}
+
+	public static void unregisterVirtualPort(String name) {
+		virtualPorts.remove(name);
+	}
+
+	/** Names a port after what is known to be on it. */
+	public interface PortLabeler {
+		/** @return a name for the port, or null if nothing is known about it */
+		public String getLabel(String port);
+	}
+
+	private static volatile PortLabeler portLabeler = null;
+
+	/** Set what names the ports listed by {@link #scanSerialNames()}, or null for nothing. */
+	public static void setPortLabeler(PortLabeler labeler) {
+		portLabeler = labeler;
+	}
 
 	
 	/** True if the device is connected **/
@@ -64,6 +97,7 @@ public class Serial implements SerialPortEventListener {
 	// Properties can be passed in for default values.
 	// Otherwise, we default to 9600 N81
 	private SerialPort port;
+	private VirtualPort virtualPort;
 	private String name;
 	private int rate;
 	private int parity;
@@ -77,6 +111,18 @@ public class Serial implements SerialPortEventListener {
 	private int timeoutMillis = TIMEOUT_DEFAULT;            
 	
 	private ByteFifo readFifo = new ByteFifo();
+
+	/** Traffic through this port since it was opened, for driver metrics */
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	public long getBytesRead() { return bytesRead.get(); }
+	public long getBytesWritten() { return bytesWritten.get(); }
+
+	/** Where frames to and from the device are recorded, if anywhere */
+	private volatile WireTrace wireTrace = null;
+
+	public void setWireTrace(WireTrace trace) { wireTrace = trace; }
 	
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
@@ -112,16 +158,28 @@ public class Serial implements SerialPortEventListener {
 		// In-use ports may not end up in the enumeration (thanks, RXTX), so
 		// we'll scan for them, and insert them if necessary.  (The app wants
 		// to display in-use ports to reduce user confusion.)
-		for (Serial port: portsInUse) {
-			Name n = new Name(port.getName(),false);
-			boolean contains = false;
-			for (Name vi : v) { // vector.contains doesn't use comparable.
-				if (vi.compareTo(n) == 0) {
-					contains = true; 
-					break; 
+		// (ports may be opened by other threads, such as a port discovery)
+		synchronized (portsInUse) {
+			for (Serial port: portsInUse) {
+				Name n = new Name(port.getName(),false);
+				boolean contains = false;
+				for (Name vi : v) { // vector.contains doesn't use comparable.
+					if (vi.compareTo(n) == 0) {
+						contains = true; 
+						break; 
+					}
+				}
+				if (!contains) { v.add(n); }
+			}
+
+			// Virtual ports in use were listed above
+			for (String name : virtualPorts.keySet()) {
+				boolean inUse = false;
+				for (Serial port: portsInUse) {
+					if (name.equals(port.getName())) inUse = true;
 				}
+				if (!inUse) v.add(new Name(name, true));
 			}
-			if (!contains) { v.add(n); }
 		}
 
 		// Linux: scan the by-id directory and see if we can find the ids of the cables.
@@ -168,6 +226,17 @@ public class Serial implements SerialPortEventListener {
 			}
 		}
 
+		// Ports where a machine has been found before are named after it
+		PortLabeler labeler = portLabeler;
+		if (labeler != null) {
+			for (Name m : v) {
+				if (m.getAlias() == null) {
+					String label = labeler.getLabel(m.getName());
+					if (label != null) m.setAlias(label);
+				}
+			}
+		}
+
 		return v;
 	}
 
@@ -210,6 +279,22 @@ public class Serial implements SerialPortEventListener {
 			this.stop = SerialPort.STOPBITS_1_5;
 		if (stop == 2)
 			this.stop = SerialPort.STOPBITS_2;
+		VirtualPort virtual = virtualPorts.get(name);
+		if (virtual != null) {
+			virtualPort = virtual;
+			virtual.open(new VirtualPort.Host() {
+				public void receive(byte[] b, int off, int len) {
+					WireTrace trace = wireTrace;
+					if (trace != null) trace.rx(b, off, len);
+					synchronized (readFifo) {
+						for (int i = off; i < off + len; i++) received(b[i]);
+					}
+				}
+			});
+			portsInUse.add(this);
+			connected.set(true);
+			return;
+		}
 		// Attempt to find the port identifier for the designated name
 		CommPortIdentifier portId = findPortIdentifier(name);
 		if (portId == null) {
@@ -246,6 +331,11 @@ public class Serial implements SerialPortEventListener {
 		if (port != null) {
 			port.removeEventListener();
 		}
+
+		if (virtualPort != null) {
+			virtualPort.close();
+			virtualPort = null;
+		}
 		
 		if (input != null) {
 			try {
@@ -278,6 +368,10 @@ public class Serial implements SerialPortEventListener {
 	 * device.
 	 */
 	public void pulseRTSLow() {
+		if (virtualPort != null) {
+			virtualPort.reset();
+			return;
+		}
 		port.setDTR(false);
 		port.setRTS(false);
 		try {
@@ -373,8 +467,17 @@ public class Serial implements SerialPortEventListener {
 		}
 		
 		try {
+			WireTrace trace = wireTrace;
+			if (trace != null) trace.tx(bytes, 0, bytes.length);
+			VirtualPort virtual = virtualPort;
+			if (virtual != null) {
+				virtual.write(bytes);
+				bytesWritten.addAndGet(bytes.length);
+				return;
+			}
 			output.write(bytes);
 			output.flush(); // Reconsider?
+			bytesWritten.addAndGet(bytes.length);
 
 		} catch (Exception e) { // null pointer or serial port dead
 			Base.logger.severe( "serial error: \n" + e.getMessage() );
@@ -413,7 +516,7 @@ public class Serial implements SerialPortEventListener {
 			int maxEats = 255;
 			
 			try {
-				while (input.available() > 0 && maxEats > 0) {
+				while (input != null && input.available() > 0 && maxEats > 0) {
 					input.read();
 					Thread.sleep(1);
 					maxEats--;
@@ -442,9 +545,23 @@ public class Serial implements SerialPortEventListener {
 	 */
 	public boolean isConnected() { return (connected.get()); }
 
+	/** Queue a byte from the device; the caller holds the fifo's lock. */
+	private void received(byte b) {
+		readFifo.enqueue(b);
+		bytesRead.incrementAndGet();
+		//notify each byte received
+		readFifo.notifyAll();
+		SerialFifoEventListener l = listener.get();
+		if (l != null)
+			l.serialByteReceivedEvent(readFifo);
+	}
+
 	public void serialEvent(SerialPortEvent event) {
 		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
 		synchronized (readFifo) {
+			// bytes arrive one at a time; trace them a burst at a time
+			byte[] burst = rxBurst;
+			int n = 0;
 			try {
 				while (true) {
 					synchronized(input)
@@ -457,12 +574,12 @@ public class Serial implements SerialPortEventListener {
 
 					int b = input.read();
 					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
-							l.serialByteReceivedEvent(readFifo);
+						received((byte)b);
+						burst[n++] = (byte)b;
+						if (n == burst.length) {
+							traceReceived(burst, n);
+							n = 0;
+						}
 					}
 				}
 			} catch (IOException e) {
@@ -479,7 +596,17 @@ public class Serial implements SerialPortEventListener {
 					// TODO: How do we tell rxtx that we're done using this port?
 					dispose();
 				}
+			} finally {
+				traceReceived(burst, n);
 			}
 		}
 	}
+
+	/** Buffer for tracing bytes read off the port; only used under the fifo's lock */
+	private final byte[] rxBurst = new byte[64];
+
+	private void traceReceived(byte[] b, int len) {
+		WireTrace trace = wireTrace;
+		if (trace != null && len > 0) trace.rx(b, 0, len);
+	}
 }
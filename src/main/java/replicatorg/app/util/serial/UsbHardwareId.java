@@ -29,6 +29,7 @@ enum UsbHardwareId {
 	public int getVid() { return vid;}
 	public int getPid() { return pid;}
 	public boolean isVerified() { return this.verified; }
+	public String getName() { return name; }
 	
 	
 }
@@ -0,0 +1,26 @@
+package replicatorg.app.util.serial;
+
+/**
+ * A port that lives in this process rather than on a wire: registered with
+ * {@link Serial#registerVirtualPort(String, VirtualPort)}, it can be opened
+ * by name just like a real serial port, so a driver can talk to a simulated
+ * machine without knowing the difference.
+ */
+public interface VirtualPort {
+
+	/** Where a virtual port delivers the bytes it sends back to the host. */
+	public interface Host {
+		public void receive(byte[] b, int off, int len);
+	}
+
+	/** Called when a Serial opens this port; replies go to the given host until it's closed. */
+	public void open(Host host);
+
+	/** Bytes written by the host. */
+	public void write(byte[] b);
+
+	/** The host pulsed the reset line. */
+	public void reset();
+
+	public void close();
+}
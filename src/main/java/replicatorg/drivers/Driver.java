@@ -118,6 +118,11 @@ public interface Driver {
 	 */
 	public void dispose();
 
+	/**
+	 * Counters and timings for talking to the machine
+	 */
+	public DriverMetrics getMetrics();
+
 	/***************************************************************************
 	 * Machine interface functions
 	 **************************************************************************/
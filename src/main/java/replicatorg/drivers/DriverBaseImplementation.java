@@ -90,6 +90,8 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	 * Support for soft stop (e.g. for continuous jog) is not assumed until it is detected. Detection of this feature should be in initialization.
 	 */
 	protected boolean hasSoftStop = false;
+
+	private final DriverMetrics metrics = new DriverMetrics();
 	
 	/**
 	 * Creates the driver object.
@@ -131,6 +133,10 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 //		parser = null;
 	}
 
+	public DriverMetrics getMetrics() {
+		return metrics;
+	}
+
 	/***************************************************************************
 	 * Initialization handling functions
 	 **************************************************************************/
@@ -162,8 +168,21 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	public void assessState() {
 	}
 	
+	/** nanoTime of the last time an error dumped the wire trace */
+	private long lastTraceDump = 0;
+
 	protected void setError(DriverError newError) {
 		errorList.add(newError);
+		WireTrace trace = metrics.getWireTrace();
+		trace.event(WireTrace.EVENT_ERROR, newError.getDisconnected() ? 1 : 0, 0);
+		// Only drivers that have talked to a machine have anything worth keeping;
+		// don't let a driver that keeps failing fill the disk.
+		long now = System.nanoTime();
+		if (trace.getRecorded() > 1 && Base.preferences.getBoolean("replicatorg.wiretrace.dumpOnError", true)
+				&& (lastTraceDump == 0 || now - lastTraceDump > 10000000000L)) {
+			lastTraceDump = now;
+			metrics.dumpWireTrace(newError.getMessage());
+		}
 	}
 	
 	protected void setError(String e) {
@@ -278,6 +297,10 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 
 	protected final AtomicReference<Point5d> currentPosition =
 		new AtomicReference<Point5d>(null);
+
+	// Scratch space for planning moves, reused for every one
+	protected final MotionKernel motion = new MotionKernel();
+	protected final Point5d moveStart = new Point5d();
 	
 	public void setCurrentPosition(Point5d p) throws RetryException {
 		currentPosition.set(p);
@@ -339,6 +362,31 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 		}
 	}
 
+	/**
+	 * Copy the current position into the given point, rather than a new one,
+	 * for code that runs on every move. Otherwise as getCurrentPosition(false).
+	 * @return the given point
+	 */
+	protected Point5d getCurrentPosition(Point5d into) {
+		synchronized(currentPosition)
+		{
+			if (positionLost()) {
+				try {
+					currentPosition.set(reconcilePosition());
+				} catch (RetryException e) {
+					Base.logger.severe("Attempt to reconcile machine position failed, due to Retry Exception");
+				}
+			}
+			Point5d p = currentPosition.get();
+			if (p == null) {
+				into.clear();
+			} else {
+				into.set(p);
+			}
+			return into;
+		}
+	}
+
 	public Point5d getPosition() {
 		return getCurrentPosition(false);
 	}
@@ -376,6 +424,15 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	 * @return safe feedrate in mm/min
 	 */
 	public double getSafeFeedrate(Point5d delta) {
+		return MotionKernel.limitFeedrate(getUsableFeedrate(), delta, delta.length(),
+				machine.getMaximumFeedrates());
+	}
+
+	/**
+	 * The current feedrate, unless it's zero.
+	 * @return feedrate in mm/min
+	 */
+	protected double getUsableFeedrate() {
 		double feedrate = getCurrentFeedrate();
 
 		Point5d maxFeedrates = machine.getMaximumFeedrates();
@@ -393,20 +450,6 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 			feedrate = Math.max(feedrate, 1);
 			Base.logger.warning("Zero feedrate detected, reset to: " + feedrate);
 		}
-
-		// Determine the magnitude of this delta
-		double length = delta.length();
-		// For each axis: if the current feedrate will cause this axis to move
-		// faster than it's maximum feedrate, lower the system feedrate so
-		// that it will be compliant.
-		for (int i=0;i<5;i++) {
-			if (delta.get(i) != 0) {
-				if (feedrate * delta.get(i) / length > maxFeedrates.get(i)) {
-					feedrate = maxFeedrates.get(i) * length / delta.get(i);
-				}
-			}
-		}
-		// Return the feedrate, which is how fast the toolhead will be moving (magnitude of the toolhead velocity)
 		return feedrate;
 	}
 
@@ -0,0 +1,314 @@
+package replicatorg.drivers;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.plugin.MCodeRunner;
+import replicatorg.plugin.PluginEngine;
+
+/**
+ * Counters and latency histograms for one driver, cheap enough to leave on
+ * during builds: recording is a few atomic operations and allocates nothing
+ * once a histogram exists.
+ *
+ * Every driver has one, but only the drivers of connected machines are
+ * registered with the platform MBean server, as
+ * replicatorg:type=DriverMetrics,name=(machine name), where they can be
+ * watched with jconsole or any other JMX client.
+ *
+ * It also keeps a {@link WireTrace} of the driver's recent serial traffic,
+ * which can be dumped from there or when the driver reports an error.
+ */
+public class DriverMetrics implements DriverMetricsMBean {
+
+	/** seconds of history kept for the command rate */
+	private static final int RATE_SECONDS = 8;
+
+	private final AtomicLong commands = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicLong crcErrors = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong resends = new AtomicLong();
+	private final AtomicLong resendRequests = new AtomicLong();
+	private final AtomicLong movesMerged = new AtomicLong();
+
+	// commands counted into per-second slots, each stamped with the second it's counting
+	private final AtomicLongArray rateCounts = new AtomicLongArray(RATE_SECONDS);
+	private final AtomicLongArray rateStamps = new AtomicLongArray(RATE_SECONDS);
+
+	private final AtomicReferenceArray<LatencyHistogram> opcodes = new AtomicReferenceArray<LatencyHistogram>(256);
+	private final AtomicReference<LatencyHistogram> blocked = new AtomicReference<LatencyHistogram>();
+	private final AtomicReference<LatencyHistogram> parse = new AtomicReference<LatencyHistogram>();
+	private volatile String[] opcodeNames = new String[0];
+
+	// bytes counted by ports this driver has since closed
+	private final AtomicLong closedBytesIn = new AtomicLong();
+	private final AtomicLong closedBytesOut = new AtomicLong();
+	private volatile Serial serial = null;
+	private volatile PluginEngine plugins = null;
+
+	private final AtomicReference<WireTrace> trace = new AtomicReference<WireTrace>();
+
+	private ObjectName registeredAs = null;
+
+	private static LatencyHistogram get(AtomicReference<LatencyHistogram> ref) {
+		LatencyHistogram h = ref.get();
+		if (h == null) {
+			ref.compareAndSet(null, new LatencyHistogram());
+			h = ref.get();
+		}
+		return h;
+	}
+
+	/** A command went out to the machine and got its answer after the given time. */
+	public void commandCompleted(int opcode, long nanos) {
+		commandSent();
+		int i = opcode & 0xff;
+		LatencyHistogram h = opcodes.get(i);
+		if (h == null) {
+			opcodes.compareAndSet(i, null, new LatencyHistogram());
+			h = opcodes.get(i);
+		}
+		h.record(nanos);
+	}
+
+	/** A command went out, for drivers that don't wait for each answer. */
+	public void commandSent() {
+		commands.incrementAndGet();
+		long second = System.nanoTime() / 1000000000L;
+		int slot = (int)(second % RATE_SECONDS);
+		long stamp = rateStamps.get(slot);
+		if (stamp != second && rateStamps.compareAndSet(slot, stamp, second)) {
+			rateCounts.set(slot, 0);
+		}
+		rateCounts.incrementAndGet(slot);
+	}
+
+	public void bufferOverflow() {
+		overflows.incrementAndGet();
+		getWireTrace().event(WireTrace.EVENT_BUFFER_OVERFLOW, 0, 0);
+	}
+	public void crcError() {
+		crcErrors.incrementAndGet();
+		getWireTrace().event(WireTrace.EVENT_CRC_ERROR, 0, 0);
+	}
+	public void timeout() {
+		timeouts.incrementAndGet();
+		getWireTrace().event(WireTrace.EVENT_TIMEOUT, 0, 0);
+	}
+	public void resend() {
+		resends.incrementAndGet();
+		getWireTrace().event(WireTrace.EVENT_RESEND, 0, 0);
+	}
+	/** The machine asked for something to be sent again, as RepRap firmware does with "Resend:" */
+	public void resendRequested() {
+		resendRequests.incrementAndGet();
+		getWireTrace().event(WireTrace.EVENT_RESEND_REQUEST, 0, 0);
+	}
+
+	/** Moves that were merged into others before reaching the driver */
+	public void movesMerged(long count) {
+		movesMerged.addAndGet(count);
+	}
+
+	/**
+	 * The recent traffic of this driver's serial ports, and its errors.
+	 * Made the first time it's needed, so drivers that never talk to a
+	 * machine don't pay for one.
+	 */
+	public WireTrace getWireTrace() {
+		WireTrace t = trace.get();
+		if (t == null) {
+			trace.compareAndSet(null, new WireTrace());
+			t = trace.get();
+		}
+		return t;
+	}
+
+	/**
+	 * Dump the wire trace to a new file in the user's wiretraces directory.
+	 * @return the file written, or null if it couldn't be
+	 */
+	public synchronized File dumpWireTrace(String reason) {
+		File dir = Base.getUserDir("wiretraces", false);
+		if (dir == null) return null;
+		dir.mkdirs();
+		String name = registeredAs == null ? "driver" : registeredAs.getKeyProperty("name").replaceAll("[^A-Za-z0-9_.-]", "");
+		File f = new File(dir, name + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".rgt");
+		try {
+			WireTrace t = getWireTrace();
+			t.event(WireTrace.EVENT_DUMP, 0, 0);
+			int count = t.dump(f);
+			Base.logger.info("Wrote " + count + " traced frames to " + f.getAbsolutePath() +
+					(reason == null ? "" : " (" + reason + ")"));
+			return f;
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not write wire trace to " + f.getAbsolutePath(), e);
+			return null;
+		}
+	}
+
+	public String dumpWireTrace() {
+		File f = dumpWireTrace(null);
+		return f == null ? null : f.getAbsolutePath();
+	}
+
+	/** Time the build spent waiting for the driver to take a line's commands. */
+	public void blocked(long nanos) { get(blocked).record(nanos); }
+
+	/** Time taken to parse a line of gcode into commands. */
+	public void parsed(long nanos) { get(parse).record(nanos); }
+
+	/** Names for the opcodes in {@link #getOpcodeLatencies()}, indexed by opcode */
+	public void setOpcodeNames(String[] names) {
+		opcodeNames = names;
+	}
+
+	/** Count the bytes through this port from now on, on top of those already counted. */
+	public synchronized void setSerial(Serial serial) {
+		Serial old = this.serial;
+		if (old == serial) return;
+		if (old != null) {
+			closedBytesIn.addAndGet(old.getBytesRead());
+			closedBytesOut.addAndGet(old.getBytesWritten());
+		}
+		this.serial = serial;
+		if (serial != null) serial.setWireTrace(getWireTrace());
+	}
+
+	/** The plugins run alongside this driver's builds, to report on with the rest */
+	public void setPlugins(PluginEngine plugins) {
+		this.plugins = plugins;
+	}
+
+	public long getCommandCount() { return commands.get(); }
+	public long getBufferOverflowRetries() { return overflows.get(); }
+	public long getCrcErrors() { return crcErrors.get(); }
+	public long getTimeouts() { return timeouts.get(); }
+	public long getResends() { return resends.get(); }
+	public long getResendRequests() { return resendRequests.get(); }
+	public long getMovesMerged() { return movesMerged.get(); }
+
+	public double getCommandsPerSecond() {
+		long now = System.nanoTime() / 1000000000L;
+		long total = 0;
+		// whole seconds only; the current one is still being counted
+		for (int i = 0; i < RATE_SECONDS; i++) {
+			long stamp = rateStamps.get(i);
+			if (stamp < now && stamp >= now - (RATE_SECONDS - 1)) total += rateCounts.get(i);
+		}
+		return total / (double)(RATE_SECONDS - 1);
+	}
+
+	public synchronized long getSerialBytesIn() {
+		Serial s = serial;
+		return closedBytesIn.get() + (s == null ? 0 : s.getBytesRead());
+	}
+
+	public synchronized long getSerialBytesOut() {
+		Serial s = serial;
+		return closedBytesOut.get() + (s == null ? 0 : s.getBytesWritten());
+	}
+
+	public LatencyHistogram getBlockedHistogram() { return get(blocked); }
+	public LatencyHistogram getParseHistogram() { return get(parse); }
+
+	/** @return the histogram for the given opcode, or null if it's never been sent */
+	public LatencyHistogram getOpcodeHistogram(int opcode) {
+		return opcodes.get(opcode & 0xff);
+	}
+
+	public long getBlockedMillis() { return get(blocked).getTotalNanos() / 1000000L; }
+	public String getBlocked() { return get(blocked).toString(); }
+	public double getParseMeanMicros() { return get(parse).getMeanNanos() / 1000.0; }
+	public String getParse() { return get(parse).toString(); }
+
+	public String[] getOpcodeLatencies() {
+		String[] names = opcodeNames;
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < opcodes.length(); i++) {
+			LatencyHistogram h = opcodes.get(i);
+			if (h == null) continue;
+			String name = (i < names.length && names[i] != null) ? " " + names[i] : "";
+			lines.add(String.format("0x%02X%s: %s", i, name, h));
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public String[] getPluginLatencies() {
+		PluginEngine engine = plugins;
+		if (engine == null) return new String[0];
+		List<String> lines = new ArrayList<String>();
+		for (MCodeRunner runner : engine.getRunners()) {
+			lines.add(runner.toString());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	public void reset() {
+		commands.set(0);
+		overflows.set(0);
+		crcErrors.set(0);
+		timeouts.set(0);
+		resends.set(0);
+		resendRequests.set(0);
+		movesMerged.set(0);
+		for (int i = 0; i < RATE_SECONDS; i++) rateCounts.set(i, 0);
+		for (int i = 0; i < opcodes.length(); i++) {
+			LatencyHistogram h = opcodes.get(i);
+			if (h != null) h.reset();
+		}
+		get(blocked).reset();
+		get(parse).reset();
+	}
+
+	/**
+	 * Make these metrics visible over JMX, under the given name. A second
+	 * machine with the same name gets a number on the end.
+	 */
+	public synchronized void register(String name) {
+		if (registeredAs != null) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			String base = "replicatorg:type=DriverMetrics,name=" + ObjectName.quote(name);
+			ObjectName on = new ObjectName(base);
+			for (int n = 2; server.isRegistered(on); n++) {
+				on = new ObjectName(base + ",instance=" + n);
+			}
+			server.registerMBean(this, on);
+			registeredAs = on;
+		} catch (Exception e) {
+			Base.logger.log(Level.WARNING, "Could not register driver metrics for " + name, e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (registeredAs == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredAs);
+		} catch (Exception e) {
+			Base.logger.log(Level.FINE, "Could not unregister driver metrics", e);
+		}
+		registeredAs = null;
+	}
+
+	/** @return the name these metrics are registered under, or null if they aren't */
+	public synchronized ObjectName getObjectName() {
+		return registeredAs;
+	}
+}
@@ -0,0 +1,39 @@
+package replicatorg.drivers;
+
+/**
+ * What {@link DriverMetrics} shows over JMX. Times are in microseconds
+ * unless they say otherwise.
+ */
+public interface DriverMetricsMBean {
+	public long getCommandCount();
+	/** averaged over the last few whole seconds */
+	public double getCommandsPerSecond();
+
+	public long getBufferOverflowRetries();
+	public long getCrcErrors();
+	public long getTimeouts();
+	public long getResends();
+	/** Times the machine asked for a resend; each may resend several lines */
+	public long getResendRequests();
+	/** Moves merged into others, and so never sent */
+	public long getMovesMerged();
+
+	public long getSerialBytesIn();
+	public long getSerialBytesOut();
+
+	/** Time the build thread spent waiting on the driver in Direct.runNext */
+	public long getBlockedMillis();
+	public String getBlocked();
+	public double getParseMeanMicros();
+	public String getParse();
+
+	/** Round trip latency of each packet type sent, one line per opcode */
+	public String[] getOpcodeLatencies();
+	/** Time each M-code plugin takes over the codes it's handed, one line per plugin */
+	public String[] getPluginLatencies();
+
+	public void reset();
+
+	/** Write the recent wire traffic to a file; returns its path */
+	public String dumpWireTrace();
+}
@@ -25,8 +25,6 @@ package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
 
-import javax.vecmath.Point3d;
-
 import replicatorg.util.Point5d;
 
 public class EstimationDriver extends DriverBaseImplementation implements InteractiveDisplay{
@@ -61,14 +59,15 @@ public class EstimationDriver extends DriverBaseImplementation implements Intera
 	 * @throws RetryException 
 	 */
 	public void queuePoint(Point5d p) throws RetryException {
-		Point5d delta = getDelta(p);
+		motion.plan(getCurrentPosition(moveStart), p, machine.getStepsPerMM(), machine.getMaximumFeedrates(),
+				getUsableFeedrate());
 
 		// add to the total length
-		moveLength = delta.get3D().distance(new Point3d());
+		moveLength = motion.getDistance();
 
 		// Calculate the feedrate. This is the speed that the toolhead will
 		// be traveling at.
-		double feedrate = getSafeFeedrate(delta);
+		double feedrate = motion.getFeedrate();
 
 		// mostly for estimation driver.
 		
@@ -0,0 +1,97 @@
+package replicatorg.drivers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds that any number of threads can
+ * record into without locking.
+ *
+ * Buckets are log-linear, the way HdrHistogram lays them out: every power
+ * of two is split into 16 equal buckets, so a reported value is within about
+ * 3% of the true one, from a nanosecond up to about half an hour. Recording
+ * is a couple of shifts and an atomic increment, and allocates nothing.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	/** values are clamped below 2^MAX_EXPONENT ns, about 37 minutes */
+	private static final int MAX_EXPONENT = 41;
+	private static final int BUCKETS = SUB_COUNT + (MAX_EXPONENT - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	static int indexOf(long nanos) {
+		if (nanos < SUB_COUNT) return (int)nanos;
+		if (nanos >= 1L << MAX_EXPONENT) nanos = (1L << MAX_EXPONENT) - 1;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exponent - SUB_BITS;
+		int sub = (int)(nanos >>> shift) & (SUB_COUNT - 1);
+		return SUB_COUNT + shift * SUB_COUNT + sub;
+	}
+
+	/** @return the middle of the range of values that land in the given bucket */
+	static long valueOf(int index) {
+		if (index < SUB_COUNT) return index;
+		int shift = (index - SUB_COUNT) / SUB_COUNT;
+		int sub = (index - SUB_COUNT) % SUB_COUNT;
+		long low = (long)(SUB_COUNT + sub) << shift;
+		return low + ((1L << shift) >> 1);
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(indexOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos)) m = max.get();
+	}
+
+	public long getCount() { return count.get(); }
+	public long getTotalNanos() { return total.get(); }
+	public long getMaxNanos() { return max.get(); }
+
+	public double getMeanNanos() {
+		long n = count.get();
+		return n == 0 ? 0 : (double)total.get() / n;
+	}
+
+	/**
+	 * @param percentile from 0 to 100
+	 * @return the value that the given percentage of recorded values are at
+	 * or below, or 0 if nothing has been recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) return 0;
+		long wanted = Math.max(1, (long)Math.ceil(percentile / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= wanted) return Math.min(valueOf(i), max.get());
+		}
+		return max.get();
+	}
+
+	/** Forget everything recorded. Values recorded while this runs may or may not be kept. */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/** A one-line summary in microseconds, for logs and JMX */
+	@Override
+	public String toString() {
+		return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+				getCount(), getMeanNanos() / 1000.0,
+				getValueAtPercentile(50) / 1000.0, getValueAtPercentile(99) / 1000.0,
+				getMaxNanos() / 1000.0);
+	}
+}
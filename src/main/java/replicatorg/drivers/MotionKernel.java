@@ -0,0 +1,114 @@
+package replicatorg.drivers;
+
+import replicatorg.util.Point5d;
+
+/**
+ * The arithmetic for a single move: how far each axis goes, in millimetres
+ * and in steps, how fast the move can be made without any axis going over
+ * its limit, and how long it and each of its steps take.
+ *
+ * A driver keeps one of these and plans every move with it. Everything is
+ * worked out in a single pass over the axes into vectors the kernel owns,
+ * so planning a move allocates nothing; the results are good until the
+ * next call to {@link #plan}.
+ */
+public class MotionKernel {
+	private static final int AXES = 5;
+
+	private final Point5d delta = new Point5d();
+	private final Point5d absDelta = new Point5d();
+	private final Point5d steps = new Point5d();
+	private final Point5d deltaSteps = new Point5d();
+
+	private double masterSteps;
+	private double length;
+	private double distance;
+	private double feedrate;
+	private double micros;
+
+	/**
+	 * Plan a move.
+	 * @param current where the move starts, in mm
+	 * @param target where it ends, in mm
+	 * @param stepsPerMM the machine's steps per mm on each axis
+	 * @param maxFeedrates the machine's fastest feedrate on each axis, in mm/min
+	 * @param requested the feedrate asked for, in mm/min; must not be zero
+	 * @return true if the move takes at least one step
+	 */
+	public boolean plan(Point5d current, Point5d target, Point5d stepsPerMM, Point5d maxFeedrates,
+			double requested) {
+		double master = 0d;
+		double lengthSq = 0d;
+		double distanceSq = 0d;
+		for (int i = 0; i < AXES; i++) {
+			double d = target.get(i) - current.get(i);
+			double abs = Math.abs(d);
+			double spm = stepsPerMM.get(i);
+			double s = Math.round(abs * spm);
+			delta.set(i, d);
+			absDelta.set(i, abs);
+			steps.set(i, Math.round(target.get(i) * spm));
+			deltaSteps.set(i, s);
+			if (s > master) master = s;
+			lengthSq += abs * abs;
+			if (i < 3) distanceSq += abs * abs;
+		}
+		masterSteps = master;
+		length = Math.sqrt(lengthSq);
+		distance = Math.sqrt(distanceSq);
+		feedrate = limitFeedrate(requested, absDelta, length, maxFeedrates);
+		// mm / (mm/min) * 60,000,000 = move duration in microseconds
+		micros = length / feedrate * 60000000.0;
+		return master > 0d;
+	}
+
+	/**
+	 * Slow the feedrate down until no axis goes faster than it can.
+	 * @param feedrate of the whole move, in mm/min
+	 * @param absDelta how far each axis moves, in mm
+	 * @param length the length of the move over all axes
+	 */
+	public static double limitFeedrate(double feedrate, Point5d absDelta, double length, Point5d maxFeedrates) {
+		for (int i = 0; i < AXES; i++) {
+			double d = absDelta.get(i);
+			if (d != 0) {
+				if (feedrate * d / length > maxFeedrates.get(i)) {
+					feedrate = maxFeedrates.get(i) * length / d;
+				}
+			}
+		}
+		return feedrate;
+	}
+
+	/** How far each axis moves, target - current, in mm */
+	public Point5d getDelta() { return delta; }
+
+	/** How far each axis moves regardless of direction, in mm */
+	public Point5d getAbsDelta() { return absDelta; }
+
+	/** The target, in whole steps */
+	public Point5d getSteps() { return steps; }
+
+	/** How many whole steps each axis takes, regardless of direction */
+	public Point5d getDeltaSteps() { return deltaSteps; }
+
+	/** Steps taken by the axis that moves furthest */
+	public double getMasterSteps() { return masterSteps; }
+
+	/** Length of the move over all five axes, in mm */
+	public double getLength() { return length; }
+
+	/** Length of the move in X, Y and Z, in mm */
+	public double getDistance() { return distance; }
+
+	/** The fastest safe feedrate, in mm/min */
+	public double getFeedrate() { return feedrate; }
+
+	/** How long the move takes, in microseconds */
+	public double getMicros() { return micros; }
+
+	/** Microseconds between steps of the master axis */
+	public long getStepDelay() {
+		return Math.round(micros / masterSteps);
+	}
+}
@@ -0,0 +1,23 @@
+package replicatorg.drivers;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Drivers for machines whose firmware can cut arcs on its own implement this
+ * to receive G2/G3 moves whole, instead of as the chords the parser would
+ * otherwise break them into.
+ */
+public interface NativeArcs {
+
+	/**
+	 * Returns true if the connected firmware actually understands arcs; a
+	 * driver may only know this once it has spoken to the machine.
+	 */
+	public boolean hasNativeArcs();
+
+	/**
+	 * Queue an arc in the XY plane from the current position around the given
+	 * center to the endpoint. Z, A and B move linearly along the way.
+	 */
+	public void queueArc(Point5d endpoint, Point5d center, boolean clockwise) throws RetryException;
+}
@@ -26,6 +26,7 @@ package replicatorg.drivers;
 import org.w3c.dom.Node;
 
 import replicatorg.app.tools.XML;
+import replicatorg.util.Point5d;
 
 
 //TODO: why do we have this?
@@ -38,4 +39,9 @@ public class NullDriver extends DriverBaseImplementation {
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
 	}
+
+	protected Point5d reconcilePosition() {
+		// There's no machine to ask; it's wherever we told it to go.
+		return new Point5d();
+	}
 }
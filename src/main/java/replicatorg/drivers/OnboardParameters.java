@@ -271,6 +271,15 @@ public interface OnboardParameters {
 	EstopType getEstopConfig();
 	void setEstopConfig(EstopType estop);
 
+	/** Forget any motherboard EEPROM contents read so far, so the next read comes from the board. */
+	void refreshEEPROM();
+
+	/** Hold motherboard EEPROM writes until commitEEPROMWrites(). */
+	void beginEEPROMWrites();
+
+	/** Send the EEPROM writes held since beginEEPROMWrites(), skipping bytes that didn't change. */
+	void commitEEPROMWrites();
+
 	/** Reset the onboard parameters on the motherboard to factory settings. 
 	 * @throws RetryException */ 
 	void resetSettingsToFactory() throws RetryException;
@@ -94,6 +94,7 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
 			// Finally, set the new serial port
 			setInitialized(false);
 			this.serial = newConnection;
+			getMetrics().setSerial(newConnection);
 
 			// asynch option: the serial port forwards all received data in FIFO format via 
 			// serialByteReceivedEvent if the driver implements SerialFifoEventListener.
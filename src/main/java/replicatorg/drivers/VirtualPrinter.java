@@ -17,6 +17,8 @@ import replicatorg.util.Point5d;
 
 public class VirtualPrinter implements Driver, DriverQueryInterface {
 
+	private final DriverMetrics metrics = new DriverMetrics();
+
 	final String firmwareInfo = "No Firmware";
 	final Version version = new Version(0,0);
 	final Version minimumVersion = new Version(0,0);
@@ -118,6 +120,10 @@ public class VirtualPrinter implements Driver, DriverQueryInterface {
 
 	}
 
+	public DriverMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public MachineModel getMachine() {
 		return machineModel;
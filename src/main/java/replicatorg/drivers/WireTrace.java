@@ -0,0 +1,159 @@
+package replicatorg.drivers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A flight recorder for the wire: a fixed number of slots, each holding one
+ * timestamped frame sent or received, or one driver event, with the oldest
+ * overwritten once they're all used. Recording takes no lock and allocates
+ * nothing, so it can stay on for every build; frames are kept as raw bytes
+ * and only turned into text by {@link WireTraceDecoder} after a dump.
+ *
+ * Frames longer than a slot are cut short, but their full length is kept.
+ * A dump taken while frames are being recorded skips any slot overwritten
+ * while it was being copied, so a busy trace may show gaps.
+ */
+public class WireTrace {
+	public static final byte TX = 1;
+	public static final byte RX = 2;
+	public static final byte EVENT = 3;
+
+	// Event codes
+	public static final int EVENT_TIMEOUT = 1;
+	public static final int EVENT_CRC_ERROR = 2;
+	public static final int EVENT_BUFFER_OVERFLOW = 3;
+	public static final int EVENT_RESEND = 4;
+	public static final int EVENT_ERROR = 5;
+	public static final int EVENT_DUMP = 6;
+	public static final int EVENT_RESEND_REQUEST = 7;
+
+	static final int MAGIC = 0x52475754; // "RGWT"
+	static final int FORMAT = 1;
+
+	/** Bytes taken by an event: its code and two arguments */
+	private static final int EVENT_BYTES = 17;
+
+	private final int mask;
+	private final int slotBytes;
+	private final AtomicLong next = new AtomicLong();
+	/** Sequence number of the record in each slot, EMPTY, or BUSY while it's being written */
+	private final AtomicLongArray seqs;
+	private static final long EMPTY = -1;
+	private static final long BUSY = -2;
+	private final long[] times;
+	private final byte[] types;
+	private final int[] lengths;
+	private final byte[] data;
+
+	/** 4096 slots of 64 bytes */
+	public WireTrace() {
+		this(4096, 64);
+	}
+
+	/**
+	 * @param slots number of records kept; rounded up to a power of two
+	 * @param slotBytes bytes kept of each frame
+	 */
+	public WireTrace(int slots, int slotBytes) {
+		int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+		this.mask = size - 1;
+		this.slotBytes = Math.max(slotBytes, EVENT_BYTES);
+		seqs = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) seqs.set(i, EMPTY);
+		times = new long[size];
+		types = new byte[size];
+		lengths = new int[size];
+		data = new byte[size * this.slotBytes];
+	}
+
+	public int getCapacity() { return mask + 1; }
+
+	/** Records made since this trace was created, including those since overwritten */
+	public long getRecorded() { return next.get(); }
+
+	public void tx(byte[] b, int off, int len) { frame(TX, b, off, len); }
+
+	public void rx(byte[] b, int off, int len) { frame(RX, b, off, len); }
+
+	private void frame(byte type, byte[] b, int off, int len) {
+		long seq = next.getAndIncrement();
+		int slot = (int)seq & mask;
+		if (!claim(slot)) return;
+		times[slot] = System.nanoTime();
+		types[slot] = type;
+		lengths[slot] = len;
+		System.arraycopy(b, off, data, slot * slotBytes, Math.min(len, slotBytes));
+		seqs.lazySet(slot, seq);
+	}
+
+	/** Record a driver event, with two arguments whose meaning depends on the event. */
+	public void event(int code, long a, long b) {
+		long seq = next.getAndIncrement();
+		int slot = (int)seq & mask;
+		if (!claim(slot)) return;
+		times[slot] = System.nanoTime();
+		types[slot] = EVENT;
+		lengths[slot] = EVENT_BYTES;
+		int o = slot * slotBytes;
+		data[o] = (byte)code;
+		for (int i = 0; i < 8; i++) {
+			data[o + 1 + i] = (byte)(a >>> (56 - 8 * i));
+			data[o + 9 + i] = (byte)(b >>> (56 - 8 * i));
+		}
+		seqs.lazySet(slot, seq);
+	}
+
+	/**
+	 * Take a slot for writing. A writer that finds another still busy
+	 * in its slot, a whole lap behind, drops its record rather than wait.
+	 */
+	private boolean claim(int slot) {
+		long current = seqs.get(slot);
+		return current != BUSY && seqs.compareAndSet(slot, current, BUSY);
+	}
+
+	/**
+	 * Write what's in the trace, oldest first, to the given file.
+	 * @return the number of records written
+	 */
+	public int dump(File file) throws IOException {
+		long end = next.get();
+		long start = Math.max(0, end - getCapacity());
+		byte[] copy = new byte[slotBytes];
+		int count = 0;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(System.nanoTime());
+			for (long seq = start; seq < end; seq++) {
+				int slot = (int)seq & mask;
+				if (seqs.get(slot) != seq) continue;
+				long time = times[slot];
+				byte type = types[slot];
+				int length = lengths[slot];
+				int kept = Math.min(length, slotBytes);
+				System.arraycopy(data, slot * slotBytes, copy, 0, kept);
+				if (seqs.get(slot) != seq) continue; // overwritten while we copied it
+				out.writeByte(type);
+				out.writeLong(seq);
+				out.writeLong(time);
+				out.writeInt(length);
+				out.writeShort(kept);
+				out.write(copy, 0, kept);
+				count++;
+			}
+			out.writeByte(0);
+		} finally {
+			out.close();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,149 @@
+package replicatorg.drivers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Reads the files written by {@link WireTrace#dump(File)}. Run on its own
+ * it prints one line per record:
+ *
+ *   java -cp ReplicatorG.jar replicatorg.drivers.WireTraceDecoder trace.rgt
+ *
+ * Frames that look like text, as RepRap firmware talks, are shown as text;
+ * anything else, such as S3G packets, as hex.
+ */
+public class WireTraceDecoder {
+
+	private static final String[] EVENT_NAMES = {
+		"?", "timeout", "crc error", "buffer overflow", "resend", "error", "dump", "resend request"
+	};
+
+	public static class Record {
+		public final byte type;
+		public final long seq;
+		/** Wall clock time, in nanoseconds since the epoch */
+		public final long time;
+		/** The full length of the frame; only the first data.length bytes were kept */
+		public final int length;
+		public final byte[] data;
+
+		Record(byte type, long seq, long time, int length, byte[] data) {
+			this.type = type;
+			this.seq = seq;
+			this.time = time;
+			this.length = length;
+			this.data = data;
+		}
+
+		public int getEventCode() { return type == WireTrace.EVENT ? data[0] : 0; }
+		public long getEventArg(int i) { return getLong(1 + 8 * i); }
+
+		private long getLong(int offset) {
+			long v = 0;
+			for (int i = 0; i < 8; i++) v = (v << 8) | (data[offset + i] & 0xff);
+			return v;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(time / 1000000L)));
+			sb.append(String.format("%03d ", (time / 1000L) % 1000));
+			switch (type) {
+			case WireTrace.TX: sb.append("TX "); break;
+			case WireTrace.RX: sb.append("RX "); break;
+			default:
+				int code = getEventCode();
+				sb.append("-- ").append(code > 0 && code < EVENT_NAMES.length ? EVENT_NAMES[code] : "event " + code);
+				sb.append(" (").append(getEventArg(0)).append(", ").append(getEventArg(1)).append(")");
+				return sb.toString();
+			}
+			if (isText(data)) {
+				sb.append('"');
+				for (byte b : data) {
+					if (b == '\n') sb.append("\\n");
+					else if (b == '\r') sb.append("\\r");
+					else sb.append((char)b);
+				}
+				sb.append('"');
+			} else {
+				for (int i = 0; i < data.length; i++) {
+					if (i > 0) sb.append(' ');
+					sb.append(Character.forDigit((data[i] >> 4) & 0xf, 16));
+					sb.append(Character.forDigit(data[i] & 0xf, 16));
+				}
+			}
+			if (length > data.length) sb.append(" ... (").append(length).append(" bytes)");
+			return sb.toString();
+		}
+	}
+
+	private static boolean isText(byte[] data) {
+		if (data.length == 0) return false;
+		for (byte b : data) {
+			if ((b < 0x20 || b > 0x7e) && b != '\n' && b != '\r') return false;
+		}
+		return true;
+	}
+
+	/** Read every record in a dump, oldest first. */
+	public static List<Record> read(File file) throws IOException {
+		List<Record> records = new ArrayList<Record>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != WireTrace.MAGIC) throw new IOException(file + " is not a wire trace");
+			int format = in.readInt();
+			if (format != WireTrace.FORMAT) throw new IOException("Unknown wire trace format " + format);
+			long wallMillis = in.readLong();
+			long nanos = in.readLong();
+			// turn recording times into wall clock times
+			long offset = wallMillis * 1000000L - nanos;
+			byte type;
+			while ((type = in.readByte()) != 0) {
+				long seq = in.readLong();
+				long time = in.readLong();
+				int length = in.readInt();
+				byte[] data = new byte[in.readShort()];
+				in.readFully(data);
+				records.add(new Record(type, seq, time + offset, length, data));
+			}
+		} finally {
+			in.close();
+		}
+		return records;
+	}
+
+	public static void decode(File file, PrintStream out) throws IOException {
+		List<Record> records = read(file);
+		long lost = 0;
+		for (int i = 1; i < records.size(); i++) {
+			lost += records.get(i).seq - records.get(i - 1).seq - 1;
+		}
+		out.println("# " + file.getName() + ": " + records.size() + " records" +
+				(lost > 0 ? ", " + lost + " overwritten during the dump" : ""));
+		for (Record r : records) out.println(r);
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: WireTraceDecoder trace-file...");
+			System.exit(1);
+		}
+		for (String name : args) {
+			try {
+				decode(new File(name), System.out);
+			} catch (IOException e) {
+				System.err.println(name + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package replicatorg.drivers.commands;
+
+import replicatorg.app.gcode.ArcInterpolator;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.NativeArcs;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+/**
+ * Draws a G2/G3 arc. Drivers that handle arcs themselves get it whole;
+ * for the rest it's broken into chords as it runs, so a dense arc file
+ * doesn't have to be expanded into thousands of queued commands first.
+ */
+public class QueueArc implements DriverCommand {
+	final Point5d center;
+	final Point5d endpoint;
+	final boolean clockwise;
+	final double tolerance;
+
+	// Chords still to be sent; kept across a RetryException so the arc
+	// picks up where the driver left off.
+	private ArcInterpolator arc = null;
+	private final double[] points = new double[16 * ArcInterpolator.STRIDE];
+	private int count = 0;
+	private int index = 0;
+
+	public QueueArc(Point5d center, Point5d endpoint, boolean clockwise, double tolerance) {
+		this.center = center;
+		this.endpoint = endpoint;
+		this.clockwise = clockwise;
+		this.tolerance = tolerance;
+	}
+
+	public Point5d getCenter() { return center; }
+
+	public Point5d getEndpoint() { return endpoint; }
+
+	public boolean isClockwise() { return clockwise; }
+
+	public double getTolerance() { return tolerance; }
+
+	@Override
+	public void run(Driver driver) throws RetryException {
+		if (arc == null && driver instanceof NativeArcs && ((NativeArcs)driver).hasNativeArcs()) {
+			((NativeArcs)driver).queueArc(endpoint, center, clockwise);
+			return;
+		}
+		if (arc == null) {
+			arc = new ArcInterpolator(tolerance);
+			arc.start(driver.getCurrentPosition(false), center, endpoint, clockwise);
+			count = index = 0;
+		}
+		while (true) {
+			if (index == count) {
+				if (!arc.hasNext()) break;
+				count = arc.next(points);
+				index = 0;
+			}
+			int offset = index * ArcInterpolator.STRIDE;
+			// drivers hold on to the point they're given, so each needs its own
+			driver.queuePoint(new Point5d(points[offset], points[offset + 1],
+					points[offset + 2], points[offset + 3], points[offset + 4]));
+			index++;
+		}
+		arc = null;
+	}
+}
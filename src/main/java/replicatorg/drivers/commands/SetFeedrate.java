@@ -11,6 +11,10 @@ public class SetFeedrate implements DriverCommand {
 		this.feedrate = feedrate;
 	}
 	
+	public double getFeedrate() {
+		return feedrate;
+	}
+
 	@Override
 	public void run(Driver driver) throws RetryException {
 		driver.setFeedrateMM(feedrate);
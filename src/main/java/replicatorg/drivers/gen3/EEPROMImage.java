@@ -0,0 +1,230 @@
+package replicatorg.drivers.gen3;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import replicatorg.app.Base;
+
+/**
+ * A host-side copy of a board's EEPROM.
+ *
+ * The onboard parameters dialog reads and writes a few bytes at a time, and
+ * over s3g every one of those is a round trip to the board. This keeps the
+ * bytes we've seen, so the first read fetches the whole settings map in page
+ * sized reads sent back to back, and every read after that is answered from
+ * memory.
+ *
+ * Between beginBatch() and commit(), writes only touch the copy and mark the
+ * bytes that actually changed. The commit then sends the changed bytes,
+ * merging neighbouring runs into as few packets as it can. Outside of a batch
+ * writes go straight through to the board, as they always have.
+ */
+public class EEPROMImage {
+
+	/** The packets that actually move bytes to and from the board. */
+	public interface Port {
+		/** @return the bytes read, or null if the board didn't answer */
+		byte[] read(int offset, int length);
+		/** @return true if the board took the write */
+		boolean write(int offset, byte[] data);
+	}
+
+	/** clean bytes between two changed runs that we'll resend to save a packet */
+	private static final int MERGE_GAP = 4;
+
+	private final Port port;
+	private final int size;
+	private final int mapSize;
+	private final int pageSize;
+
+	private final byte[] image;
+	private final boolean[] pageValid;
+	private final BitSet dirty = new BitSet();
+	private int batchDepth = 0;
+
+	private int readCount = 0;
+	private int writeCount = 0;
+
+	/**
+	 * @param size the size of the EEPROM
+	 * @param mapSize bytes from the start that hold settings; these are all
+	 * fetched together the first time any of them is read
+	 * @param pageSize the most bytes the board will move in one packet
+	 */
+	public EEPROMImage(Port port, int size, int mapSize, int pageSize) {
+		this.port = port;
+		this.size = size;
+		this.mapSize = Math.min(mapSize, size);
+		this.pageSize = pageSize;
+		image = new byte[size];
+		pageValid = new boolean[(size + pageSize - 1) / pageSize];
+	}
+
+	/**
+	 * @return a copy of the requested bytes, or null if they couldn't be read
+	 */
+	public synchronized byte[] read(int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > size) {
+			readCount++;
+			return port.read(offset, length);
+		}
+		int first = offset / pageSize;
+		int last = (offset + length - 1) / pageSize;
+		if (length > 0 && offset < mapSize && !pageValid[first]) {
+			loadMap();
+		}
+		for (int p = first; p <= last; p++) {
+			if (!pageValid[p] && !loadPage(p)) return null;
+		}
+		byte[] rv = new byte[length];
+		System.arraycopy(image, offset, rv, 0, length);
+		return rv;
+	}
+
+	/** Fetch every settings page we don't have yet, stopping at the first failure. */
+	private void loadMap() {
+		int pages = (mapSize + pageSize - 1) / pageSize;
+		for (int p = 0; p < pages; p++) {
+			if (!pageValid[p] && !loadPage(p)) {
+				Base.logger.fine("EEPROM bulk read stopped at page " + p);
+				return;
+			}
+		}
+	}
+
+	private boolean loadPage(int page) {
+		int start = page * pageSize;
+		int length = Math.min(pageSize, size - start);
+		readCount++;
+		byte[] data = port.read(start, length);
+		if (data == null || data.length < length) return false;
+		// pending writes win over what's on the board
+		for (int i = 0; i < length; i++) {
+			if (!dirty.get(start + i)) image[start + i] = data[i];
+		}
+		pageValid[page] = true;
+		return true;
+	}
+
+	/**
+	 * Write bytes to the EEPROM; inside a batch, only the unchanged ones are
+	 * held back until commit().
+	 * @return false if a write that went straight to the board failed
+	 */
+	public synchronized boolean write(int offset, byte[] data) {
+		if (offset < 0 || offset + data.length > size) {
+			writeCount++;
+			return port.write(offset, data);
+		}
+		if (batchDepth > 0) {
+			for (int i = 0; i < data.length; i++) {
+				int at = offset + i;
+				if (!dirty.get(at) && pageValid[at / pageSize] && image[at] == data[i]) continue;
+				image[at] = data[i];
+				dirty.set(at);
+			}
+			return true;
+		}
+		System.arraycopy(data, 0, image, offset, data.length);
+		return send(offset, data.length);
+	}
+
+	/** Hold writes until the matching commit(). Batches may nest. */
+	public synchronized void beginBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * Ends a batch; when the outermost batch ends, the changed bytes are sent.
+	 * @return false if any of the writes failed
+	 */
+	public synchronized boolean commit() {
+		if (batchDepth == 0) return true;
+		if (--batchDepth > 0) return true;
+		boolean ok = true;
+		int start = dirty.nextSetBit(0);
+		while (start >= 0) {
+			int end = dirty.nextClearBit(start);
+			// pull in following runs when the gap is short and known
+			int next = dirty.nextSetBit(end);
+			while (next >= 0 && next - end <= MERGE_GAP && isKnown(end, next)) {
+				end = dirty.nextClearBit(next);
+				next = dirty.nextSetBit(end);
+			}
+			dirty.clear(start, end);
+			ok &= send(start, end - start);
+			start = next;
+		}
+		return ok;
+	}
+
+	private boolean isKnown(int from, int to) {
+		for (int p = from / pageSize; p <= (to - 1) / pageSize; p++) {
+			if (!pageValid[p]) return false;
+		}
+		return true;
+	}
+
+	/** Write a stretch of the image to the board, a page at most at a time. */
+	private boolean send(int offset, int length) {
+		boolean ok = true;
+		for (int at = offset; at < offset + length; at += pageSize) {
+			int n = Math.min(pageSize, offset + length - at);
+			byte[] chunk = new byte[n];
+			System.arraycopy(image, at, chunk, 0, n);
+			writeCount++;
+			if (!port.write(at, chunk)) {
+				Base.logger.severe("EEPROM write failed at " + at + " size: " + n);
+				// we no longer know what's there
+				for (int p = at / pageSize; p <= (at + n - 1) / pageSize; p++) pageValid[p] = false;
+				ok = false;
+			}
+		}
+		return ok;
+	}
+
+	/**
+	 * Forget what we've read, after the board may have changed its EEPROM
+	 * on its own. Writes held for a commit are kept.
+	 */
+	public synchronized void invalidate() {
+		Arrays.fill(pageValid, false);
+	}
+
+	public synchronized int getUInt8(int offset) {
+		byte[] b = read(offset, 1);
+		return b == null ? -1 : b[0] & 0xff;
+	}
+
+	/** little-endian, as the firmware stores it */
+	public synchronized int getUInt16(int offset) {
+		byte[] b = read(offset, 2);
+		return b == null ? -1 : (b[0] & 0xff) | ((b[1] & 0xff) << 8);
+	}
+
+	/** little-endian, as the firmware stores it; 0 if it couldn't be read */
+	public synchronized int getInt32(int offset) {
+		byte[] b = read(offset, 4);
+		if (b == null) return 0;
+		return (b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((b[3] & 0xff) << 24);
+	}
+
+	public synchronized boolean setUInt8(int offset, int value) {
+		return write(offset, new byte[] { (byte)value });
+	}
+
+	public synchronized boolean setUInt16(int offset, int value) {
+		return write(offset, new byte[] { (byte)value, (byte)(value >> 8) });
+	}
+
+	public synchronized boolean setInt32(int offset, int value) {
+		return write(offset, new byte[] { (byte)value, (byte)(value >> 8), (byte)(value >> 16), (byte)(value >> 24) });
+	}
+
+	public int getSize() { return size; }
+	/** Read packets sent to the board so far */
+	public synchronized int getReadCount() { return readCount; }
+	/** Write packets sent to the board so far */
+	public synchronized int getWriteCount() { return writeCount; }
+	public synchronized boolean hasPendingWrites() { return !dirty.isEmpty(); }
+}
@@ -0,0 +1,18 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * EEPROM locations used outside the driver that owns each map. The maps
+ * themselves are declared alongside their drivers and refer back here.
+ */
+public final class EEPROMOffsets {
+	private EEPROMOffsets() {}
+
+	/** Where a MightyBoard keeps its USB VendorId/ProductId: 4 bytes */
+	public static final int MIGHTY_BOARD_VID_PID = 0x0044;
+
+	/** Where Sailfish keeps its USB VendorId/ProductId: 4 bytes */
+	public static final int SAILFISH_VID_PID = 0x01E5;
+
+	/** The end of Sailfish's settings, just past its last one (EXTRUDER_HOLD) */
+	public static final int SAILFISH_MAP_SIZE = 0x01EA;
+}
@@ -246,8 +246,6 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 
 	protected void queueNewPoint(Point5d steps, long us, int relative) throws RetryException {
 
-		Base.logger.finer("Makerbot4GAlternateDriver queueNewPoint");
-
 		// Turn on fan if necessary
 		for (AxisId axis : getHijackedAxes( machine.currentTool()) ) {
 			if (steps.axis(axis) != 0) {
@@ -256,10 +254,6 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
 
-		Base.logger.finer("Queued new-style point " + steps + " over "
-					+ Long.toString(us) + " usec., relative " + Integer.toString(relative));
-
-
 		// just add them in now.
 		pb.add32((int) steps.x());
 		pb.add32((int) steps.y());
@@ -274,8 +268,6 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 
 	protected void queueNewExtPoint(Point5d steps, long dda_rate, int relative, float distance, float feedrate) throws RetryException {
 
-		Base.logger.finer("Makerbot4GAlternateDriver queueNewExtPoint");
-
 		// Turn on fan if necessary
 		for (AxisId axis : getHijackedAxes( machine.currentTool()) ) {
 			if (steps.axis(axis) != 0) {
@@ -284,11 +276,6 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW_EXT.getCode());
 
-		Base.logger.finer("Queued new-style extended point " + steps + " over "
-					+ Long.toString(dda_rate) + " steps per sec., relative " + Integer.toString(relative)
-					+ ", distance " + Float.toString(distance)
-					+ ", feedrate " + Float.toString(feedrate));
-
 		// just add them in now.
 		pb.add32((int) steps.x());
 		pb.add32((int) steps.y());
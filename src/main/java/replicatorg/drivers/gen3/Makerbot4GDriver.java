@@ -113,11 +113,6 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
 
-		if (Base.logger.isLoggable(Level.FINE)) {
-			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
-					+ Long.toString(micros) + " usec.");
-		}
-
 		// just add them in now.
 		pb.add32((int) steps.x());
 		pb.add32((int) steps.y());
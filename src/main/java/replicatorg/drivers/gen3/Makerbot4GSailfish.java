@@ -87,6 +87,11 @@ public class Makerbot4GSailfish extends Makerbot4GAlternateDriver
 	public String getDriverName() {
 		return "Makerbot4GSailfish";
 	}
+
+	@Override
+	protected int getEEPROMMapSize() {
+		return EEPROMOffsets.SAILFISH_MAP_SIZE;
+	}
 	
 	/**
 	 * This function is called just after a connection is made, to do initial
@@ -146,7 +146,7 @@ class MightyBoard5XEEPROM implements EEPROMClass
 	/// Tool count : 2 bytes
 	final public static int TOOL_COUNT 				= 0x0042;
 	/// Hardware ID. Must exactly match the USB VendorId/ProductId pair: 4Bytes 
-	final public static int VID_PID_INFO			= 0x0044; 
+	final public static int VID_PID_INFO			= EEPROMOffsets.MIGHTY_BOARD_VID_PID;
   /// Version number to be tagged with Git Commit
   //  two bytes
   final public static int INTERNAL_VERSION        = 0X0048;
@@ -292,6 +292,11 @@ public class MightyBoard extends Makerbot4GAlternateDriver
 	public String getDriverName() {
 		return "MightyBoard";
 	}
+
+	@Override
+	protected int getEEPROMMapSize() {
+		return MightyBoard6X2EEPROM.FREE_EEPROM_STARTS;
+	}
 	
 	/**
 	 * Initalize the extruder or sub-controllers.
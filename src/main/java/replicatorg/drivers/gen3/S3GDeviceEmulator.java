@@ -0,0 +1,533 @@
+package replicatorg.drivers.gen3;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.app.util.serial.VirtualPort;
+import replicatorg.drivers.gen3.PacketProcessor.CRCException;
+
+/**
+ * A motherboard running S3G firmware, simulated in this process. Register it
+ * with Serial.registerVirtualPort() and point a Sanguino3G-family driver at
+ * that name, and the driver talks to it exactly as it would to a real board.
+ *
+ * Buffered commands go into a command buffer of a fixed number of bytes and
+ * are drained by a motion thread that takes as long over each move as the
+ * board would, scaled by the time scale; a command that doesn't fit gets a
+ * buffer overflow response. Replies can be delayed, and a fraction of them
+ * corrupted or dropped, to exercise the driver's timeouts and retries.
+ *
+ * Heaters reach their targets instantly, and nothing is homed or probed.
+ */
+public class S3GDeviceEmulator implements VirtualPort {
+
+	private static final int RC_OK = 0x81;
+	private static final int RC_BUFFER_OVERFLOW = 0x82;
+	private static final int RC_CRC_MISMATCH = 0x83;
+	private static final int RC_UNSUPPORTED = 0x85;
+
+	private static final int EEPROM_SIZE = 0x1000;
+
+	private int bufferSize = 512;
+	private double timeScale = 1.0;
+	private long latencyNanos = 0;
+	private long jitterNanos = 0;
+	private long bootNanos = 0;
+	private volatile long bootedAt = 0;
+	private double corruptRate = 0;
+	private double dropRate = 0;
+	private int version = 500;
+	private String buildName = "Emulator";
+	private final Random random = new Random(0);
+
+	private volatile Host host = null;
+	private ScheduledExecutorService device = null;
+	private Thread motion = null;
+	private PacketProcessor processor = new PacketProcessor();
+
+	// Everything below is guarded by the command buffer
+	private final LinkedList<byte[]> commands = new LinkedList<byte[]>();
+	private int bufferedBytes = 0;
+	private boolean moving = false;
+	private boolean paused = false;
+	private final long[] position = new long[5];
+	// step rate of each axis over the last move, and the biggest jump between moves
+	private final double[] stepRates = new double[5];
+	private final double[] maxRateChange = new double[5];
+	private long motionNanos = 0;
+	private final int[] toolTargets = new int[2];
+	private int platformTarget = 0;
+
+	private final byte[] eeprom = new byte[EEPROM_SIZE];
+
+	private final AtomicLong packets = new AtomicLong();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+	private final AtomicLong crcMismatches = new AtomicLong();
+	private final AtomicLong corrupted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public S3GDeviceEmulator() {
+		for (int i = 0; i < EEPROM_SIZE; i++) eeprom[i] = (byte)0xff;
+	}
+
+	/** Size of the command buffer in bytes; 512 on a Gen4 motherboard. */
+	public void setBufferSize(int bytes) { bufferSize = bytes; }
+
+	/** 1 runs moves in real time, 0.1 ten times faster, 0 as fast as they arrive. */
+	public void setTimeScale(double scale) { timeScale = scale; }
+
+	/**
+	 * How long the board takes to restart when the port is opened or the host
+	 * pulses RTS, as an Arduino-based board does; it hears nothing until then.
+	 */
+	public void setBootTime(long millis) { bootNanos = millis * 1000000L; }
+
+	/** Delay every reply by the given time, plus up to the given jitter. */
+	public void setLatency(long micros, long jitterMicros) {
+		latencyNanos = micros * 1000L;
+		jitterNanos = jitterMicros * 1000L;
+	}
+
+	/**
+	 * Corrupt the CRC of, or drop altogether, the given fractions of replies.
+	 * Faults are drawn from a generator with the given seed, so a run can be
+	 * repeated exactly.
+	 */
+	public void setFaults(double corruptRate, double dropRate, long seed) {
+		this.corruptRate = corruptRate;
+		this.dropRate = dropRate;
+		random.setSeed(seed);
+	}
+
+	/** Firmware version reported to the host, as major*100+minor. */
+	public void setVersion(int version) { this.version = version; }
+
+	public void setBuildName(String name) { buildName = name; }
+
+	/** Set EEPROM contents directly, as a board would leave the factory. */
+	public void setEEPROM(int offset, byte[] bytes) {
+		System.arraycopy(bytes, 0, eeprom, offset, bytes.length);
+	}
+
+	public long getPacketCount() { return packets.get(); }
+	/** @return buffered commands the motion thread has finished */
+	public long getCommandsExecuted() { return executed.get(); }
+	public long getOverflowCount() { return overflows.get(); }
+	/** @return packets from the host that arrived with a bad CRC */
+	public long getCrcMismatches() { return crcMismatches.get(); }
+	public long getCorruptedReplies() { return corrupted.get(); }
+	public long getDroppedReplies() { return dropped.get(); }
+
+	/** @return the position in steps of all five axes once the buffer has drained */
+	public long[] getPosition() {
+		synchronized (commands) {
+			return position.clone();
+		}
+	}
+
+	/**
+	 * @return for each axis, the most its step rate has changed from one
+	 * constant rate move to the next, or from rest to the first, in steps/s
+	 */
+	public double[] getMaxRateChange() {
+		synchronized (commands) {
+			return maxRateChange.clone();
+		}
+	}
+
+	/** @return how long the moves so far would take on the board, before any time scaling */
+	public double getMotionMillis() {
+		synchronized (commands) {
+			return motionNanos / 1e6;
+		}
+	}
+
+	public boolean isFinished() {
+		synchronized (commands) {
+			return commands.isEmpty() && !moving;
+		}
+	}
+
+	public synchronized void open(Host host) {
+		this.host = host;
+		processor = new PacketProcessor();
+		bootedAt = System.nanoTime() + bootNanos;
+		device = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "S3G Emulator");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		motion = new Thread(new Runnable() {
+			public void run() { runMotion(); }
+		}, "S3G Emulator Motion");
+		motion.setDaemon(true);
+		motion.start();
+	}
+
+	public synchronized void close() {
+		host = null;
+		if (device != null) {
+			device.shutdownNow();
+			device = null;
+		}
+		if (motion != null) {
+			motion.interrupt();
+			motion = null;
+		}
+		clearBuffer();
+	}
+
+	public void reset() {
+		clearBuffer();
+		bootedAt = System.nanoTime() + bootNanos;
+	}
+
+	public synchronized void write(byte[] b) {
+		if (device == null) return;
+		// A booting board doesn't hear anything
+		if (System.nanoTime() < bootedAt) return;
+		final byte[] bytes = b.clone();
+		device.execute(new Runnable() {
+			public void run() {
+				for (byte by : bytes) receiveByte(by);
+			}
+		});
+	}
+
+	/** Runs on the device thread */
+	private void receiveByte(byte b) {
+		try {
+			if (processor.processByte(b)) {
+				byte[] payload = processor.getResponse().getPayload();
+				processor = new PacketProcessor();
+				packets.incrementAndGet();
+				reply(handle(payload));
+			}
+		} catch (CRCException e) {
+			processor = new PacketProcessor();
+			crcMismatches.incrementAndGet();
+			reply(new Reply(RC_CRC_MISMATCH));
+		}
+	}
+
+	private void clearBuffer() {
+		synchronized (commands) {
+			commands.clear();
+			bufferedBytes = 0;
+			paused = false;
+			commands.notifyAll();
+		}
+	}
+
+	/** A reply payload under construction, little-endian like the protocol. */
+	private static class Reply {
+		private byte[] data = new byte[32];
+		private int length = 0;
+
+		Reply(int code) { add8(code); }
+
+		void add8(int v) {
+			if (length == data.length) {
+				byte[] bigger = new byte[data.length * 2];
+				System.arraycopy(data, 0, bigger, 0, length);
+				data = bigger;
+			}
+			data[length++] = (byte)v;
+		}
+		void add16(int v) { add8(v); add8(v >> 8); }
+		void add32(long v) { add16((int)v); add16((int)(v >> 16)); }
+		void addString(String s) {
+			for (byte b : s.getBytes()) add8(b);
+			add8(0);
+		}
+	}
+
+	private void reply(Reply r) {
+		final byte[] packet = new byte[r.length + 3];
+		IButtonCrc crc = new IButtonCrc();
+		packet[0] = PacketConstants.START_BYTE;
+		packet[1] = (byte)r.length;
+		for (int i = 0; i < r.length; i++) {
+			packet[i + 2] = r.data[i];
+			crc.update(r.data[i]);
+		}
+		packet[packet.length - 1] = crc.getCrc();
+
+		if (dropRate > 0 && random.nextDouble() < dropRate) {
+			dropped.incrementAndGet();
+			return;
+		}
+		if (corruptRate > 0 && random.nextDouble() < corruptRate) {
+			corrupted.incrementAndGet();
+			packet[packet.length - 1] ^= 0x5a;
+		}
+		long delay = latencyNanos;
+		if (jitterNanos > 0) delay += (long)(random.nextDouble() * jitterNanos);
+		if (delay <= 0) {
+			send(packet);
+		} else {
+			ScheduledExecutorService d = device;
+			if (d != null) d.schedule(new Runnable() {
+				public void run() { send(packet); }
+			}, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void send(byte[] packet) {
+		Host h = host;
+		if (h != null) h.receive(packet, 0, packet.length);
+	}
+
+	private static int get8(byte[] p, int i) { return p[i] & 0xff; }
+	private static int get16(byte[] p, int i) { return get8(p, i) | (get8(p, i + 1) << 8); }
+	private static int get32(byte[] p, int i) { return get16(p, i) | (get16(p, i + 2) << 16); }
+
+	/** Answer a packet from the host; runs on the device thread */
+	private Reply handle(byte[] p) {
+		int code = get8(p, 0);
+		if ((code & 0x80) != 0) {
+			synchronized (commands) {
+				if (bufferedBytes + p.length > bufferSize) {
+					overflows.incrementAndGet();
+					return new Reply(RC_BUFFER_OVERFLOW);
+				}
+				commands.add(p);
+				bufferedBytes += p.length;
+				commands.notifyAll();
+			}
+			return new Reply(RC_OK);
+		}
+
+		Reply r = new Reply(RC_OK);
+		switch (code) {
+		case 0: // VERSION
+			r.add16(version);
+			break;
+		case 1: // INIT
+		case 3: // CLEAR_BUFFER
+		case 7: // ABORT
+		case 17: // RESET
+			clearBuffer();
+			break;
+		case 2: // GET_BUFFER_SIZE
+			synchronized (commands) {
+				r.add32(bufferSize - bufferedBytes);
+			}
+			break;
+		case 4: // GET_POSITION
+			synchronized (commands) {
+				for (int i = 0; i < 3; i++) r.add32(position[i]);
+			}
+			r.add8(0);
+			break;
+		case 21: // GET_POSITION_EXT
+			synchronized (commands) {
+				for (int i = 0; i < 5; i++) r.add32(position[i]);
+			}
+			r.add16(0);
+			break;
+		case 8: // PAUSE
+			synchronized (commands) {
+				paused = !paused;
+				commands.notifyAll();
+			}
+			break;
+		case 10: // TOOL_QUERY
+			return toolQuery(get8(p, 1), get8(p, 2), p);
+		case 11: // IS_FINISHED
+			r.add8(isFinished() ? 1 : 0);
+			break;
+		case 12: { // READ_EEPROM
+			int offset = get16(p, 1);
+			int len = get8(p, 3);
+			for (int i = 0; i < len; i++) {
+				r.add8(offset + i < EEPROM_SIZE ? eeprom[offset + i] : 0xff);
+			}
+			break;
+		}
+		case 13: { // WRITE_EEPROM
+			int offset = get16(p, 1);
+			int len = get8(p, 3);
+			for (int i = 0; i < len && offset + i < EEPROM_SIZE; i++) {
+				eeprom[offset + i] = p[4 + i];
+			}
+			r.add8(len);
+			break;
+		}
+		case 20: // GET_BUILD_NAME
+			r.addString(buildName);
+			break;
+		case 22: // EXTENDED_STOP
+			clearBuffer();
+			r.add8(0);
+			break;
+		case 25: // GET_COMMUNICATION_STATS
+			r.add32(packets.get());
+			r.add32(packets.get());
+			r.add32(crcMismatches.get());
+			r.add32(0);
+			r.add32(0);
+			break;
+		default:
+			Base.logger.log(Level.FINE, "S3G emulator: unsupported query " + code);
+			return new Reply(RC_UNSUPPORTED);
+		}
+		return r;
+	}
+
+	private Reply toolQuery(int tool, int query, byte[] p) {
+		Reply r = new Reply(RC_OK);
+		synchronized (commands) {
+			switch (query) {
+			case 0: // VERSION
+				r.add16(version);
+				break;
+			case 34: // GET_BUILD_NAME
+				r.addString(buildName);
+				break;
+			case 2: // GET_TEMP
+			case 32: // GET_SP
+				r.add16(tool < toolTargets.length ? toolTargets[tool] : 0);
+				break;
+			case 30: // GET_PLATFORM_TEMP
+			case 33: // GET_PLATFORM_SP
+				r.add16(platformTarget);
+				break;
+			case 22: // IS_TOOL_READY
+			case 35: // IS_PLATFORM_READY
+				r.add8(1);
+				break;
+			case 36: // GET_TOOL_STATUS
+				r.add8(1);
+				break;
+			case 25: { // READ_FROM_EEPROM
+				int len = get8(p, 5);
+				for (int i = 0; i < len; i++) r.add8(0xff);
+				break;
+			}
+			case 37: // GET_PID_STATE
+				for (int i = 0; i < 6; i++) r.add16(0);
+				break;
+			default:
+				return new Reply(RC_UNSUPPORTED);
+			}
+		}
+		return r;
+	}
+
+	/** Drains the command buffer, taking as long over each command as the board would. */
+	private void runMotion() {
+		long clock = System.nanoTime();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				byte[] p;
+				synchronized (commands) {
+					moving = false;
+					while (commands.isEmpty() || paused) commands.wait();
+					p = commands.removeFirst();
+					bufferedBytes -= p.length;
+					moving = true;
+				}
+				long nanos = (long)(execute(p) * timeScale);
+				// Keep a running clock, so lots of short moves add up to the
+				// right time even though each sleep overshoots a little.
+				long now = System.nanoTime();
+				if (clock < now) clock = now;
+				clock += nanos;
+				long wait = clock - now;
+				if (wait > 0) Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+				executed.incrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+		synchronized (commands) {
+			moving = false;
+		}
+	}
+
+	/**
+	 * Carry out a buffered command.
+	 * @return how long the board would take over it, in nanoseconds
+	 */
+	private long execute(byte[] p) {
+		int code = get8(p, 0);
+		synchronized (commands) {
+			switch (code) {
+			case 129: // QUEUE_POINT_ABS
+			case 139: { // QUEUE_POINT_EXT
+				int axes = code == 129 ? 3 : 5;
+				long[] from = position.clone();
+				long steps = moveTo(p, axes);
+				long nanos = steps * get32(p, 1 + axes * 4) * 1000L;
+				if (nanos > 0) {
+					for (int i = 0; i < 5; i++) {
+						double rate = (position[i] - from[i]) / (nanos / 1e9);
+						maxRateChange[i] = Math.max(maxRateChange[i], Math.abs(rate - stepRates[i]));
+						stepRates[i] = rate;
+					}
+					motionNanos += nanos;
+				}
+				return nanos;
+			}
+			case 142: { // QUEUE_POINT_NEW
+				moveBy(p, get8(p, 25));
+				return (get32(p, 21) & 0xffffffffL) * 1000L;
+			}
+			case 155: { // QUEUE_POINT_NEW_EXT
+				moveBy(p, get8(p, 25));
+				float distance = Float.intBitsToFloat(get32(p, 26));
+				double feedrate = get16(p, 30) / 64.0;
+				if (feedrate <= 0) return 0;
+				return (long)(distance / feedrate * 60e9);
+			}
+			case 130: // SET_POSITION
+				for (int i = 0; i < 3; i++) position[i] = get32(p, 1 + i * 4);
+				return 0;
+			case 140: // SET_POSITION_EXT
+				for (int i = 0; i < 5; i++) position[i] = get32(p, 1 + i * 4);
+				return 0;
+			case 133: // DELAY
+				return (get32(p, 1) & 0xffffffffL) * 1000000L;
+			case 136: { // TOOL_COMMAND
+				int tool = get8(p, 1);
+				int command = get8(p, 2);
+				if (command == 3 && tool < toolTargets.length) toolTargets[tool] = get16(p, 4);
+				if (command == 31) platformTarget = get16(p, 4);
+				return 0;
+			}
+			default:
+				return 0;
+			}
+		}
+	}
+
+	/** @return the steps taken by the axis that moves furthest */
+	private long moveTo(byte[] p, int axes) {
+		long longest = 0;
+		for (int i = 0; i < axes; i++) {
+			long target = get32(p, 1 + i * 4);
+			longest = Math.max(longest, Math.abs(target - position[i]));
+			position[i] = target;
+		}
+		return longest;
+	}
+
+	private void moveBy(byte[] p, int relative) {
+		for (int i = 0; i < 5; i++) {
+			long v = get32(p, 1 + i * 4);
+			position[i] = ((relative >> i) & 1) != 0 ? position[i] + v : v;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.PortFingerprint;
+import replicatorg.app.util.serial.PortProbe;
+import replicatorg.app.util.serial.Serial;
+
+/**
+ * Recognises an S3G board by asking for its version, then asks for its build
+ * name and, on boards that keep one in EEPROM, the USB VID/PID that says
+ * which machine it's in.
+ */
+public class S3GPortProbe implements PortProbe {
+
+	/** Longest we wait for a single byte, so the deadline is kept to */
+	private static final int READ_SLICE_MILLIS = 50;
+
+	/** How often a query is sent again while a board stays quiet */
+	private static final int RESEND_MILLIS = 250;
+
+	/** Where the different board families keep their VID/PID */
+	private static final int[] VID_PID_OFFSETS = {
+		EEPROMOffsets.MIGHTY_BOARD_VID_PID,
+		EEPROMOffsets.SAILFISH_VID_PID
+	};
+
+	public PortFingerprint.Protocol getProtocol() { return PortFingerprint.Protocol.S3G; }
+
+	public PortFingerprint probe(Serial serial, long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		serial.clear();
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.VERSION.getCode());
+		pb.add16(Base.VERSION);
+		PacketResponse pr = query(serial, pb.getPacket(), deadline);
+		if (pr == null || !pr.isOK()) return null;
+		int version = pr.get16();
+
+		String buildName = "";
+		pb = new PacketBuilder(MotherboardCommandCode.GET_BUILD_NAME.getCode());
+		pb.add16(Base.VERSION);
+		pr = query(serial, pb.getPacket(), deadline);
+		if (pr != null && pr.isOK()) {
+			byte[] payload = pr.getPayload();
+			int end = 1;
+			while (end < payload.length && payload[end] != 0) end++;
+			buildName = new String(payload, 1, end - 1);
+		}
+
+		VidPid machine = VidPid.UNKNOWN;
+		for (int offset : VID_PID_OFFSETS) {
+			pb = new PacketBuilder(MotherboardCommandCode.READ_EEPROM.getCode());
+			pb.add16(offset);
+			pb.add8(4);
+			pr = query(serial, pb.getPacket(), deadline);
+			if (pr == null || !pr.isOK()) break;
+			byte[] payload = pr.getPayload();
+			if (payload.length < 5) continue;
+			byte[] id = new byte[4];
+			System.arraycopy(payload, 1, id, 0, 4);
+			machine = VidPid.getPidVid(id);
+			if (machine != VidPid.UNKNOWN) break;
+		}
+
+		return new PortFingerprint(serial.getName(), PortFingerprint.Protocol.S3G, buildName,
+				(version / 100) + "." + (version % 100), machine == VidPid.UNKNOWN ? "" : machine.toString());
+	}
+
+	/**
+	 * Send a packet and wait for the reply, sending it again every so often
+	 * until one starts to arrive: opening the port resets most boards, and a
+	 * board that is still starting up doesn't hear anything.
+	 * @return the reply, or null if none came before the deadline
+	 */
+	private PacketResponse query(Serial serial, byte[] packet, long deadline) {
+		serial.write(packet);
+		long sentAt = System.currentTimeMillis();
+		boolean resent = false;
+		boolean started = false;
+		PacketProcessor pp = new PacketProcessor();
+		long left;
+		while ((left = deadline - System.currentTimeMillis()) > 0) {
+			if (!started && System.currentTimeMillis() - sentAt >= RESEND_MILLIS) {
+				serial.write(packet);
+				sentAt = System.currentTimeMillis();
+				resent = true;
+			}
+			serial.setTimeout((int)Math.min(left, READ_SLICE_MILLIS));
+			int b = serial.read();
+			if (b == -1) {
+				if (Thread.currentThread().isInterrupted()) return null;
+				continue;
+			}
+			started |= (byte)b == PacketConstants.START_BYTE;
+			try {
+				if (pp.processByte((byte)b)) {
+					if (resent) {
+						// A board that heard more than one copy answers each;
+						// the extra replies mustn't be taken for the next
+						try {
+							Thread.sleep(READ_SLICE_MILLIS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						serial.clear();
+					}
+					return pp.getResponse();
+				}
+			} catch (PacketProcessor.CRCException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+}
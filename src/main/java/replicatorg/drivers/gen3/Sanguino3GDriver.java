@@ -105,9 +105,21 @@ public class Sanguino3GDriver extends SerialDriver implements
 		OnboardParameters, SDCardCapture, PenPlotter, MultiTool {
 	protected final static int DEFAULT_RETRIES = 5;
 
+	/** for the latencies in the driver metrics */
+	private static final String[] OPCODE_NAMES = new String[256];
+	static {
+		for (MotherboardCommandCode c : MotherboardCommandCode.values()) {
+			OPCODE_NAMES[c.getCode() & 0xff] = c.name();
+		}
+	}
+
 	Version toolVersion = new Version(0, 0);
 
 	private boolean eepromChecked = false;
+
+	/** all the AVRs we talk to have 4k of EEPROM */
+	private static final int EEPROM_SIZE = 0x1000;
+	private EEPROMImage eepromImage = null;
         
         protected boolean acceleratedFirmware = false;
 
@@ -121,6 +133,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 		preferredVersion = new Version(3, 0);
 		// init our variables.
 		setInitialized(false);
+		getMetrics().setOpcodeNames(OPCODE_NAMES);
 	}
 
 	public void loadXML(Node xml) {
@@ -307,6 +320,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 
 	
 	void printDebugData(String title, byte[] data) {
+		if (!Base.logger.isLoggable(Level.FINER)) return;
 		StringBuffer buf = new StringBuffer(title + ": ");
 		for (int i = 0; i < data.length; i++) {
 			buf.append(Integer.toHexString((int) data[i] & 0xff));
@@ -336,6 +350,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 			throws RetryException {
 
 		if (retries == 0) {
+			getMetrics().timeout();
 			Base.logger.severe("Packet timed out!");
 			return PacketResponse.timeoutResponse();
 		}
@@ -345,6 +360,14 @@ public class Sanguino3GDriver extends SerialDriver implements
 		}
 
 		boolean isCommand = (packet[2] & 0x80) != 0;
+		// The board may change its own EEPROM while running commands or
+		// after a reset, so stop trusting our copy of it.
+		if (eepromImage != null && (isCommand
+				|| packet[2] == MotherboardCommandCode.INIT.getCode()
+				|| packet[2] == MotherboardCommandCode.RESET.getCode()
+				|| packet[2] == MotherboardCommandCode.PLAYBACK_CAPTURE.getCode())) {
+			eepromImage.invalidate();
+		}
 		
 		if (fileCaptureOstream != null) {
 			// capture to file.
@@ -401,9 +424,9 @@ public class Sanguino3GDriver extends SerialDriver implements
 				return PacketResponse.timeoutResponse();
 			}
 			// Do not allow a stop or reset command to interrupt mid-packet!
+			long sent = System.nanoTime();
+			// the packet and its reply are kept in the wire trace
 			serial.write(packet);
-			
-			printDebugData("OUT", packet);
 
 			// Read entire response packet
 			boolean completed = false;
@@ -414,6 +437,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 					if (Thread.currentThread().isInterrupted()) {
 						break;
 					}
+					getMetrics().timeout();
 					if (retries > 1) {
                                             
                                             // accelerated Firmware has a low timeout period and times out frequently
@@ -438,16 +462,19 @@ public class Sanguino3GDriver extends SerialDriver implements
 				try {
 					completed = pp.processByte((byte) b);
 				} catch (CRCException e) {
+					getMetrics().crcError();
 					Base.logger.severe("Bad CRC received; retries remaining: "
 							+ Integer.toString(retries));
 					return runCommand(packet, retries - 1);
 				}
 			}
 			pr = pp.getResponse();
+			if (completed) getMetrics().commandCompleted(packet[2], System.nanoTime() - sent);
 
 			if (pr.isOK()) {
 				// okay!
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+				getMetrics().bufferOverflow();
 				throw new RetryException();
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.CANCEL){
 				Base.getEditor().handleStop(); ///  horrible horrible 
@@ -676,27 +703,12 @@ public class Sanguino3GDriver extends SerialDriver implements
 	public void queuePoint(Point5d p) throws RetryException {
 		// TODO: check if our current position is valid?
 
-		Base.logger.finer("Queued point " + p);
-
-		// is this point even step-worthy?
-		Point5d deltaSteps = getAbsDeltaSteps(getCurrentPosition(false), p);
-		double masterSteps = getLongestLength(deltaSteps);
-
-		// okay, we need at least one step.
-		if (masterSteps > 0.0) {
-			// where we going?
-			Point5d steps = machine.mmToSteps(p);
-
-			Point5d delta = getDelta(p);
-			double feedrate = getSafeFeedrate(delta);
-
-			// how fast are we doing it?
-			long micros = convertFeedrateToMicros(getCurrentPosition(false), p,	feedrate);
-
-			// System.err.println("Steps :"+steps.toString()+" micros "+Long.toString(micros));
-
+		// is this point even step-worthy? Work out the steps, the safe
+		// feedrate and how long each step takes all at once
+		Point5d current = getCurrentPosition(moveStart);
+		if (motion.plan(current, p, machine.getStepsPerMM(), machine.getMaximumFeedrates(), getUsableFeedrate())) {
 			// okay, send it off!
-			queueAbsolutePoint(steps, micros);
+			queueAbsolutePoint(motion.getSteps(), motion.getStepDelay());
 
 			super.queuePoint(p);
 		}
@@ -738,9 +750,6 @@ public class Sanguino3GDriver extends SerialDriver implements
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
 
-		Base.logger.fine("Queued absolute point " + steps + " at "
-				+ Long.toString(micros) + " usec.");
-
 		// just add them in now.
 		pb.add32((int) steps.x());
 		pb.add32((int) steps.y());
@@ -1943,6 +1952,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 	}
 
 	protected void writeToEEPROM(int offset, byte[] data) {
+		getEEPROMImage().write(offset, data);
+	}
+
+	private boolean writeEEPROMPacket(int offset, byte[] data) {
 		assert data.length <= 16;
 		PacketBuilder pb = new PacketBuilder(
 				MotherboardCommandCode.WRITE_EEPROM.getCode());
@@ -1952,7 +1965,7 @@ public class Sanguino3GDriver extends SerialDriver implements
 			pb.add8(b);
 		}
 		PacketResponse pr = runQuery(pb.getPacket());
-		assert pr.get8() == data.length;
+		return pr.isOK() && pr.get8() == data.length;
 	}
 
 	@Deprecated
@@ -2044,6 +2057,10 @@ public class Sanguino3GDriver extends SerialDriver implements
 	 * @return a byte array of size length on success, a null object on failure
 	 */
 	protected byte[] readFromEEPROM(int offset, int len) {
+		return getEEPROMImage().read(offset, len);
+	}
+
+	private byte[] readEEPROMPacket(int offset, int len) {
 		final int MAX_EEPROM_READ_SZ = 16;
 		if(len > MAX_EEPROM_READ_SZ)
 			Base.logger.severe("readFromEEPROM too big for: " + offset + " size: " + len);
@@ -2070,6 +2087,44 @@ public class Sanguino3GDriver extends SerialDriver implements
 		return null;
 	}
 
+	/**
+	 * The host-side copy of the motherboard EEPROM, made on first use.
+	 */
+	protected synchronized EEPROMImage getEEPROMImage() {
+		if (eepromImage == null) {
+			eepromImage = new EEPROMImage(new EEPROMImage.Port() {
+				public byte[] read(int offset, int length) {
+					return readEEPROMPacket(offset, length);
+				}
+				public boolean write(int offset, byte[] data) {
+					return writeEEPROMPacket(offset, data);
+				}
+			}, EEPROM_SIZE, getEEPROMMapSize(), 16);
+		}
+		return eepromImage;
+	}
+
+	/**
+	 * @return how many bytes at the start of the EEPROM hold settings; these
+	 * are read in one go the first time any of them is asked for
+	 */
+	protected int getEEPROMMapSize() {
+		return 0x0200;
+	}
+
+	public void refreshEEPROM() {
+		getEEPROMImage().invalidate();
+	}
+
+	public void beginEEPROMWrites() {
+		getEEPROMImage().beginBatch();
+	}
+
+	public void commitEEPROMWrites() {
+		if (!getEEPROMImage().commit())
+			Base.logger.severe("Some onboard parameters could not be written");
+	}
+
 	public EnumSet<AxisId> getInvertedAxes() {
 		checkEEPROM();
 		byte[] b = readFromEEPROM(
@@ -50,6 +50,7 @@ import replicatorg.app.util.serial.ByteFifo;
 import replicatorg.app.util.serial.Serial;
 import replicatorg.app.util.serial.SerialFifoEventListener;
 import replicatorg.drivers.BadFirmwareVersionException;
+import replicatorg.drivers.NativeArcs;
 import replicatorg.drivers.RealtimeControl;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SerialDriver;
@@ -59,7 +60,7 @@ import replicatorg.machine.model.AxisId;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.util.Point5d;
 
-public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListener, RealtimeControl 
+public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListener, RealtimeControl, NativeArcs 
 {
 	private static Pattern gcodeCommentPattern = Pattern.compile("\\([^)]*\\)|;.*");
 	private static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
@@ -75,6 +76,9 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 	/** true if a line containing the ok keyword has been received from the firmware*/
 	private final AtomicBoolean okReceived = new AtomicBoolean(false);
+
+	/** true once the firmware has identified itself as one that cuts G2/G3 arcs */
+	private volatile boolean firmwareArcs = false;
 	
 	/**
 	 * An above zero level shows more info
@@ -452,6 +456,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		synchronized (sendCommandLock)
 		{
 			numResends++;
+			getMetrics().resend();
 			if(debugLevel > 0)
 				Base.logger.warning("Resending: \"" + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
 			_sendCommand(command, false, true);
@@ -495,13 +500,8 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 			// applychecksum replaces the line that was to be retransmitted, into the next line.
 			if (hasChecksums) next = applyNandChecksum(next);
-			
-			Base.logger.finest("sending: "+next);
-		}
-		else
-		{
-			Base.logger.finest("resending: "+next);
 		}
+		// lines sent and resent are in the driver's wire trace
 		// Block until we can fit the command on the Arduino
 /*		synchronized(bufferLock)
 		{
@@ -547,6 +547,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				} else {
 					serial.write(next + "\n");
 				}
+				if (!resending) getMetrics().commandSent();
 				bufferLock.unlock();
 				serialInUse.unlock();
 
@@ -826,6 +827,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				{
 					Base.logger.fine("setting marlin");
 					setFirmwareName("Marlin");
+					firmwareArcs = true;
 				}
 				else
 				{
@@ -933,6 +935,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 			} else if (line.startsWith("resend")||line.startsWith("rs ")) {
 				// Bad checksum, resend requested
+				getMetrics().resendRequested();
 				Matcher badLineMatch = resendLinePattern.matcher(line);
 
 				// Is it a Dud M or G code?
@@ -1092,6 +1095,19 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		super.queuePoint(p);
 	}
 
+	public boolean hasNativeArcs() {
+		return firmwareArcs;
+	}
+
+	public void queueArc(Point5d endpoint, Point5d center, boolean clockwise) throws RetryException {
+		Point5d current = getCurrentPosition(false);
+		sendCommand((clockwise ? "G2" : "G3") + " X" + df.format(endpoint.x()) + " Y" + df.format(endpoint.y())
+				+ " Z" + df.format(endpoint.z()) + " I" + df.format(center.x() - current.x())
+				+ " J" + df.format(center.y() - current.y()) + " F" + df.format(getCurrentFeedrate()));
+
+		super.queuePoint(endpoint);
+	}
+
 	public void setCurrentPosition(Point5d p) throws RetryException {
 		sendCommand("G92 X" + df.format(p.x()) + " Y" + df.format(p.y()) + " Z"
 				+ df.format(p.z()));
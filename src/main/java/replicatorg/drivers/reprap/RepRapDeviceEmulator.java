@@ -0,0 +1,517 @@
+package replicatorg.drivers.reprap;
+
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import replicatorg.app.util.serial.VirtualPort;
+import replicatorg.drivers.LatencyHistogram;
+
+/**
+ * A RepRap board running text-protocol firmware, simulated in this process.
+ * Register it with Serial.registerVirtualPort() and point a RepRap5DDriver
+ * at that name; the driver sees the same start banners, acknowledgements,
+ * resend requests and temperature reports that a real board sends.
+ *
+ * Lines arrive in a receive buffer of a fixed size (bytes that don't fit are
+ * lost, as on an AVR), are checked for line number and checksum, and moves
+ * then wait for room in a planner of a fixed depth before they're
+ * acknowledged. A motion thread drains the planner, taking as long over each
+ * move as its length and feedrate say, scaled by the time scale.
+ *
+ * Heaters reach their targets instantly.
+ */
+public class RepRapDeviceEmulator implements VirtualPort {
+
+	/** The firmware behaviours RepRap5DDriver knows how to talk to */
+	public enum Profile {
+		/** "Resend: n" then "ok"; nothing extra after start */
+		MARLIN(128, 16, true, false,
+				"start\necho:Marlin 1.0.0\n",
+				"FIRMWARE_NAME:Marlin V1; Sprinter/grbl mashup for gen6 FIRMWARE_URL:http://www.mendel-parts.com PROTOCOL_VERSION:1.0 MACHINE_TYPE:Mendel EXTRUDER_COUNT:1\n"),
+		/** "rs n" with no "ok"; "ok" straight after start */
+		TEACUP(64, 8, false, true,
+				"start\nok\n",
+				"FIRMWARE_NAME:Teacup FIRMWARE_URL:http://github.com/traumflug/Teacup_Firmware/ PROTOCOL_VERSION:1.0 MACHINE_TYPE:Mendel EXTRUDER_COUNT:1\n"),
+		/** The original FiveD firmware: "Resend:n" then "ok", and no M115 */
+		FIVED(128, 4, true, false,
+				"start\n",
+				"");
+
+		private final int rxBufferSize;
+		private final int plannerDepth;
+		private final boolean okAfterResend;
+		private final boolean okAfterStart;
+		private final String banner;
+		private final String firmwareInfo;
+
+		private Profile(int rxBufferSize, int plannerDepth, boolean okAfterResend, boolean okAfterStart,
+				String banner, String firmwareInfo) {
+			this.rxBufferSize = rxBufferSize;
+			this.plannerDepth = plannerDepth;
+			this.okAfterResend = okAfterResend;
+			this.okAfterStart = okAfterStart;
+			this.banner = banner;
+			this.firmwareInfo = firmwareInfo;
+		}
+
+		/** @return the driver's okAfterResend setting for this firmware */
+		public boolean isOkAfterResend() { return okAfterResend; }
+		/** @return the driver's okAfterStart setting for this firmware */
+		public boolean isOkAfterStart() { return okAfterStart; }
+	}
+
+	private static final Pattern WORD = Pattern.compile("([A-Z])\\s*(-?[0-9.]+)");
+
+	private final Profile profile;
+	private int rxBufferSize;
+	private int plannerDepth;
+	private double timeScale = 1.0;
+	private long bootNanos = 0;
+	private long latencyNanos = 0;
+	private long jitterNanos = 0;
+	private double corruptRate = 0;
+	private final Random random = new Random(0);
+
+	private volatile Host host = null;
+	private ScheduledExecutorService replies = null;
+	private long lastReplyAt = 0;
+	private Thread parser = null;
+	private Thread motion = null;
+
+	// Guarded by rx
+	private final LinkedList<Byte> rx = new LinkedList<Byte>();
+	private long bootedAt = 0;
+
+	// Guarded by planner
+	private final LinkedList<Long> planner = new LinkedList<Long>();
+	private boolean moving = false;
+	private final double[] position = new double[4];
+	private double feedrate = 1000;
+	private boolean relative = false;
+	private double toolTemperature = 0;
+	private double bedTemperature = 0;
+
+	// Used by the parser thread, and reset on boot
+	private volatile long lastLine = 0;
+	private long resendRequestedAt = 0;
+
+	private final AtomicLong linesAccepted = new AtomicLong();
+	private final AtomicLong movesExecuted = new AtomicLong();
+	private final AtomicLong checksumErrors = new AtomicLong();
+	private final AtomicLong lineNumberErrors = new AtomicLong();
+	private final AtomicLong corrupted = new AtomicLong();
+	private final AtomicLong rxOverflows = new AtomicLong();
+	private final LatencyHistogram recovery = new LatencyHistogram();
+
+	public RepRapDeviceEmulator(Profile profile) {
+		this.profile = profile;
+		rxBufferSize = profile.rxBufferSize;
+		plannerDepth = profile.plannerDepth;
+	}
+
+	public Profile getProfile() { return profile; }
+
+	/** Bytes the board can hold before it has read a line; 128 on most AVR firmware. */
+	public void setRxBufferSize(int bytes) { rxBufferSize = bytes; }
+
+	/** Moves the board can hold before it stops acknowledging lines. */
+	public void setPlannerDepth(int moves) { plannerDepth = moves; }
+
+	/** 1 runs moves in real time, 0.1 ten times faster, 0 as fast as they arrive. */
+	public void setTimeScale(double scale) { timeScale = scale; }
+
+	/** How long the board takes to restart after the host pulses RTS. */
+	public void setBootTime(long millis) { bootNanos = millis * 1000000L; }
+
+	/** Delay every reply by the given time, plus up to the given jitter. */
+	public void setLatency(long micros, long jitterMicros) {
+		latencyNanos = micros * 1000L;
+		jitterNanos = jitterMicros * 1000L;
+	}
+
+	/**
+	 * Garble the given fraction of lines on their way in, as line noise
+	 * would, so the board asks for them again. Faults are drawn from a
+	 * generator with the given seed, so a run can be repeated exactly.
+	 */
+	public void setLineNoise(double corruptRate, long seed) {
+		this.corruptRate = corruptRate;
+		random.setSeed(seed);
+	}
+
+	/** @return lines that passed their checks and were carried out */
+	public long getLinesAccepted() { return linesAccepted.get(); }
+	public long getMovesExecuted() { return movesExecuted.get(); }
+	public long getChecksumErrors() { return checksumErrors.get(); }
+	public long getLineNumberErrors() { return lineNumberErrors.get(); }
+	/** @return lines garbled by the injected noise */
+	public long getCorruptedLines() { return corrupted.get(); }
+	/** @return bytes lost because the receive buffer was full */
+	public long getRxOverflows() { return rxOverflows.get(); }
+
+	/** Time from asking for a line again to accepting it. */
+	public LatencyHistogram getRecoveryLatency() { return recovery; }
+
+	/** @return X, Y, Z and E once the planner has drained */
+	public double[] getPosition() {
+		synchronized (planner) {
+			return position.clone();
+		}
+	}
+
+	public boolean isFinished() {
+		synchronized (planner) {
+			return planner.isEmpty() && !moving;
+		}
+	}
+
+	public synchronized void open(Host host) {
+		this.host = host;
+		replies = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RepRap Emulator Replies");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		parser = new Thread(new Runnable() {
+			public void run() { runParser(); }
+		}, "RepRap Emulator");
+		motion = new Thread(new Runnable() {
+			public void run() { runMotion(); }
+		}, "RepRap Emulator Motion");
+		parser.setDaemon(true);
+		motion.setDaemon(true);
+		parser.start();
+		motion.start();
+	}
+
+	public synchronized void close() {
+		host = null;
+		if (replies != null) {
+			replies.shutdownNow();
+			replies = null;
+		}
+		if (parser != null) {
+			parser.interrupt();
+			parser = null;
+		}
+		if (motion != null) {
+			motion.interrupt();
+			motion = null;
+		}
+	}
+
+	/** The host pulsed RTS: drop everything, and say "start" once booted. */
+	public synchronized void reset() {
+		synchronized (rx) {
+			rx.clear();
+			lastLine = 0;
+			bootedAt = System.nanoTime() + bootNanos;
+			rx.notifyAll();
+		}
+		synchronized (planner) {
+			planner.clear();
+			planner.notifyAll();
+		}
+		lastReplyAt = 0;
+		sendAt(profile.banner, System.nanoTime() + bootNanos);
+	}
+
+	public void write(byte[] b) {
+		synchronized (rx) {
+			// A booting board doesn't hear anything
+			if (System.nanoTime() < bootedAt) return;
+			for (byte by : b) {
+				if (rx.size() >= rxBufferSize) {
+					rxOverflows.incrementAndGet();
+				} else {
+					rx.add(by);
+				}
+			}
+			rx.notifyAll();
+		}
+	}
+
+	private synchronized void reply(String text) {
+		long at = System.nanoTime() + latencyNanos;
+		if (jitterNanos > 0) at += (long)(random.nextDouble() * jitterNanos);
+		// Replies leave in the order they were made, whatever their jitter
+		sendAt(text, Math.max(at, lastReplyAt));
+	}
+
+	private synchronized void sendAt(final String text, long at) {
+		lastReplyAt = at;
+		ScheduledExecutorService r = replies;
+		if (r == null || text.length() == 0) return;
+		r.schedule(new Runnable() {
+			public void run() {
+				Host h = host;
+				byte[] bytes = text.getBytes();
+				if (h != null) h.receive(bytes, 0, bytes.length);
+			}
+		}, at - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	/** Reads lines out of the receive buffer and carries them out, one at a time. */
+	private void runParser() {
+		StringBuilder line = new StringBuilder();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				byte b;
+				synchronized (rx) {
+					while (rx.isEmpty()) rx.wait();
+					b = rx.removeFirst();
+				}
+				if (b == '\n' || b == '\r') {
+					if (line.length() > 0) handleLine(line.toString());
+					line.setLength(0);
+				} else {
+					line.append((char)b);
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	private void handleLine(String line) throws InterruptedException {
+		if (corruptRate > 0 && line.length() > 1 && random.nextDouble() < corruptRate) {
+			corrupted.incrementAndGet();
+			char[] chars = line.toCharArray();
+			int i = 1 + random.nextInt(chars.length - 1);
+			chars[i] = (char)(chars[i] ^ 0x04);
+			line = new String(chars);
+		}
+
+		String code = line;
+		long number = -1;
+		if (line.startsWith("N")) {
+			int star = line.lastIndexOf('*');
+			int space = line.indexOf(' ');
+			try {
+				number = Long.parseLong(line.substring(1, space < 0 ? line.length() : space).trim());
+			} catch (NumberFormatException e) {
+				number = -1;
+			}
+			if (star < 0 || space < 0 || number < 0 || !checksumMatches(line, star)) {
+				checksumErrors.incrementAndGet();
+				if (profile == Profile.MARLIN) reply("Error:checksum mismatch, Last Line: " + lastLine + "\n");
+				requestResend();
+				return;
+			}
+			code = line.substring(space + 1, star).trim();
+			if (code.startsWith("M110")) {
+				lastLine = number;
+			} else if (number != lastLine + 1) {
+				lineNumberErrors.incrementAndGet();
+				if (profile == Profile.MARLIN) {
+					reply("Error:Line Number is not Last Line Number+1, Last Line: " + lastLine + "\n");
+				}
+				requestResend();
+				return;
+			} else {
+				lastLine = number;
+			}
+			if (resendRequestedAt != 0) {
+				recovery.record(System.nanoTime() - resendRequestedAt);
+				resendRequestedAt = 0;
+			}
+		}
+		linesAccepted.incrementAndGet();
+		reply(execute(code));
+	}
+
+	private static boolean checksumMatches(String line, int star) {
+		int sum = 0;
+		for (int i = 0; i < star; i++) sum ^= line.charAt(i);
+		try {
+			return (byte)sum == (byte)Integer.parseInt(line.substring(star + 1).trim());
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void requestResend() {
+		if (resendRequestedAt == 0) resendRequestedAt = System.nanoTime();
+		long wanted = lastLine + 1;
+		switch (profile) {
+		case MARLIN: reply("Resend: " + wanted + "\nok\n"); break;
+		case TEACUP: reply("rs " + wanted + "\n"); break;
+		case FIVED: reply("Resend:" + wanted + "\nok\n"); break;
+		}
+	}
+
+	/**
+	 * Carry out a line of gcode, waiting for room in the planner if it's a move.
+	 * @return the reply, ending in "ok"
+	 */
+	private String execute(String code) throws InterruptedException {
+		Matcher m = WORD.matcher(code.toUpperCase(Locale.US));
+		char letter = 0;
+		int number = -1;
+		double[] target = null;
+		double s = Double.NaN;
+		double dwell = 0;
+		while (m.find()) {
+			char c = m.group(1).charAt(0);
+			double v;
+			try {
+				v = Double.parseDouble(m.group(2));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (letter == 0 && (c == 'G' || c == 'M')) {
+				letter = c;
+				number = (int)v;
+				continue;
+			}
+			int axis = "XYZE".indexOf(c);
+			if (axis >= 0) {
+				if (target == null) target = new double[] { Double.NaN, Double.NaN, Double.NaN, Double.NaN };
+				target[axis] = v;
+			} else if (c == 'F') {
+				synchronized (planner) { feedrate = v; }
+			} else if (c == 'S') {
+				s = v;
+			} else if (c == 'P') {
+				dwell = v;
+			}
+		}
+
+		if (letter == 'G') {
+			switch (number) {
+			case 0:
+			case 1:
+				if (target != null) plan(target);
+				break;
+			case 4:
+				enqueue((long)(dwell * 1000000L));
+				break;
+			case 90: synchronized (planner) { relative = false; } break;
+			case 91: synchronized (planner) { relative = true; } break;
+			case 92:
+				waitForPlanner();
+				synchronized (planner) {
+					for (int i = 0; i < 4; i++) {
+						if (target == null) position[i] = 0;
+						else if (!Double.isNaN(target[i])) position[i] = target[i];
+					}
+				}
+				break;
+			}
+		} else if (letter == 'M') {
+			switch (number) {
+			case 104:
+			case 109:
+				if (!Double.isNaN(s)) synchronized (planner) { toolTemperature = s; }
+				break;
+			case 140:
+			case 190:
+				if (!Double.isNaN(s)) synchronized (planner) { bedTemperature = s; }
+				break;
+			case 105:
+				synchronized (planner) {
+					if (profile == Profile.MARLIN) {
+						return String.format(Locale.US, "ok T:%.1f /%.1f B:%.1f /%.1f @:0\n",
+								toolTemperature, toolTemperature, bedTemperature, bedTemperature);
+					} else if (profile == Profile.FIVED) {
+						return String.format(Locale.US, "ok T:%.1f B:%.1f\n", toolTemperature, bedTemperature);
+					}
+					return String.format(Locale.US, "ok T:%.1f\n", toolTemperature);
+				}
+			case 114:
+				waitForPlanner();
+				synchronized (planner) {
+					return String.format(Locale.US, "X:%.2f Y:%.2f Z:%.2f E:%.2f\nok\n",
+							position[0], position[1], position[2], position[3]);
+				}
+			case 115:
+				return profile.firmwareInfo + "ok\n";
+			case 400:
+				waitForPlanner();
+				break;
+			}
+		}
+		return "ok\n";
+	}
+
+	/** Add a move to the planner, once there's room for it. */
+	private void plan(double[] target) throws InterruptedException {
+		double length = 0;
+		double extrusion = 0;
+		long nanos;
+		synchronized (planner) {
+			for (int i = 0; i < 4; i++) {
+				if (Double.isNaN(target[i])) continue;
+				double to = relative ? position[i] + target[i] : target[i];
+				double d = to - position[i];
+				if (i < 3) length += d * d;
+				else extrusion = Math.abs(d);
+				position[i] = to;
+			}
+			length = Math.sqrt(length);
+			if (length == 0) length = extrusion;
+			nanos = feedrate <= 0 ? 0 : (long)(length / feedrate * 60e9);
+		}
+		enqueue(nanos);
+	}
+
+	private void enqueue(long nanos) throws InterruptedException {
+		synchronized (planner) {
+			while (planner.size() >= plannerDepth) planner.wait();
+			planner.add(nanos);
+			planner.notifyAll();
+		}
+	}
+
+	private void waitForPlanner() throws InterruptedException {
+		synchronized (planner) {
+			while (!planner.isEmpty() || moving) planner.wait();
+		}
+	}
+
+	/** Drains the planner, taking as long over each move as the board would. */
+	private void runMotion() {
+		long clock = System.nanoTime();
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				long nanos;
+				synchronized (planner) {
+					while (planner.isEmpty()) {
+						if (moving) {
+							moving = false;
+							planner.notifyAll();
+						}
+						planner.wait();
+					}
+					nanos = (long)(planner.peekFirst() * timeScale);
+					moving = true;
+				}
+				// Keep a running clock, so lots of short moves add up to the
+				// right time even though each sleep overshoots a little.
+				long now = System.nanoTime();
+				if (clock < now) clock = now;
+				clock += nanos;
+				long wait = clock - now;
+				if (wait > 0) Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+				synchronized (planner) {
+					// a reset may have emptied the planner while this move ran
+					if (!planner.isEmpty()) planner.removeFirst();
+					planner.notifyAll();
+				}
+				movesExecuted.incrementAndGet();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+}
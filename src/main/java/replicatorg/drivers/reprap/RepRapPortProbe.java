@@ -0,0 +1,72 @@
+package replicatorg.drivers.reprap;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import replicatorg.app.util.serial.PortFingerprint;
+import replicatorg.app.util.serial.PortProbe;
+import replicatorg.app.util.serial.Serial;
+
+/**
+ * Recognises RepRap firmware by sending M115, which most firmware answers
+ * with its name and the kind of machine it's built for. Firmware that
+ * doesn't know M115 is still recognised by its "ok", but can't say more.
+ */
+public class RepRapPortProbe implements PortProbe {
+
+	/** Longest we wait for a single byte, so the deadline is kept to */
+	private static final int READ_SLICE_MILLIS = 50;
+
+	/** How long to wait for an M115 reply once an "ok" shows the board is listening */
+	private static final long AFTER_OK_MILLIS = 100;
+
+	private static final Pattern FIRMWARE_NAME = Pattern.compile("FIRMWARE_NAME:\\s*(.*?)\\s*(?:\\s[A-Z_]+:|$)");
+	private static final Pattern MACHINE_TYPE = Pattern.compile("MACHINE_TYPE:\\s*(\\S+)");
+	private static final Pattern PROTOCOL_VERSION = Pattern.compile("PROTOCOL_VERSION:\\s*(\\S+)");
+
+	public PortFingerprint.Protocol getProtocol() { return PortFingerprint.Protocol.REPRAP; }
+
+	public PortFingerprint probe(Serial serial, long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		serial.clear();
+		// The newline ends whatever another probe may have left half a line of
+		serial.write("\nM115\n");
+		boolean heard = false;
+		StringBuilder line = new StringBuilder();
+		long left;
+		while ((left = deadline - System.currentTimeMillis()) > 0) {
+			serial.setTimeout((int)Math.min(left, READ_SLICE_MILLIS));
+			int b = serial.read();
+			if (b == -1) {
+				if (Thread.currentThread().isInterrupted()) break;
+				continue;
+			}
+			if (b != '\n' && b != '\r') {
+				if (line.length() < 256) line.append((char)b);
+				continue;
+			}
+			String text = line.toString().trim();
+			line.setLength(0);
+			Matcher m = FIRMWARE_NAME.matcher(text);
+			if (m.find()) {
+				return new PortFingerprint(serial.getName(), PortFingerprint.Protocol.REPRAP, m.group(1),
+						find(PROTOCOL_VERSION, text), find(MACHINE_TYPE, text));
+			}
+			if (text.startsWith("start")) {
+				// The board was reset by opening the port, and missed the request
+				heard = true;
+				serial.write("M115\n");
+			} else if (text.startsWith("ok") || text.startsWith("rs") || text.startsWith("Resend")
+					|| text.startsWith("echo:") || text.startsWith("Error:")) {
+				if (!heard) deadline = Math.min(deadline, System.currentTimeMillis() + AFTER_OK_MILLIS);
+				heard = true;
+			}
+		}
+		return heard ? new PortFingerprint(serial.getName(), PortFingerprint.Protocol.REPRAP, "", "", "") : null;
+	}
+
+	private static String find(Pattern p, String text) {
+		Matcher m = p.matcher(text);
+		return m.find() ? m.group(1) : "";
+	}
+}
@@ -0,0 +1,547 @@
+package replicatorg.machine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.app.gcode.GCodeEstimator;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.machine.MachineState.State;
+import replicatorg.machine.model.MachineType;
+import replicatorg.model.FileGCodeSource;
+import replicatorg.model.GCodeSource;
+
+/**
+ * A queue of builds waiting for a machine in a {@link MachineFarm}.
+ *
+ * Whenever a machine comes back to READY, it is given the best queued job it
+ * can run: one for its machine type (or for any machine), with the highest
+ * priority, and among those the longest. Starting the long jobs first keeps
+ * the short ones for the end, where they fill in around each other. A
+ * machine can also be given a time it has to be done by (say, before the
+ * shop closes), in which case it only gets jobs estimated to finish by then.
+ *
+ * Jobs are spooled to a directory as they're submitted, so the queue
+ * survives a restart. A job that was building when the queue went away is
+ * not restarted, since whatever it left on the bed has to be dealt with
+ * first; it comes back as failed, and can be retried.
+ */
+public class JobQueue implements MachineListener {
+
+	public enum Status {
+		QUEUED,
+		RUNNING,
+		DONE,
+		/** Rejected by the pre-run check, interrupted, or lost its machine */
+		FAILED,
+		CANCELLED
+	}
+
+	public static class Job {
+		private final long id;
+		private final String name;
+		private final MachineType machineType;
+		private final int priority;
+		private final GCodeSource source;
+		private volatile double estimate = -1;
+		private volatile Status status = Status.QUEUED;
+		private volatile String machineId = null;
+		private volatile String message = null;
+		/** guarded by the queue */
+		private boolean estimateStarted = false, estimating = false;
+
+		Job(long id, String name, MachineType machineType, int priority, GCodeSource source) {
+			this.id = id;
+			this.name = name;
+			this.machineType = machineType;
+			this.priority = priority;
+			this.source = source;
+		}
+
+		public long getId() { return id; }
+		public String getName() { return name; }
+		/** @return the type of machine this job is for, or null for any */
+		public MachineType getMachineType() { return machineType; }
+		public int getPriority() { return priority; }
+		public GCodeSource getSource() { return source; }
+		/** @return the estimated build time in milliseconds, or a negative number if not known yet */
+		public double getEstimate() { return estimate; }
+		public Status getStatus() { return status; }
+		/** @return the machine the job was last given to, if any */
+		public String getMachineId() { return machineId; }
+		/** @return why the job failed, if it did */
+		public String getMessage() { return message; }
+
+		boolean runsOn(MachineType type) {
+			return machineType == null || machineType == type;
+		}
+
+		@Override
+		public String toString() {
+			String s = "Job " + id + " (" + name + ", " + status;
+			if (estimate >= 0) s += ", " + EstimationDriver.getBuildTimeString(estimate);
+			return s + ")";
+		}
+	}
+
+	/** A job on a machine; it's finished when the machine is READY again after building. */
+	private static class Running {
+		final Job job;
+		boolean started = false;
+		/** cancelled, but its files are in use until the machine has stopped */
+		boolean cancelled = false;
+		Running(Job job) { this.job = job; }
+	}
+
+	/** submission order, which also breaks ties between otherwise equal jobs */
+	private static final Comparator<Job> BY_ID = new Comparator<Job>() {
+		public int compare(Job a, Job b) {
+			return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+		}
+	};
+
+	static final int HISTORY_SIZE = 100;
+	private static final String GCODE = ".gcode";
+	private static final String META = ".properties";
+
+	private final MachineFarm farm;
+	private final File dir;
+	private final List<Job> queued = new LinkedList<Job>();
+	private final List<Job> failed = new LinkedList<Job>();
+	private final LinkedList<Job> history = new LinkedList<Job>();
+	private final Map<String, Running> running = new HashMap<String, Running>();
+	private final Map<String, Long> availableUntil = new HashMap<String, Long>();
+	private long nextId = 1;
+
+	private final ExecutorService dispatcher;
+	private final ExecutorService starter;
+	private final AtomicBoolean dispatchPending = new AtomicBoolean(false);
+
+	/**
+	 * Open the queue spooled in the given directory, picking up any jobs
+	 * left there, and start handing them to the farm's machines.
+	 */
+	public JobQueue(MachineFarm farm, File dir) throws IOException {
+		this.farm = farm;
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create job queue directory " + dir.getAbsolutePath());
+		load();
+		dispatcher = Executors.newSingleThreadExecutor(daemon("Job Queue Dispatch"));
+		// waits on the farm's pre-run checks, so the dispatcher doesn't have to
+		starter = Executors.newCachedThreadPool(daemon("Job Queue Start"));
+		farm.addMachineListener(this);
+		dispatchLater();
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Queue a job. The gcode is copied into the queue's directory, so the
+	 * source can be thrown away once this returns.
+	 * @param machineType the type of machine it has to run on, or null for any
+	 * @param priority higher priorities go first
+	 */
+	public Job submit(String name, GCodeSource source, MachineType machineType, int priority) throws IOException {
+		long id;
+		synchronized (this) {
+			id = nextId++;
+		}
+		File gcode = new File(dir, "job-" + id + GCODE);
+		BufferedWriter out = new BufferedWriter(new FileWriter(gcode), 1 << 16);
+		try {
+			for (String line : source) {
+				out.write(line);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+		Job job = new Job(id, name, machineType, priority, new FileGCodeSource(gcode));
+		synchronized (this) {
+			save(job);
+			queued.add(job);
+		}
+		dispatchLater();
+		return job;
+	}
+
+	/**
+	 * Take a job out of the queue, stopping it if it's already building. A
+	 * building job's files are kept until its machine has stopped reading
+	 * them, and the machine isn't given another job until then.
+	 */
+	public boolean cancel(long id) {
+		Running cancelled = null;
+		synchronized (this) {
+			Job job = find(queued, id);
+			if (job != null) {
+				queued.remove(job);
+				finish(job, Status.CANCELLED);
+				return true;
+			}
+			for (Running r : running.values()) {
+				if (r.job.id == id && !r.cancelled) cancelled = r;
+			}
+			if (cancelled == null) return false;
+			cancelled.cancelled = true;
+			cancelled.job.status = Status.CANCELLED;
+		}
+		// finished in machineStateChanged once the machine has stopped
+		farm.stopJob(cancelled.job.machineId);
+		return true;
+	}
+
+	/** Put a failed job back in the queue. */
+	public synchronized boolean retry(long id) {
+		Job job = find(failed, id);
+		if (job == null) return false;
+		failed.remove(job);
+		job.status = Status.QUEUED;
+		job.message = null;
+		save(job);
+		queued.add(job);
+		Collections.sort(queued, BY_ID);
+		dispatchLater();
+		return true;
+	}
+
+	/**
+	 * Only give this machine jobs estimated to be done by the given time.
+	 * @param time in milliseconds since the epoch, or 0 for no limit
+	 */
+	public synchronized void setAvailableUntil(String machineId, long time) {
+		if (time == 0) availableUntil.remove(machineId);
+		else availableUntil.put(machineId, time);
+		dispatchLater();
+	}
+
+	public synchronized List<Job> getQueued() { return new ArrayList<Job>(queued); }
+	public synchronized List<Job> getFailed() { return new ArrayList<Job>(failed); }
+	/** @return recently finished or cancelled jobs, oldest first */
+	public synchronized List<Job> getHistory() { return new ArrayList<Job>(history); }
+
+	/** @return the job building on each busy machine, by machine id */
+	public synchronized Map<String, Job> getRunning() {
+		Map<String, Job> jobs = new HashMap<String, Job>();
+		for (Map.Entry<String, Running> e : running.entrySet()) jobs.put(e.getKey(), e.getValue().job);
+		return jobs;
+	}
+
+	/** Stop handing out jobs. Jobs that are building are left to finish. */
+	public void dispose() {
+		farm.removeMachineListener(this);
+		dispatcher.shutdownNow();
+		starter.shutdownNow();
+	}
+
+	private static Job find(List<Job> jobs, long id) {
+		for (Job job : jobs) if (job.id == id) return job;
+		return null;
+	}
+
+	private void dispatchLater() {
+		if (dispatchPending.compareAndSet(false, true)) {
+			try {
+				dispatcher.execute(new Runnable() {
+					public void run() {
+						dispatchPending.set(false);
+						dispatch();
+					}
+				});
+			} catch (RuntimeException e) {
+				// shut down
+			}
+		}
+	}
+
+	private void dispatch() {
+		// estimates need a model to run against, so they wait for a machine
+		// to turn up; they're worked out on the starter pool, so a long job
+		// doesn't hold up dispatching the others
+		for (Job job : getQueued()) {
+			if (job.estimate >= 0) continue;
+			for (String id : farm.getIds()) {
+				Machine machine = farm.get(id);
+				if (machine != null && job.runsOn(machine.getMachineType())) {
+					estimateLater(job, machine);
+					break;
+				}
+			}
+		}
+
+		List<String> ids = farm.getIds();
+		synchronized (this) {
+			for (String id : new ArrayList<String>(running.keySet())) {
+				if (!ids.contains(id)) fail(running.remove(id).job, "Machine " + id + " was removed");
+			}
+		}
+		for (String id : ids) {
+			Machine machine = farm.get(id);
+			if (machine == null) continue;
+			Job job;
+			synchronized (this) {
+				if (running.containsKey(id) || machine.getMachineState().getState() != State.READY) continue;
+				// choose by the estimates; dispatched again once they're in
+				if (isEstimating(machine.getMachineType())) continue;
+				job = choose(id, machine.getMachineType());
+				if (job == null) continue;
+				queued.remove(job);
+				job.status = Status.RUNNING;
+				job.machineId = id;
+				save(job);
+				running.put(id, new Running(job));
+			}
+			Base.logger.info("Starting " + job + " on " + id);
+			start(id, job);
+		}
+	}
+
+	private synchronized void estimateLater(final Job job, final Machine machine) {
+		if (job.estimateStarted) return;
+		job.estimateStarted = true;
+		job.estimating = true;
+		starter.execute(new Runnable() {
+			public void run() {
+				try {
+					job.estimate = GCodeEstimator.estimate(machine.getModel(), job.source);
+				} catch (RuntimeException e) {
+					Base.logger.log(Level.WARNING, "Could not estimate " + job, e);
+				}
+				synchronized (JobQueue.this) {
+					job.estimating = false;
+					if (job.status == Status.QUEUED && job.estimate >= 0) save(job);
+				}
+				dispatchLater();
+			}
+		});
+	}
+
+	/** True if a queued job that could run on this type of machine is still being estimated */
+	private boolean isEstimating(MachineType type) {
+		for (Job job : queued) {
+			if (job.runsOn(type) && job.estimating) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The highest priority job that can run on the machine, and among those
+	 * the longest, or the first submitted of equally long ones.
+	 */
+	private Job choose(String id, MachineType type) {
+		Long until = availableUntil.get(id);
+		double window = until == null ? Double.MAX_VALUE : until - System.currentTimeMillis();
+		Job best = null;
+		for (Job job : queued) {
+			if (!job.runsOn(type)) continue;
+			// with a deadline, a job that hasn't been estimated can't be promised to fit
+			if (until != null && (job.estimate < 0 || job.estimate > window)) continue;
+			if (best == null || job.priority > best.priority
+					|| (job.priority == best.priority && job.estimate > best.estimate)) {
+				best = job;
+			}
+		}
+		return best;
+	}
+
+	private void start(final String id, final Job job) {
+		final Future<GCodeAnalyzer.Report> checked;
+		try {
+			checked = farm.startJob(id, job.source, false);
+		} catch (IllegalArgumentException e) {
+			requeue(id, job);
+			return;
+		}
+		starter.execute(new Runnable() {
+			public void run() {
+				String problem = null;
+				try {
+					GCodeAnalyzer.Report report = checked.get();
+					if (!report.isComplete() || !report.isEmpty()) problem = report.toString();
+				} catch (ExecutionException e) {
+					Base.logger.log(Level.WARNING, "Could not start " + job, e.getCause());
+					problem = String.valueOf(e.getCause());
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (problem != null) {
+					synchronized (JobQueue.this) {
+						Running r = running.get(id);
+						if (r == null || r.job != job) return;
+						running.remove(id);
+						if (r.cancelled) finish(job, Status.CANCELLED);
+						else fail(job, problem);
+					}
+					dispatchLater();
+				}
+			}
+		});
+	}
+
+	private synchronized void requeue(String id, Job job) {
+		Running r = running.get(id);
+		if (r != null && r.job == job) running.remove(id);
+		if (r != null && r.cancelled) {
+			finish(job, Status.CANCELLED);
+			return;
+		}
+		job.status = Status.QUEUED;
+		save(job);
+		queued.add(0, job);
+	}
+
+	public void machineStateChanged(MachineStateChangeEvent evt) {
+		String id = farm.getId(evt.getSource());
+		if (id == null) return;
+		State state = evt.getState().getState();
+		boolean stop = false;
+		synchronized (this) {
+			Running r = running.get(id);
+			if (r != null && r.cancelled) {
+				if (state == State.BUILDING) {
+					// cancelled while its check ran, so the stop came first
+					r.started = true;
+					stop = true;
+				} else if (r.started && (state == State.READY || state == State.ERROR || state == State.NOT_ATTACHED)) {
+					// the machine is done with the files now
+					running.remove(id);
+					finish(r.job, Status.CANCELLED);
+					Base.logger.info("Cancelled " + r.job + " on " + id);
+				}
+			} else if (r != null) {
+				if (state == State.BUILDING) {
+					r.started = true;
+				} else if (state == State.READY && r.started) {
+					running.remove(id);
+					finish(r.job, Status.DONE);
+					Base.logger.info("Finished " + r.job + " on " + id);
+				} else if (r.started && (state == State.ERROR || state == State.NOT_ATTACHED)) {
+					// (before it starts, these can still be stale events from connecting)
+					running.remove(id);
+					fail(r.job, "Machine " + id + " went to " + state + " while building");
+				}
+			}
+		}
+		if (stop) farm.stopJob(id);
+		if (state == State.READY) dispatchLater();
+	}
+
+	public void machineProgress(MachineProgressEvent event) {
+	}
+
+	public void toolStatusChanged(MachineToolStatusEvent event) {
+	}
+
+	private void fail(Job job, String message) {
+		Base.logger.warning(job + " failed: " + message);
+		job.status = Status.FAILED;
+		job.message = message;
+		save(job);
+		failed.add(job);
+	}
+
+	private void finish(Job job, Status status) {
+		job.status = status;
+		new File(dir, "job-" + job.id + GCODE).delete();
+		new File(dir, "job-" + job.id + META).delete();
+		history.add(job);
+		if (history.size() > HISTORY_SIZE) history.removeFirst();
+	}
+
+	private void save(Job job) {
+		Properties p = new Properties();
+		p.setProperty("name", job.name);
+		p.setProperty("priority", Integer.toString(job.priority));
+		if (job.machineType != null) p.setProperty("machineType", job.machineType.name());
+		p.setProperty("estimate", Double.toString(job.estimate));
+		p.setProperty("status", job.status.name());
+		if (job.machineId != null) p.setProperty("machineId", job.machineId);
+		if (job.message != null) p.setProperty("message", job.message);
+		try {
+			OutputStream out = new FileOutputStream(new File(dir, "job-" + job.id + META));
+			try {
+				p.store(out, "ReplicatorG queued job");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not save " + job + " to the job queue", e);
+		}
+	}
+
+	private void load() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		List<Job> jobs = new ArrayList<Job>();
+		for (File f : files) {
+			String name = f.getName();
+			if (!name.startsWith("job-") || !name.endsWith(META)) continue;
+			File gcode = new File(dir, name.substring(0, name.length() - META.length()) + GCODE);
+			try {
+				long id = Long.parseLong(name.substring(4, name.length() - META.length()));
+				Properties p = new Properties();
+				InputStream in = new FileInputStream(f);
+				try {
+					p.load(in);
+				} finally {
+					in.close();
+				}
+				if (!gcode.exists()) throw new IOException("missing " + gcode.getName());
+				String type = p.getProperty("machineType");
+				Job job = new Job(id, p.getProperty("name", name),
+						type == null ? null : MachineType.valueOf(type),
+						Integer.parseInt(p.getProperty("priority", "0")),
+						new FileGCodeSource(gcode));
+				job.estimate = Double.parseDouble(p.getProperty("estimate", "-1"));
+				job.status = Status.valueOf(p.getProperty("status", Status.QUEUED.name()));
+				job.machineId = p.getProperty("machineId");
+				job.message = p.getProperty("message");
+				jobs.add(job);
+				nextId = Math.max(nextId, id + 1);
+			} catch (Exception e) {
+				Base.logger.log(Level.WARNING, "Skipping unreadable queued job " + f.getName(), e);
+			}
+		}
+		Collections.sort(jobs, BY_ID);
+		for (Job job : jobs) {
+			if (job.status == Status.RUNNING) {
+				job.status = Status.FAILED;
+				job.message = "Interrupted while building on " + job.machineId;
+				save(job);
+			}
+			if (job.status == Status.FAILED) failed.add(job);
+			else queued.add(job);
+		}
+	}
+}
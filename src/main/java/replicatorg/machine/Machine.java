@@ -26,19 +26,15 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.TreeMap;
 import java.util.concurrent.Executors;
-import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
@@ -48,24 +44,19 @@ import net.miginfocom.swing.MigLayout;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
-import replicatorg.app.gcode.GCodeCommand;
-import replicatorg.app.gcode.GCodeEnumeration;
-import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.BuildTimeTable;
+import replicatorg.app.gcode.CheckedCode;
+import replicatorg.app.gcode.GCodeAnalyzer;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
-import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
-import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.MachineState.State;
-import replicatorg.machine.model.AxisId;
-import replicatorg.machine.model.Endstops;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
-import replicatorg.util.Point5d;
 
 /**
  * The MachineController object controls a single machine. It contains a single
@@ -151,6 +142,8 @@ public class Machine implements MachineInterface {
 
 	MachineThread machineThread;
 	final MachineCallbackHandler callbackHandler;
+	// false when a MachineFarm polls this machine's status for it
+	private final boolean pollStatus;
 	
 	// TODO: WTF is this here for.
 	// this is the xml config for this machine.
@@ -165,10 +158,15 @@ public class Machine implements MachineInterface {
 	 * Creates the machine object.
 	 */
 	public Machine(Node mNode, MachineCallbackHandler callbackHandler) {
+		this(mNode, callbackHandler, true);
+	}
+
+	Machine(Node mNode, MachineCallbackHandler callbackHandler, boolean pollStatus) {
 		this.callbackHandler = callbackHandler; 
+		this.pollStatus = pollStatus;
 		
 		machineNode = mNode;
-		machineThread = new MachineThread(this, mNode);
+		machineThread = new MachineThread(this, mNode, pollStatus);
 		machineThread.start();
 
 		/// set initial state to propigate new machine info via callbacks
@@ -191,7 +189,7 @@ public class Machine implements MachineInterface {
 
 		Runnable prepareAndStart = new Runnable(){
 
-			private Map<String, Integer> messages = new TreeMap<String, Integer>();
+			private GCodeAnalyzer.Report report;
 			private boolean cancelled = false;
 			@Override
 			public void run() {
@@ -205,13 +203,34 @@ public class Machine implements MachineInterface {
 				
 				Base.logger.info("Estimating build time and scanning code for errors...");
 				
+				// worked out already if this is the code just sliced
+				CheckedCode checked = CheckedCode.lookup(machineThread.getModel(), source);
+				
 				if(Base.preferences.getBoolean("build.safetyChecks", true))
 				{
 					emitStateChange(new MachineState(State.BUILDING), "Running safety checks...");
 					
-					safetyCheck(source, messages);
+					if (checked != null) {
+						report = checked.getReport();
+						Base.logger.info(report.toString());
+					} else {
+						report = safetyCheck(source);
+					}
 
-					if(! messages.isEmpty())
+					if(! report.isComplete())
+					{
+						// a check that didn't finish can't be trusted to have found nothing
+						JOptionPane.showMessageDialog(Base.getEditor(),
+								"The pre-run check couldn't finish checking this GCode, so the build won't be started.",
+								"GCode check failed", JOptionPane.ERROR_MESSAGE);
+						cancelled = true;
+						boolean connected = getMachineState().canPrint();
+						emitStateChange(new MachineState(State.ERROR), "Safety check failed");
+						emitStateChange(new MachineState(State.NOT_ATTACHED), "Safety check failed");
+						if(connected)
+							emitStateChange(new MachineState(State.READY), "Safety check failed");
+					}
+					else if(! report.isEmpty())
 					{
 						System.out.println("errors");
 						final JPanel displayPanel = new JPanel(new MigLayout("fill"));
@@ -229,17 +248,20 @@ public class Machine implements MachineInterface {
 						testLabel.setFont(new JLabel().getFont());
 						testLabel.setText("The pre-run check has found some potentially problematic GCode. This may be a result of trying" +
 								" to run code on a machine other than the one it's intended for (i.e. running dual headed GCode on a " +
-								"single headed machine).\n\nClick on a message to see the last place it occurred.");
+								"single headed machine).\n\nClick on a message to see the first place it occurred.");
 						displayPanel.add(testLabel, "growx, wrap");
 						
 						final JPanel messagePanel = new JPanel(new MigLayout("fill, ins 0"));
 						
-						List<String> displayMessages = new ArrayList<String>(messages.keySet());
-						if(displayMessages.size() > 10)
+						List<Object> displayMessages = new ArrayList<Object>();
+						for(GCodeAnalyzer.Rule rule : GCodeAnalyzer.Rule.values())
 						{
-							String moreMessage = "And " + (displayMessages.size()-10) + " more...";
-							displayMessages = displayMessages.subList(0, 10);
-							displayMessages.add(moreMessage);
+							List<GCodeAnalyzer.Finding> findings = report.getFindings(rule);
+							if(findings.isEmpty())
+								continue;
+							displayMessages.add(findings.get(0));
+							if(report.getCount(rule) > 1)
+								displayMessages.add("    ...and " + (report.getCount(rule)-1) + " more like it");
 						}
 						final JList messageList = new JList(displayMessages.toArray());
 						
@@ -308,7 +330,10 @@ public class Machine implements MachineInterface {
 				{
 					// estimate build time.
 					emitStateChange(new MachineState(State.BUILDING), "Estimating time to completion...");
-					estimate(source);
+					if (checked != null)
+						setBuildTimeTable(checked.getTimeTable());
+					else
+						estimate(source);
 					
 					// do that build!
 					Base.logger.info("Beginning build.");
@@ -319,7 +344,8 @@ public class Machine implements MachineInterface {
 			
 			private void highlightLine(Object atWhichLine)
 			{
-				Base.getEditor().highlightLine(messages.get(atWhichLine));
+				if(atWhichLine instanceof GCodeAnalyzer.Finding)
+					Base.getEditor().highlightLine(((GCodeAnalyzer.Finding)atWhichLine).getLineNumber());
 			}
 		};
 		Executors.newSingleThreadExecutor().execute(prepareAndStart);
@@ -340,140 +366,14 @@ public class Machine implements MachineInterface {
 				source, null));
 	}
 
-	public void safetyCheck(GCodeSource source, Map<String, Integer> messages)
+	/**
+	 * Scan the given code for anything that looks dangerous on this machine.
+	 */
+	public GCodeAnalyzer.Report safetyCheck(GCodeSource source)
 	{
-		int nToolheads = machineThread.getModel().getTools().size();
-		Point5d maxRates = machineThread.getModel().getMaximumFeedrates();
-		
-//		BuildVolume buildVolume = new BuildVolume();
-//		buildVolume.setX(machineThread.getModel().getBuildVolume().getX()/2);
-//		buildVolume.setY(machineThread.getModel().getBuildVolume().getY()/2);
-//		buildVolume.setZ(machineThread.getModel().getBuildVolume().getZ()/2);
-		
-		GCodeCommand gcode;
-		String message, cmd, mainCode;
-		Integer lineNumber = 0;
-		
-		for(String line : source)
-		{
-			try
-			{
-				gcode = new GCodeCommand(line);
-			} //Catching every kind of exception is generally bad form,
-			//  It can hide where the problem is happening, and should be avoided
-			//  But I'm doing it anyway.
-			catch(Exception e)
-			{
-				message = "ReplicatorG can't parse '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				continue;
-			}
-
-			cmd = gcode.getCommand();
-			if(cmd.split(" ").length < 1) continue; //to avoid null index problems
-			
-			mainCode = cmd.split(" ")[0];
-
-			if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-			{
-				message = "ReplicatorG doesn't recognize GCode '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-			
-			// Check for homing in the wrong direction
-			if(!homingDirectionIsSafe(gcode))
-			{
-				message = "Homing in the wrong direction for selected machine: '" + line +"'";
-
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-			}
-
-			// we're going to check for the correct number of toolheads in each command
-			// the list of exceptions keeps growing, do we really need to do this check?
-			// maybe we should just specify the things to check, rather than the reverse
-			if(gcode.getCodeValue('T') > nToolheads-1 && gcode.getCodeValue('M') != 109
-													   && gcode.getCodeValue('M') != 106
-													   && gcode.getCodeValue('M') != 107)
-			{
-				message = "Toolheads index error! You don't have a toolhead numbered " + gcode.getCodeValue('T');
-				messages.put(message, lineNumber);
-				message = "Only the first Toolhead index error is logged. Please regenrate your GCode or manually check your gcode to correct.";
-				messages.put(message, lineNumber);
-				Base.logger.log(Level.SEVERE, message);
-				return; //TRICKY: see footnote [1]
-			}
-			if(gcode.hasCode('F'))
-			{
-				double fVal = gcode.getCodeValue('F');
-				if( (gcode.hasCode('X') && fVal > maxRates.x()) ||
-					(gcode.hasCode('Y') && fVal > maxRates.y()) ||
-// we're going to ignore this for now, since most of the time the z isn't actually moving 
-//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-					(gcode.hasCode('A') && fVal > maxRates.a()) ||
-					(gcode.hasCode('B') && fVal > maxRates.b()))
-				{
-					message = "You're moving too fast! " + line +
-							 " turns at least one axis faster than it's max speed.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.WARNING, message);
-				}
-				//BUGFIX! Can cause problems when used on reprap machines!
-				if (fVal < 0)
-				{
-					message = "Negative feedrate detected! '" + line +
-							 "' causes crashes in the reprap driver.";
-
-					messages.put(message, lineNumber);
-					Base.logger.log(Level.SEVERE, message);
-				}
-			}
-			
-			lineNumber++;
-		}
-	}
-	//footnote [1]:
-	/// Because this error can be thrown thousands of times in a file, and is generally a 'all wrong, or all right' error,
-	// we shortcut return on the first instance of a toolhead count error.  This avoids long timeouts before displaying errors, and avoids (literally) hundreds to 
-	// thousands of exactly the same error
-	
-	private boolean homingDirectionIsSafe(GCodeCommand gcode) {
-		Endstops xstop, ystop, zstop;
-		
-		// If it doesn't have the code, ignore it
-		xstop = ystop = zstop = Endstops.BOTH;
-		
-		if(gcode.hasCode('X'))
-			xstop = machineThread.getModel().getEndstops(AxisId.X);
-		if(gcode.hasCode('Y'))
-			ystop = machineThread.getModel().getEndstops(AxisId.Y);
-		if(gcode.hasCode('Z'))
-			zstop = machineThread.getModel().getEndstops(AxisId.Z);
-		
-		if(gcode.getCodeValue('G') == 161)
-		{
-			if((xstop != Endstops.MIN) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MIN) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MIN) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		else if(gcode.getCodeValue('G') == 162)
-		{
-			if((xstop != Endstops.MAX) && (xstop != Endstops.BOTH))
-				return false;
-			if((ystop != Endstops.MAX) && (ystop != Endstops.BOTH))
-				return false;
-			if((zstop != Endstops.MAX) && (zstop != Endstops.BOTH))
-				return false;
-		}
-		return true;
+		GCodeAnalyzer.Report report = new GCodeAnalyzer(machineThread.getModel()).analyze(source);
+		Base.logger.info(report.toString());
+		return report;
 	}
 	
 	// TODO: Spawn a new thread to handle this for us?
@@ -482,31 +382,12 @@ public class Machine implements MachineInterface {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
-
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
-
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-			
-			for (DriverCommand command : estimatorQueue) {
-				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
-				}
-			}
-			estimatorQueue.clear();
+		CheckedCode checked = CheckedCode.lookup(machineThread.getModel(), source);
+		if (checked != null) {
+			setBuildTimeTable(checked.getTimeTable());
+			return;
 		}
+		BuildTimeTable table = BuildTimeTable.estimate(machineThread.getModel(), source);
 
 		// TODO: Set simulator up properly.
 		// if (simulator != null) {
@@ -517,9 +398,13 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
+		setBuildTimeTable(table);
+	}
+
+	private void setBuildTimeTable(BuildTimeTable table) {
+		machineThread.setBuildTimeTable(table);
 		Base.logger.info("Estimated build time is: " + 
-					EstimationDriver.getBuildTimeString(estimator.getBuildTime()));
+					EstimationDriver.getBuildTimeString(table.getTotalMillis()));
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
@@ -594,7 +479,7 @@ public class Machine implements MachineInterface {
 		// recreate thread if stopped
 		// TODO: Evaluate this!
 		if (!machineThread.isAlive()) {
-			machineThread = new MachineThread(this, machineNode);
+			machineThread = new MachineThread(this, machineNode, pollStatus);
 			machineThread.start();
 		}
 		
@@ -0,0 +1,262 @@
+package replicatorg.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.drivers.commands.AssessState;
+import replicatorg.machine.Machine.RequestType;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Runs any number of machines in one process, for driving a print farm
+ * without a window or a JVM per printer.
+ *
+ * Each machine keeps its own MachineThread and state, but the things that
+ * don't need to be per machine are shared: one thread delivers events for
+ * every machine, one thread schedules their status checks, and one pool
+ * checks and estimates the gcode of jobs before they start.
+ *
+ * Only machines that are connected have their status checked. A machine
+ * that is building is checked every {@link #STATUS_INTERVAL_MILLIS}; an idle
+ * one less and less often, down to every {@link #IDLE_STATUS_INTERVAL_MILLIS}.
+ *
+ * Machines are named by an id chosen by the caller.
+ */
+public class MachineFarm {
+	/** how often each machine's status is checked, as the MachineThread would */
+	static final long STATUS_INTERVAL_MILLIS = 1000;
+	/** the longest an idle machine goes between status checks */
+	static final long IDLE_STATUS_INTERVAL_MILLIS = 8000;
+
+	private final MachineCallbackHandler callbackHandler = new MachineCallbackHandler();
+	private final Map<String, Machine> machines = new LinkedHashMap<String, Machine>();
+	private final ScheduledExecutorService statusPoller;
+	private final ExecutorService parsePool;
+	private final ExecutorService preparePool;
+
+	public MachineFarm() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parseThreads the number of threads checking gcode for all the
+	 * machines together
+	 */
+	public MachineFarm(int parseThreads) {
+		callbackHandler.start();
+		statusPoller = Executors.newSingleThreadScheduledExecutor(daemon("Machine Farm Status"));
+		statusPoller.scheduleWithFixedDelay(new StatusPoll(),
+				STATUS_INTERVAL_MILLIS, STATUS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		parsePool = Executors.newFixedThreadPool(Math.max(1, parseThreads), daemon("Machine Farm Parser"));
+		// kept apart from the parse pool, since these wait on it
+		preparePool = Executors.newCachedThreadPool(daemon("Machine Farm Job"));
+	}
+
+	/** Sends AssessState to the machines that are due for it; only run on the poller thread. */
+	private class StatusPoll implements Runnable {
+		// per machine, the current interval and when the next check is due
+		private final Map<Machine, long[]> schedule = new IdentityHashMap<Machine, long[]>();
+
+		public void run() {
+			long now = System.currentTimeMillis();
+			List<Machine> current = getMachines();
+			schedule.keySet().retainAll(current);
+			for (Machine machine : current) {
+				if (!machine.isConnected()) {
+					schedule.remove(machine);
+					continue;
+				}
+				long[] next = schedule.get(machine);
+				if (next == null || machine.getMachineState().isBuilding()) {
+					next = new long[] { STATUS_INTERVAL_MILLIS, now };
+					schedule.put(machine, next);
+				}
+				if (now < next[1]) continue;
+				machine.machineThread.scheduleRequest(new MachineCommand(
+						RequestType.RUN_COMMAND, new AssessState()));
+				next[1] = now + next[0];
+				next[0] = Math.min(next[0] * 2, IDLE_STATUS_INTERVAL_MILLIS);
+			}
+		}
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Add a machine built from a machine descriptor.
+	 * @throws IllegalArgumentException if the id is already in use
+	 */
+	public Machine add(String id, Node machineNode) {
+		synchronized (machines) {
+			if (machines.containsKey(id))
+				throw new IllegalArgumentException("There is already a machine called " + id);
+			Machine machine = new Machine(machineNode, callbackHandler, false);
+			machine.machineThread.setName("Machine Thread: " + id);
+			machines.put(id, machine);
+			return machine;
+		}
+	}
+
+	/**
+	 * Add a machine by the name of its descriptor in the machines directory.
+	 * @return the machine, or null if there is no such descriptor
+	 */
+	public Machine add(String id, String machineType) {
+		Node node = MachineFactory.getMachineNode(machineType);
+		if (node == null) {
+			Base.logger.severe("Could not load machine '" + machineType + "' no machineNode found");
+			return null;
+		}
+		return add(id, node);
+	}
+
+	/** Disconnect and drop a machine. */
+	public void remove(String id) {
+		Machine machine;
+		synchronized (machines) {
+			machine = machines.remove(id);
+		}
+		if (machine != null) machine.dispose();
+	}
+
+	public Machine get(String id) {
+		synchronized (machines) {
+			return machines.get(id);
+		}
+	}
+
+	/** @return the machine ids, in the order they were added */
+	public List<String> getIds() {
+		synchronized (machines) {
+			return new ArrayList<String>(machines.keySet());
+		}
+	}
+
+	/** @return the id of the given machine, e.g. the source of an event, or null if it isn't in this farm */
+	public String getId(MachineInterface machine) {
+		synchronized (machines) {
+			for (Map.Entry<String, Machine> e : machines.entrySet()) {
+				if (e.getValue() == machine) return e.getKey();
+			}
+		}
+		return null;
+	}
+
+	private List<Machine> getMachines() {
+		synchronized (machines) {
+			return new ArrayList<Machine>(machines.values());
+		}
+	}
+
+	public int size() {
+		synchronized (machines) {
+			return machines.size();
+		}
+	}
+
+	private Machine require(String id) {
+		Machine machine = get(id);
+		if (machine == null) throw new IllegalArgumentException("No machine called " + id);
+		return machine;
+	}
+
+	public void connect(String id, String portName) { require(id).connect(portName); }
+	public void disconnect(String id) { require(id).disconnect(); }
+	public MachineState getState(String id) { return require(id).getMachineState(); }
+
+	/**
+	 * Check a job and start it on the given machine, without asking anyone.
+	 * The check and the time estimate run on the shared pool; the build is
+	 * started from there once they're done.
+	 * @param force start even if the check found problems
+	 * @return the check's report; the job was started unless the check didn't
+	 * finish, or it has findings and force was false
+	 */
+	public Future<GCodeAnalyzer.Report> startJob(String id, final GCodeSource source, final boolean force) {
+		final Machine machine = require(id);
+		return preparePool.submit(new Callable<GCodeAnalyzer.Report>() {
+			public GCodeAnalyzer.Report call() {
+				GCodeAnalyzer.Report report = new GCodeAnalyzer(machine.getModel(), parsePool).analyze(source);
+				if (!report.isComplete()) {
+					Base.logger.warning("Not starting job on " + machine.getMachineName() + ": " + report);
+					return report;
+				}
+				if (!report.isEmpty() && !force) {
+					Base.logger.warning("Not starting job on " + machine.getMachineName() + ": " + report);
+					return report;
+				}
+				try {
+					machine.estimate(source);
+				} catch (RuntimeException e) {
+					// no estimate is no reason not to build
+					Base.logger.log(Level.WARNING, "Could not estimate job", e);
+				}
+				machine.machineThread.scheduleRequest(new MachineCommand(RequestType.BUILD_DIRECT, source, null));
+				return report;
+			}
+		});
+	}
+
+	public void pauseJob(String id) { require(id).pause(); }
+	public void resumeJob(String id) { require(id).unpause(); }
+	/** Abort the job, stopping motion and turning everything off */
+	public void stopJob(String id) { require(id).stopAll(); }
+
+	/** Events from every machine go to every listener; check the event's source. */
+	public void addMachineListener(MachineListener listener) {
+		callbackHandler.addMachineListener(listener);
+	}
+
+	public void removeMachineListener(MachineListener listener) {
+		callbackHandler.removeMachineListener(listener);
+	}
+
+	/** Shut down every machine and the shared threads. */
+	public void dispose() {
+		statusPoller.shutdownNow();
+		preparePool.shutdownNow();
+		for (String id : getIds()) remove(id);
+		parsePool.shutdownNow();
+		callbackHandler.interrupt();
+		try {
+			callbackHandler.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Ids of the machines currently in the given state */
+	public List<String> getIdsInState(MachineState.State state) {
+		List<String> ids = new ArrayList<String>();
+		synchronized (machines) {
+			for (Map.Entry<String, Machine> e : machines.entrySet()) {
+				if (e.getValue().getMachineState().getState() == state) ids.add(e.getKey());
+			}
+		}
+		return Collections.unmodifiableList(ids);
+	}
+}
@@ -0,0 +1,328 @@
+package replicatorg.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import replicatorg.app.Base;
+import replicatorg.util.FileUtils;
+
+/**
+ * An index of the machine descriptors found in the machines directories.
+ *
+ * Reading every machine XML file on startup just to list the machine names
+ * is slow once there are a lot of profiles, so the index keeps, for each
+ * file, its modification time, length and SHA-256 along with the name and
+ * the XML of each machine it holds. A file whose time and length haven't
+ * changed is taken from the index as is; one that has is hashed, and only
+ * parsed again if its contents really changed. A machine's XML is only
+ * turned back into a DOM when that machine is asked for.
+ */
+public class MachineProfileIndex {
+	private static final int MAGIC = 0x52474d49; // "RGMI"
+	private static final int FORMAT = 1;
+
+	/** One machine descriptor */
+	static class Profile {
+		final String name;
+		final boolean experimental;
+		final String xml;
+		Element element = null;
+
+		Profile(String name, boolean experimental, String xml) {
+			this.name = name;
+			this.experimental = experimental;
+			this.xml = xml;
+		}
+	}
+
+	/** The machine descriptors in one file, and what the file looked like when they were read */
+	static class SourceFile {
+		final String path;
+		long lastModified;
+		final long length;
+		final String sha256;
+		final List<Profile> profiles;
+
+		SourceFile(String path, long lastModified, long length, String sha256, List<Profile> profiles) {
+			this.path = path;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.sha256 = sha256;
+			this.profiles = profiles;
+		}
+	}
+
+	private final File indexFile;
+	/** Files as last scanned, in scan order */
+	private final Map<String, SourceFile> files = new LinkedHashMap<String, SourceFile>();
+	/** Machines by name; a later file wins over an earlier one */
+	private final Map<String, Profile> machines = new HashMap<String, Profile>();
+
+	private DocumentBuilder builder = null;
+
+	private int filesReused = 0;
+	private int filesRehashed = 0;
+	private int filesParsed = 0;
+	private int machinesParsed = 0;
+
+	/**
+	 * @param indexFile where the index is kept between runs, or null to keep
+	 * it in memory only
+	 */
+	public MachineProfileIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Scan the given directories for machine descriptors, in order. Files are
+	 * taken in alphabetical order within each directory, and if two
+	 * descriptors have the same name the last one scanned is kept.
+	 */
+	public synchronized void scan(List<File> dirs) {
+		Map<String, SourceFile> known = new HashMap<String, SourceFile>(files);
+		if (known.isEmpty()) known = readIndex();
+		files.clear();
+		machines.clear();
+		filesReused = filesRehashed = filesParsed = 0;
+		boolean changed = false;
+
+		for (File dir : dirs) {
+			if (!dir.isDirectory()) continue;
+			String[] names = dir.list();
+			if (names == null) continue;
+			Arrays.sort(names); // Files addressed in alphabetical order.
+			for (String filename : names) {
+				if (!filename.endsWith(".xml") && !filename.endsWith(".XML")) {
+					continue; // Skip anything with an improper extension
+				}
+				File f = new File(dir, filename);
+				if (!f.isFile()) continue;
+				String path = f.getAbsolutePath();
+				SourceFile source = known.remove(path);
+				try {
+					if (source != null && source.lastModified == f.lastModified() && source.length == f.length()) {
+						filesReused++;
+					} else {
+						String sha = FileUtils.hex(FileUtils.sha256(f));
+						if (source != null && source.length == f.length() && source.sha256.equals(sha)) {
+							// touched, but not changed
+							source.lastModified = f.lastModified();
+							filesRehashed++;
+						} else {
+							Base.logger.log(Level.FINE, "Scanning file " + filename);
+							source = new SourceFile(path, f.lastModified(), f.length(), sha, parse(f));
+							filesParsed++;
+						}
+						changed = true;
+					}
+				} catch (IOException e) {
+					Base.logger.log(Level.WARNING, "Could not read machine file " + path, e);
+					continue;
+				}
+				files.put(path, source);
+				for (Profile p : source.profiles) {
+					Base.logger.log(Level.FINE, "Adding machine " + p.name + " from " + filename);
+					machines.put(p.name, p);
+				}
+			}
+		}
+		// files that have gone away
+		if (!known.isEmpty()) changed = true;
+		if (changed) writeIndex();
+	}
+
+	/** @return the names of all the machines found, sorted */
+	public synchronized List<String> getNames(boolean includeExperimental) {
+		List<String> names = new ArrayList<String>();
+		for (Profile p : machines.values()) {
+			if (includeExperimental || !p.experimental) names.add(p.name);
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	public synchronized boolean contains(String name) {
+		return machines.containsKey(name);
+	}
+
+	/**
+	 * @return the descriptor of the named machine, parsed the first time
+	 * it's asked for, or null if there's no such machine
+	 */
+	public synchronized Element getMachine(String name) {
+		Profile p = machines.get(name);
+		if (p == null) return null;
+		if (p.element == null) {
+			try {
+				Document d = builder().parse(new InputSource(new StringReader(p.xml)));
+				p.element = d.getDocumentElement();
+				machinesParsed++;
+			} catch (Exception e) {
+				Base.logger.log(Level.SEVERE, "Could not read the descriptor for machine " + name, e);
+				return null;
+			}
+		}
+		return p.element;
+	}
+
+	/** Files taken from the index untouched during the last scan */
+	public synchronized int getFilesReused() { return filesReused; }
+	/** Files whose time changed but whose contents didn't, during the last scan */
+	public synchronized int getFilesRehashed() { return filesRehashed; }
+	/** Files read as XML during the last scan */
+	public synchronized int getFilesParsed() { return filesParsed; }
+	/** Machine descriptors turned back into DOMs so far */
+	public synchronized int getMachinesParsed() { return machinesParsed; }
+
+	private DocumentBuilder builder() throws IOException {
+		try {
+			if (builder == null) {
+				builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			} else {
+				builder.reset(); // Allow reuse of a single DocumentBuilder.
+			}
+		} catch (UnsupportedOperationException uoe) {
+			// In case they've got a rogue xerces. :(
+			builder = null;
+			return builder();
+		} catch (ParserConfigurationException e) {
+			throw new IOException("Could not create document builder: " + e.getMessage());
+		}
+		return builder;
+	}
+
+	/** Read the machine descriptors out of one file. */
+	private List<Profile> parse(File f) throws IOException {
+		List<Profile> profiles = new ArrayList<Profile>();
+		Document dom;
+		try {
+			dom = builder().parse(f);
+		} catch (SAXException e) {
+			Base.logger.log(Level.WARNING, "Could not parse machine file " + f.getAbsolutePath(), e);
+			return profiles;
+		}
+		NodeList nl = dom.getElementsByTagName("machine");
+		for (int i = 0; i < nl.getLength(); i++) {
+			Element e = (Element)nl.item(i);
+			NodeList names = e.getElementsByTagName("name");
+			if (names != null && names.getLength() > 0) {
+				String name = names.item(0).getTextContent().trim();
+				String exp = e.getAttribute("experimental");
+				profiles.add(new Profile(name, exp.length() != 0 && !exp.equals("0"), toXml(e)));
+			}
+		}
+		return profiles;
+	}
+
+	private static String toXml(Element e) throws IOException {
+		try {
+			Transformer t = TransformerFactory.newInstance().newTransformer();
+			t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			StringWriter out = new StringWriter();
+			t.transform(new DOMSource(e), new StreamResult(out));
+			return out.toString();
+		} catch (TransformerException te) {
+			throw new IOException("Could not store machine descriptor: " + te.getMessage());
+		}
+	}
+
+	private Map<String, SourceFile> readIndex() {
+		Map<String, SourceFile> index = new HashMap<String, SourceFile>();
+		if (indexFile == null || !indexFile.exists()) return index;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != FORMAT) return index;
+				int fileCount = in.readInt();
+				for (int i = 0; i < fileCount; i++) {
+					String path = in.readUTF();
+					long lastModified = in.readLong();
+					long length = in.readLong();
+					String sha = in.readUTF();
+					int count = in.readInt();
+					List<Profile> profiles = new ArrayList<Profile>(count);
+					for (int j = 0; j < count; j++) {
+						String name = in.readUTF();
+						boolean experimental = in.readBoolean();
+						byte[] xml = new byte[in.readInt()];
+						in.readFully(xml);
+						profiles.add(new Profile(name, experimental, new String(xml, "UTF-8")));
+					}
+					index.put(path, new SourceFile(path, lastModified, length, sha, profiles));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// a damaged index just means reading everything again
+			Base.logger.log(Level.FINE, "Discarding machine index " + indexFile, e);
+			index.clear();
+		}
+		return index;
+	}
+
+	private void writeIndex() {
+		if (indexFile == null) return;
+		File temp = new File(indexFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT);
+				out.writeInt(files.size());
+				for (SourceFile source : files.values()) {
+					out.writeUTF(source.path);
+					out.writeLong(source.lastModified);
+					out.writeLong(source.length);
+					out.writeUTF(source.sha256);
+					out.writeInt(source.profiles.size());
+					for (Profile p : source.profiles) {
+						out.writeUTF(p.name);
+						out.writeBoolean(p.experimental);
+						byte[] xml = p.xml.getBytes("UTF-8");
+						out.writeInt(xml.length);
+						out.write(xml);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			FileUtils.replace(temp, indexFile);
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not save machine index", e);
+			temp.delete();
+		}
+	}
+}
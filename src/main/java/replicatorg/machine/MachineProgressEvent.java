@@ -7,20 +7,38 @@ public class MachineProgressEvent {
 	private double estimated;
 	private int lines;
 	private int totalLines;
+	private double proportion;
+	private double remaining;
+
+	/** Progress measured in lines, for a build without a time table */
 	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines) {
+		this(elapsed, estimated, lines, totalLines,
+				totalLines == 0 ? 0 : (double)lines/(double)totalLines,
+				totalLines == 0 ? 0 : estimated * (1.0 - (double)lines/(double)totalLines));
+	}
+
+	/**
+	 * @param proportion how much of the build is done, by time
+	 * @param remaining estimated time left, in milliseconds
+	 */
+	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines,
+			double proportion, double remaining) {
 		this.elapsed = elapsed;
 		this.estimated = estimated;
 		this.lines = lines;
 		this.totalLines = totalLines;
+		this.proportion = proportion;
+		this.remaining = remaining;
 	}
 	
 	public double getElapsed() { return elapsed; }
 	public double getEstimated() { return estimated; }
 	public int getLines() { return lines; }
 	public int getTotalLines() { return totalLines; }
+	public double getProportion() { return proportion; }
+	public double getRemaining() { return remaining; }
 	
 	public String toString() {
-		double proportion = (double)lines/(double)totalLines;
 		StringBuffer buf = new StringBuffer("Commands: ");
 		buf.append(String.format("%1$7d / %2$7d", lines, totalLines));
 		buf.append("     |     ");
@@ -28,7 +46,6 @@ public class MachineProgressEvent {
 		buf.append("     |     Elapsed time: ");
 		buf.append(EstimationDriver.getBuildTimeString(elapsed, true));
 		buf.append("     |     Time remaining: ");
-		double remaining = estimated * (1.0 - proportion);
 		buf.append(EstimationDriver.getBuildTimeString(remaining, true));
 		return buf.toString();
 	}
@@ -7,6 +7,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.BuildTimeTable;
 import replicatorg.app.tools.XML;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
@@ -31,6 +32,8 @@ import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
 import replicatorg.model.GCodeSourceCollection;
 import replicatorg.model.StringListSource;
+import replicatorg.plugin.PluginEngine;
+import replicatorg.plugin.PluginLoader;
 
 /**
  * The MachineThread is responsible for communicating with the machine.
@@ -120,6 +123,12 @@ class MachineThread extends Thread {
 	// Things that belong to a job
 		// estimated build time in millis
 		private double estimatedBuildTime = 0;
+		// estimated time at each line of the next job, if it has been worked out
+		private volatile BuildTimeTable buildTimeTable = null;
+		// and of the current one, with the lines of warmup code before it
+		private BuildTimeTable jobTable = null;
+		private int jobOffset = 0;
+		private double jobStartMillis = -1;
 	
 		// Build statistics
 		private double startTimeMillis = -1;
@@ -137,7 +146,17 @@ class MachineThread extends Thread {
 	
 	private MachineBuilder machineBuilder;
 	
+	private final PluginEngine plugins = new PluginEngine();
+	
 	public MachineThread(Machine controller, Node machineNode) {
+		this(controller, machineNode, true);
+	}
+
+	/**
+	 * @param pollStatus false if something else will schedule status checks
+	 * for this machine, so it doesn't need a polling thread of its own
+	 */
+	public MachineThread(Machine controller, Node machineNode, boolean pollStatus) {
 		super("Machine Thread");
 		
 		pollingTimer = new MachineTimer();
@@ -153,9 +172,13 @@ class MachineThread extends Thread {
 		loadDriver();
 		loadExtraPrefs();
 		parseName();
+		plugins.setPlugins(PluginLoader.getInstance().loadPlugins());
+		driver.getMetrics().setPlugins(plugins);
 		
-		statusThread = new AssessStatusThread(this);
-		statusThread.start();
+		if (pollStatus) {
+			statusThread = new AssessStatusThread(this);
+			statusThread.start();
+		}
 
 
 	}
@@ -198,11 +221,20 @@ class MachineThread extends Thread {
 	 * @return a new GCodeSourceCollection including warmup/cooldown code (if it is loaded)
 	 */
 	GCodeSource buildGCodeJob(GCodeSource source) {
+		BuildTimeTable table = buildTimeTable;
+		jobTable = (table != null && table.getLineCount() == source.getLineCount()) ? table : null;
+		jobOffset = warmupCommands.size();
+		jobStartMillis = -1;
+
 		Vector<GCodeSource> sources = new Vector<GCodeSource>();
 		sources.add(new StringListSource(warmupCommands));
 		sources.add(source);
 		sources.add(new StringListSource(cooldownCommands));
-		return new GCodeSourceCollection(sources);
+		GCodeSource job = new GCodeSourceCollection(sources);
+		if (plugins.getRunners().isEmpty()) return job;
+		// hand M-codes to the plugins that want them as the job runs
+		plugins.setParentSource(job);
+		return plugins;
 	}
 	
 	private String readyMessage() {
@@ -338,6 +370,7 @@ class MachineThread extends Thread {
 				ToRemoteFile trf = new ToRemoteFile(driver, simulator, combinedSource, command.remoteName);
 				if(trf.setupFailed)
 				{
+					trf.close();
 					//TRICKY:
 					//I am ashamed of this, but without adding a new state of "BUILD_CANCELLED"
 					// and making some changes to MainWindow.MachineStateChanged(), or by 
@@ -377,6 +410,7 @@ class MachineThread extends Thread {
 				ToLocalFile lf = new ToLocalFile(driver, simulator,	combinedSource, command.remoteName);
 				if(lf.setupFailed)
 				{
+					lf.close();
 					//TRICKY:
 					// This is even worse than above, because we might already be NOT_ATTACHED
 					// and we don't emit repeated changes for the same state, we have to switch
@@ -551,11 +585,25 @@ class MachineThread extends Thread {
 				
 				// Send out a progress event
 				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
+				MachineProgressEvent progress;
+				double now = System.currentTimeMillis();
+				int lines = machineBuilder.getLinesProcessed();
+				if (jobTable != null) {
+					// by time, from when the job itself started rather than its warmup
+					int done = lines - jobOffset;
+					if (done > 0 && jobStartMillis < 0) jobStartMillis = now;
+					progress = new MachineProgressEvent(now-startTimeMillis,
+							jobTable.getTotalMillis(),
+							lines,
+							machineBuilder.getLinesTotal(),
+							jobTable.getProportion(done),
+							jobTable.getRemainingMillis(done, jobStartMillis < 0 ? 0 : now-jobStartMillis));
+				} else {
+					progress = new MachineProgressEvent(now-startTimeMillis,
 							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
+							lines,
 							machineBuilder.getLinesTotal());
+				}
 				controller.emitProgress(progress);
 				
 				if (machineBuilder.finished()) {
@@ -574,7 +622,8 @@ class MachineThread extends Thread {
 			if ( !state.isBuilding() ) {
 				try {
 					synchronized(this) {
-						wait();
+						// a request scheduled since the queue was drained has already notified
+						if (pendingQueue.isEmpty()) wait();
 					}
 				} catch(InterruptedException e) {
 					break;
@@ -646,6 +695,16 @@ class MachineThread extends Thread {
 	private void setState(MachineState state, String message) {
 		MachineState oldState = this.state;
 		this.state = state;
+		if (oldState.isBuilding() && !state.isBuilding() && machineBuilder != null) {
+			// finished, stopped or failed; don't hold the job's file open
+			machineBuilder.close();
+		}
+		// only connected machines are watched over JMX
+		if (!oldState.isConnected() && state.isConnected()) {
+			driver.getMetrics().register(getMachineName());
+		} else if (oldState.isConnected() && !state.isConnected()) {
+			driver.getMetrics().unregister();
+		}
 		if (!oldState.equals(state)) {
 			controller.emitStateChange(state, message);
 		}
@@ -687,7 +746,12 @@ class MachineThread extends Thread {
 	}
 	
 	private void dispose() {
+		if (machineBuilder != null) {
+			machineBuilder.close();
+		}
+		plugins.shutdown();
 		if (driver != null) {
+			driver.getMetrics().unregister();
 			driver.dispose();
 		}
 		if (simulator != null) {
@@ -749,6 +813,12 @@ class MachineThread extends Thread {
 	public void setEstimatedBuildTime(double estimatedBuildTime) {
 		this.estimatedBuildTime = estimatedBuildTime;
 	}
+
+	/** Set the estimated time at each line of the next build. */
+	public void setBuildTimeTable(BuildTimeTable table) {
+		this.buildTimeTable = table;
+		this.estimatedBuildTime = table.getTotalMillis();
+	}
 	
 	public String getMachineName() { return name; }
 }
\ No newline at end of file
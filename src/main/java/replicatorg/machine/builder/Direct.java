@@ -1,5 +1,7 @@
 package replicatorg.machine.builder;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
@@ -8,9 +10,12 @@ import java.util.logging.Level;
 import javax.swing.JOptionPane;
 
 import replicatorg.app.Base;
+import replicatorg.app.gcode.AccelerationPlanner;
 import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.MoveCoalescer;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
@@ -43,6 +48,14 @@ public class Direct implements MachineBuilder{
 	Queue<DriverCommand> driverQueue;
 	boolean building;		// True if we are running to the machine
 	
+	// Merges short collinear moves before they reach the driver, if enabled
+	MoveCoalescer coalescer;
+	Queue<DriverCommand> parsedQueue;
+	
+	// Plans acceleration for boards whose firmware doesn't
+	AccelerationPlanner planner;
+	Queue<DriverCommand> plannerQueue;
+	
 	SimulationDriver simulator;
 	GCodeParser simulationParser;
 	Queue<DriverCommand> simulatorQueue;
@@ -72,7 +85,21 @@ public class Direct implements MachineBuilder{
 			// Queue of commands that we get from the parser, and run on the driver.
 			driverQueue = new LinkedList< DriverCommand >();
 			
-			parser.init((DriverQueryInterface) driver);
+			// the parser has to see where held back moves will leave the machine
+			DriverQueryInterface query = (DriverQueryInterface) driver;
+			if (driver.getMachine().getPlanner() != null && driver instanceof OnboardParameters
+					&& !((OnboardParameters) driver).hasAcceleration()) {
+				planner = new AccelerationPlanner(query, driver.getMachine().getPlanner());
+				plannerQueue = new LinkedList< DriverCommand >();
+				query = planner;
+			}
+			if (Base.preferences.getBoolean("build.coalesce_moves", false) && !driver.isPassthroughDriver()) {
+				coalescer = new MoveCoalescer(query,
+						Base.preferences.getDouble("build.coalesce_tolerance", 0.02));
+				parsedQueue = new LinkedList< DriverCommand >();
+				query = coalescer;
+			}
+			parser.init(query);
 		}
 		
 		if (simulator == null) {
@@ -101,10 +128,42 @@ public class Direct implements MachineBuilder{
 		return (state == State.FINISHED);
 	}
 	
+	@Override
+	public void close() {
+		if (i instanceof Closeable) {
+			try {
+				((Closeable)i).close();
+			} catch (IOException e) {
+				Base.logger.log(Level.FINE, "Could not close the build's gcode", e);
+			}
+		}
+	}
+	
 	// Run the next command on the driver
 	@Override
 	public void runNext() { 
+		boolean draining = false;
 		if (!i.hasNext()) {
+			// Send any move the coalescer or planner is still holding back
+			if (coalescer != null) {
+				coalescer.flush(planner != null ? plannerQueue : driverQueue);
+			}
+			if (planner != null) {
+				planner.process(plannerQueue, driverQueue);
+				planner.flush(driverQueue);
+			}
+			if (!driverQueue.isEmpty()) draining = true;
+		}
+		if (!i.hasNext() && !draining) {
+			if (coalescer != null && coalescer.getMovesIn() > 0) {
+				Base.logger.info(coalescer.toString());
+				driver.getMetrics().movesMerged(coalescer.getMovesIn() - coalescer.getMovesOut());
+				coalescer = null;
+			}
+			if (planner != null && planner.getMovesIn() > 0) {
+				Base.logger.info(planner.toString());
+				planner = null;
+			}
 			// TODO: This is clunky.
 			if (driver.isFinished()) {
 				state = State.FINISHED;
@@ -122,13 +181,24 @@ public class Direct implements MachineBuilder{
 		}
 		
 		// Read and process next line
-		if (retry == false) {
+		if (retry == false && !draining) {
 			String line = i.next();
 			linesProcessed++;
 
 			// Parse a line for the actual machine
 			if (building) {
-				parser.parse(line, driverQueue);
+				long start = System.nanoTime();
+				Queue<DriverCommand> parsed = driverQueue;
+				if (planner != null) parsed = plannerQueue;
+				if (coalescer != null) parsed = parsedQueue;
+				parser.parse(line, parsed);
+				if (coalescer != null) {
+					coalescer.process(parsedQueue, planner != null ? plannerQueue : driverQueue);
+				}
+				if (planner != null) {
+					planner.process(plannerQueue, driverQueue);
+				}
+				driver.getMetrics().parsed(System.nanoTime() - start);
 			}
 			
 			// If we're simulating, parse a line to feed to the simulator 
@@ -138,7 +208,7 @@ public class Direct implements MachineBuilder{
 		}
 		
 		// Simulate the command. Just run everything against the simulator, and ignore errors.
-		if (retry == false && simulating) {
+		if (retry == false && !draining && simulating) {
 			for (DriverCommand command : simulatorQueue) {
 				try {
 					command.run(simulator);
@@ -151,6 +221,7 @@ public class Direct implements MachineBuilder{
 			simulatorQueue.clear();
 		}
 		
+		long start = System.nanoTime();
 		try {
 			if (building) {
 				// Run the command on the machine.
@@ -158,6 +229,7 @@ public class Direct implements MachineBuilder{
 					driverQueue.peek().run(driver);
 					driverQueue.remove();
 				}
+				driver.getMetrics().blocked(System.nanoTime() - start);
 			}
 			
 			retry = false;
@@ -166,6 +238,7 @@ public class Direct implements MachineBuilder{
 			// than proceeding to the next, on the next go-round.
 			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
 			retry = true;
+			driver.getMetrics().blocked(System.nanoTime() - start);
 		} catch (StopException e) {
 			// TODO: Just returning here seems dangerous, better to notify the state machine.
 			
@@ -28,4 +28,10 @@ public interface MachineBuilder {
 	 * @return
 	 */
 	public JobTarget getTarget();
+	
+	/**
+	 * Let go of anything held open for the build, such as the file the code
+	 * is read from. Called when the build ends, however it ends.
+	 */
+	public void close();
 }
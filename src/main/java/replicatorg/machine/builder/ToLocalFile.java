@@ -68,6 +68,12 @@ public class ToLocalFile implements MachineBuilder {
 		if(directBuilder != null)
 			directBuilder.runNext();
 	}
+	
+	@Override
+	public void close() {
+		if(directBuilder != null)
+			directBuilder.close();
+	}
 
 	@Override
 	public int getLinesTotal() {
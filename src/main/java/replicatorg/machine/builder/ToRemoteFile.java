@@ -50,6 +50,12 @@ public class ToRemoteFile implements MachineBuilder {
 		if(directBuilder != null)
 			directBuilder.runNext();
 	}
+	
+	@Override
+	public void close() {
+		if(directBuilder != null)
+			directBuilder.close();
+	}
 
 	@Override
 	public int getLinesTotal() {
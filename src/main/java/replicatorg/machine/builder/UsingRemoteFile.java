@@ -41,6 +41,10 @@ public class UsingRemoteFile implements MachineBuilder{
 	public void runNext() {
 	}
 	
+	@Override
+	public void close() {
+	}
+	
 	@Override
 	public int getLinesProcessed() {
 		return 0;
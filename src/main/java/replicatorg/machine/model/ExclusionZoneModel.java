@@ -55,4 +55,25 @@ public class ExclusionZoneModel {
 			e.printStackTrace();
 		}
 	}
+
+	public String getReason()
+	{
+		return reason;
+	}
+
+	/**
+	 * True if the given point lies inside this zone. The two corners may be
+	 * given in any order.
+	 */
+	public boolean contains(double x, double y, double z)
+	{
+		return between(x, topleft[0], bottomright[0]) &&
+			between(y, topleft[1], bottomright[1]) &&
+			between(z, topleft[2], bottomright[2]);
+	}
+
+	private static boolean between(double v, float a, float b)
+	{
+		return v >= Math.min(a, b) && v <= Math.max(a, b);
+	}
 }
@@ -56,6 +56,9 @@ public class MachineModel
 	@SuppressWarnings("unused")
 	private Point5d minimum;
 	private Point5d maximum;
+	// the corners of the build volume, in machine coordinates
+	private Point5d buildMinimum;
+	private Point5d buildMaximum;
 	private EnumMap<AxisId, Endstops> endstops = new EnumMap<AxisId, Endstops>(AxisId.class);
 
 	// Which axes exist on this machine
@@ -66,6 +69,7 @@ public class MachineModel
 	private Point5d homingFeedrates;
 	private Point5d stepsPerMM;
     private Point5d timeOut;
+	private Point5d jerk;
 	
 	//our drive status
 	protected boolean drivesEnabled = true;
@@ -81,6 +85,12 @@ public class MachineModel
 
 	//our wipe models @Noah
 	protected  Vector<WipeModel> wipes = new Vector<WipeModel>();
+
+	// acceleration planning on the host, if the machine wants it
+	protected PlannerModel planner = null;
+
+	// areas of the build platform the toolhead must stay out of
+	protected Vector<ExclusionZoneModel> exclusionZones = new Vector<ExclusionZoneModel>();
 	
 	// our machine-specific start & end gcode
 	protected File dualstartBookendCode = null;
@@ -103,6 +113,8 @@ public class MachineModel
 		clamps = new Vector<ClampModel>();
 		tools = new Vector<ToolModel>();
 		buildVolume = new BuildVolume(100,100,100); // preload it with the default values
+		buildMinimum = new Point5d(-50, -50, 0, 0, 0);
+		buildMaximum = new Point5d(50, 50, 100, 0, 0);
                 toolheadsOfffsets = new ToolheadsOffset(0.0, 0.0, 0.0);
 		
 		//currentPosition = new Point3d();
@@ -111,6 +123,7 @@ public class MachineModel
 		maximumFeedrateSteps = new Point5d();
 		homingFeedrates = new Point5d();
 		timeOut = new Point5d();
+		jerk = new Point5d();
 		stepsPerMM = new Point5d(1, 1, 1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool.set(nullTool);
@@ -131,6 +144,7 @@ public class MachineModel
 		parseExclusion();
 		parseGCode();
 		parseOffsets();
+		parsePlanner();
 	}
 	
 
@@ -159,16 +173,15 @@ public class MachineModel
 	{
 		if(XML.hasChildNode(xml, "exclusion"))
 		{
-			Node exclusionNode = XML.getChildNodeByName(xml, "wipes");
+			Node exclusionNode = XML.getChildNodeByName(xml, "exclusion");
 			NodeList exclusionKids = exclusionNode.getChildNodes();
 			for (int i=0; i<exclusionKids.getLength(); i++)
 			{
 				Node exclusionZoneNode = exclusionKids.item(i);
 				
-				if (exclusionZoneNode.getNodeName().equals("wipe"))
+				if (exclusionZoneNode.getNodeName().equals("zone"))
 				{
-					WipeModel wipe = new WipeModel(exclusionZoneNode);
-					wipes.add(wipe);
+					exclusionZones.add(new ExclusionZoneModel(exclusionZoneNode));
 				}
 			}
 		}
@@ -263,6 +276,7 @@ public class MachineModel
 						// can be overriden in .xml for each axis, the max val is all we use currently
 						double defaultTimeout = 20.0;
 						double timeout = 0;
+						double axisJerk = 0;
 						//if values are missing, ignore them.
 						try {
 						 	length = Double.parseDouble(XML.getAttributeValue(axis, "length"));
@@ -287,6 +301,9 @@ public class MachineModel
 							// if no timeout is specified, used the default
 						       timeout = defaultTimeout;
 						}
+						try {
+							axisJerk = Double.parseDouble(XML.getAttributeValue(axis, "jerk"));
+						} catch (Exception e) {}
 						String endstopStr = XML.getAttributeValue(axis, "endstops");
 						if (endstopStr != null) {
 							try {
@@ -300,6 +317,7 @@ public class MachineModel
 						homingFeedrates.setAxis(id,homingFeedrate);
 						stepsPerMM.setAxis(id,stepspermm);
 						timeOut.setAxis(id,timeout);
+						jerk.setAxis(id,axisJerk);
 						this.endstops.put(id, endstops);
 						Base.logger.fine("Loaded axis " + id.name()
 								+ ": (Length: " + length 
@@ -318,6 +336,20 @@ public class MachineModel
 		}
 	}
 	
+	private void parsePlanner()
+	{
+		if(XML.hasChildNode(xml, "planner"))
+		{
+			try {
+				planner = new PlannerModel(XML.getChildNodeByName(xml, "planner"), jerk);
+				Base.logger.fine("Loaded " + planner);
+			} catch (IllegalArgumentException e) {
+				Base.logger.severe("Ignoring the planner in the machine descriptor: " + e.getMessage());
+				planner = null;
+			}
+		}
+	}
+	
 	//load clamp configuration
 	private void parseClamps()
 	{
@@ -401,19 +433,30 @@ public class MachineModel
 					try {
 					 	length = Double.parseDouble(XML.getAttributeValue(axis, "length"));
 					} catch (Exception e) {}
+					// X and Y are centred on the origin, Z starts at it, unless the axis says otherwise
+					double min = id.toLowerCase().equals("z") ? 0 : -length / 2;
+					try {
+						min = Double.parseDouble(XML.getAttributeValue(axis, "min"));
+					} catch (Exception e) {}
 					
 					//create the right variables.
 					if (id.toLowerCase().equals("x"))
 					{
 						buildVolume.setX((int)length);
+						buildMinimum.setX(min);
+						buildMaximum.setX(min + length);
 					}
 					else if (id.toLowerCase().equals("y"))
 					{
 						buildVolume.setY((int)length);
+						buildMinimum.setY(min);
+						buildMaximum.setY(min + length);
 					}
 					else if (id.toLowerCase().equals("z"))
 					{
 						buildVolume.setZ((int)length);
+						buildMinimum.setZ(min);
+						buildMaximum.setZ(min + length);
 					}
 				}
 			}
@@ -596,6 +639,22 @@ public class MachineModel
 		return buildVolume;
 	}
 	
+	/**
+	 * The lowest position on each axis inside the build volume, in mm. An
+	 * axis with a "min" attribute starts there; otherwise X and Y are
+	 * centred on the origin and Z starts at 0.
+	 */
+	public Point5d getBuildMinimum()
+	{
+		return buildMinimum;
+	}
+	
+	/** The highest position on each axis inside the build volume, in mm */
+	public Point5d getBuildMaximum()
+	{
+		return buildMaximum;
+	}
+	
 	public Vector<ToolModel> getTools()
 	{
 		return tools;
@@ -642,6 +701,15 @@ public class MachineModel
 		return wipes;
 	}
 	
+	/** @return the settings for planning acceleration on the host, or null if there are none */
+	public PlannerModel getPlanner() {
+		return planner;
+	}
+
+	public Vector<ExclusionZoneModel> getExclusionZones() {
+		return exclusionZones;
+	}
+	
 	public WipeModel getWipeFor(ToolheadAlias tool) {
 		for(WipeModel wm : wipes)
 		{
@@ -0,0 +1,84 @@
+package replicatorg.machine.model;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.tools.XML;
+import replicatorg.util.Point5d;
+
+/**
+ * Settings for planning acceleration on the host, for boards whose firmware
+ * runs every move at one constant speed. Read from a planner element in the
+ * machine description:
+ * <pre>
+ * &lt;planner acceleration="1000" jerk="10" lookahead="16" minsegment="0.5"/&gt;
+ * </pre>
+ * A jerk attribute on an axis overrides the planner's jerk for that axis.
+ * The acceleration and jerk must be positive, and the minimum segment can't
+ * be negative; anything else is an IllegalArgumentException.
+ */
+public class PlannerModel {
+	/** in mm/s/s */
+	private double acceleration = 1000;
+	/** the most the speed of an axis can change at once, in mm/s */
+	private final Point5d jerk = new Point5d();
+	/** moves planned ahead */
+	private int lookahead = 16;
+	/** shortest piece a move is split into, in mm */
+	private double minSegment = 0.5;
+
+	public PlannerModel(double acceleration, double jerk, int lookahead, double minSegment) {
+		this.acceleration = acceleration;
+		this.lookahead = lookahead;
+		this.minSegment = minSegment;
+		for (int i = 0; i < 5; i++) this.jerk.set(i, jerk);
+		check(jerk);
+	}
+
+	/**
+	 * @param axisJerk the jerk given on each axis, or zero where the planner's
+	 * should be used
+	 */
+	public PlannerModel(Node xml, Point5d axisJerk) {
+		double defaultJerk = 10;
+		try {
+			acceleration = Double.parseDouble(XML.getAttributeValue(xml, "acceleration"));
+		} catch (Exception e) {}
+		try {
+			defaultJerk = Double.parseDouble(XML.getAttributeValue(xml, "jerk"));
+		} catch (Exception e) {}
+		try {
+			lookahead = Integer.parseInt(XML.getAttributeValue(xml, "lookahead"));
+		} catch (Exception e) {}
+		try {
+			minSegment = Double.parseDouble(XML.getAttributeValue(xml, "minsegment"));
+		} catch (Exception e) {}
+		for (int i = 0; i < 5; i++) {
+			jerk.set(i, axisJerk.get(i) > 0 ? axisJerk.get(i) : defaultJerk);
+		}
+		check(defaultJerk);
+	}
+
+	private void check(double defaultJerk) {
+		// written so that NaN fails as well
+		if (!(acceleration > 0))
+			throw new IllegalArgumentException("Planner acceleration must be positive, not " + acceleration);
+		if (!(defaultJerk > 0))
+			throw new IllegalArgumentException("Planner jerk must be positive, not " + defaultJerk);
+		if (!(minSegment >= 0))
+			throw new IllegalArgumentException("Planner minimum segment can't be negative, not " + minSegment);
+	}
+
+	public double getAcceleration() { return acceleration; }
+
+	/** Jerk on each axis, in mm/s */
+	public Point5d getJerk() { return jerk; }
+
+	public int getLookahead() { return lookahead; }
+
+	public double getMinSegment() { return minSegment; }
+
+	public String toString() {
+		return "planner (acceleration " + acceleration + "mm/s/s, jerk " + jerk + "mm/s, "
+				+ lookahead + " moves ahead)";
+	}
+}
@@ -0,0 +1,170 @@
+package replicatorg.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeIndex;
+
+/**
+ * A gcode source that streams its lines straight from a file, without ever
+ * holding the whole file in memory. Each call to {@link #iterator()} opens
+ * the file afresh; the reader is closed once the iterator is exhausted, and
+ * the iterator is {@link Closeable} for callers that stop partway.
+ * Seeking goes through the file's {@link GCodeIndex}, built on first use.
+ */
+public class FileGCodeSource implements SeekableGCodeSource {
+
+	private final File file;
+	private int lineCount = -1;
+	private GCodeIndex index = null;
+
+	public FileGCodeSource(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Iterator<String> iterator() {
+		try {
+			return new LineIterator(new BufferedReader(new FileReader(file), 1 << 16));
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't read gcode from " + file.getAbsolutePath(), e);
+			return new ArrayList<String>().iterator();
+		}
+	}
+
+	public Iterator<String> iterator(int fromLine) {
+		if (fromLine <= 0) return iterator();
+		try {
+			return new LineIterator(getIndex().openAt(fromLine));
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't read gcode from " + file.getAbsolutePath(), e);
+			return new ArrayList<String>().iterator();
+		}
+	}
+
+	/** The index of the file, from its sidecar if that is up to date */
+	public synchronized GCodeIndex getIndex() throws IOException {
+		if (index == null) {
+			index = GCodeIndex.forFile(file, null);
+			lineCount = index.getLineCount();
+		}
+		return index;
+	}
+
+	private static class LineIterator implements Iterator<String>, Closeable {
+		private BufferedReader reader;
+		private String next;
+
+		LineIterator(BufferedReader reader) {
+			this.reader = reader;
+			advance();
+		}
+
+		private void advance() {
+			try {
+				next = reader.readLine();
+			} catch (IOException e) {
+				Base.logger.log(Level.SEVERE, "Error while reading gcode", e);
+				next = null;
+			}
+			if (next == null) close();
+		}
+
+		public void close() {
+			next = null;
+			if (reader == null) return;
+			try {
+				reader.close();
+			} catch (IOException e) {
+				// nothing more we can do
+			}
+			reader = null;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public String next() {
+			if (next == null) throw new NoSuchElementException();
+			String line = next;
+			advance();
+			return line;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	public List<String> asList() {
+		List<String> result = new ArrayList<String>();
+		for (String line : this)
+			result.add(line);
+		return result;
+	}
+
+	/**
+	 * Counts the lines in the file, the same way BufferedReader.readLine()
+	 * would split them. The file is only scanned for line terminators, and
+	 * only once, and not at all if it has an up to date index.
+	 */
+	public synchronized int getLineCount() {
+		if (lineCount >= 0) return lineCount;
+		GCodeIndex existing = GCodeIndex.load(file, null);
+		if (existing != null) {
+			index = existing;
+			lineCount = existing.getLineCount();
+			return lineCount;
+		}
+		int count = 0;
+		try {
+			InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+			try {
+				byte[] buffer = new byte[1 << 16];
+				boolean pending = false; // bytes seen since the last terminator
+				boolean lastWasCR = false;
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					for (int i = 0; i < n; i++) {
+						byte b = buffer[i];
+						if (b == '\n') {
+							if (!lastWasCR) count++;
+							pending = false;
+							lastWasCR = false;
+						} else if (b == '\r') {
+							count++;
+							pending = false;
+							lastWasCR = true;
+						} else {
+							pending = true;
+							lastWasCR = false;
+						}
+					}
+				}
+				if (pending) count++;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Couldn't count lines in " + file.getAbsolutePath(), e);
+		}
+		lineCount = count;
+		return lineCount;
+	}
+}
@@ -1,5 +1,7 @@
 package replicatorg.model;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -16,14 +18,16 @@ public class GCodeSourceCollection implements GCodeSource {
 	final Vector<GCodeSource> sources; 
 	final int lineCount;
 	
-	public class GCodeSourceCollectionIterator implements Iterator<String> {
+	public class GCodeSourceCollectionIterator implements Iterator<String>, Closeable {
 		Vector<Iterator<String>> iterators;
 		
 		public GCodeSourceCollectionIterator(Vector<GCodeSource> sources) {
 			iterators = new Vector<Iterator<String>>();
 			
 			for (GCodeSource source : sources) {
-				iterators.add(source.iterator());
+				// skip empty parts (e.g. no warmup code), or next() would run off the end of one
+				Iterator<String> i = source.iterator();
+				if (i.hasNext()) iterators.add(i);
 			}
 		}
 		
@@ -50,6 +54,14 @@ public class GCodeSourceCollection implements GCodeSource {
 		public void remove() {
 			
 		}
+
+		/** Close the parts not yet read to the end */
+		public void close() throws IOException {
+			for (Iterator<String> i : iterators) {
+				if (i instanceof Closeable) ((Closeable)i).close();
+			}
+			iterators.clear();
+		}
 	}
 	
 	public GCodeSourceCollection(Vector<GCodeSource> sources) {
@@ -0,0 +1,16 @@
+package replicatorg.model;
+
+import java.util.Iterator;
+
+/**
+ * A gcode source that can start reading partway through, without going
+ * over the lines before.
+ */
+public interface SeekableGCodeSource extends GCodeSource {
+
+	/**
+	 * Returns an iterator starting at the given line of this source's gcode.
+	 * @param fromLine the index of the first line to return
+	 */
+	Iterator<String> iterator(int fromLine);
+}
@@ -0,0 +1,126 @@
+package replicatorg.model;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+import replicatorg.app.syntax.JEditTextArea;
+
+/**
+ * An immutable copy of a block of gcode. The text is held as a single
+ * character array together with the offset at which each line starts, so
+ * any line can be fetched in constant time without touching the Swing
+ * document it was captured from.
+ *
+ * Because the snapshot never changes after construction it is safe to hand
+ * the same instance to several threads (estimation, safety checks, building)
+ * while the user keeps editing.
+ */
+public class SnapshotGCodeSource implements GCodeSource {
+
+	private final char[] text;
+	/** lineStarts[i] is the offset of line i; lineStarts[lineCount] is text.length + 1 */
+	private final int[] lineStarts;
+	private final int lineCount;
+
+	/**
+	 * Build a snapshot from raw text. Lines are separated by '\n', and a
+	 * trailing '\r' is dropped from each line. As with a Swing document, text
+	 * ending in a newline has a final empty line.
+	 */
+	public SnapshotGCodeSource(char[] text, int length) {
+		this(text, 0, length);
+	}
+
+	/** Build a snapshot from part of a character array, which is copied. */
+	public SnapshotGCodeSource(char[] text, int offset, int length) {
+		this.text = new char[length];
+		System.arraycopy(text, offset, this.text, 0, length);
+
+		int lines = 1;
+		for (int i = 0; i < length; i++) {
+			if (this.text[i] == '\n') lines++;
+		}
+		lineCount = lines;
+		lineStarts = new int[lines + 1];
+		int line = 1;
+		for (int i = 0; i < length; i++) {
+			if (this.text[i] == '\n') lineStarts[line++] = i + 1;
+		}
+		lineStarts[lines] = length + 1;
+	}
+
+	public SnapshotGCodeSource(String text) {
+		this(text.toCharArray(), text.length());
+	}
+
+	/**
+	 * Capture the current contents of a text area. The document is read under
+	 * its own read lock, so this may be called from any thread; the returned
+	 * snapshot will not see any later edits.
+	 */
+	public static SnapshotGCodeSource fromTextArea(JEditTextArea textarea) {
+		return fromDocument(textarea.getDocument());
+	}
+
+	public static SnapshotGCodeSource fromDocument(final Document document) {
+		final SnapshotGCodeSource[] result = new SnapshotGCodeSource[1];
+		document.render(new Runnable() {
+			public void run() {
+				Segment segment = new Segment();
+				try {
+					document.getText(0, document.getLength(), segment);
+				} catch (BadLocationException ble) {
+					segment.array = new char[0];
+					segment.offset = segment.count = 0;
+				}
+				result[0] = new SnapshotGCodeSource(segment.array, segment.offset, segment.count);
+			}
+		});
+		return result[0];
+	}
+
+	/**
+	 * Returns the text of the given line, without its line terminator.
+	 */
+	public String getLine(int index) {
+		if (index < 0 || index >= lineCount) {
+			throw new IndexOutOfBoundsException("Line " + index + " of " + lineCount);
+		}
+		int start = lineStarts[index];
+		int end = lineStarts[index + 1] - 1;
+		if (end > start && text[end - 1] == '\r') end--;
+		return new String(text, start, end - start);
+	}
+
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			int idx = 0;
+			public boolean hasNext() { return idx < lineCount; }
+			public String next() {
+				if (idx >= lineCount) throw new NoSuchElementException();
+				return getLine(idx++);
+			}
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	/**
+	 * Returns a read-only view of the lines; no copy of the text is made.
+	 */
+	public List<String> asList() {
+		return new AbstractList<String>() {
+			public String get(int index) { return getLine(index); }
+			public int size() { return lineCount; }
+		};
+	}
+
+	public int getLineCount() {
+		return lineCount;
+	}
+}
@@ -11,7 +11,7 @@ import java.util.Vector;
  * @author phooky
  *
  */
-public class StringListSource implements GCodeSource {
+public class StringListSource implements SeekableGCodeSource {
 	
 	private Vector<String> gcode;
 	
@@ -22,6 +22,10 @@ public class StringListSource implements GCodeSource {
 	public Iterator<String> iterator() {
 		return gcode.iterator();
 	}
+
+	public Iterator<String> iterator(int fromLine) {
+		return gcode.listIterator(Math.min(Math.max(fromLine, 0), gcode.size()));
+	}
 	
 	public List<String> asList() {
 		return gcode;
@@ -14,7 +14,8 @@ public interface MCodePlugin {
 	 * Handle one of the acceptable m-codes.  This function should expect to recieve the entire line
 	 * on which the m-code was found.
 	 * 
-	 * In general, this function should return quickly, to avoid blocking replicatorG.
+	 * This is called on a thread of the plugin's own, in the order the m-codes were seen. If it
+	 * falls too far behind the build, further m-codes may be dropped.
 	 * @param mcode the full line of m-code
 	 */
 	public void processMCode(GCodeCommand mcode);
@@ -0,0 +1,152 @@
+package replicatorg.plugin;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeCommand;
+
+/**
+ * Runs one M-code plugin on its own thread, so that a slow plugin can't hold
+ * up the build. Codes are handed to the plugin in the order they were seen;
+ * when too many are waiting, the overflow policy decides what happens to the
+ * next one. Keeps timing figures for the plugin.
+ */
+public class MCodeRunner {
+
+	public enum Overflow {
+		/** drop the code, so the build never waits on a plugin */
+		DROP,
+		/** hold the build until the plugin has room for it */
+		WAIT
+	}
+
+	private final PluginEntry entry;
+	private final MCodePlugin plugin;
+	private final Overflow overflow;
+	private final ThreadPoolExecutor executor;
+
+	private long accepted = 0;
+	private long completed = 0;
+	private long dropped = 0;
+	private long failures = 0;
+	private long totalNanos = 0;
+	private long maxNanos = 0;
+
+	public MCodeRunner(PluginEntry entry, int queueSize, Overflow overflow) {
+		this.entry = entry;
+		this.plugin = (MCodePlugin)entry.getPlugin();
+		this.overflow = overflow;
+		final String name = "Plugin: " + entry.getName();
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+						if (MCodeRunner.this.overflow == Overflow.WAIT && !e.isShutdown()) {
+							try {
+								e.getQueue().put(r);
+								return;
+							} catch (InterruptedException ie) {
+								Thread.currentThread().interrupt();
+							}
+						}
+						throw new RejectedExecutionException();
+					}
+				});
+	}
+
+	public PluginEntry getEntry() { return entry; }
+
+	/**
+	 * Queue a line for the plugin. The line is only parsed once the plugin's
+	 * thread gets to it.
+	 * @return false if it was dropped
+	 */
+	public boolean submit(final String line) {
+		synchronized (this) { accepted++; }
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					long start = System.nanoTime();
+					try {
+						plugin.processMCode(new GCodeCommand(line));
+					} catch (RuntimeException e) {
+						synchronized (MCodeRunner.this) { failures++; }
+						Base.logger.log(Level.WARNING, "Plugin " + entry.getName() + " failed on " + line, e);
+					} finally {
+						finished(System.nanoTime() - start);
+					}
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				accepted--;
+				if (dropped++ == 0)
+					Base.logger.warning("Plugin " + entry.getName() + " is falling behind; dropping M-codes");
+			}
+			return false;
+		}
+	}
+
+	private synchronized void finished(long nanos) {
+		completed++;
+		totalNanos += nanos;
+		if (nanos > maxNanos) maxNanos = nanos;
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the plugin to get through everything queued so far.
+	 * @return true if it did within the given time
+	 */
+	public synchronized boolean awaitIdle(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (completed < accepted) {
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0) return false;
+			wait(left);
+		}
+		return true;
+	}
+
+	/** Stop the plugin's thread once it has finished what's queued. */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/** Codes handed to the plugin so far, including those still queued */
+	public synchronized long getInvocations() { return accepted; }
+	public synchronized long getCompleted() { return completed; }
+	public synchronized long getDropped() { return dropped; }
+	/** Calls that threw an exception */
+	public synchronized long getFailures() { return failures; }
+	public int getQueued() {
+		BlockingQueue<Runnable> queue = executor.getQueue();
+		return queue.size();
+	}
+	public synchronized double getMeanMillis() {
+		return completed == 0 ? 0 : totalNanos / (completed * 1e6);
+	}
+	public synchronized double getMaxMillis() { return maxNanos / 1e6; }
+
+	@Override
+	public synchronized String toString() {
+		return entry.getName() + ": " + completed + " calls, " + dropped + " dropped, " +
+			failures + " failed, mean " + String.format("%.2f", getMeanMillis()) +
+			"ms, max " + String.format("%.2f", getMaxMillis()) + "ms";
+	}
+}
@@ -1,50 +1,124 @@
 package replicatorg.plugin;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
-import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.GCodeScanner;
 import replicatorg.model.GCodeSource;
 
+/**
+ * Passes gcode through unchanged, handing any M-codes a plugin has asked for
+ * to that plugin.
+ *
+ * Which plugins want which M number is worked out once, when the plugins are
+ * set. Lines are only parsed as far as finding their M number, and each plugin
+ * runs on its own thread (see {@link MCodeRunner}), so the build doesn't wait
+ * on them.
+ *
+ * Each machine thread has one, set up with the plugins found when the
+ * machine was loaded, and wraps every job it builds in it.
+ */
 public class PluginEngine implements GCodeSource {
+	/** M-codes that may wait for a plugin before its overflow policy applies */
+	static final int QUEUE_SIZE = 64;
+
 	GCodeSource parent = null;
-	
-	void setParentSource(GCodeSource parent) {
+
+	public void setParentSource(GCodeSource parent) {
 		this.parent = parent;
 	}
-	
-	Vector<PluginEntry> plugins;
-	void setPlugins(Vector<PluginEntry> plugins) {
-		this.plugins = plugins;
+
+	// replaced whole, never changed, by setPlugins on the UI thread while the
+	// machine thread reads them
+	private volatile List<MCodeRunner> runners = Collections.emptyList();
+	private volatile Map<Integer, MCodeRunner[]> dispatch = Collections.emptyMap();
+
+	public void setPlugins(Vector<PluginEntry> plugins) {
+		setPlugins(plugins, QUEUE_SIZE, MCodeRunner.Overflow.DROP);
 	}
-	
+
+	public synchronized void setPlugins(Vector<PluginEntry> plugins, int queueSize, MCodeRunner.Overflow overflow) {
+		shutdown();
+		List<MCodeRunner> newRunners = new ArrayList<MCodeRunner>();
+		Map<Integer, Set<MCodeRunner>> table = new HashMap<Integer, Set<MCodeRunner>>();
+		for (PluginEntry entry : plugins) {
+			if (!(entry.getPlugin() instanceof MCodePlugin)) continue;
+			MCodeRunner runner = new MCodeRunner(entry, queueSize, overflow);
+			newRunners.add(runner);
+			for (int code : ((MCodePlugin)entry.getPlugin()).getAcceptedMCodes()) {
+				Set<MCodeRunner> forCode = table.get(code);
+				if (forCode == null) {
+					forCode = new LinkedHashSet<MCodeRunner>();
+					table.put(code, forCode);
+				}
+				forCode.add(runner);
+			}
+		}
+		Map<Integer, MCodeRunner[]> newDispatch = new HashMap<Integer, MCodeRunner[]>();
+		for (Map.Entry<Integer, Set<MCodeRunner>> e : table.entrySet()) {
+			newDispatch.put(e.getKey(), e.getValue().toArray(new MCodeRunner[e.getValue().size()]));
+		}
+		runners = newRunners;
+		dispatch = newDispatch;
+	}
+
+	/** One per M-code plugin, with its timing figures */
+	public synchronized List<MCodeRunner> getRunners() {
+		return Collections.unmodifiableList(runners);
+	}
+
+	/**
+	 * Wait for every plugin to get through the codes queued so far.
+	 * @return true if they all did within the given time
+	 */
+	public boolean awaitIdle(long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		for (MCodeRunner runner : getRunners()) {
+			if (!runner.awaitIdle(Math.max(0, deadline - System.currentTimeMillis()))) return false;
+		}
+		return true;
+	}
+
+	/** Stop the plugin threads once they have finished what's queued. */
+	public synchronized void shutdown() {
+		for (MCodeRunner runner : runners) runner.shutdown();
+	}
+
 	public int getLineCount() {
 		return parent.getLineCount();
 	}
 
-	private void processLine(String line) {
-		GCodeCommand mcode = new GCodeCommand(line);
-		if( mcode.hasCode('M')) {
-			double code = mcode.getCodeValue('M');
-		
-			for (PluginEntry plugin : plugins) {
-				if (plugin instanceof MCodePlugin) {
-					MCodePlugin mcp = (MCodePlugin)plugin;
-					int codes[] = mcp.getAcceptedMCodes();
-					for (int acceptedCode : codes) {
-						if (code == acceptedCode) {
-							mcp.processMCode(mcode);
-						}
-					}
-				}
-			}
+	private void processLine(String line, GCodeScanner scanner) {
+		Map<Integer, MCodeRunner[]> dispatch = this.dispatch;
+		if (dispatch.isEmpty() || line.indexOf('M') < 0) return;
+		int code = GCodeScanner.peekMCode(line);
+		if (code < 0) {
+			// the M isn't first; e.g. after a G code
+			scanner.scan(line);
+			if (!scanner.hasCode('M')) return;
+			double value = scanner.getCodeValue('M');
+			if (value != Math.floor(value)) return;
+			code = (int)value;
+		}
+		MCodeRunner[] targets = dispatch.get(code);
+		if (targets == null) return;
+		for (MCodeRunner runner : targets) {
+			if (runner.getEntry().isEnabled()) runner.submit(line);
 		}
 	}
-	
-	class GCodeIterator implements Iterator<String> {
+
+	class GCodeIterator implements Iterator<String>, Closeable {
 		private Iterator<String> parent;
+		private final GCodeScanner scanner = new GCodeScanner();
 		public GCodeIterator(Iterator<String> parent) {
 			this.parent = parent;
 		}
@@ -54,15 +128,19 @@ public class PluginEngine implements GCodeSource {
 
 		public String next() {
 			String next = parent.next();
-			processLine(next);
+			processLine(next, scanner);
 			return next;
 		}
 
 		public void remove() {
 			parent.remove();
 		}
+
+		public void close() throws IOException {
+			if (parent instanceof Closeable) ((Closeable)parent).close();
+		}
 	}
-	
+
 	public Iterator<String> iterator() {
 		return new GCodeIterator(parent.iterator());
 	}
@@ -30,7 +30,7 @@ public class PluginLoader {
 	
 	private PluginLoader() {}
 	
-	public PluginLoader getInstance() { return instance; }
+	public static PluginLoader getInstance() { return instance; }
 	
 	private Vector<File> getCandidateJars() {
 		Vector<File> candidates = new Vector<File>();
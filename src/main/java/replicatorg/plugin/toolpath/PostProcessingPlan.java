@@ -0,0 +1,103 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.GCodeTransforms;
+import replicatorg.model.FileGCodeSource;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Everything a post-processor wants done to a slicer's output: header lines,
+ * code to go before and after it, and the stages to run it all through.
+ *
+ * Build progress updates are kept apart from the other stages, since they
+ * need the total line count and so can't be added until the whole file is
+ * known.
+ */
+public class PostProcessingPlan {
+
+	public enum Progress {
+		NONE,
+		/** an M73 every time another percent of the lines has gone by */
+		LINES,
+		/** an M73 before every layer tag */
+		LAYERS
+	}
+
+	private final List<String> header = new ArrayList<String>();
+	private final List<GCodeSource> before = new ArrayList<GCodeSource>();
+	private final List<GCodeSource> after = new ArrayList<GCodeSource>();
+	private final List<GCodePipeline.Stage> stages = new ArrayList<GCodePipeline.Stage>();
+	private Progress progress = Progress.NONE;
+
+	/** A line written at the very top of the file, untouched by any stage */
+	public void addHeader(String line) { header.add(line); }
+	/** Code to run through the stages ahead of the slicer output */
+	public void addBefore(GCodeSource code) { before.add(code); }
+	/** Code to run through the stages after the slicer output */
+	public void addAfter(GCodeSource code) { after.add(code); }
+	public void addStage(GCodePipeline.Stage stage) { stages.add(stage); }
+	public void setProgress(Progress progress) { this.progress = progress; }
+
+	public List<String> getHeader() { return header; }
+	public List<GCodeSource> getBefore() { return before; }
+	public List<GCodeSource> getAfter() { return after; }
+	public List<GCodePipeline.Stage> getStages() { return stages; }
+	public Progress getProgress() { return progress; }
+
+	/**
+	 * @param totalLines the number of lines, not counting the header, that
+	 * will pass through the returned stage
+	 * @return a stage adding progress updates, or null if none were asked for
+	 */
+	public GCodePipeline.Stage progressStage(int totalLines) {
+		switch (progress) {
+		case LINES: return new GCodeTransforms.ProgressUpdates(totalLines);
+		case LAYERS: return new GCodeTransforms.LayerProgressUpdates(totalLines);
+		default: return null;
+		}
+	}
+
+	/**
+	 * Adds everything that decides what this plan does to a toolpath cache
+	 * key. The header is left out, since it only holds the date and such.
+	 */
+	public void addTo(ToolpathCache.Key key) {
+		for (GCodeSource part : before) {
+			key.add("<before>");
+			for (String line : part) key.add(line);
+		}
+		for (GCodeSource part : after) {
+			key.add("<after>");
+			for (String line : part) key.add(line);
+		}
+		for (GCodePipeline.Stage stage : stages)
+			key.add(stage.toString());
+		key.add(progress.name());
+	}
+
+	/**
+	 * Post-process a finished slicer output file in place. The slicer output,
+	 * with any code before and after it, is streamed through every stage in a
+	 * single pass and straight back out to the file, rather than being loaded
+	 * and copied once per stage.
+	 */
+	public void rewrite(File gcodeFile) throws IOException {
+		List<GCodeSource> parts = new ArrayList<GCodeSource>(before);
+		parts.add(new FileGCodeSource(gcodeFile));
+		parts.addAll(after);
+
+		List<GCodePipeline.Stage> all = new ArrayList<GCodePipeline.Stage>(stages);
+		if (progress != Progress.NONE) {
+			int lineCount = 0;
+			for (GCodeSource part : parts)
+				lineCount += part.getLineCount();
+			all.add(progressStage(lineCount));
+		}
+		GCodePipeline.rewriteFile(gcodeFile, header, parts, all);
+	}
+}
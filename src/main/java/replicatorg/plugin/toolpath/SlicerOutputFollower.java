@@ -0,0 +1,475 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.BuildTimeTable;
+import replicatorg.app.gcode.CheckedCode;
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.app.gcode.GCodeEstimator;
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.GCodeScanner;
+import replicatorg.app.gcode.LineShifts;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.FileGCodeSource;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.FileUtils;
+
+/**
+ * Post-processes a slicer's output while the slicer is still writing it.
+ *
+ * The slicer's file is tailed as it grows, and every completed line is run
+ * through the post-processing stages, the build time estimator and the safety
+ * analyzer straight away, so that all three are done (bar the last few lines)
+ * by the time the slicer exits. The post-processed code is written to a
+ * temporary file that replaces the output once the slicer has exited
+ * successfully; if it fails, the output is left alone.
+ *
+ * Build progress updates need the final line count, so if they are wanted
+ * they are added in one more, cheap, pass once the slicer is done; the
+ * estimate and safety check are moved to match the lines that pass puts in.
+ * The results are kept as {@link CheckedCode}, so that building the output
+ * doesn't estimate and check it all over again.
+ *
+ * If the slicer replaces its output file rather than appending to it, or
+ * never writes one, the result is discarded and {@link #isComplete()} returns
+ * false; the caller should then post-process the file the usual way.
+ */
+public class SlicerOutputFollower {
+
+	/** How long to wait for the slicer to write more */
+	static final int POLL_MILLIS = 50;
+	/** Lines handed to the estimator and analyzer at a time */
+	private static final int BATCH_SIZE = 1024;
+	private static final String[] END_OF_BATCHES = new String[0];
+
+	private final File input;
+	private final File output;
+	private final PostProcessingPlan plan;
+	private final MachineModel model;
+
+	private boolean complete = false;
+	private int lineCount = 0;
+	private int linesBeforeExit = 0;
+	private long finishMillis = 0;
+	private double buildTime = -1;
+	private GCodeAnalyzer.Report report = null;
+	private CheckedCode checked = null;
+
+	/**
+	 * @param output the file the slicer will write, to be replaced by the post-processed code
+	 * @param plan the post-processing to apply
+	 * @param model the machine to estimate and check against, or null to skip both
+	 */
+	public SlicerOutputFollower(File output, PostProcessingPlan plan, MachineModel model) {
+		this(output, output, plan, model);
+	}
+
+	/**
+	 * @param input the file the slicer will write
+	 * @param output the file the post-processed code goes to
+	 */
+	public SlicerOutputFollower(File input, File output, PostProcessingPlan plan, MachineModel model) {
+		this.input = input;
+		this.output = output;
+		this.plan = plan;
+		this.model = model;
+	}
+
+	/**
+	 * Follow the slicer's output until it exits.
+	 * @return the slicer's exit code
+	 */
+	public int follow(Process process) throws IOException, InterruptedException {
+		File spool = new File(output.getPath() + ".stream.tmp");
+		Checker checker = (model != null) ? new Checker(model) : null;
+		Writer writer = new BufferedWriter(new FileWriter(spool), 1 << 16);
+		boolean kept = false;
+		try {
+			if (checker != null) checker.start();
+			TeeSink sink = new TeeSink(writer, checker);
+			GCodePipeline pipeline = new GCodePipeline(sink);
+			for (GCodePipeline.Stage stage : plan.getStages())
+				pipeline.add(stage);
+			for (String line : plan.getHeader())
+				pipeline.bypass(line);
+			for (GCodeSource part : plan.getBefore())
+				pipeline.feed(part);
+
+			Tail tail = new Tail(pipeline);
+			int exitCode = tail.run(process);
+			long exitTime = System.currentTimeMillis();
+			if (exitCode != 0) {
+				return exitCode;
+			}
+			if (!tail.isIntact()) {
+				Base.logger.warning("Slicer output " + input.getName() +
+						" was not written in place; post-processing it afterwards instead");
+				return exitCode;
+			}
+
+			for (GCodeSource part : plan.getAfter())
+				pipeline.feed(part);
+			pipeline.finish();
+			sink.flush();
+			writer.close();
+			lineCount = sink.count;
+
+			if (checker != null) {
+				checker.finish();
+				report = checker.report;
+				buildTime = checker.buildTime;
+			}
+
+			int headerLines = plan.getHeader().size();
+			GCodePipeline.Stage progress = plan.progressStage(lineCount - headerLines);
+			int finalCount = lineCount;
+			int finalHash = sink.hash;
+			LineShifts shifts = null;
+			if (progress != null) {
+				ProgressPass pass = new ProgressPass(spool, headerLines);
+				pass.run(plan.getHeader(), progress);
+				finalCount = pass.count;
+				finalHash = pass.hash;
+				shifts = pass.shifts;
+			}
+			FileUtils.replace(spool, output);
+			if (report != null && report.isComplete() && checker.table != null) {
+				BuildTimeTable table = checker.table;
+				if (shifts != null) {
+					report = report.remap(shifts, finalCount);
+					table = table.remap(shifts, finalCount);
+				}
+				checked = new CheckedCode(model, finalCount, finalHash, report, table);
+			}
+			kept = true;
+			complete = true;
+
+			finishMillis = System.currentTimeMillis() - exitTime;
+			Base.logger.fine("Post-processed " + lineCount + " lines, " + linesBeforeExit +
+					" of them while slicing; finished " + finishMillis + " ms after the slicer exited");
+			if (buildTime >= 0) {
+				Base.logger.info("Estimated build time is: " + EstimationDriver.getBuildTimeString(buildTime));
+			}
+			return exitCode;
+		} finally {
+			writer.close();
+			if (checker != null) checker.interrupt();
+			if (!kept) spool.delete();
+		}
+	}
+
+	private static Integer exitCode(Process process) {
+		try {
+			return process.exitValue();
+		} catch (IllegalThreadStateException e) {
+			return null;
+		}
+	}
+
+	/** True if the slicer output was post-processed in full */
+	public boolean isComplete() { return complete; }
+	/** Lines written, including the header but not any progress updates */
+	public int getLineCount() { return lineCount; }
+	/** Lines of slicer output that were processed before the slicer exited */
+	public int getLinesBeforeExit() { return linesBeforeExit; }
+	/** Time between the slicer exiting and the results being ready */
+	public long getFinishMillis() { return finishMillis; }
+	/** Estimated build time in milliseconds, or -1 if there was no machine to estimate for */
+	public double getEstimatedBuildTime() { return buildTime; }
+	/** The safety check results, or null if there was no machine to check against */
+	public GCodeAnalyzer.Report getReport() { return report; }
+	/** The safety check and time estimate for the finished output, or null if either is missing */
+	public CheckedCode getCheckedCode() { return checked; }
+
+	/**
+	 * Reads the output file as the slicer writes it, feeding each completed
+	 * line into the pipeline. Lines end at '\n', with any '\r' before it
+	 * dropped; an unterminated last line is only taken once the slicer exits.
+	 */
+	private class Tail {
+		private final GCodePipeline pipeline;
+		private final byte[] buffer = new byte[1 << 16];
+		private byte[] partial = new byte[256];
+		private int partialLength = 0;
+		private long bytesRead = 0;
+		private boolean seen = false;
+
+		Tail(GCodePipeline pipeline) {
+			this.pipeline = pipeline;
+		}
+
+		int run(Process process) throws IOException, InterruptedException {
+			InputStream in = null;
+			try {
+				while (true) {
+					// check before reading, so the last read sees everything
+					Integer exitCode = exitCode(process);
+					if (in == null && input.exists()) {
+						in = new FileInputStream(input);
+						seen = true;
+					}
+					int n = (in == null) ? -1 : in.read(buffer);
+					if (n > 0) {
+						split(n, exitCode == null);
+						continue;
+					}
+					if (exitCode != null) {
+						if (partialLength > 0) {
+							emit(null, 0, 0, false);
+						}
+						return exitCode;
+					}
+					Thread.sleep(POLL_MILLIS);
+				}
+			} finally {
+				if (in != null) in.close();
+			}
+		}
+
+		/** True if the file was read from start to finish as a single file */
+		boolean isIntact() {
+			return seen && input.length() == bytesRead;
+		}
+
+		private void split(int n, boolean running) throws IOException {
+			bytesRead += n;
+			int start = 0;
+			for (int i = 0; i < n; i++) {
+				if (buffer[i] == '\n') {
+					emit(buffer, start, i, running);
+					start = i + 1;
+				}
+			}
+			if (start < n) {
+				int more = n - start;
+				if (partialLength + more > partial.length) {
+					byte[] bigger = new byte[Math.max(partial.length * 2, partialLength + more)];
+					System.arraycopy(partial, 0, bigger, 0, partialLength);
+					partial = bigger;
+				}
+				System.arraycopy(buffer, start, partial, partialLength, more);
+				partialLength += more;
+			}
+		}
+
+		private void emit(byte[] bytes, int start, int end, boolean running) throws IOException {
+			String line;
+			if (partialLength == 0) {
+				if (end > start && bytes[end - 1] == '\r') end--;
+				line = new String(bytes, start, end - start);
+			} else {
+				byte[] joined = new byte[partialLength + end - start];
+				System.arraycopy(partial, 0, joined, 0, partialLength);
+				if (bytes != null) System.arraycopy(bytes, start, joined, partialLength, end - start);
+				int length = joined.length;
+				if (length > 0 && joined[length - 1] == '\r') length--;
+				line = new String(joined, 0, length);
+				partialLength = 0;
+			}
+			pipeline.feed(line);
+			if (running) linesBeforeExit++;
+		}
+	}
+
+	/** Writes each line to the spool file, and passes it on to the checker in batches. */
+	private static class TeeSink implements GCodePipeline.Sink {
+		private final Writer writer;
+		private final Checker checker;
+		private String[] batch = new String[BATCH_SIZE];
+		private int filled = 0;
+		int count = 0;
+		int hash = 0;
+
+		TeeSink(Writer writer, Checker checker) {
+			this.writer = writer;
+			this.checker = checker;
+		}
+
+		public void write(String line) throws IOException {
+			writer.write(line);
+			writer.write('\n');
+			count++;
+			hash = CheckedCode.hash(hash, line);
+			if (checker == null) return;
+			batch[filled++] = line;
+			if (filled == BATCH_SIZE) flush();
+		}
+
+		void flush() throws IOException {
+			if (checker == null || filled == 0) return;
+			String[] full = batch;
+			if (filled < BATCH_SIZE) {
+				full = new String[filled];
+				System.arraycopy(batch, 0, full, 0, filled);
+			}
+			try {
+				checker.batches.put(full);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while post-processing");
+			}
+			batch = new String[BATCH_SIZE];
+			filled = 0;
+		}
+	}
+
+	/** Runs the estimator and the safety analyzer over the lines as they are written. */
+	private static class Checker extends Thread {
+		final BlockingQueue<String[]> batches = new ArrayBlockingQueue<String[]>(64);
+		final GCodeEstimator estimator;
+		final GCodeAnalyzer.Session session;
+		GCodeAnalyzer.Report report = null;
+		BuildTimeTable table = new BuildTimeTable();
+		double buildTime = -1;
+
+		Checker(MachineModel model) {
+			super("Slicer Output Checker");
+			setDaemon(true);
+			estimator = new GCodeEstimator(model);
+			session = new GCodeAnalyzer(model).newSession();
+		}
+
+		public void run() {
+			// a failure in one shouldn't stop the other, nor block the writer
+			boolean estimating = true, analyzing = true;
+			try {
+				while (true) {
+					String[] batch = batches.take();
+					if (batch == END_OF_BATCHES) break;
+					if (estimating) {
+						try {
+							for (String line : batch) {
+								estimator.add(line);
+								table.add(estimator.getBuildTime());
+							}
+						} catch (RuntimeException e) {
+							Base.logger.log(Level.WARNING, "Could not estimate slicer output", e);
+							estimating = false;
+							table = null;
+						}
+					}
+					if (analyzing) {
+						try {
+							for (String line : batch) session.add(line);
+						} catch (RuntimeException e) {
+							Base.logger.log(Level.WARNING, "Could not check slicer output", e);
+							analyzing = false;
+						}
+					}
+				}
+				if (analyzing) report = session.finish();
+				if (estimating) buildTime = estimator.getBuildTime();
+			} catch (InterruptedException e) {
+				// abandoned
+			}
+		}
+
+		void finish() throws InterruptedException {
+			batches.put(END_OF_BATCHES);
+			join();
+		}
+	}
+
+	/**
+	 * Adds the progress updates to the spool file, noting where the lines
+	 * it puts in move the lines that were there, and hashing the result.
+	 */
+	private static class ProgressPass implements GCodePipeline.Sink {
+		private final File spool;
+		private final int headerLines;
+		final LineShifts shifts = new LineShifts();
+		private Writer writer;
+		private int lastShift = 0;
+		int count = 0;
+		int hash = 0;
+
+		ProgressPass(File spool, int headerLines) {
+			this.spool = spool;
+			this.headerLines = headerLines;
+		}
+
+		public void write(String line) throws IOException {
+			writer.write(line);
+			writer.write('\n');
+			count++;
+			hash = CheckedCode.hash(hash, line);
+		}
+
+		/**
+		 * Called with each line before the progress stage sees it, and once at
+		 * the end, when everything from the lines before has been written: any
+		 * line put in since the last call went just before the last line.
+		 */
+		private void passed(int line) {
+			int shift = count - line;
+			if (shift != lastShift) {
+				shifts.add(line - 1, shift);
+				lastShift = shift;
+			}
+		}
+
+		void run(List<String> header, GCodePipeline.Stage progress) throws IOException {
+			File temp = new File(spool.getPath() + ".tmp");
+			writer = new BufferedWriter(new FileWriter(temp), 1 << 16);
+			try {
+				GCodePipeline pipeline = new GCodePipeline(this);
+				pipeline.add(new GCodePipeline.Stage() {
+					private int line = headerLines;
+					protected void process(String text, GCodeScanner gcode, GCodePipeline.Emitter out) throws IOException {
+						passed(line++);
+						out.emit(text);
+					}
+					protected void finish(GCodePipeline.Emitter out) {
+						passed(line);
+					}
+				});
+				pipeline.add(progress);
+				for (String line : header)
+					pipeline.bypass(line);
+				pipeline.feed(new SkipLines(spool, headerLines));
+				pipeline.finish();
+			} finally {
+				writer.close();
+			}
+			FileUtils.replace(temp, spool);
+		}
+	}
+
+	/** The lines of a file after the first few. */
+	private static class SkipLines extends FileGCodeSource {
+		private final int skip;
+
+		SkipLines(File file, int skip) {
+			super(file);
+			this.skip = skip;
+		}
+
+		public Iterator<String> iterator() {
+			Iterator<String> i = super.iterator();
+			for (int n = 0; n < skip && i.hasNext(); n++) i.next();
+			return i;
+		}
+
+		public int getLineCount() {
+			return Math.max(0, super.getLineCount() - skip);
+		}
+
+		public List<String> asList() {
+			List<String> all = super.asList();
+			return all.subList(Math.min(skip, all.size()), all.size());
+		}
+	}
+}
@@ -0,0 +1,467 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+
+/**
+ * Keeps slicer processes running between jobs, so a job doesn't pay for
+ * starting an interpreter and importing the slicer every time.
+ *
+ * Each worker runs slicer_worker.py (or anything else that speaks its
+ * protocol) and handles one job at a time: the job's arguments go in on
+ * stdin, and everything it prints comes back on stdout, followed by a line
+ * with its exit code. A job is handed back as a {@link Process}, so it can
+ * be followed and logged exactly as a slicer started on its own would be.
+ *
+ * Workers are retired after a set number of jobs, to put a bound on
+ * whatever state the slicer keeps between them, and after any job that
+ * fails. Destroying a job kills its worker.
+ */
+public class SlicerWorkerPool {
+	static final String MARKER = "@@replicatorg-slicer-worker@@";
+
+	/** How long a new worker gets to import the slicer and say it's ready */
+	private static final long START_TIMEOUT_MILLIS = 60000;
+
+	/** A job running on a worker. */
+	public static class SlicerJob extends Process {
+		private final Worker worker;
+		private final PipedInputStream in;
+		private final PipedOutputStream out;
+		private Integer exitCode = null;
+
+		SlicerJob(Worker worker) throws IOException {
+			this.worker = worker;
+			// room for a burst of progress lines while nobody's reading
+			in = new PipedInputStream(1 << 16);
+			out = new PipedOutputStream(in);
+		}
+
+		void print(String line) {
+			try {
+				out.write((line + "\n").getBytes());
+			} catch (IOException e) {
+				// nobody's listening
+			}
+		}
+
+		synchronized void finish(int code) {
+			if (exitCode != null) return;
+			exitCode = code;
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			notifyAll();
+		}
+
+		@Override
+		public InputStream getInputStream() { return in; }
+
+		/** The job's errors come out with the rest of its output */
+		@Override
+		public InputStream getErrorStream() { return new ByteArrayInputStream(new byte[0]); }
+
+		/** Jobs don't read their input */
+		@Override
+		public OutputStream getOutputStream() { return new ByteArrayOutputStream(); }
+
+		@Override
+		public synchronized int waitFor() throws InterruptedException {
+			while (exitCode == null) wait();
+			return exitCode;
+		}
+
+		@Override
+		public synchronized int exitValue() {
+			if (exitCode == null) throw new IllegalThreadStateException("Slicer job still running");
+			return exitCode;
+		}
+
+		/** Kills the worker; there's no other way to stop a slicer part way through */
+		@Override
+		public void destroy() {
+			worker.kill();
+			finish(-1);
+		}
+	}
+
+	/** One slicer process, and the thread reading its output. */
+	class Worker extends Thread {
+		private final Process process;
+		private final Writer stdin;
+		private final BufferedReader stdout;
+		private boolean ready = false;
+		private boolean dead = false;
+		private SlicerJob job = null;
+		private int jobs = 0;
+
+		Worker() throws IOException {
+			super("Slicer worker");
+			setDaemon(true);
+			ProcessBuilder pb = new ProcessBuilder(command);
+			pb.directory(directory);
+			pb.redirectErrorStream(true);
+			process = pb.start();
+			stdin = new OutputStreamWriter(process.getOutputStream());
+			stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			start();
+		}
+
+		public void run() {
+			try {
+				String line;
+				while ((line = stdout.readLine()) != null) {
+					if (!line.startsWith(MARKER)) {
+						SlicerJob j = currentJob();
+						if (j != null) j.print(line);
+						else Base.logger.fine(line);
+						continue;
+					}
+					String message = line.substring(MARKER.length()).trim();
+					if (message.equals("ready")) {
+						synchronized (this) {
+							ready = true;
+							notifyAll();
+						}
+					} else if (message.startsWith("done ")) {
+						int code;
+						try {
+							code = Integer.parseInt(message.substring(5).trim());
+						} catch (NumberFormatException e) {
+							code = -1;
+						}
+						jobDone(this, code);
+					} else if (message.equals("failed")) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// the worker went away
+			}
+			kill();
+			workerDied(this);
+		}
+
+		synchronized SlicerJob currentJob() { return job; }
+
+		/** Wait until the worker has loaded the slicer. */
+		synchronized boolean awaitReady() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+			while (!ready && !dead) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) break;
+				wait(left);
+			}
+			return ready && !dead;
+		}
+
+		synchronized SlicerJob runJob(List<String> arguments) throws IOException {
+			job = new SlicerJob(this);
+			jobs++;
+			StringBuilder request = new StringBuilder();
+			request.append(MARKER).append(" run ").append(arguments.size()).append('\n');
+			for (String arg : arguments) {
+				if (arg.indexOf('\n') >= 0) throw new IOException("Slicer arguments can't span lines: " + arg);
+				request.append(arg).append('\n');
+			}
+			stdin.write(request.toString());
+			stdin.flush();
+			return job;
+		}
+
+		synchronized SlicerJob takeJob() {
+			SlicerJob j = job;
+			job = null;
+			return j;
+		}
+
+		void kill() {
+			synchronized (this) {
+				dead = true;
+				notifyAll();
+			}
+			process.destroy();
+		}
+
+		void retire() {
+			try {
+				stdin.close();
+			} catch (IOException e) {
+				process.destroy();
+			}
+		}
+	}
+
+	private static final Map<String, SlicerWorkerPool> pools = new HashMap<String, SlicerWorkerPool>();
+
+	/**
+	 * The shared pool for the given command, with a worker for each job
+	 * the {@link SlicingService} may run at once, unless the preferences say otherwise.
+	 * Workers are started in the background straight away.
+	 */
+	public static synchronized SlicerWorkerPool getPool(List<String> command, File directory) {
+		String key = command + "@" + directory;
+		SlicerWorkerPool pool = pools.get(key);
+		if (pool == null) {
+			int workers = Math.max(1, Base.preferences.getInt("replicatorg.slicer.workers",
+					SlicingService.getDefaultConcurrency()));
+			int jobsPerWorker = Math.max(1, Base.preferences.getInt("replicatorg.slicer.jobsPerWorker", 20));
+			pool = new SlicerWorkerPool(command, directory, workers, jobsPerWorker);
+			pools.put(key, pool);
+			if (pools.size() == 1) {
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() { shutdownAll(); }
+				});
+			}
+		}
+		pool.warmUp();
+		return pool;
+	}
+
+	static synchronized void shutdownAll() {
+		for (SlicerWorkerPool pool : pools.values()) pool.shutdown();
+		pools.clear();
+	}
+
+	/**
+	 * Copy a worker script from the classpath to a file, if it isn't there
+	 * already, so an interpreter can run it.
+	 * @return the file
+	 */
+	public static File installScript(String resource, File target) throws IOException {
+		InputStream in = SlicerWorkerPool.class.getResourceAsStream(resource);
+		if (in == null) throw new IOException("Missing resource " + resource);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) bytes.write(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		byte[] script = bytes.toByteArray();
+		if (target.exists() && target.length() == script.length) {
+			byte[] existing = new byte[script.length];
+			InputStream old = new java.io.FileInputStream(target);
+			try {
+				int read = 0;
+				while (read < existing.length) {
+					int n = old.read(existing, read, existing.length - read);
+					if (n < 0) break;
+					read += n;
+				}
+			} finally {
+				old.close();
+			}
+			if (Arrays.equals(existing, script)) return target;
+		}
+		target.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(target);
+		try {
+			out.write(script);
+		} finally {
+			out.close();
+		}
+		return target;
+	}
+
+	private final List<String> command;
+	private final File directory;
+	private final int maxWorkers;
+	private final int jobsPerWorker;
+
+	private final LinkedList<Worker> idle = new LinkedList<Worker>();
+	private final List<Worker> all = new ArrayList<Worker>();
+	private boolean shutdown = false;
+
+	private int workersStarted = 0;
+	private int workersFailed = 0;
+	private int jobsRun = 0;
+
+	/**
+	 * @param command starts one worker
+	 * @param directory the workers' working directory
+	 * @param maxWorkers most workers to run at once
+	 * @param jobsPerWorker jobs a worker runs before it's replaced
+	 */
+	public SlicerWorkerPool(List<String> command, File directory, int maxWorkers, int jobsPerWorker) {
+		this.command = new ArrayList<String>(command);
+		this.directory = directory;
+		this.maxWorkers = maxWorkers;
+		this.jobsPerWorker = jobsPerWorker;
+	}
+
+	/** Start a worker in the background if there's none waiting, so the next job needn't. */
+	public void warmUp() {
+		synchronized (this) {
+			if (shutdown || !idle.isEmpty() || all.size() >= maxWorkers) return;
+		}
+		new Thread("Slicer worker warm-up") {
+			public void run() {
+				Worker w = null;
+				try {
+					w = startWorker();
+				} catch (Exception e) {
+					Base.logger.log(Level.FINE, "Could not warm up a slicer worker", e);
+				}
+				if (w != null) release(w);
+			}
+		}.start();
+	}
+
+	/**
+	 * Run a job on the next free worker, starting one if there's room,
+	 * and otherwise waiting for one to finish its job.
+	 * @throws IOException if no worker could be started
+	 */
+	public SlicerJob submit(List<String> arguments) throws IOException, InterruptedException {
+		Worker w = null;
+		synchronized (this) {
+			while (w == null) {
+				if (shutdown) throw new IOException("Slicer worker pool has been shut down");
+				if (!idle.isEmpty()) {
+					w = idle.removeFirst();
+				} else if (all.size() < maxWorkers) {
+					break;
+				} else {
+					wait();
+				}
+			}
+		}
+		if (w == null) {
+			w = startWorker();
+			if (w == null) throw new IOException("Could not start a slicer worker: " + command);
+		}
+		try {
+			SlicerJob job = w.runJob(arguments);
+			synchronized (this) {
+				jobsRun++;
+			}
+			return job;
+		} catch (IOException e) {
+			w.kill();
+			throw e;
+		}
+	}
+
+	/** @return a ready worker, counted against the pool, or null if it didn't start */
+	private Worker startWorker() throws IOException, InterruptedException {
+		synchronized (this) {
+			if (shutdown || all.size() >= maxWorkers) return null;
+			all.add(null); // hold its place while it starts
+		}
+		Worker w = null;
+		try {
+			long start = System.nanoTime();
+			w = new Worker();
+			boolean ready = w.awaitReady();
+			synchronized (this) {
+				all.remove(null);
+				if (!ready) {
+					workersFailed++;
+					notifyAll();
+				} else {
+					all.add(w);
+					workersStarted++;
+				}
+			}
+			if (!ready) {
+				w.kill();
+				return null;
+			}
+			Base.logger.fine("Slicer worker ready in " + (System.nanoTime() - start) / 1000000L + "ms");
+			return w;
+		} catch (IOException e) {
+			synchronized (this) {
+				all.remove(null);
+				workersFailed++;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	private synchronized void release(Worker w) {
+		if (shutdown) {
+			w.retire();
+			return;
+		}
+		idle.addLast(w);
+		notifyAll();
+	}
+
+	private void jobDone(Worker w, int code) {
+		SlicerJob job = w.takeJob();
+		boolean retire = code != 0 || w.jobs >= jobsPerWorker;
+		if (retire) {
+			synchronized (this) {
+				all.remove(w);
+				notifyAll();
+			}
+			w.retire();
+		}
+		if (job != null) job.finish(code);
+		if (!retire) release(w);
+		else warmUp();
+	}
+
+	private void workerDied(Worker w) {
+		SlicerJob job = w.takeJob();
+		synchronized (this) {
+			all.remove(w);
+			idle.remove(w);
+			notifyAll();
+		}
+		if (job != null) {
+			Base.logger.warning("Slicer worker exited in the middle of a job");
+			job.finish(-1);
+		}
+	}
+
+	/** Stop every worker; running jobs are killed. */
+	public void shutdown() {
+		List<Worker> workers;
+		synchronized (this) {
+			shutdown = true;
+			workers = new ArrayList<Worker>(all);
+			idle.clear();
+			notifyAll();
+		}
+		for (Worker w : workers) {
+			if (w == null) continue;
+			SlicerJob job = w.currentJob();
+			if (job != null) job.destroy();
+			else w.retire();
+		}
+	}
+
+	public synchronized int getWorkerCount() {
+		int n = 0;
+		for (Worker w : all) if (w != null) n++;
+		return n;
+	}
+	public synchronized int getWorkersStarted() { return workersStarted; }
+	public synchronized int getWorkersFailed() { return workersFailed; }
+	public synchronized int getJobsRun() { return jobsRun; }
+}
@@ -0,0 +1,235 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.model.BuildCode;
+import replicatorg.model.BuildModel;
+import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
+import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorListener;
+import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorListener.Completion;
+
+/**
+ * Runs toolpath generators, as many at once as the machine has room for.
+ *
+ * Slicers are single threaded, so one at a time leaves most of a multi-core
+ * machine idle; but each also takes a good deal of memory, so running too
+ * many at once is no better. Every generator run, whether from a
+ * {@link ToolpathGeneratorThread} or handed to this service, takes one of a
+ * fixed number of slots, sized to the cores and physical memory unless the
+ * replicatorg.slicer.concurrency preference says otherwise.
+ */
+public class SlicingService {
+
+	private static SlicingService instance = null;
+
+	public static synchronized SlicingService getService() {
+		if (instance == null) instance = new SlicingService(getDefaultConcurrency());
+		return instance;
+	}
+
+	/**
+	 * One slot per core, as long as each slicer can have
+	 * replicatorg.slicer.memoryMegabytes (512 by default) of physical memory.
+	 */
+	public static int getDefaultConcurrency() {
+		int preferred = Base.preferences.getInt("replicatorg.slicer.concurrency", 0);
+		if (preferred > 0) return preferred;
+		int slots = Runtime.getRuntime().availableProcessors();
+		long perJob = Base.preferences.getInt("replicatorg.slicer.memoryMegabytes", 512) * 1024L * 1024L;
+		long memory = getPhysicalMemory();
+		if (perJob > 0 && memory > 0) slots = (int)Math.min(slots, memory / perJob);
+		return Math.max(1, slots);
+	}
+
+	/**
+	 * The machine's physical memory in bytes, or -1 if the JVM can't say.
+	 * Only some JVMs have the com.sun.management bean that knows, and newer
+	 * ones have renamed its method, so it's looked up by name.
+	 */
+	public static long getPhysicalMemory() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		try {
+			Class<?> bean = Class.forName("com.sun.management.OperatingSystemMXBean");
+			if (!bean.isInstance(os)) return -1;
+			for (String name : new String[] { "getTotalMemorySize", "getTotalPhysicalMemorySize" }) {
+				try {
+					return ((Number)bean.getMethod(name).invoke(os)).longValue();
+				} catch (NoSuchMethodException e) {
+					// try the older name
+				}
+			}
+		} catch (Exception e) {
+			Base.logger.log(Level.FINE, "Couldn't find the physical memory size", e);
+		} catch (LinkageError e) {
+			Base.logger.log(Level.FINE, "Couldn't find the physical memory size", e);
+		}
+		return -1;
+	}
+
+	private final int concurrency;
+	private final Semaphore slots;
+	private final ExecutorService executor;
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+
+	public SlicingService(int concurrency) {
+		this.concurrency = concurrency;
+		slots = new Semaphore(concurrency, true);
+		executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				// Naming the thread can ease debugging
+				Thread t = new Thread(r, "SlicingService-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public int getConcurrency() { return concurrency; }
+
+	/** The most generators that have run at once */
+	public int getPeakConcurrency() { return peak.get(); }
+
+	/**
+	 * Run a generator on a model in this thread, once a slot is free. The
+	 * generator's listeners hear about its progress, but not its completion;
+	 * that's up to the caller.
+	 * @return the code, or null if generation failed
+	 */
+	public BuildCode generate(ToolpathGenerator generator, BuildModel model) throws InterruptedException {
+		slots.acquire();
+		int now = running.incrementAndGet();
+		int max;
+		while (now > (max = peak.get()) && !peak.compareAndSet(max, now));
+		try {
+			generator.setModel(model);
+			BuildCode code = null;
+			ToolpathCache cache = ToolpathCache.getCache();
+			String cacheKey = (cache != null) ? ToolpathCache.keyFor(generator, model) : null;
+			if (cacheKey != null) {
+				code = generator.useCachedToolpath(cache, cacheKey);
+				if (code != null) {
+					Base.logger.info("Using previously generated toolpath.");
+					return code;
+				}
+			}
+			code = generator.generateToolpath();
+			if (Thread.interrupted()) throw new InterruptedException();
+			if (code != null && cacheKey != null) {
+				try {
+					cache.store(cacheKey, code.file);
+				} catch (IOException ioe) {
+					Base.logger.log(Level.WARNING, "Could not add toolpath to the cache", ioe);
+				}
+			}
+			return code;
+		} finally {
+			running.decrementAndGet();
+			slots.release();
+		}
+	}
+
+	/**
+	 * Run a generator on a model in the background. Its listeners hear
+	 * about its progress and its completion.
+	 * @return the code, or null if generation failed
+	 */
+	public Future<BuildCode> submit(final ToolpathGenerator generator, final BuildModel model) {
+		return executor.submit(new Callable<BuildCode>() {
+			public BuildCode call() throws Exception {
+				BuildCode code = null;
+				try {
+					code = generate(generator, model);
+				} catch (InterruptedException e) {
+					generator.emitCompletion(Completion.FAILURE);
+					throw e;
+				} catch (Exception e) {
+					Base.logger.log(Level.WARNING, "Toolpath generation failed", e);
+				}
+				generator.emitCompletion(code != null ? Completion.SUCCESS : Completion.FAILURE);
+				return code;
+			}
+		});
+	}
+
+	/**
+	 * Generate toolpaths for a list of models at once, each with its own
+	 * generator.
+	 *
+	 * The listener, if any, hears every generator's progress messages,
+	 * prefixed with the model's name, and a single completion once they're
+	 * all done: SUCCESS if every one succeeded.
+	 * @return one result per model, in the same order
+	 */
+	public List<Future<BuildCode>> submitAll(List<ToolpathGenerator> generators, List<BuildModel> models,
+			final GeneratorListener listener) {
+		if (generators.size() != models.size())
+			throw new IllegalArgumentException("Need one generator per model");
+		final AtomicInteger left = new AtomicInteger(models.size());
+		final AtomicInteger failed = new AtomicInteger();
+		final int total = models.size();
+		List<Future<BuildCode>> results = new ArrayList<Future<BuildCode>>(total);
+		for (int i = 0; i < total; i++) {
+			final ToolpathGenerator generator = generators.get(i);
+			final String name = new File(models.get(i).getPath()).getName();
+			final int index = i + 1;
+			if (listener != null) {
+				generator.addListener(new GeneratorListener() {
+					public void updateGenerator(GeneratorEvent evt) {
+						listener.updateGenerator(generator.new GeneratorEvent(evt.getSource(),
+								"[" + index + "/" + total + " " + name + "] " + evt.getMessage(), null));
+					}
+					public void generationComplete(GeneratorEvent evt) {
+						if (evt.getCompletion() != Completion.SUCCESS) failed.incrementAndGet();
+						int remaining = left.decrementAndGet();
+						listener.updateGenerator(generator.new GeneratorEvent(evt.getSource(),
+								"Finished " + (total - remaining) + " of " + total, null));
+						if (remaining == 0) {
+							listener.generationComplete(generator.new GeneratorEvent(SlicingService.this, null,
+									failed.get() == 0 ? Completion.SUCCESS : Completion.FAILURE));
+						}
+					}
+				});
+			}
+			results.add(submit(generator, models.get(i)));
+		}
+		return results;
+	}
+
+	/**
+	 * Wait for a batch to finish.
+	 * @return the code for each model, with null for those that failed
+	 */
+	public static List<BuildCode> await(List<Future<BuildCode>> results) throws InterruptedException {
+		List<BuildCode> codes = new ArrayList<BuildCode>(results.size());
+		for (Future<BuildCode> f : results) {
+			try {
+				codes.add(f.get());
+			} catch (ExecutionException e) {
+				codes.add(null);
+			}
+		}
+		return codes;
+	}
+
+	/** Stop taking work, and interrupt whatever is running. */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
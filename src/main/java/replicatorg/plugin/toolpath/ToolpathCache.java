@@ -0,0 +1,357 @@
+package replicatorg.plugin.toolpath;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+
+import javax.media.j3d.Transform3D;
+
+import replicatorg.app.Base;
+import replicatorg.model.BuildModel;
+import replicatorg.util.FileUtils;
+
+/**
+ * A disk cache of generated toolpaths.
+ *
+ * Entries are keyed by a digest of everything that goes into the gcode: the
+ * model file, its transform, the generator and its version, the profile, the
+ * options passed to the slicer and the post-processing settings. Regenerating
+ * an unchanged model is then just a file copy.
+ *
+ * Each entry is a gcode file plus a small properties file recording its
+ * length and digest, which is checked every time the entry is used; an entry
+ * that fails the check is thrown away and counts as a miss. The cache is kept
+ * under a size limit by dropping the least recently used entries.
+ */
+public class ToolpathCache {
+
+	/** Builds a cache key from the things that decide a generator's output. */
+	public static class Key {
+		private final MessageDigest digest = FileUtils.sha256();
+		private String value = null;
+
+		public Key add(String s) {
+			byte[] bytes;
+			try {
+				bytes = s.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				bytes = s.getBytes();
+			}
+			addLength(bytes.length);
+			digest.update(bytes);
+			return this;
+		}
+
+		public Key add(double[] values) {
+			addLength(values.length);
+			for (double v : values) {
+				long bits = Double.doubleToLongBits(v);
+				for (int i = 0; i < 8; i++) digest.update((byte)(bits >>> (i * 8)));
+			}
+			return this;
+		}
+
+		/**
+		 * Adds the contents of a file, or of every file under a directory,
+		 * skipping hidden files.
+		 */
+		public Key addFile(File file) throws IOException {
+			if (!file.exists()) {
+				add("<missing>");
+			} else if (file.isDirectory()) {
+				String[] names = file.list();
+				if (names == null) throw new IOException("Could not list " + file.getAbsolutePath());
+				Arrays.sort(names);
+				add("<dir>");
+				for (String name : names) {
+					if (name.startsWith(".")) continue;
+					add(name);
+					addFile(new File(file, name));
+				}
+				add("</dir>");
+			} else {
+				addLength(file.length());
+				InputStream in = new FileInputStream(file);
+				try {
+					byte[] buffer = new byte[1 << 16];
+					int n;
+					while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+				} finally {
+					in.close();
+				}
+			}
+			return this;
+		}
+
+		private void addLength(long length) {
+			for (int i = 0; i < 8; i++) digest.update((byte)(length >>> (i * 8)));
+		}
+
+		@Override
+		public String toString() {
+			if (value == null) value = FileUtils.hex(digest.digest());
+			return value;
+		}
+	}
+
+	private static final String GCODE = ".gcode";
+	private static final String META = ".properties";
+
+	private static ToolpathCache instance = null;
+
+	/**
+	 * @return the shared cache in the user's ReplicatorG directory, or null if
+	 * caching is turned off
+	 */
+	public static synchronized ToolpathCache getCache() {
+		if (!Base.preferences.getBoolean("replicatorg.toolpathCache.enabled", true)) return null;
+		long maxBytes = Base.preferences.getInt("replicatorg.toolpathCache.maxMegabytes", 256) * 1024L * 1024L;
+		if (instance == null) {
+			File dir = Base.getUserDir("toolpath-cache", false);
+			if (dir == null) return null;
+			instance = new ToolpathCache(dir, maxBytes);
+		}
+		instance.setMaxBytes(maxBytes);
+		return instance;
+	}
+
+	/**
+	 * Work out the cache key for running the given generator on the given model.
+	 * @return the key, or null if this generator's output can't be cached
+	 */
+	public static String keyFor(ToolpathGenerator generator, BuildModel model) {
+		try {
+			Key key = new Key();
+			key.add(generator.getClass().getName()).add(Base.VERSION_NAME);
+			if (!generator.addCacheKey(key)) return null;
+			key.addFile(new File(model.getPath()));
+			Transform3D transform = model.getTransform();
+			double[] matrix = new double[16];
+			transform.get(matrix);
+			key.add(matrix);
+			return key.toString();
+		} catch (IOException e) {
+			Base.logger.log(Level.WARNING, "Could not work out toolpath cache key", e);
+			return null;
+		}
+	}
+
+	private final File dir;
+	private long maxBytes;
+	/** key to entry size, least recently used first */
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	private int hits = 0;
+	private int misses = 0;
+	private int corrupt = 0;
+	private int stores = 0;
+	private int evictions = 0;
+
+	public ToolpathCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		dir.mkdirs();
+		load();
+	}
+
+	/** Pick up the entries already on disk, oldest first. */
+	private void load() {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		List<File> gcode = new ArrayList<File>();
+		for (File f : files) {
+			String name = f.getName();
+			if (name.endsWith(GCODE) && new File(dir, keyOf(name) + META).exists()) {
+				gcode.add(f);
+			} else if (name.endsWith(".tmp")) {
+				f.delete();
+			}
+		}
+		Collections.sort(gcode, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : (d > 0 ? 1 : 0);
+			}
+		});
+		for (File f : gcode) {
+			entries.put(keyOf(f.getName()), f.length());
+			totalBytes += f.length();
+		}
+		evict();
+	}
+
+	private static String keyOf(String fileName) {
+		return fileName.substring(0, fileName.length() - GCODE.length());
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * Copy the toolpath stored under the given key to the destination file,
+	 * checking it along the way.
+	 * @return true on a hit; false if there was no entry, or it was damaged
+	 */
+	public synchronized boolean restore(String key, File destination) {
+		if (!entries.containsKey(key)) {
+			misses++;
+			logStats("miss");
+			return false;
+		}
+		File gcode = new File(dir, key + GCODE);
+		File temp = new File(destination.getPath() + ".tmp");
+		try {
+			Properties meta = readMeta(key);
+			long length = Long.parseLong(meta.getProperty("length", "-1"));
+			String copied = copy(gcode, temp);
+			if (length != gcode.length() || !copied.equals(meta.getProperty("sha256"))) {
+				throw new IOException("checksum mismatch");
+			}
+			FileUtils.replace(temp, destination);
+		} catch (Exception e) {
+			Base.logger.log(Level.WARNING, "Discarding damaged toolpath cache entry " + key, e);
+			temp.delete();
+			remove(key);
+			corrupt++;
+			misses++;
+			logStats("miss");
+			return false;
+		}
+		// mark it as most recently used, here and on disk
+		entries.get(key);
+		gcode.setLastModified(System.currentTimeMillis());
+		hits++;
+		logStats("hit");
+		return true;
+	}
+
+	/**
+	 * Store a copy of freshly generated gcode under the given key, making room
+	 * for it if need be.
+	 */
+	public synchronized void store(String key, File gcode) throws IOException {
+		remove(key);
+		File temp = new File(dir, key + GCODE + ".tmp");
+		String sha = copy(gcode, temp);
+		Properties meta = new Properties();
+		meta.setProperty("length", Long.toString(temp.length()));
+		meta.setProperty("sha256", sha);
+		meta.setProperty("source", gcode.getName());
+		OutputStream out = new FileOutputStream(new File(dir, key + META));
+		try {
+			meta.store(out, "ReplicatorG toolpath cache entry");
+		} finally {
+			out.close();
+		}
+		File target = new File(dir, key + GCODE);
+		try {
+			FileUtils.replace(temp, target);
+		} catch (IOException e) {
+			temp.delete();
+			new File(dir, key + META).delete();
+			throw new IOException("Could not add " + target.getAbsolutePath() + " to the toolpath cache");
+		}
+		entries.put(key, target.length());
+		totalBytes += target.length();
+		stores++;
+		evict();
+	}
+
+	/** Drop everything in the cache. */
+	public synchronized void clear() {
+		for (String key : new ArrayList<String>(entries.keySet())) remove(key);
+	}
+
+	private void remove(String key) {
+		Long size = entries.remove(key);
+		if (size != null) totalBytes -= size;
+		new File(dir, key + GCODE).delete();
+		new File(dir, key + META).delete();
+	}
+
+	/** Drop least recently used entries until we're under the limit, but always keep the newest. */
+	private void evict() {
+		Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && entries.size() > 1 && i.hasNext()) {
+			Map.Entry<String, Long> eldest = i.next();
+			i.remove();
+			totalBytes -= eldest.getValue();
+			new File(dir, eldest.getKey() + GCODE).delete();
+			new File(dir, eldest.getKey() + META).delete();
+			evictions++;
+		}
+	}
+
+	private Properties readMeta(String key) throws IOException {
+		Properties meta = new Properties();
+		InputStream in = new FileInputStream(new File(dir, key + META));
+		try {
+			meta.load(in);
+		} finally {
+			in.close();
+		}
+		return meta;
+	}
+
+	/** Copy a file, returning the SHA-256 of its contents. */
+	private static String copy(File from, File to) throws IOException {
+		MessageDigest digest = FileUtils.sha256();
+		InputStream in = new BufferedInputStream(new FileInputStream(from));
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(to));
+			try {
+				byte[] buffer = new byte[1 << 16];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					digest.update(buffer, 0, n);
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return FileUtils.hex(digest.digest());
+	}
+
+	private void logStats(String what) {
+		Base.logger.fine("Toolpath cache " + what + "; " + this);
+	}
+
+	public synchronized int getHits() { return hits; }
+	public synchronized int getMisses() { return misses; }
+	/** Entries thrown away because they failed their integrity check */
+	public synchronized int getCorruptCount() { return corrupt; }
+	public synchronized int getStoreCount() { return stores; }
+	public synchronized int getEvictionCount() { return evictions; }
+	public synchronized int getEntryCount() { return entries.size(); }
+	public synchronized long getTotalBytes() { return totalBytes; }
+
+	@Override
+	public synchronized String toString() {
+		return hits + " hits, " + misses + " misses (" + corrupt + " damaged), " +
+			stores + " stored, " + evictions + " evicted, " +
+			entries.size() + " entries using " + (totalBytes / 1024) + "kB";
+	}
+}
@@ -2,12 +2,17 @@ package replicatorg.plugin.toolpath;
 
 import replicatorg.app.Base;
 import java.awt.Frame;
+import java.io.File;
+import java.io.IOException;
 import java.util.EventObject;
 import java.util.LinkedList;
 
+import replicatorg.machine.MachineInterface;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildModel;
 import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorListener.Completion;
+import replicatorg.util.FileUtils;
 
 /**
  * This is the abstract base class which describes a toolpath plugin.
@@ -50,6 +55,10 @@ public abstract class ToolpathGenerator {
 	
 	protected BuildModel model;
 	protected LinkedList<GeneratorListener> listeners = new LinkedList<GeneratorListener>();
+	protected SlicerOutputFollower follower = null;
+	private File targetOutput = null;
+	private File slicerOutput = null;
+	private File oldOutput = null;
 	
 	public void addListener(GeneratorListener listener) {
 		listeners.add(listener);
@@ -96,6 +105,157 @@ public abstract class ToolpathGenerator {
 	public abstract BuildCode generateToolpath();
 	//should return a cached toolpath
 	public abstract BuildCode getGeneratedToolpath();
+	protected abstract void setGeneratedToolpath(BuildCode code);
+	
+	/**
+	 * Adds everything besides the model itself that decides what this
+	 * generator produces (profile, options, post-processing) to a toolpath
+	 * cache key.
+	 * @return false if this generator's output can't be cached
+	 */
+	protected boolean addCacheKey(ToolpathCache.Key key) throws IOException {
+		return false;
+	}
+	
+	/** The file the gcode for the current model will be written to */
+	public File getOutputFile() {
+		String path = model.getPath();
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		return new File(root + ".gcode");
+	}
+	
+	/**
+	 * Takes the toolpath from the cache, instead of generating it.
+	 * @return the code, or null if the cache didn't have it
+	 */
+	public BuildCode useCachedToolpath(ToolpathCache cache, String key) {
+		File file = getOutputFile();
+		if (!cache.restore(key, file))
+			return null;
+		String path = file.getPath();
+		BuildCode code = new BuildCode(path.substring(0, path.length() - ".gcode".length()), file);
+		setGeneratedToolpath(code);
+		follower = null;
+		return code;
+	}
+	
+	/**
+	 * True if slicer output should be post-processed while the slicer is
+	 * still running, rather than once it has finished.
+	 */
+	public static boolean isStreamingOutput() {
+		return Base.preferences.getBoolean("replicatorg.generator.streamOutput", true);
+	}
+	
+	/**
+	 * Call before starting a slicer that can be told where to write. When
+	 * streaming, the slicer writes to a temporary file next to the output,
+	 * which is followed as it grows and only replaces the output once the
+	 * slicer has succeeded, so a failed run leaves any old output in place.
+	 * @param plan the post-processing to do, or null for none
+	 * @return the file the slicer should write
+	 */
+	protected File prepareOutput(File outputFile, PostProcessingPlan plan) {
+		follower = null;
+		targetOutput = outputFile;
+		slicerOutput = outputFile;
+		oldOutput = null;
+		if (plan == null || !isStreamingOutput())
+			return slicerOutput;
+		slicerOutput = new File(outputFile.getPath() + ".slicing.tmp");
+		slicerOutput.delete();
+		follower = new SlicerOutputFollower(slicerOutput, outputFile, plan, getMachineModel());
+		return slicerOutput;
+	}
+	
+	/**
+	 * Call before starting a slicer that picks its own output file. When
+	 * streaming, any old output is moved aside, so it can't be mistaken for
+	 * the new, and put back if the slicer fails.
+	 * @param plan the post-processing to do, or null for none
+	 */
+	protected void prepareFixedOutput(File outputFile, PostProcessingPlan plan) {
+		follower = null;
+		targetOutput = outputFile;
+		slicerOutput = outputFile;
+		oldOutput = null;
+		if (plan == null || !isStreamingOutput())
+			return;
+		if (outputFile.exists()) {
+			oldOutput = new File(outputFile.getPath() + ".old.tmp");
+			try {
+				FileUtils.replace(outputFile, oldOutput);
+			} catch (IOException e) {
+				Base.logger.warning("Could not move aside old output " + outputFile.getAbsolutePath());
+				oldOutput = null;
+				return;
+			}
+		}
+		follower = new SlicerOutputFollower(outputFile, plan, getMachineModel());
+	}
+	
+	private static MachineModel getMachineModel() {
+		MachineInterface machine = Base.getMachineLoader().getMachineInterface();
+		return machine == null ? null : machine.getModel();
+	}
+	
+	/**
+	 * Waits for the slicer to exit, post-processing its output along the way
+	 * if {@link #prepareOutput(File, PostProcessingPlan)} set that up. The
+	 * output is only replaced if the slicer exits with 0.
+	 * @return the slicer's exit code
+	 */
+	protected int waitForSlicer(Process process) throws IOException, InterruptedException {
+		boolean kept = false;
+		try {
+			int exitCode = follower == null ? process.waitFor() : follower.follow(process);
+			if (exitCode == 0) {
+				keepOutput();
+				kept = true;
+			}
+			return exitCode;
+		} finally {
+			if (!kept)
+				discardOutput();
+		}
+	}
+	
+	private void keepOutput() throws IOException {
+		if (slicerOutput != targetOutput) {
+			if (isPostProcessed())
+				slicerOutput.delete();
+			else
+				FileUtils.replace(slicerOutput, targetOutput);
+		}
+		if (oldOutput != null)
+			oldOutput.delete();
+	}
+	
+	private void discardOutput() {
+		if (slicerOutput != targetOutput)
+			slicerOutput.delete();
+		if (oldOutput != null) {
+			try {
+				FileUtils.replace(oldOutput, targetOutput);
+			} catch (IOException e) {
+				Base.logger.warning("Could not restore old output " + targetOutput.getAbsolutePath());
+			}
+		}
+	}
+	
+	/** True if the output was already post-processed while the slicer ran */
+	protected boolean isPostProcessed() {
+		return follower != null && follower.isComplete();
+	}
+	
+	/**
+	 * @return the follower for the last run, holding its estimate and safety
+	 * check results, or null if the output wasn't streamed
+	 */
+	public SlicerOutputFollower getOutputFollower() {
+		return follower;
+	}
 	
 	public void emitUpdate(String message) {
 		for (GeneratorListener listener : listeners) {
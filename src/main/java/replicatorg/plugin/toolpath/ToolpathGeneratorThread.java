@@ -1,7 +1,6 @@
 package replicatorg.plugin.toolpath;
 
 import java.awt.Frame;
-import java.util.logging.Level;
 
 import javax.swing.SwingUtilities;
 
@@ -122,7 +121,7 @@ public class ToolpathGeneratorThread extends Thread {
 		Base.logger.info("Beginning toolpath generation.");
 
 		try {
-			BuildCode code = generator.generateToolpath();
+			BuildCode code = SlicingService.getService().generate(generator, build.getModel());
 			//Base.logger.severe("Toolpath generation POST generateToolpath!");
 			if (code != null) {
 				build.reloadCode();
@@ -32,6 +32,7 @@ import replicatorg.app.util.PythonUtils;
 import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
+import replicatorg.plugin.toolpath.ToolpathCache;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 
 
@@ -573,6 +574,35 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 		return postprocess;
 	}
 	
+	/** The command line options for the slicer, from the current preferences */
+	private List<String> getOptionArguments() {
+		List<String> arguments = new LinkedList<String>();
+		for (MiracleGruePreference preference : getPreferences()) {
+			List<MiracleGrueOption> options = preference.getOptions();
+			if (options != null) {
+				for (MiracleGrueOption option : options) {
+					arguments.add(option.getParameter());
+					String arg = option.getArgument();
+					if (arg.length() > 0) arguments.add(arg);
+				}
+			}
+		}
+		return arguments;
+	}
+	
+	@Override
+	protected boolean addCacheKey(ToolpathCache.Key key) throws IOException {
+		if (profile == null)
+			return false;
+		key.add(getMiracleGrueDir().getPath());
+		key.addFile(new File(profile));
+		for (String arg : getOptionArguments())
+			key.add(arg);
+		if (postprocess != null)
+			postprocess.getPostProcessingPlan().addTo(key);
+		return true;
+	}
+	
 	public BuildCode generateToolpath() {
 		
 		String path = model.getPath();
@@ -584,6 +614,8 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 		int split = path.lastIndexOf('.');
 		String root2 = (split >= 0) ? path.substring(0, split) : path;
 		String outFilename= root2 + ".gcode";
+		String slicerOutput = prepareOutput(new File(outFilename),
+				postprocess == null ? null : postprocess.getPostProcessingPlan()).getPath();
 
 		
 		if (Base.isWindows())
@@ -591,14 +623,14 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 			baseArguments = new String[]{ 
 					getMiracleGrueDir()+"\\miracle_grue.exe",
 					"-c", profile, 
-					"-o", outFilename};
+					"-o", slicerOutput};
 		}
 		else
 		{
 			baseArguments = new String[]{ 
 					getMiracleGrueDir()+"/miracle_grue",
 					"-c", profile, 
-					"-o", outFilename, 
+					"-o", slicerOutput, 
 					//"-s", startGCodeFilename,//doing this in java post processor
 					//"-e", endGCodeFilename, //doing this in java post processor
 					
@@ -607,16 +639,7 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 		for (String arg : baseArguments) {
 			arguments.add(arg);
 		}
-		for (MiracleGruePreference preference : getPreferences()) {
-			List<MiracleGrueOption> options = preference.getOptions();
-			if (options != null) {
-				for (MiracleGrueOption option : options) {
-					arguments.add(option.getParameter());
-					String arg = option.getArgument();
-					if (arg.length() > 0) arguments.add(arg);
-				}
-			}
-		}
+		arguments.addAll(getOptionArguments());
 		arguments.add(path);
 
 //		for(String a : arguments) 
@@ -642,7 +665,7 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 			ist.start();
 			est.start();
 
-			int value = process.waitFor();
+			int value = waitForSlicer(process);
 			if (value != 0) {
 				Base.logger.info(
 						"Unrecognized error code returned by MiracleGrue.");
@@ -669,12 +692,10 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 			
 			return null;
 		}
-		int lastIdx = path.lastIndexOf('.');
-		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
-		output = new BuildCode(root, new File(root + ".gcode"));
+		output = new BuildCode(root2, new File(outFilename));
 		Base.logger.log(Level.FINER, "pre-post-processor");
 		
-		if(postprocess != null)
+		if(postprocess != null && !isPostProcessed())
 		{
 			/// settings for this are set in MainWindow, oddly
 			postprocess.runPostProcessing();
@@ -688,4 +709,9 @@ public abstract class MiracleGrueGenerator extends ToolpathGenerator {
 	{
 		return output;
 	}
+	
+	protected void setGeneratedToolpath(BuildCode code)
+	{
+		output = code;
+	}
 }
@@ -32,6 +32,8 @@ import replicatorg.app.util.PythonUtils;
 import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
+import replicatorg.plugin.toolpath.SlicerWorkerPool;
+import replicatorg.plugin.toolpath.ToolpathCache;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 
 public abstract class SkeinforgeGenerator extends ToolpathGenerator {
@@ -573,17 +575,9 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 		return postprocess;
 	}
 	
-	public BuildCode generateToolpath() {
-		String path = model.getPath();
-
+	/** The command line options for the slicer, from the current preferences */
+	private List<String> getOptionArguments() {
 		List<String> arguments = new LinkedList<String>();
-		// The -u makes python output unbuffered. Oh joyous day.
-		String[] baseArguments = { PythonUtils.getPythonPath(), "-u",
-				"skeinforge.py", "-p", profile };
-		for (String arg : baseArguments) {
-			arguments.add(arg);
-		}
-
 		for (SkeinforgePreference preference : getPreferences()) {
 			List<SkeinforgeOption> options = preference.getOptions(displayName);
 			if (options != null) {
@@ -594,14 +588,64 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 				}
 			}
 		}
-		
-		arguments.add(path);
-		for(String a : arguments) System.out.println(a);
-		ProcessBuilder pb = new ProcessBuilder(arguments);
+		return arguments;
+	}
+	
+	@Override
+	protected boolean addCacheKey(ToolpathCache.Key key) throws IOException {
+		if (profile == null)
+			return false;
+		key.add(getSkeinforgeDir().getPath());
+		key.addFile(new File(profile));
+		for (String arg : getOptionArguments())
+			key.add(arg);
+		if (postprocess != null)
+			postprocess.getPostProcessingPlan().addTo(key);
+		return true;
+	}
+	
+	/**
+	 * Start skeinforge on the given arguments, on a warm worker if we can,
+	 * and otherwise in a python of its own.
+	 */
+	private Process startSkeinforge(List<String> arguments) throws IOException, InterruptedException {
+		String python = PythonUtils.getPythonPath();
+		if (Base.preferences.getBoolean("replicatorg.slicer.useWorkers", true)) {
+			try {
+				File script = SlicerWorkerPool.installScript("/replicatorg/plugin/toolpath/slicer_worker.py",
+						Base.getUserFile("slicer_worker.py", false));
+				// The -u makes python output unbuffered. Oh joyous day.
+				List<String> command = Arrays.asList(python, "-u", script.getAbsolutePath(), "skeinforge");
+				return SlicerWorkerPool.getPool(command, getSkeinforgeDir()).submit(arguments);
+			} catch (IOException ioe) {
+				Base.logger.log(Level.INFO, "No slicer worker available; starting skeinforge on its own.", ioe);
+			}
+		}
+		List<String> command = new LinkedList<String>();
+		command.add(python);
+		command.add("-u");
+		command.add("skeinforge.py");
+		command.addAll(arguments);
+		ProcessBuilder pb = new ProcessBuilder(command);
 		pb.directory(getSkeinforgeDir());
+		return pb.start();
+	}
+
+	public BuildCode generateToolpath() {
+		String path = model.getPath();
+
+		List<String> arguments = new LinkedList<String>();
+		arguments.add("-p");
+		arguments.add(profile);
+		arguments.addAll(getOptionArguments());
+		arguments.add(path);
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		prepareFixedOutput(new File(root + ".gcode"),
+				postprocess == null ? null : postprocess.getPostProcessingPlan());
 		Process process = null;
 		try {
-			process = pb.start();
+			process = startSkeinforge(arguments);
 			StreamLoggerThread ist = new StreamLoggerThread(
 					process.getInputStream()) {
 				@Override
@@ -616,7 +660,7 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 			ist.setDefaultLevel(Level.FINE);
 			ist.start();
 			est.start();
-			int value = process.waitFor();
+			int value = waitForSlicer(process);
 			if (value != 0) {
 				Base.logger
 						.severe("Unrecognized error code returned by Skeinforge.");
@@ -636,11 +680,9 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 			}
 			return null;
 		}
-		int lastIdx = path.lastIndexOf('.');
-		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
 		output = new BuildCode(root, new File(root + ".gcode"));
 		
-		if(postprocess != null)
+		if(postprocess != null && !isPostProcessed())
 			postprocess.runPostProcessing();
 		
 		return output;
@@ -650,4 +692,9 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 	{
 		return output;
 	}
+	
+	protected void setGeneratedToolpath(BuildCode code)
+	{
+		output = code;
+	}
 }
@@ -3,13 +3,15 @@ package replicatorg.plugin.toolpath.skeinforge;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -23,11 +25,15 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeTransforms;
+import replicatorg.app.gcode.IslandReorderer;
 import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
 import replicatorg.model.GCodeSource;
+import replicatorg.plugin.toolpath.PostProcessingPlan;
 import replicatorg.plugin.toolpath.skeinforge.SkeinforgeGenerator.SkeinforgeBooleanPreference;
 import replicatorg.plugin.toolpath.skeinforge.SkeinforgeGenerator.SkeinforgeOption;
 import replicatorg.plugin.toolpath.skeinforge.SkeinforgeGenerator.SkeinforgePreference;
@@ -129,8 +135,6 @@ public class SkeinforgePostProcessor {
 	
 	private final SkeinforgeGenerator generator;
 	
-	private MutableGCodeSource source;
-	
 	// options:
 	private MutableGCodeSource startCode = null;
 	private MutableGCodeSource endCode = null;
@@ -142,6 +146,8 @@ public class SkeinforgePostProcessor {
 	private boolean prependMetaInfo = false;
 	private boolean multiHead = false;
 	private boolean addProgressUpdates = false;
+	private boolean reorderIslands = false;
+	private MachineModel machineModel = null;
 	private PostProcessorPreference ppp;
 	
 	public SkeinforgePostProcessor(SkeinforgeGenerator generator)
@@ -159,50 +165,68 @@ public class SkeinforgePostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		long startTime = System.currentTimeMillis();
+		File gcodeFile = generator.output.file;
+
+		try {
+			getPostProcessingPlan().rewrite(gcodeFile);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not write post-processed gcode to " + gcodeFile.getAbsolutePath(), e);
+		}
+		Base.logger.fine("Post-processing took " + (System.currentTimeMillis() - startTime) + " ms");
+		
+		return generator.output;
+	}
+	
+	/**
+	 * Works out what post-processing the current settings call for, without
+	 * touching any file. The generator uses this directly when it post-processes
+	 * the slicer output as it is written.
+	 */
+	protected PostProcessingPlan getPostProcessingPlan()
+	{
+		PostProcessingPlan plan = new PostProcessingPlan();
+
+		if(!dualstruding && prependStart && startCode != null)
+		{
+			MutableGCodeSource start = new MutableGCodeSource();
+			prependAndModifyStartCode(start, startCode);
+			plan.addBefore(start);
+		}
+		if(!dualstruding && appendEnd && endCode != null)
+			plan.addAfter(endCode);
 		
 		if( ! dualstruding )
 		{
-			if(prependStart)
-				runPrependStartCode();
-			if(appendEnd)
-				runAppend(endCode);
-
 			if( !multiHead )
 				toolheadTarget = ToolheadAlias.SINGLE; 
 		
 			if(toolheadTarget != null)
-				runToolheadSwap(toolheadTarget);
+				plan.addStage(new GCodeTransforms.ToolheadSwap(toolheadTarget));
 		}
 		
+		// shorten the travel between islands in each layer
+		if(reorderIslands)
+			plan.addStage(new IslandReorderer(machineModel));
 		
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
-		{
-			source.addProgressUpdates();
-		}
+			plan.setProgress(PostProcessingPlan.Progress.LINES);
 		
 		if(prependMetaInfo)
 		{
-			MutableGCodeSource metaInfo = new MutableGCodeSource();
 			String curDate = getPrettyPrintDate();
 			String machineName = (machineType != null ? machineType.getName() : "CNC Machine");
-			//metaInfo.add("(** UUID: " + UUID.randomUUID().toString() + " **)");
-			metaInfo.add("(** This GCode was generated by ReplicatorG "+Base.VERSION_NAME+" **)");
+			//plan.addHeader("(** UUID: " + UUID.randomUUID().toString() + " **)");
+			plan.addHeader("(** This GCode was generated by ReplicatorG "+Base.VERSION_NAME+" **)");
 			//TRICKY: calling a static method on an instance of a class is considered bad practice,
 			//				but I'm not sure how to access displayName without it
-			metaInfo.add("(*  using "+generator.displayName+"  *)");
-			metaInfo.add("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
-			metaInfo.add("(*  on "+ curDate + " *)");
-			
-			runPrepend(metaInfo);
+			plan.addHeader("(*  using "+generator.displayName+"  *)");
+			plan.addHeader("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
+			plan.addHeader("(*  on "+ curDate + " *)");
 		}
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
-		
-		return generator.output;
+		return plan;
 	}
 	
 	private String getPrettyPrintDate() {
@@ -213,24 +237,6 @@ public class SkeinforgePostProcessor {
 	}
 	   
 	
-	/**
-	 * switches all toolhead specific code to the target toolhead
-	 * @param switchTo
-	 */
-	private void runToolheadSwap(ToolheadAlias switchTo)
-	{
-		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
-	}
-	
-	/**
-	 * prepends start code to the file, this may modify some  start code data based on settings.
-	 */
-	private void runPrependStartCode()
-	{
-		prependAndModifyStartCode(source, startCode);
-	}
-
 	/**
 	 * prepends start code to the file, this may modify some start code data based on settings.
 	 * @param sourceGCode code to append start to
@@ -267,26 +273,6 @@ public class SkeinforgePostProcessor {
 		
 	}
 		
-	/**
-	 * prepends code in the passed file to the source file
-	 * @param newCode
-	 */
-	private void runPrepend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(0, newCode);
-	}
-	
-	/**
-	 * appends code to the file
-	 * @param newCode
-	 */
-	private void runAppend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(newCode);
-	}
-	
 	/**
 	 * indicates that the code will be used as part of a dualstrusion print
 	 * implies a variety of things, supplies a special UI for the ConfigurationDialog
@@ -352,16 +338,7 @@ public class SkeinforgePostProcessor {
 	 * removes all lines that are skeinforge tag comments, but not layer tags.
 	 */
 	static public void stripNonLayerTagComments(MutableGCodeSource source) {
-		String line;
-		for(Iterator<String> i = source.iterator(); i.hasNext();)
-		{
-			line = i.next();
-			
-			if(line.startsWith("(<") &&	!(line.startsWith("(<layer>") || line.startsWith("(</layer")))
-			{
-				i.remove();
-			}
-		}
+		source.transform(new GCodeTransforms.StripNonLayerTags());
 	}
 	
 	/**
@@ -446,6 +423,16 @@ public class SkeinforgePostProcessor {
 		multiHead = isMulti;
 		ppp.refreshPreferences();
 	}
+	/**
+	 * toggles reordering the islands within each layer to cut down on travel
+	 * @param doReorder
+	 * @param model the machine to estimate the time saved on, or null
+	 */
+	public void setReorderIslands(boolean doReorder, MachineModel model)
+	{
+		reorderIslands = doReorder;
+		machineModel = model;
+	}
 	/**
 	 * toggles the addition of build % messages, displayable on The Replicator
 	 * @param doAdd
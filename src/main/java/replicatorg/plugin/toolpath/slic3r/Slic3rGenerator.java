@@ -32,6 +32,7 @@ import replicatorg.app.util.PythonUtils;
 import replicatorg.app.util.StreamLoggerThread;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
+import replicatorg.plugin.toolpath.ToolpathCache;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 
 public abstract class Slic3rGenerator extends ToolpathGenerator {
@@ -563,6 +564,35 @@ public abstract class Slic3rGenerator extends ToolpathGenerator {
 		return postprocess;
 	}
 	
+	/** The command line options for the slicer, from the current preferences */
+	private List<String> getOptionArguments() {
+		List<String> arguments = new LinkedList<String>();
+		for (Slic3rPreference preference : getPreferences()) {
+			List<Slic3rOption> options = preference.getOptions();
+			if (options != null) {
+				for (Slic3rOption option : options) {
+					arguments.add(option.getParameter());
+					String arg = option.getArgument();
+					if (arg.length() > 0) arguments.add(arg);
+				}
+			}
+		}
+		return arguments;
+	}
+	
+	@Override
+	protected boolean addCacheKey(ToolpathCache.Key key) throws IOException {
+		if (profile == null)
+			return false;
+		key.add(getSlic3rDir().getPath());
+		key.addFile(new File(profile));
+		for (String arg : getOptionArguments())
+			key.add(arg);
+		if (postprocess != null)
+			postprocess.getPostProcessingPlan().addTo(key);
+		return true;
+	}
+	
 	public BuildCode generateToolpath() {
 		String path = model.getPath();
 
@@ -583,16 +613,13 @@ public abstract class Slic3rGenerator extends ToolpathGenerator {
 		for (String arg : baseArguments) {
 			arguments.add(arg);
 		}
-		for (Slic3rPreference preference : getPreferences()) {
-			List<Slic3rOption> options = preference.getOptions();
-			if (options != null) {
-				for (Slic3rOption option : options) {
-					arguments.add(option.getParameter());
-					String arg = option.getArgument();
-					if (arg.length() > 0) arguments.add(arg);
-				}
-			}
-		}
+		arguments.addAll(getOptionArguments());
+		int lastIdx = path.lastIndexOf('.');
+		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
+		File slicerOutput = prepareOutput(new File(root + ".gcode"),
+				postprocess == null ? null : postprocess.getPostProcessingPlan());
+		arguments.add("--output");
+		arguments.add(slicerOutput.getPath());
 		arguments.add(path);
 for(String a : arguments) System.out.println(a);
 		ProcessBuilder pb = new ProcessBuilder(arguments);
@@ -614,7 +641,7 @@ for(String a : arguments) System.out.println(a);
 			ist.setDefaultLevel(Level.FINE);
 			ist.start();
 			est.start();
-			int value = process.waitFor();
+			int value = waitForSlicer(process);
 			if (value != 0) {
 				Base.logger
 						.severe("Unrecognized error code returned by Slic3r.");
@@ -634,11 +661,9 @@ for(String a : arguments) System.out.println(a);
 			}
 			return null;
 		}
-		int lastIdx = path.lastIndexOf('.');
-		String root = (lastIdx >= 0) ? path.substring(0, lastIdx) : path;
 		output = new BuildCode(root, new File(root + ".gcode"));
 		
-		if(postprocess != null)
+		if(postprocess != null && !isPostProcessed())
 		{
 			Base.logger.log(Level.FINER, "pre-post-processor");
 			postprocess.runPostProcessing();
@@ -652,4 +677,9 @@ for(String a : arguments) System.out.println(a);
 	{
 		return output;
 	}
+	
+	protected void setGeneratedToolpath(BuildCode code)
+	{
+		output = code;
+	}
 }
@@ -3,12 +3,15 @@ package replicatorg.plugin.toolpath.slic3r;
 import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.logging.Level;
 
 import javax.swing.BorderFactory;
 import javax.swing.DefaultComboBoxModel;
@@ -20,11 +23,15 @@ import javax.swing.JPanel;
 
 import net.miginfocom.swing.MigLayout;
 import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeTransforms;
+import replicatorg.app.gcode.IslandReorderer;
 import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.MachineType;
 import replicatorg.machine.model.ToolheadAlias;
 import replicatorg.model.BuildCode;
 import replicatorg.model.GCodeSource;
+import replicatorg.plugin.toolpath.PostProcessingPlan;
 import replicatorg.plugin.toolpath.slic3r.Slic3rGenerator.Slic3rBooleanPreference;
 import replicatorg.plugin.toolpath.slic3r.Slic3rGenerator.Slic3rOption;
 import replicatorg.plugin.toolpath.slic3r.Slic3rGenerator.Slic3rPreference;
@@ -126,8 +133,6 @@ public class Slic3rPostProcessor {
 	
 	private final Slic3rGenerator generator;
 	
-	private MutableGCodeSource source;
-	
 	// options:
 	private MutableGCodeSource startCode = null;
 	private MutableGCodeSource endCode = null;
@@ -139,6 +144,8 @@ public class Slic3rPostProcessor {
 	private boolean prependMetaInfo = false;
 	private boolean multiHead = false;
 	private boolean addProgressUpdates = true;
+	private boolean reorderIslands = false;
+	private MachineModel machineModel = null;
 	private PostProcessorPreference ppp;
 	
 	public Slic3rPostProcessor(Slic3rGenerator generator)
@@ -156,53 +163,70 @@ public class Slic3rPostProcessor {
 	 */
 	protected BuildCode runPostProcessing()
 	{
-		// Load our code to a source iterator
-		source = new MutableGCodeSource(generator.output.file);
+		long startTime = System.currentTimeMillis();
+		File gcodeFile = generator.output.file;
+
+		try {
+			getPostProcessingPlan().rewrite(gcodeFile);
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not write post-processed gcode to " + gcodeFile.getAbsolutePath(), e);
+		}
+		Base.logger.fine("Post-processing took " + (System.currentTimeMillis() - startTime) + " ms");
 		
-		if(!dualstruding)
-		{
-			if(prependStart)
-				runPrepend(startCode);
-			if(appendEnd)
-				runAppend(endCode);
+		return generator.output;
+	}
+	
+	/**
+	 * Works out what post-processing the current settings call for, without
+	 * touching any file. The generator uses this directly when it post-processes
+	 * the slicer output as it is written.
+	 */
+	protected PostProcessingPlan getPostProcessingPlan()
+	{
+		PostProcessingPlan plan = new PostProcessingPlan();
 
+		if(!dualstruding && prependStart && startCode != null)
+		{
+			plan.addBefore(startCode);
+		}
+		if(!dualstruding && appendEnd && endCode != null)
+			plan.addAfter(endCode);
+		
+		if( ! dualstruding )
+		{
 			if( !multiHead )
 				toolheadTarget = ToolheadAlias.SINGLE; 
 		
 			if(toolheadTarget != null)
-				runToolheadSwap(toolheadTarget);
+				plan.addStage(new GCodeTransforms.ToolheadSwap(toolheadTarget));
 		}
 		
+		// shorten the travel between islands in each layer
+		if(reorderIslands)
+			plan.addStage(new IslandReorderer(machineModel));
+		
 		// these display the build % on The Replicator
 		if(addProgressUpdates)
-		{
-			source.addSlic3rProgressUpdates();
-		}
+			plan.setProgress(PostProcessingPlan.Progress.LAYERS);
 		
 		if(prependMetaInfo)
 		{
-			MutableGCodeSource metaInfo = new MutableGCodeSource();
 			String curDate = getPrettyPrintDate();
 			String machineName = (machineType != null ? machineType.getName() : "CNC Machine");
-			//metaInfo.add("(** UUID: " + UUID.randomUUID().toString() + " **)");
-			metaInfo.add("(** This GCode was generated by ReplicatorG "+Base.VERSION_NAME+" **)");
+			//plan.addHeader("(** UUID: " + UUID.randomUUID().toString() + " **)");
+			plan.addHeader("(** This GCode was generated by ReplicatorG "+Base.VERSION_NAME+" **)");
 			//TRICKY: calling a static method on an instance of a class is considered bad practice,
 			//				but I'm not sure how to access displayName without it
-			metaInfo.add("(*  using "+generator.displayName+"  *)");
-			metaInfo.add("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
-			metaInfo.add("(*  on "+ curDate + " *)");
-			
-			runPrepend(metaInfo);
+			plan.addHeader("(*  using "+generator.displayName+"  *)");
+			plan.addHeader("(*  for a "+(multiHead?"Dual headed ":"Single headed ")+machineName+"  *)");
+			plan.addHeader("(*  on "+ curDate + " *)");
 		}
 		
 		// scans to cool unused head if required
 //		if( multiHead )	
 //			source.coolUnusedToolhead();
 		
-		//Write the modified source back to our file
-		source.writeToFile(generator.output.file);
-		
-		return generator.output;
+		return plan;
 	}
 	
 	private String getPrettyPrintDate() {
@@ -212,36 +236,6 @@ public class Slic3rPostProcessor {
 		return dateFormat.format(date);
 	}
 		   
-	/**
-	 * switches all toolhead specific code to the target toolhead
-	 * @param switchTo
-	 */
-	private void runToolheadSwap(ToolheadAlias switchTo)
-	{
-		System.out.println("runToolheadSwap");
-		source.changeToolhead(switchTo);
-	}
-	
-	/**
-	 * prepends code to the file
-	 * @param newCode
-	 */
-	private void runPrepend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(0, newCode);
-	}
-	
-	/**
-	 * appends code to the file
-	 * @param newCode
-	 */
-	private void runAppend(GCodeSource newCode)
-	{
-		if(newCode != null)
-			source.add(newCode);
-	}
-	
 	/**
 	 * indicates that the code will be used as part of a dualstrusion print
 	 * implies a variety of things, supplies a special UI for the ConfigurationDialog
@@ -385,6 +379,16 @@ public class Slic3rPostProcessor {
 		multiHead = isMulti;
 		ppp.refreshPreferences();
 	}
+	/**
+	 * toggles reordering the islands within each layer to cut down on travel
+	 * @param doReorder
+	 * @param model the machine to estimate the time saved on, or null
+	 */
+	public void setReorderIslands(boolean doReorder, MachineModel model)
+	{
+		reorderIslands = doReorder;
+		machineModel = model;
+	}
 	/**
 	 * toggles the addition of build % messages, displayable on The Replicator
 	 * @param doAdd
@@ -0,0 +1,63 @@
+package replicatorg.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * File handling shared by the caches and indexes that write files beside
+ * the user's: replacing a file with a freshly written one, and hashing.
+ */
+public class FileUtils {
+
+	private FileUtils() {}
+
+	/**
+	 * Move a file over another, replacing it if it exists.
+	 * @throws IOException if the file couldn't be moved; it is left where it was
+	 */
+	public static void replace(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			// Windows won't rename over an existing file
+			if (!to.delete() || !from.renameTo(to)) {
+				throw new IOException("Could not replace " + to.getAbsolutePath());
+			}
+		}
+	}
+
+	public static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform is required to have SHA-256
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** The SHA-256 of a file's contents */
+	public static byte[] sha256(File f) throws IOException {
+		MessageDigest digest = sha256();
+		InputStream in = new FileInputStream(f);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) digest.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	/** Lower case hex, two digits a byte */
+	public static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -26,6 +26,18 @@ public class Point5d {
 		System.arraycopy(p.values,0,values,0,DIMENSIONS);
 	}
 	
+	/** Copy every axis of the given point into this one. */
+	public void set(Point5d p) {
+		System.arraycopy(p.values,0,values,0,DIMENSIONS);
+	}
+
+	/** Set every axis to zero. */
+	public void clear() {
+		for (int idx = 0; idx < DIMENSIONS; idx++) {
+			values[idx] = 0d;
+		}
+	}
+
 	// Getter/setter for by-AxisId access
 	public double axis(AxisId axis) { return values[axis.getIndex()]; }
 	public void setAxis(AxisId axis, double v) { values[axis.getIndex()] = v; }
@@ -0,0 +1,78 @@
+# A long-lived slicer process for ReplicatorG.
+#
+# Usage: python -u slicer_worker.py <module> [<function>]
+#
+# Imports the slicer module once, from the working directory, then runs one
+# job per request read from stdin:
+#
+#   @@replicatorg-slicer-worker@@ run <argument count>
+#   <one argument per line>
+#
+# Each job calls module.function() (main by default) with sys.argv set to the
+# job's arguments, as if the module had been run from the command line.
+# Everything the job prints goes to stdout, followed by
+#
+#   @@replicatorg-slicer-worker@@ done <exit code>
+#
+# The worker exits when stdin is closed.
+import os
+import sys
+import traceback
+
+MARKER = '@@replicatorg-slicer-worker@@'
+
+
+def reply(out, message):
+	out.write(MARKER + ' ' + message + '\n')
+	out.flush()
+
+
+def run(module, function, arguments):
+	saved = sys.argv
+	sys.argv = [getattr(module, '__file__', module.__name__)] + arguments
+	try:
+		try:
+			result = getattr(module, function)()
+			return result if isinstance(result, int) else 0
+		except SystemExit:
+			code = sys.exc_info()[1].code
+			if code is None:
+				return 0
+			return code if isinstance(code, int) else 1
+		except Exception:
+			traceback.print_exc(file=sys.stdout)
+			return 1
+	finally:
+		sys.argv = saved
+		sys.stdout.flush()
+
+
+def main():
+	if len(sys.argv) < 2:
+		sys.stderr.write('Usage: slicer_worker.py <module> [<function>]\n')
+		return 2
+	out = sys.stdout
+	# whatever the slicer writes to stderr belongs to the job too
+	sys.stderr = sys.stdout
+	sys.path.insert(0, os.getcwd())
+	function = sys.argv[2] if len(sys.argv) > 2 else 'main'
+	try:
+		module = __import__(sys.argv[1])
+	except Exception:
+		traceback.print_exc(file=out)
+		reply(out, 'failed')
+		return 1
+	reply(out, 'ready')
+	while True:
+		line = sys.stdin.readline()
+		if not line:
+			return 0
+		words = line.split()
+		if len(words) != 3 or words[0] != MARKER or words[1] != 'run':
+			continue
+		arguments = [sys.stdin.readline().rstrip('\r\n') for i in range(int(words[2]))]
+		reply(out, 'done %d' % run(module, function, arguments))
+
+
+if __name__ == '__main__':
+	sys.exit(main())
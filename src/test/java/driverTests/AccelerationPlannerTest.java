@@ -0,0 +1,214 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.AccelerationPlanner;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.gen3.S3GDeviceEmulator;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Runs planned and unplanned moves through the Sanguino3G driver to the
+ * emulated board, and checks how sharply the step rates change.
+ */
+public class AccelerationPlannerTest {
+
+	private static final String PORT = "sim:planner-test";
+	private static final double STEPS_PER_MM = 47;
+	private static final double JERK = 10;
+
+	private S3GDeviceEmulator board;
+	private Sanguino3GDriver driver;
+
+	@AfterMethod
+	public void tearDown() {
+		if (driver != null) driver.dispose();
+		driver = null;
+		Serial.unregisterVirtualPort(PORT);
+	}
+
+	private static MachineModel machine() throws Exception {
+		return machine("<planner acceleration=\"1000\" jerk=\"" + JERK + "\" lookahead=\"16\" minsegment=\"1\"/>");
+	}
+
+	private static MachineModel machine(String planner) throws Exception {
+		String xml = "<machine><name>Emulated Bot</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"200\" maxfeedrate=\"6000\" stepspermm=\"47\"/>" +
+			"<axis id=\"y\" length=\"200\" maxfeedrate=\"6000\" stepspermm=\"47\"/>" +
+			"<axis id=\"z\" length=\"150\" maxfeedrate=\"1000\" stepspermm=\"400\"/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" material=\"abs\" motor=\"true\" heater=\"true\"/></tools>" +
+			planner +
+			"<driver name=\"sanguino3g\"/></machine>";
+		MachineModel model = new MachineModel();
+		model.loadXML(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement());
+		return model;
+	}
+
+	/** Sharp back and forth lines, then a circle of short segments */
+	private static List<String> code(int feedrate) {
+		List<String> code = new ArrayList<String>();
+		code.add("G21");
+		code.add("G90");
+		code.add("G92 X0 Y0 Z0");
+		code.add("G1 F" + feedrate);
+		for (int i = 1; i <= 20; i++) {
+			code.add(String.format("G1 X%d Y%d", i % 2 == 0 ? 0 : 40, i * 2));
+		}
+		for (int i = 0; i <= 100; i++) {
+			double angle = 2 * Math.PI * i / 100;
+			code.add(String.format("G1 X%.3f Y%.3f", 60 + 20 * Math.cos(angle), 40 + 20 * Math.sin(angle)));
+		}
+		code.add("G1 X0 Y0");
+		return code;
+	}
+
+	/** A move, a quarter circle out of it, and a move on from the end */
+	private static List<String> arcCode() {
+		List<String> code = new ArrayList<String>();
+		code.add("G21");
+		code.add("G90");
+		code.add("G92 X0 Y0 Z0");
+		code.add("G1 F3000");
+		code.add("G1 X40 Y0");
+		code.add("G3 X60 Y20 I0 J20");
+		code.add("G1 X60 Y60");
+		return code;
+	}
+
+	/** Run code the way Direct does, optionally through the planner */
+	private AccelerationPlanner run(List<String> code, boolean plan) throws Exception {
+		board = new S3GDeviceEmulator();
+		board.setTimeScale(0);
+		Serial.registerVirtualPort(PORT, board);
+		driver = new Sanguino3GDriver();
+		driver.setMachine(machine());
+		driver.openSerial(PORT);
+		driver.initialize();
+		assertTrue(driver.isInitialized());
+
+		GCodeParser parser = new GCodeParser();
+		AccelerationPlanner planner = null;
+		if (plan) {
+			assertNotNull(driver.getMachine().getPlanner());
+			planner = new AccelerationPlanner(driver, driver.getMachine().getPlanner());
+			parser.init(planner);
+		} else {
+			parser.init(driver);
+		}
+		Queue<DriverCommand> parsed = new LinkedList<DriverCommand>();
+		Queue<DriverCommand> out = new LinkedList<DriverCommand>();
+		for (String line : code) {
+			parser.parse(line, plan ? parsed : out);
+			if (plan) planner.process(parsed, out);
+			drain(out);
+		}
+		if (plan) planner.flush(out);
+		drain(out);
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!board.isFinished() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+		assertTrue(board.isFinished());
+		return planner;
+	}
+
+	private void drain(Queue<DriverCommand> out) throws Exception {
+		while (!out.isEmpty()) {
+			try {
+				out.peek().run(driver);
+				out.remove();
+			} catch (RetryException e) {
+				Thread.yield();
+			}
+		}
+	}
+
+	private static double worst(double[] changes) {
+		return Math.max(changes[0], changes[1]) / STEPS_PER_MM;
+	}
+
+	@Test
+	public void testPlannedMovesKeepWithinJerk() throws Exception {
+		List<String> code = code(3000);
+
+		AccelerationPlanner planner = run(code, true);
+		double planned = worst(board.getMaxRateChange());
+		double plannedMillis = board.getMotionMillis();
+		long[] plannedEnd = board.getPosition();
+		// every G1, even the one that only sets the feedrate
+		assertEquals(planner.getMovesIn(), code.size() - 3);
+		assertTrue(planner.getPiecesOut() > planner.getMovesIn());
+		tearDown();
+
+		run(code, false);
+		double unplanned = worst(board.getMaxRateChange());
+		long[] unplannedEnd = board.getPosition();
+		tearDown();
+
+		// without planning, the feedrate has to come down until reversing
+		// the direction of an axis is within its jerk
+		run(code(30 * (int)JERK), false);
+		double capped = worst(board.getMaxRateChange());
+		double cappedMillis = board.getMotionMillis();
+
+		Base.logger.fine(String.format("%s; worst jump %.1f mm/s planned, %.1f mm/s unplanned; "
+				+ "%.1fs planned at F3000, %.1fs unplanned at F%d", planner, planned, unplanned,
+				plannedMillis / 1000, cappedMillis / 1000, 30 * (int)JERK));
+
+		// a little over, for moves rounded to whole steps and microseconds
+		assertTrue(planned <= JERK * 1.25, "planned jump " + planned);
+		assertTrue(unplanned > JERK * 2, "unplanned jump " + unplanned);
+		assertTrue(capped <= JERK * 1.25, "capped jump " + capped);
+		assertTrue(plannedMillis < cappedMillis);
+		for (int i = 0; i < 5; i++) assertEquals(plannedEnd[i], unplannedEnd[i]);
+	}
+
+	@Test
+	public void testPlannedArcKeepsWithinJerk() throws Exception {
+		AccelerationPlanner planner = run(arcCode(), true);
+		double planned = worst(board.getMaxRateChange());
+		long[] plannedEnd = board.getPosition();
+		// the arc's chords are planned along with the moves either side
+		assertTrue(planner.getMovesIn() > 4, "moves in " + planner.getMovesIn());
+		tearDown();
+
+		run(arcCode(), false);
+		double unplanned = worst(board.getMaxRateChange());
+		long[] unplannedEnd = board.getPosition();
+
+		assertTrue(planned <= JERK * 1.25, "planned jump " + planned);
+		assertTrue(unplanned > JERK * 2, "unplanned jump " + unplanned);
+		for (int i = 0; i < 5; i++) assertEquals(plannedEnd[i], unplannedEnd[i]);
+	}
+
+	@Test
+	public void testRejectsBadPlannerSettings() throws Exception {
+		assertNotNull(machine().getPlanner());
+		assertNull(machine("<planner acceleration=\"0\" jerk=\"10\"/>").getPlanner());
+		assertNull(machine("<planner acceleration=\"-500\" jerk=\"10\"/>").getPlanner());
+		assertNull(machine("<planner acceleration=\"1000\" jerk=\"0\"/>").getPlanner());
+		assertNull(machine("<planner acceleration=\"1000\" jerk=\"10\" minsegment=\"-1\"/>").getPlanner());
+		assertNotNull(machine("<planner acceleration=\"1000\" jerk=\"10\" minsegment=\"0\"/>").getPlanner());
+	}
+}
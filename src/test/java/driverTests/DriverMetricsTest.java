@@ -0,0 +1,131 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.DriverMetrics;
+import replicatorg.drivers.LatencyHistogram;
+import replicatorg.drivers.NullDriver;
+import replicatorg.machine.builder.Direct;
+
+public class DriverMetricsTest {
+
+	@Test
+	public void testHistogramPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(h.getValueAtPercentile(99), 0);
+		for (long us = 1; us <= 10000; us++) h.record(us * 1000);
+
+		assertEquals(h.getCount(), 10000);
+		assertEquals(h.getMaxNanos(), 10000000);
+		assertEquals(h.getMeanNanos(), 5000500.0, 1);
+		// within the bucket width of ~6%
+		assertEquals(h.getValueAtPercentile(50), 5000000, 5000000 * 0.06);
+		assertEquals(h.getValueAtPercentile(99), 9900000, 9900000 * 0.06);
+		assertEquals(h.getValueAtPercentile(100), 10000000, 10000000 * 0.06);
+
+		// small values are exact, huge ones don't fall off the end
+		LatencyHistogram small = new LatencyHistogram();
+		small.record(3);
+		small.record(-5);
+		small.record(Long.MAX_VALUE);
+		assertEquals(small.getValueAtPercentile(30), 0);
+		assertEquals(small.getValueAtPercentile(60), 3);
+		assertTrue(small.getValueAtPercentile(100) > 1L << 40);
+		assertEquals(small.getMaxNanos(), Long.MAX_VALUE);
+
+		h.reset();
+		assertEquals(h.getCount(), 0);
+		assertEquals(h.getValueAtPercentile(50), 0);
+	}
+
+	@Test
+	public void testConcurrentRecording() throws Exception {
+		final DriverMetrics metrics = new DriverMetrics();
+		final int perThread = 200000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++) {
+			final int opcode = 0x80 + (t % 2);
+			threads.add(new Thread() {
+				public void run() {
+					for (int i = 0; i < perThread; i++) metrics.commandCompleted(opcode, 1000 + i % 5000);
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread t : threads) t.start();
+		for (Thread t : threads) t.join();
+		long elapsed = System.nanoTime() - start;
+		Base.logger.fine("DriverMetrics: " + (elapsed / (4L * perThread)) + "ns per recorded command, 4 threads");
+
+		assertEquals(metrics.getCommandCount(), 4L * perThread);
+		assertEquals(metrics.getOpcodeHistogram(0x80).getCount(), 2L * perThread);
+		assertEquals(metrics.getOpcodeHistogram(0x81).getCount(), 2L * perThread);
+		assertNull(metrics.getOpcodeHistogram(0x82));
+	}
+
+	@Test
+	public void testRegisteredOverJMX() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name;
+		DriverMetrics a = new DriverMetrics();
+		DriverMetrics b = new DriverMetrics();
+		a.setOpcodeNames(new String[] { "VERSION" });
+		a.register("Metrics Test Bot");
+		b.register("Metrics Test Bot");
+		try {
+			name = a.getObjectName();
+			assertNotNull(name);
+			assertFalse(name.equals(b.getObjectName()), "a second machine with the same name gets its own entry");
+
+			a.bufferOverflow();
+			a.crcError();
+			a.commandCompleted(0, 2500000);
+			assertEquals(server.getAttribute(name, "CommandCount"), 1L);
+			assertEquals(server.getAttribute(name, "BufferOverflowRetries"), 1L);
+			assertEquals(server.getAttribute(name, "CrcErrors"), 1L);
+			assertEquals(server.getAttribute(name, "SerialBytesOut"), 0L);
+			String[] latencies = (String[])server.getAttribute(name, "OpcodeLatencies");
+			assertEquals(latencies.length, 1);
+			assertTrue(latencies[0].startsWith("0x00 VERSION: n=1"), latencies[0]);
+
+			server.invoke(name, "reset", null, null);
+			assertEquals(a.getCommandCount(), 0);
+		} finally {
+			a.unregister();
+			b.unregister();
+		}
+		assertNull(a.getObjectName());
+		assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testBuildRecordsParseAndBlockedTime() {
+		NullDriver driver = new NullDriver();
+		List<String> lines = new ArrayList<String>();
+		lines.add("G21");
+		lines.add("G90");
+		for (int i = 0; i < 100; i++) lines.add("G1 X" + (i % 20) + " Y" + (i % 10) + " F1200");
+		Direct direct = new Direct(driver, null, new MutableGCodeSource(lines));
+		for (int i = 0; i < lines.size(); i++) direct.runNext();
+
+		DriverMetrics metrics = driver.getMetrics();
+		assertEquals(metrics.getParseHistogram().getCount(), lines.size());
+		assertEquals(metrics.getBlockedHistogram().getCount(), lines.size());
+		assertTrue(metrics.getParseMeanMicros() > 0);
+	}
+}
@@ -0,0 +1,178 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.gen3.EEPROMImage;
+
+public class EEPROMImageTest {
+
+	static final int SIZE = 0x1000;
+	static final int MAP = 0x0200;
+	static final int PAGE = 16;
+
+	/** A board's EEPROM, counting the packets it answers. */
+	static class SimulatedEEPROM implements EEPROMImage.Port {
+		final byte[] bytes = new byte[SIZE];
+		int reads = 0;
+		int writes = 0;
+		int bytesWritten = 0;
+		boolean online = true;
+
+		SimulatedEEPROM() {
+			new Random(42).nextBytes(bytes);
+		}
+
+		public byte[] read(int offset, int length) {
+			reads++;
+			if (!online) return null;
+			assertTrue(length <= PAGE);
+			byte[] rv = new byte[length];
+			System.arraycopy(bytes, offset, rv, 0, length);
+			return rv;
+		}
+
+		public boolean write(int offset, byte[] data) {
+			writes++;
+			if (!online) return false;
+			assertTrue(data.length <= PAGE);
+			System.arraycopy(data, 0, bytes, offset, data.length);
+			bytesWritten += data.length;
+			return true;
+		}
+
+		int getInt32(int offset) {
+			return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8)
+				| ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+		}
+	}
+
+	private SimulatedEEPROM board;
+	private EEPROMImage image;
+
+	@BeforeMethod
+	public void connect() {
+		board = new SimulatedEEPROM();
+		image = new EEPROMImage(board, SIZE, MAP, PAGE);
+	}
+
+	@Test
+	public void testBulkReadServesEveryField() {
+		// the way the driver used to do it: one packet per field
+		SimulatedEEPROM direct = new SimulatedEEPROM();
+		for (int offset = 0; offset < MAP; offset += 4) direct.read(offset, 4);
+		int before = direct.reads;
+
+		for (int offset = 0; offset < MAP; offset += 4) {
+			assertEquals(image.getInt32(offset), board.getInt32(offset));
+		}
+		assertEquals(before, MAP / 4);
+		assertEquals(board.reads, MAP / PAGE);
+		assertEquals(image.getReadCount(), board.reads);
+
+		// looking again costs nothing
+		for (int offset = 0; offset < MAP; offset += 4) image.getInt32(offset);
+		assertEquals(board.reads, MAP / PAGE);
+
+		// fields outside the map are fetched a page at a time
+		image.getUInt16(0x0FFD);
+		assertEquals(board.reads, MAP / PAGE + 1);
+		image.getInt32(0x03FE);
+		assertEquals(board.reads, MAP / PAGE + 3);
+	}
+
+	@Test
+	public void testCommitSendsOnlyChangedBytes() {
+		for (int offset = 0; offset < MAP; offset += 4) image.getInt32(offset);
+
+		image.beginBatch();
+		// the settings dialog writes back every field, changed or not
+		for (int offset = 0; offset < MAP; offset += 4) {
+			int value = image.getInt32(offset);
+			if (offset == 0x40 || offset == 0x44) value++;
+			if (offset == 0x100) value = ~value;
+			image.setInt32(offset, value);
+		}
+		assertEquals(board.writes, 0);
+		assertTrue(image.hasPendingWrites());
+		assertTrue(image.commit());
+
+		// before, that was a packet per field; now 0x40-0x44 goes as one
+		assertEquals(board.writes, 2);
+		assertFalse(image.hasPendingWrites());
+		SimulatedEEPROM expected = new SimulatedEEPROM();
+		assertEquals(board.getInt32(0x40), expected.getInt32(0x40) + 1);
+		assertEquals(board.getInt32(0x44), expected.getInt32(0x44) + 1);
+		assertEquals(board.getInt32(0x100), ~expected.getInt32(0x100));
+		assertEquals(board.getInt32(0x104), expected.getInt32(0x104));
+	}
+
+	@Test
+	public void testLongRunsAreSplitIntoPages() {
+		image.getUInt8(0);
+		image.beginBatch();
+		byte[] run = new byte[40];
+		for (int i = 0; i < 40; i++) run[i] = (byte)~board.bytes[0x10 + i];
+		image.write(0x10, run);
+		assertTrue(image.commit());
+		assertEquals(board.writes, 3);
+		assertEquals(board.bytesWritten, 40);
+		for (int i = 0; i < 40; i++) assertEquals(board.bytes[0x10 + i], run[i]);
+	}
+
+	@Test
+	public void testNestedBatchesCommitOnce() {
+		image.beginBatch();
+		image.setUInt8(0x20, 1);
+		image.beginBatch();
+		image.setUInt8(0x30, 2);
+		assertTrue(image.commit());
+		assertEquals(board.writes, 0);
+		assertTrue(image.commit());
+		assertEquals(board.writes, 2);
+	}
+
+	@Test
+	public void testWritesOutsideABatchGoStraightThrough() {
+		assertTrue(image.setUInt16(0x30, 0x1234));
+		assertEquals(board.writes, 1);
+		assertEquals(board.bytes[0x30], 0x34);
+		assertEquals(board.bytes[0x31], 0x12);
+		assertEquals(image.getUInt16(0x30), 0x1234);
+	}
+
+	@Test
+	public void testInvalidateKeepsPendingWrites() {
+		image.getUInt8(0);
+		image.beginBatch();
+		image.setUInt8(0x10, 0x55);
+		board.bytes[0x11] = 0x66; // changed from the board's own menus
+		image.invalidate();
+		assertEquals(image.getUInt8(0x10), 0x55);
+		assertEquals(image.getUInt8(0x11), 0x66);
+		assertEquals(board.reads, 2 * MAP / PAGE);
+		assertTrue(image.commit());
+		assertEquals(board.bytes[0x10], 0x55);
+	}
+
+	@Test
+	public void testFailuresAreReported() {
+		board.online = false;
+		assertNull(image.read(0x20, 4));
+		assertEquals(image.getUInt8(0x20), -1);
+		image.beginBatch();
+		image.setUInt8(0x20, 1);
+		assertFalse(image.commit());
+
+		// nothing bad was cached while the board was away
+		board.online = true;
+		assertEquals(image.getUInt8(0x21), board.bytes[0x21] & 0xff);
+	}
+}
@@ -0,0 +1,110 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import javax.vecmath.Point3d;
+
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.MotionKernel;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+public class MotionKernelTest {
+
+	private static MachineModel machine() {
+		MachineModel model = new MachineModel();
+		double[] stepsPerMM = { 94.1, 94.1, 400, 96.3, 96.3 };
+		double[] feedrates = { 18000, 18000, 1170, 1600, 1600 };
+		for (int i = 0; i < 5; i++) {
+			model.getStepsPerMM().set(i, stepsPerMM[i]);
+			model.getMaximumFeedrates().set(i, feedrates[i]);
+		}
+		return model;
+	}
+
+	private static Point5d randomPoint(Random r) {
+		Point5d p = new Point5d(r.nextDouble() * 200 - 100, r.nextDouble() * 200 - 100, r.nextDouble() * 5,
+				r.nextDouble() * 50, 0);
+		// plenty of moves that leave an axis or two where it was
+		if (r.nextInt(3) == 0) p.setZ(0);
+		return p;
+	}
+
+	@Test
+	public void testMatchesPointArithmetic() {
+		MachineModel machine = machine();
+		MotionKernel kernel = new MotionKernel();
+		Random r = new Random(47);
+		Point5d current = new Point5d();
+		for (int n = 0; n < 10000; n++) {
+			Point5d target = randomPoint(r);
+			if (n % 100 == 0) target = new Point5d(current);
+			double requested = 500 + r.nextDouble() * 5000;
+
+			// the way the drivers used to work it out
+			Point5d absDelta = new Point5d();
+			absDelta.sub(target, current);
+			absDelta.absolute();
+			Point5d deltaSteps = machine.mmToSteps(absDelta);
+			double masterSteps = 0;
+			for (int i = 0; i < 5; i++) masterSteps = Math.max(masterSteps, deltaSteps.get(i));
+			double length = absDelta.length();
+			double feedrate = requested;
+			for (int i = 0; i < 5; i++) {
+				if (absDelta.get(i) != 0 && feedrate * absDelta.get(i) / length > machine.getMaximumFeedrates().get(i)) {
+					feedrate = machine.getMaximumFeedrates().get(i) * length / absDelta.get(i);
+				}
+			}
+			double micros = absDelta.magnitude() / feedrate * 60000000.0;
+
+			boolean moves = kernel.plan(current, target, machine.getStepsPerMM(), machine.getMaximumFeedrates(), requested);
+			assertEquals(moves, masterSteps > 0);
+			if (n % 100 == 0) assertFalse(moves);
+			assertEquals(kernel.getSteps().toString(), machine.mmToSteps(target).toString());
+			assertEquals(kernel.getDeltaSteps().toString(), deltaSteps.toString());
+			assertEquals(kernel.getAbsDelta().toString(), absDelta.toString());
+			assertEquals(kernel.getMasterSteps(), masterSteps);
+			assertEquals(kernel.getFeedrate(), feedrate);
+			assertEquals(kernel.getDistance(), absDelta.get3D().distance(new Point3d()));
+			if (moves) assertEquals(kernel.getStepDelay(), Math.round(micros / masterSteps));
+			current = target;
+		}
+	}
+
+	@Test
+	public void testPlanningAllocatesNothing() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+		if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) return;
+
+		MachineModel machine = machine();
+		MotionKernel kernel = new MotionKernel();
+		Random r = new Random(5);
+		Point5d[] points = new Point5d[1024];
+		for (int i = 0; i < points.length; i++) points[i] = randomPoint(r);
+		long sum = 0;
+		for (int n = 0; n < 200000; n++) {
+			if (kernel.plan(points[n & 1023], points[(n + 1) & 1023], machine.getStepsPerMM(),
+					machine.getMaximumFeedrates(), 3000)) sum += kernel.getStepDelay();
+		}
+
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int n = 0; n < 100000; n++) {
+			if (kernel.plan(points[n & 1023], points[(n + 1) & 1023], machine.getStepsPerMM(),
+					machine.getMaximumFeedrates(), 3000)) sum += kernel.getStepDelay();
+		}
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+		assertTrue(sum > 0);
+		// allow for the measurement itself, but not a byte per move
+		assertTrue(allocated < 10000, allocated + " bytes allocated planning 100000 moves");
+	}
+}
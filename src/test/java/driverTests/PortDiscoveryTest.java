@@ -0,0 +1,200 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.Name;
+import replicatorg.app.util.serial.PortDiscovery;
+import replicatorg.app.util.serial.PortFingerprint;
+import replicatorg.app.util.serial.PortProbe;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.app.util.serial.VirtualPort;
+import replicatorg.drivers.gen3.S3GDeviceEmulator;
+import replicatorg.drivers.gen3.S3GPortProbe;
+import replicatorg.drivers.reprap.RepRapDeviceEmulator;
+import replicatorg.drivers.reprap.RepRapDeviceEmulator.Profile;
+import replicatorg.drivers.reprap.RepRapPortProbe;
+
+/**
+ * Finds emulated boards, and a few ports with nothing on them, the way the
+ * discovery would find machines on a USB hub.
+ */
+public class PortDiscoveryTest {
+
+	private static final int TIMEOUT = 300;
+
+	/** A port with nothing listening on the other end */
+	static class SilentPort implements VirtualPort {
+		public void open(Host host) {}
+		public void write(byte[] b) {}
+		public void reset() {}
+		public void close() {}
+	}
+
+	private final List<String> registered = new ArrayList<String>();
+
+	@AfterMethod
+	public void tearDown() {
+		for (String name : registered) Serial.unregisterVirtualPort(name);
+		registered.clear();
+	}
+
+	private Name register(String name, VirtualPort port) {
+		Serial.registerVirtualPort(name, port);
+		registered.add(name);
+		return new Name(name, true);
+	}
+
+	private static S3GDeviceEmulator s3g(int version, String buildName, byte[] vidPid) {
+		S3GDeviceEmulator board = new S3GDeviceEmulator();
+		board.setTimeScale(0);
+		board.setVersion(version);
+		board.setBuildName(buildName);
+		// where a MightyBoard keeps its VID/PID
+		if (vidPid != null) board.setEEPROM(0x0044, vidPid);
+		return board;
+	}
+
+	private static RepRapDeviceEmulator reprap(Profile profile, long bootMillis) {
+		RepRapDeviceEmulator board = new RepRapDeviceEmulator(profile);
+		board.setTimeScale(0);
+		board.setBootTime(bootMillis);
+		return board;
+	}
+
+	private static PortDiscovery discovery(int threads) {
+		List<PortProbe> probes = Arrays.<PortProbe>asList(new S3GPortProbe(), new RepRapPortProbe());
+		return new PortDiscovery(probes, threads, TIMEOUT);
+	}
+
+	private List<Name> hub() {
+		List<Name> names = new ArrayList<Name>();
+		for (int i = 0; i < 3; i++) {
+			names.add(register("sim:s3g" + i, s3g(505 + i, "Sailfish", null)));
+			names.add(register("sim:marlin" + i, reprap(Profile.MARLIN, i == 0 ? 100 : 0)));
+			names.add(register("sim:teacup" + i, reprap(Profile.TEACUP, 0)));
+			names.add(register("sim:empty" + i, new SilentPort()));
+		}
+		return names;
+	}
+
+	@Test
+	public void testEveryBoardIsIdentified() throws Exception {
+		List<Name> names = new ArrayList<Name>();
+		// VID/PID of a Replicator 2, low byte first
+		names.add(register("sim:rep2", s3g(701, "Makerbot", new byte[] { (byte)0xC1, 0x23, 0x15, (byte)0xB0 })));
+		names.add(register("sim:marlin", reprap(Profile.MARLIN, 0)));
+		names.add(register("sim:fived", reprap(Profile.FIVED, 0)));
+		names.add(register("sim:empty", new SilentPort()));
+		names.add(new Name("sim:busy", false));
+
+		PortDiscovery discovery = discovery(8);
+		Map<String,PortFingerprint> found = discovery.discover(names);
+		assertEquals(found.size(), 3);
+
+		PortFingerprint rep2 = found.get("sim:rep2");
+		assertEquals(rep2.getProtocol(), PortFingerprint.Protocol.S3G);
+		assertEquals(rep2.getFirmware(), "Makerbot");
+		assertEquals(rep2.getVersion(), "7.1");
+		assertEquals(rep2.getMachine(), "REPLICATOR_2");
+
+		PortFingerprint marlin = found.get("sim:marlin");
+		assertEquals(marlin.getProtocol(), PortFingerprint.Protocol.REPRAP);
+		assertEquals(marlin.getFirmware(), "Marlin V1; Sprinter/grbl mashup for gen6");
+		assertEquals(marlin.getVersion(), "1.0");
+		assertEquals(marlin.getMachine(), "Mendel");
+
+		// no M115, but it answers like RepRap firmware
+		PortFingerprint fived = found.get("sim:fived");
+		assertEquals(fived.getProtocol(), PortFingerprint.Protocol.REPRAP);
+		assertEquals(fived.getFirmware(), "");
+
+		assertEquals(discovery.getCached("sim:marlin").toPreference(), marlin.toPreference());
+		assertNull(discovery.getCached("sim:empty"));
+		assertEquals(PortFingerprint.parse(rep2.toPreference()).toPreference(), rep2.toPreference());
+	}
+
+	@Test
+	public void testBoardResetByOpeningThePortIsIdentified() throws Exception {
+		// an Arduino-based board restarts when its port is opened, and misses
+		// anything sent before it's up again
+		S3GDeviceEmulator board = s3g(506, "Sailfish", null);
+		board.setBootTime(1000);
+		register("sim:resetting", board);
+
+		List<PortProbe> probes = Arrays.<PortProbe>asList(new S3GPortProbe());
+		long start = System.nanoTime();
+		PortFingerprint found = new PortDiscovery(probes, 1, 1500).identify("sim:resetting");
+		long millis = (System.nanoTime() - start) / 1000000L;
+
+		assertEquals(found.getProtocol(), PortFingerprint.Protocol.S3G);
+		assertEquals(found.getFirmware(), "Sailfish");
+		assertEquals(found.getVersion(), "5.6");
+		assertTrue(millis >= 1000);
+	}
+
+	@Test
+	public void testPortsAreProbedAtOnce() throws Exception {
+		List<Name> names = hub();
+
+		long start = System.nanoTime();
+		Map<String,PortFingerprint> oneAtATime = discovery(1).discover(names);
+		long serialNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		Map<String,PortFingerprint> together = discovery(names.size()).discover(names);
+		long parallelNanos = System.nanoTime() - start;
+
+		Base.logger.fine(String.format("Port discovery, %d ports: %.0fms one at a time, %.0fms at once",
+				names.size(), serialNanos / 1e6, parallelNanos / 1e6));
+		assertEquals(together.size(), 9);
+		assertEquals(oneAtATime.size(), 9);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(together.get("sim:s3g" + i).getVersion(), "5." + (5 + i));
+			assertEquals(together.get("sim:marlin" + i).getMachine(), "Mendel");
+			assertEquals(together.get("sim:teacup" + i).getFirmware(), "Teacup");
+		}
+		// a silent port costs a full timeout per probe; a dozen of them at once cost about one
+		assertTrue(parallelNanos < serialNanos / 2);
+		assertTrue(parallelNanos / 1000000L < 4 * 2 * TIMEOUT);
+	}
+
+	@Test
+	public void testKnownMachineIsFoundAfterMoving() throws Exception {
+		List<Name> names = hub();
+		PortDiscovery discovery = discovery(names.size());
+		PortFingerprint known = discovery.identify("sim:teacup1");
+		assertEquals(known.getFirmware(), "Teacup");
+
+		// still where it was: only that port is probed
+		long start = System.nanoTime();
+		assertEquals(discovery.reconnect(known, names), "sim:teacup1");
+		long quickNanos = System.nanoTime() - start;
+		assertTrue(quickNanos / 1000000L < TIMEOUT);
+
+		// unplugged and plugged into another port
+		S3GDeviceEmulator mover = s3g(602, "Mover", null);
+		names.add(register("sim:before", mover));
+		PortFingerprint moving = discovery.identify("sim:before");
+		Serial.unregisterVirtualPort("sim:before");
+		names.remove(names.size() - 1);
+		names.add(register("sim:after", mover));
+		assertEquals(discovery.reconnect(moving, names), "sim:after");
+		assertEquals(discovery.getCached("sim:after").getFirmware(), "Mover");
+
+		// gone altogether
+		Serial.unregisterVirtualPort("sim:after");
+		names.remove(names.size() - 1);
+		assertNull(discovery.reconnect(moving, names));
+	}
+}
@@ -0,0 +1,158 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.reprap.RepRap5DDriver;
+import replicatorg.drivers.reprap.RepRapDeviceEmulator;
+import replicatorg.drivers.reprap.RepRapDeviceEmulator.Profile;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Runs the real RepRap5D driver against emulated Marlin, Teacup and FiveD
+ * boards, and reports the line rate and how long resends take.
+ */
+public class RepRapDeviceEmulatorTest {
+
+	private static final String PORT = "sim:reprap-test";
+
+	private RepRapDeviceEmulator board;
+	private RepRap5DDriver driver;
+
+	@AfterMethod
+	public void tearDown() {
+		if (driver != null) driver.dispose();
+		driver = null;
+		Serial.unregisterVirtualPort(PORT);
+	}
+
+	private static Node parse(String xml) throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+	}
+
+	private void connect(RepRapDeviceEmulator emulator) throws Exception {
+		board = emulator;
+		Serial.registerVirtualPort(PORT, board);
+		MachineModel model = new MachineModel();
+		model.loadXML(parse("<machine><name>Emulated RepRap</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"200\" maxfeedrate=\"12000\" stepspermm=\"80\"/>" +
+			"<axis id=\"y\" length=\"200\" maxfeedrate=\"12000\" stepspermm=\"80\"/>" +
+			"<axis id=\"z\" length=\"150\" maxfeedrate=\"300\" stepspermm=\"2560\"/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" material=\"pla\" motor=\"true\" heater=\"true\"/></tools>" +
+			"<driver name=\"reprap5d\"/></machine>"));
+		driver = new RepRap5DDriver();
+		driver.loadXML(parse("<driver name=\"reprap5d\">" +
+			"<waitforstart enabled=\"true\"/>" +
+			"<okAfterResend>" + board.getProfile().isOkAfterResend() + "</okAfterResend>" +
+			"<okAfterStart>" + board.getProfile().isOkAfterStart() + "</okAfterStart>" +
+			"</driver>"));
+		driver.setMachine(model);
+		driver.openSerial(PORT);
+		driver.initialize();
+		assertTrue(driver.isInitialized(), board.getProfile() + " should connect");
+	}
+
+	/** @return lines per second */
+	private double sendMoves(int count) {
+		long start = System.nanoTime();
+		for (int i = 1; i <= count; i++) {
+			driver.executeGCodeLine("G1 X" + (i % 50) + " Y" + ((i * 7) % 40) + " E" + (i * 0.01) + " F3000");
+		}
+		return count * 1e9 / (System.nanoTime() - start);
+	}
+
+	private void waitForBoard() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!(board.isFinished() && driver.isFinished()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(board.isFinished() && driver.isFinished());
+	}
+
+	@Test
+	public void testEveryProfileStreams() throws Exception {
+		for (Profile profile : Profile.values()) {
+			RepRapDeviceEmulator emulator = new RepRapDeviceEmulator(profile);
+			emulator.setTimeScale(0);
+			emulator.setBootTime(20);
+			connect(emulator);
+
+			long before = board.getLinesAccepted();
+			int moves = 1000;
+			double rate = sendMoves(moves);
+			driver.executeGCodeLine("M105");
+			waitForBoard();
+			Base.logger.fine(String.format("RepRap emulator, %s: %.0f lines/s", profile, rate));
+
+			assertEquals(board.getLinesAccepted() - before, moves + 1);
+			assertEquals(board.getChecksumErrors() + board.getLineNumberErrors(), 0);
+			assertEquals(board.getPosition()[0], (double)(moves % 50));
+			assertEquals(board.getPosition()[1], (double)((moves * 7) % 40));
+			tearDown();
+		}
+	}
+
+	@Test
+	public void testNoisyLinesAreResent() throws Exception {
+		for (Profile profile : new Profile[] { Profile.MARLIN, Profile.TEACUP }) {
+			RepRapDeviceEmulator emulator = new RepRapDeviceEmulator(profile);
+			emulator.setTimeScale(0);
+			emulator.setLatency(100, 50);
+			connect(emulator);
+			emulator.setLineNoise(0.05, 7);
+
+			long before = board.getLinesAccepted();
+			int moves = 400;
+			double rate = sendMoves(moves);
+			waitForBoard();
+			Base.logger.fine(String.format("RepRap emulator, %s with noise: %.0f lines/s, %d resends, recovery %s",
+					profile, rate, board.getChecksumErrors(), board.getRecoveryLatency()));
+
+			assertTrue(board.getCorruptedLines() > 0);
+			assertEquals(board.getChecksumErrors(), board.getCorruptedLines());
+			assertEquals(driver.getMetrics().getResendRequests(), board.getChecksumErrors());
+			assertEquals(driver.getMetrics().getResends(), board.getChecksumErrors());
+			// the firmware found the errors, not the driver
+			assertEquals(driver.getMetrics().getCrcErrors(), 0);
+			// every line gets through exactly once, in order
+			assertEquals(board.getLinesAccepted() - before, moves);
+			assertEquals(board.getPosition()[0], (double)(moves % 50));
+			// a line garbled again on its way back in is still one recovery
+			assertTrue(board.getRecoveryLatency().getCount() > 0);
+			assertTrue(board.getRecoveryLatency().getCount() <= board.getChecksumErrors());
+			tearDown();
+		}
+	}
+
+	@Test
+	public void testFullPlannerHoldsBackTheHost() throws Exception {
+		RepRapDeviceEmulator emulator = new RepRapDeviceEmulator(Profile.FIVED);
+		// each 10mm move at 3000mm/min takes 200ms, so 10ms at this scale
+		emulator.setTimeScale(0.05);
+		connect(emulator);
+		driver.executeGCodeLine("G1 X0 Y0 F3000");
+		waitForBoard();
+
+		long start = System.nanoTime();
+		for (int i = 1; i <= 20; i++) driver.executeGCodeLine("G1 X" + (i % 2 == 0 ? 0 : 10));
+		long sendMillis = (System.nanoTime() - start) / 1000000L;
+		waitForBoard();
+		// only the moves beyond the planner's four have to wait
+		assertTrue(sendMillis >= (20 - 4 - 1) * 10 * 0.9, "took " + sendMillis + "ms");
+		assertTrue(sendMillis < 20 * 10 * 3, "took " + sendMillis + "ms");
+		assertEquals(board.getMovesExecuted(), 21);
+	}
+}
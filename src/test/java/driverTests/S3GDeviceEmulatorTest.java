@@ -0,0 +1,205 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.DriverMetrics;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.WireTrace;
+import replicatorg.drivers.WireTraceDecoder;
+import replicatorg.drivers.gen3.S3GDeviceEmulator;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Runs the real Sanguino3G driver against the emulated board, the way a
+ * build would, and reports what it sustains.
+ */
+public class S3GDeviceEmulatorTest {
+
+	private static final String PORT = "sim:s3g-test";
+
+	/** Exposes the read timeout, which builds only shorten for accelerated firmware */
+	static class TestDriver extends Sanguino3GDriver {
+		void setReadTimeout(int millis) { serial.setTimeout(millis); }
+	}
+
+	private S3GDeviceEmulator board;
+	private TestDriver driver;
+	/** commands the driver sent while connecting */
+	private long setupCommands;
+
+	@AfterMethod
+	public void tearDown() {
+		if (driver != null) driver.dispose();
+		Serial.unregisterVirtualPort(PORT);
+	}
+
+	private static MachineModel machine() throws Exception {
+		String xml = "<machine><name>Emulated Bot</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"200\" maxfeedrate=\"6000\" stepspermm=\"47\"/>" +
+			"<axis id=\"y\" length=\"200\" maxfeedrate=\"6000\" stepspermm=\"47\"/>" +
+			"<axis id=\"z\" length=\"150\" maxfeedrate=\"1000\" stepspermm=\"400\"/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" material=\"abs\" motor=\"true\" heater=\"true\"/></tools>" +
+			"<driver name=\"sanguino3g\"/></machine>";
+		MachineModel model = new MachineModel();
+		model.loadXML(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement());
+		return model;
+	}
+
+	private void connect(S3GDeviceEmulator emulator) throws Exception {
+		board = emulator;
+		Serial.registerVirtualPort(PORT, board);
+		driver = new TestDriver();
+		driver.setMachine(machine());
+		driver.openSerial(PORT);
+		driver.initialize();
+		assertTrue(driver.isInitialized());
+		waitForBoard();
+		setupCommands = board.getCommandsExecuted();
+	}
+
+	/** Queue moves the way Direct does, trying again while the buffer is full. */
+	private long queueMoves(int count) {
+		long start = System.nanoTime();
+		for (int i = 1; i <= count; i++) {
+			Point5d p = new Point5d(i % 50, (i * 7) % 40, 1, 0, 0);
+			while (true) {
+				try {
+					driver.queuePoint(p);
+					break;
+				} catch (RetryException e) {
+					Thread.yield();
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private void waitForBoard() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!board.isFinished() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+		assertTrue(board.isFinished());
+	}
+
+	@Test
+	public void testThroughput() throws Exception {
+		S3GDeviceEmulator emulator = new S3GDeviceEmulator();
+		emulator.setTimeScale(0);
+		connect(emulator);
+
+		int moves = 2000;
+		long nanos = queueMoves(moves);
+		waitForBoard();
+		Base.logger.fine(String.format("S3G emulator: %.0f commands/s, %s",
+				moves * 1e9 / nanos, driver.getMetrics().getOpcodeHistogram(129)));
+
+		assertEquals(board.getCommandsExecuted() - setupCommands, moves);
+		// the motion thread can fall behind even when moves take no time
+		assertEquals(driver.getMetrics().getBufferOverflowRetries(), board.getOverflowCount());
+		long[] steps = board.getPosition();
+		assertEquals(steps[0], Math.round((moves % 50) * 47.0));
+		assertEquals(steps[1], Math.round(((moves * 7) % 40) * 47.0));
+		assertEquals(driver.getMetrics().getOpcodeHistogram(129).getCount(), moves + board.getOverflowCount());
+		assertTrue(driver.getMetrics().getSerialBytesOut() > moves * 20);
+		assertTrue(driver.isFinished());
+	}
+
+	@Test
+	public void testFullBufferIsRetried() throws Exception {
+		S3GDeviceEmulator emulator = new S3GDeviceEmulator();
+		// room for three moves, each taking a few milliseconds
+		emulator.setBufferSize(3 * 17);
+		emulator.setTimeScale(0.05);
+		emulator.setLatency(200, 100);
+		connect(emulator);
+
+		int moves = 200;
+		long nanos = queueMoves(moves);
+		waitForBoard();
+		DriverMetrics metrics = driver.getMetrics();
+		Base.logger.fine(String.format("S3G emulator, 51 byte buffer: %.0f moves/s, %d overflows",
+				moves * 1e9 / nanos, metrics.getBufferOverflowRetries()));
+
+		assertTrue(board.getOverflowCount() > 0);
+		assertEquals(metrics.getBufferOverflowRetries(), board.getOverflowCount());
+		assertEquals(board.getCommandsExecuted() - setupCommands, moves);
+		assertEquals(board.getPosition()[0], Math.round((moves % 50) * 47.0));
+	}
+
+	@Test
+	public void testRecoversFromCorruptAndDroppedReplies() throws Exception {
+		S3GDeviceEmulator emulator = new S3GDeviceEmulator();
+		emulator.setTimeScale(0);
+		connect(emulator);
+		driver.setReadTimeout(20);
+		// the first move asks where the machine is; keep faults to the moves
+		driver.getCurrentPosition(false);
+		emulator.setFaults(0.05, 0.02, 42);
+
+		int moves = 500;
+		queueMoves(moves);
+		waitForBoard();
+		DriverMetrics metrics = driver.getMetrics();
+		Base.logger.fine("S3G emulator with faults: " + board.getCorruptedReplies() + " corrupt, "
+				+ board.getDroppedReplies() + " dropped, recovery " + metrics.getOpcodeHistogram(129));
+
+		assertTrue(board.getCorruptedReplies() > 0);
+		assertTrue(board.getDroppedReplies() > 0);
+		assertEquals(metrics.getCrcErrors(), board.getCorruptedReplies());
+		assertEquals(metrics.getTimeouts(), board.getDroppedReplies());
+		// S3G has no sequence numbers: a move whose reply was lost is sent
+		// again and runs twice, which is harmless for absolute moves
+		assertEquals(board.getCommandsExecuted() - setupCommands, moves + board.getCorruptedReplies() + board.getDroppedReplies());
+		assertEquals(board.getPosition()[0], Math.round((moves % 50) * 47.0));
+	}
+
+	@Test
+	public void testWireTraceHoldsTheLatestPackets() throws Exception {
+		S3GDeviceEmulator emulator = new S3GDeviceEmulator();
+		emulator.setTimeScale(0);
+		connect(emulator);
+		driver.setReadTimeout(20);
+		driver.getCurrentPosition(false);
+		emulator.setFaults(0, 0.05, 3);
+
+		queueMoves(500);
+		waitForBoard();
+		File f = File.createTempFile("s3g", ".rgt");
+		try {
+			int tx = 0, rx = 0, timeouts = 0;
+			driver.getMetrics().getWireTrace().dump(f);
+			for (WireTraceDecoder.Record r : WireTraceDecoder.read(f)) {
+				if (r.type == WireTrace.TX) {
+					// every packet is there whole, from its start byte
+					assertEquals(r.data[0] & 0xff, 0xd5);
+					assertEquals(r.length, (r.data[1] & 0xff) + 3);
+					tx++;
+				} else if (r.type == WireTrace.RX) {
+					rx++;
+				} else if (r.getEventCode() == WireTrace.EVENT_TIMEOUT) {
+					timeouts++;
+				}
+			}
+			assertTrue(tx >= 500);
+			assertTrue(rx > 0);
+			assertEquals(timeouts, board.getDroppedReplies());
+		} finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package driverTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.WireTrace;
+import replicatorg.drivers.WireTraceDecoder;
+import replicatorg.drivers.WireTraceDecoder.Record;
+
+public class WireTraceTest {
+
+	@Test
+	public void testKeepsTheNewestRecords() throws Exception {
+		WireTrace trace = new WireTrace(8, 32);
+		byte[] frame = new byte[40];
+		for (int i = 0; i < 20; i++) {
+			frame[0] = (byte)i;
+			if (i % 5 == 4) trace.event(WireTrace.EVENT_TIMEOUT, i, -1);
+			else if (i % 2 == 0) trace.tx(frame, 0, i == 18 ? 40 : 3);
+			else trace.rx(frame, 0, 2);
+		}
+		File f = File.createTempFile("trace", ".rgt");
+		try {
+			assertEquals(trace.dump(f), 8);
+			List<Record> records = WireTraceDecoder.read(f);
+			assertEquals(records.size(), 8);
+			for (int i = 0; i < 8; i++) {
+				Record r = records.get(i);
+				int n = 12 + i;
+				assertEquals(r.seq, (long)n);
+				if (n % 5 == 4) {
+					assertEquals(r.type, WireTrace.EVENT);
+					assertEquals(r.getEventCode(), WireTrace.EVENT_TIMEOUT);
+					assertEquals(r.getEventArg(0), (long)n);
+					assertEquals(r.getEventArg(1), -1L);
+				} else {
+					assertEquals(r.type, n % 2 == 0 ? WireTrace.TX : WireTrace.RX);
+					assertEquals(r.data[0], (byte)n);
+				}
+			}
+			// long frames are cut short but keep their length
+			Record big = records.get(18 - 12);
+			assertEquals(big.length, 40);
+			assertEquals(big.data.length, 32);
+			assertTrue(big.time <= records.get(7).time);
+			assertTrue(Math.abs(big.time / 1000000L - System.currentTimeMillis()) < 60000);
+
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			WireTraceDecoder.decode(f, new PrintStream(text));
+			String out = text.toString();
+			assertTrue(out.contains("8 records"));
+			assertTrue(out.contains("TX 0c 00 00"));
+			assertTrue(out.contains("-- timeout (14, -1)"));
+			assertTrue(out.contains("... (40 bytes)"));
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentWritersNeverTearRecords() throws Exception {
+		final WireTrace trace = new WireTrace(1024, 16);
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		final int writers = 4;
+		final long[] written = new long[writers];
+		Thread[] threads = new Thread[writers];
+		for (int t = 0; t < writers; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					byte[] frame = new byte[16];
+					while (!stop.get()) {
+						byte v = (byte)(id * 50 + written[id] % 50);
+						for (int i = 0; i < frame.length; i++) frame[i] = v;
+						trace.tx(frame, 0, 1 + (int)(written[id] % 16));
+						written[id]++;
+					}
+				}
+			};
+			threads[t].start();
+		}
+		File f = File.createTempFile("trace", ".rgt");
+		try {
+			int dumps = 0;
+			long start = System.currentTimeMillis();
+			while (System.currentTimeMillis() - start < 300) {
+				trace.dump(f);
+				dumps++;
+				long last = -1;
+				for (Record r : WireTraceDecoder.read(f)) {
+					assertTrue(r.seq > last);
+					last = r.seq;
+					for (byte b : r.data) assertEquals(b, r.data[0]);
+					assertEquals(r.data.length, r.length);
+				}
+			}
+			stop.set(true);
+			long total = 0;
+			for (int t = 0; t < writers; t++) {
+				threads[t].join();
+				total += written[t];
+			}
+			assertEquals(trace.getRecorded(), total);
+			Base.logger.fine(String.format("Wire trace: %d frames from %d threads in 300ms, %d dumps",
+					total, writers, dumps));
+		} finally {
+			f.delete();
+		}
+	}
+}
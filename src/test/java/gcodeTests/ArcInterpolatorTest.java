@@ -0,0 +1,143 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.ArcInterpolator;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.drivers.NullDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueueArc;
+import replicatorg.util.Point5d;
+
+public class ArcInterpolatorTest {
+
+	/** Records every point it's given, and refuses every third one once */
+	static class RecordingDriver extends NullDriver {
+		final List<Point5d> points = new ArrayList<Point5d>();
+		int calls = 0;
+		boolean refuse = false;
+
+		public void queuePoint(Point5d p) throws RetryException {
+			if (refuse && ++calls % 3 == 0) throw new RetryException();
+			points.add(p);
+			super.queuePoint(p);
+		}
+	}
+
+	private static List<double[]> draw(ArcInterpolator arc) {
+		List<double[]> points = new ArrayList<double[]>();
+		double[] buffer = new double[7 * ArcInterpolator.STRIDE];
+		while (arc.hasNext()) {
+			int count = arc.next(buffer);
+			for (int i = 0; i < count; i++) {
+				double[] p = new double[ArcInterpolator.STRIDE];
+				System.arraycopy(buffer, i * ArcInterpolator.STRIDE, p, 0, ArcInterpolator.STRIDE);
+				points.add(p);
+			}
+		}
+		return points;
+	}
+
+	@Test
+	public void testChordsStayWithinTolerance() {
+		double tolerance = 0.01;
+		ArcInterpolator arc = new ArcInterpolator(tolerance);
+		Point5d center = new Point5d(10, 10, 0);
+		// a full circle of radius 50, starting and ending at the same place
+		int segments = arc.start(new Point5d(60, 10, 0), center, new Point5d(60, 10, 0), false);
+		List<double[]> points = draw(arc);
+		assertEquals(points.size(), segments);
+		assertEquals(segments, ArcInterpolator.segmentsFor(50, 2 * Math.PI, tolerance));
+
+		double lastX = 60, lastY = 10;
+		for (double[] p : points) {
+			double r = Math.hypot(p[0] - 10, p[1] - 10);
+			assertEquals(r, 50, 1e-9);
+			// the middle of each chord is where it's furthest from the arc
+			double midR = Math.hypot((p[0] + lastX) / 2 - 10, (p[1] + lastY) / 2 - 10);
+			assertTrue(50 - midR <= tolerance + 1e-9, "chord strays " + (50 - midR));
+			lastX = p[0];
+			lastY = p[1];
+		}
+		assertEquals(lastX, 60.0);
+		assertEquals(lastY, 10.0);
+	}
+
+	@Test
+	public void testDirectionAndHelix() {
+		ArcInterpolator arc = new ArcInterpolator(0.05);
+		// a quarter turn from +x to +y is short counterclockwise, long clockwise
+		arc.start(new Point5d(10, 0, 0, 0, 0), new Point5d(), new Point5d(0, 10, 4, 2, 0), false);
+		List<double[]> ccw = draw(arc);
+		assertTrue(ccw.get(0)[1] > 0);
+		arc.start(new Point5d(10, 0, 0, 0, 0), new Point5d(), new Point5d(0, 10, 4, 2, 0), true);
+		List<double[]> cw = draw(arc);
+		assertTrue(cw.get(0)[1] < 0);
+		assertEquals(cw.size(), 3 * ccw.size(), 3);
+
+		// z and a climb steadily and end exactly on the endpoint
+		double[] half = ccw.get(ccw.size() / 2 - 1);
+		assertEquals(half[2], 4.0 * (ccw.size() / 2) / ccw.size(), 1e-9);
+		double[] last = ccw.get(ccw.size() - 1);
+		assertEquals(last[2], 4.0);
+		assertEquals(last[3], 2.0);
+	}
+
+	@Test
+	public void testSegmentsFollowCurvatureNotLength() {
+		// tighter tolerance or bigger radius means more segments, but
+		// far fewer than one per mm on a big arc
+		assertEquals(ArcInterpolator.segmentsFor(0.005, Math.PI, 0.01), 1);
+		assertTrue(ArcInterpolator.segmentsFor(100, Math.PI, 0.001) > ArcInterpolator.segmentsFor(100, Math.PI, 0.01));
+		assertTrue(ArcInterpolator.segmentsFor(100, Math.PI, 0.01) > ArcInterpolator.segmentsFor(10, Math.PI, 0.01));
+		assertTrue(ArcInterpolator.segmentsFor(100, Math.PI, 0.01) < 100 * Math.PI / 2);
+	}
+
+	@Test
+	public void testParserQueuesOneArcThatSurvivesRetries() throws Exception {
+		RecordingDriver driver = new RecordingDriver();
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+		Queue<DriverCommand> commands = new LinkedList<DriverCommand>();
+		parser.parse("G90", commands);
+		parser.parse("G1 X20 Y0 Z1 F600", commands);
+		for (DriverCommand c : commands) c.run(driver);
+		commands.clear();
+		driver.points.clear();
+
+		parser.parse("G2 X0 Y-20 I-20 J0", commands);
+		assertEquals(commands.size(), 1);
+		assertTrue(commands.peek() instanceof QueueArc);
+
+		driver.refuse = true;
+		DriverCommand arc = commands.remove();
+		int retries = 0;
+		while (true) {
+			try {
+				arc.run(driver);
+				break;
+			} catch (RetryException e) {
+				retries++;
+			}
+		}
+		assertTrue(retries > 0);
+		int expected = ArcInterpolator.segmentsFor(20, Math.PI / 2, GCodeParser.arcToleranceMM);
+		assertEquals(driver.points.size(), expected);
+		// every segment is its own point, heading clockwise from +x
+		assertTrue(driver.points.get(0) != driver.points.get(1));
+		assertTrue(driver.points.get(0).y() < 0 && driver.points.get(0).x() > 0);
+		Point5d end = driver.getCurrentPosition(false);
+		assertEquals(end.x(), 0.0);
+		assertEquals(end.y(), -20.0);
+		assertEquals(end.z(), 1.0);
+	}
+}
@@ -0,0 +1,87 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Vector;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.BuildTimeTable;
+import replicatorg.app.gcode.GCodeEstimator;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.StringListSource;
+
+public class BuildTimeTableTest {
+
+	private static MachineModel machine() {
+		MachineModel model = new MachineModel();
+		for (int i = 0; i < 5; i++) model.getMaximumFeedrates().set(i, 5000);
+		return model;
+	}
+
+	/** A few long, slow moves, then a great many short quick ones */
+	private static Vector<String> lopsided(int shortMoves) {
+		Vector<String> code = new Vector<String>();
+		code.add("G21");
+		code.add("G90");
+		for (int i = 0; i < 10; i++) code.add("G1 X" + (i % 2 == 0 ? 100 : 0) + " Y0 F600");
+		for (int i = 0; i < shortMoves; i++) code.add("G1 X" + (i % 2 == 0 ? 0.5 : 0) + " Y0 F3000");
+		return code;
+	}
+
+	@Test
+	public void testProgressFollowsTime() {
+		Vector<String> code = lopsided(1000);
+		BuildTimeTable table = BuildTimeTable.estimate(machine(), new StringListSource(code));
+		assertEquals(table.getLineCount(), code.size());
+
+		GCodeEstimator estimator = new GCodeEstimator(machine());
+		for (int i = 0; i < code.size(); i++) {
+			estimator.add(code.get(i));
+			assertEquals(table.getMillisAt(i + 1), estimator.getBuildTime(), estimator.getBuildTime() * 1e-6);
+		}
+		assertEquals(table.getTotalMillis(), estimator.getBuildTime());
+
+		// the slow moves are 1% of the lines but most of the time
+		double slow = table.getProportion(12);
+		assertTrue(slow > 0.5);
+		assertTrue(slow < 1);
+		assertEquals(table.getProportion(0), 0.0);
+		assertEquals(table.getProportion(code.size()), 1.0);
+		assertEquals(table.getRemainingMillis(12, 0), table.getTotalMillis() - table.getMillisAt(12));
+	}
+
+	@Test
+	public void testLongFilesAreBucketed() {
+		Vector<String> code = lopsided(80000);
+		BuildTimeTable table = BuildTimeTable.estimate(machine(), new StringListSource(code));
+		GCodeEstimator estimator = new GCodeEstimator(machine());
+		double previous = 0;
+		for (int i = 0; i < code.size(); i++) {
+			estimator.add(code.get(i));
+			double at = table.getMillisAt(i + 1);
+			assertTrue(at >= previous);
+			previous = at;
+			// within a bucket the time is interpolated, so only close
+			assertEquals(at, estimator.getBuildTime(), 60000);
+			if (i % 4 == 3) assertEquals(at, estimator.getBuildTime(), estimator.getBuildTime() * 1e-6);
+		}
+		assertEquals(table.getTotalMillis(), estimator.getBuildTime());
+	}
+
+	@Test
+	public void testRemainingTimeIsCorrectedForDrift() {
+		BuildTimeTable table = BuildTimeTable.estimate(machine(), new StringListSource(lopsided(1000)));
+		int half = 12;
+		double expected = table.getMillisAt(half);
+		double remaining = table.getTotalMillis() - expected;
+		assertEquals(table.getRemainingMillis(half, expected), remaining, 1e-6);
+		// going at half speed: the rest will take twice as long
+		assertEquals(table.getRemainingMillis(half, 2 * expected), 2 * remaining, 1e-6);
+		// but no correction runs away
+		assertEquals(table.getRemainingMillis(half, 100 * expected), 3 * remaining, 1e-6);
+		// and nothing is concluded from the first few seconds
+		assertEquals(table.getRemainingMillis(1, 1e9), table.getTotalMillis() - table.getMillisAt(1), 1e-6);
+	}
+}
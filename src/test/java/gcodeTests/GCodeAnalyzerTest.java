@@ -0,0 +1,170 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.app.gcode.GCodeAnalyzer.Report;
+import replicatorg.app.gcode.GCodeAnalyzer.Rule;
+import replicatorg.app.gcode.GCodeScanner;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.SnapshotGCodeSource;
+
+public class GCodeAnalyzerTest {
+
+	// Generates a long, repetitive file without holding it in memory.
+	static class SyntheticSource implements GCodeSource {
+		final int lines;
+
+		SyntheticSource(int lines) {
+			this.lines = lines;
+		}
+
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				int idx = 0;
+				public boolean hasNext() { return idx < lines; }
+				public String next() {
+					int i = idx++;
+					switch (i % 5) {
+					case 0: return "G1 X" + (i % 40) + ".25 Y-10.5 E" + i;
+					case 1: return "G1 Y" + (i % 30) + ".5 Z0.3 ; infill";
+					case 2: return "(comment only)";
+					case 3: return "M104 S220";
+					default: return "G1 X500 E1"; // out of bounds for the default volume
+					}
+				}
+				public void remove() { throw new UnsupportedOperationException(); }
+			};
+		}
+
+		public List<String> asList() {
+			List<String> result = new ArrayList<String>();
+			for (String s : this) result.add(s);
+			return result;
+		}
+
+		public int getLineCount() { return lines; }
+	}
+
+	@Test
+	public void testRulesFire() {
+		MachineModel model = new MachineModel();
+		Report report = new GCodeAnalyzer(model).analyze(new SnapshotGCodeSource(
+				"G21\n" +
+				"G1 X10 Y10 F-5\n" +
+				"G1 X1.2.3\n" +
+				"Q55\n" +
+				"M6 T3\n" +
+				"G1 X500 Y0 E2\n" +
+				"G91\n" +
+				"G1 X500 Y0 E2\n"));
+
+		assertEquals(report.getCount(Rule.NEGATIVE_FEEDRATE), 1);
+		assertEquals(report.getCount(Rule.UNPARSEABLE), 1);
+		assertEquals(report.getCount(Rule.UNKNOWN_CODE), 1);
+		assertEquals(report.getCount(Rule.TOOL_INDEX), 1);
+		// the relative move is not checked against the build volume
+		assertEquals(report.getCount(Rule.OUT_OF_BOUNDS), 1);
+		assertEquals(report.getFindings(Rule.OUT_OF_BOUNDS).get(0).getLineNumber(), 5);
+	}
+
+	@Test
+	public void testDuplicateMessagesAreCounted() {
+		Report report = new GCodeAnalyzer(new MachineModel()).analyze(new SnapshotGCodeSource(
+				"Q1\nQ1\nQ1\n"));
+		assertEquals(report.getCount(Rule.UNKNOWN_CODE), 3);
+		assertEquals(report.getFindings(Rule.UNKNOWN_CODE).size(), 3);
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+		// Enough lines for several chunks, with a G91 straddling a chunk boundary
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			if (i == 40000) sb.append("G91\n");
+			if (i == 70000) sb.append("G90\n");
+			sb.append(i % 3 == 0 ? "G1 X500 E1\n" : "G1 X1 Y1\n");
+		}
+		SnapshotGCodeSource source = new SnapshotGCodeSource(sb.toString());
+		Report serial = new GCodeAnalyzer(new MachineModel(), 1).analyze(source);
+		Report parallel = new GCodeAnalyzer(new MachineModel(), 4).analyze(source);
+		for (Rule r : Rule.values()) {
+			assertEquals(parallel.getCount(r), serial.getCount(r), r.name());
+		}
+		assertTrue(serial.getCount(Rule.OUT_OF_BOUNDS) > 0);
+	}
+
+	@Test
+	public void testSyntheticFileCounts() {
+		// the timing on a big file is GCodeBenchmark.safetyCheckFile
+		final int lines = 200000;
+		Report report = new GCodeAnalyzer(new MachineModel()).analyze(new SyntheticSource(lines));
+		assertTrue(report.isComplete());
+		assertEquals(report.getLineCount(), lines);
+		assertEquals(report.getCount(Rule.OUT_OF_BOUNDS), lines / 5);
+		assertEquals(report.getCount(Rule.UNKNOWN_CODE), 0);
+	}
+
+	@Test
+	public void testFailedChunkLeavesReportIncomplete() {
+		GCodeAnalyzer.Session session = new GCodeAnalyzer(new MachineModel(), 2).newSession();
+		// a line the scanner can't cope with, in a chunk checked on the pool
+		session.add(null);
+		for (int i = 1; i < 40000; i++) session.add("G1 X1 Y1");
+		Report report = session.finish();
+		assertTrue(!report.isComplete());
+		assertTrue(report.isEmpty());
+	}
+
+	@Test
+	public void testCornerOriginVolume() throws Exception {
+		String xml = "<machine><name>Corner Bot</name><geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"200\" min=\"0\"/>" +
+			"<axis id=\"y\" length=\"200\" min=\"0\"/>" +
+			"<axis id=\"z\" length=\"150\"/>" +
+			"</geometry></machine>";
+		MachineModel model = new MachineModel();
+		model.loadXML(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement());
+		Report report = new GCodeAnalyzer(model).analyze(new SnapshotGCodeSource(
+				"G1 X150 Y190 Z1 E1\n" +
+				"G1 X-5 Y10 E2\n" +
+				"G1 X10 Y10 Z151 E3\n"));
+		assertEquals(report.getCount(Rule.OUT_OF_BOUNDS), 2);
+		assertEquals(report.getFindings(Rule.OUT_OF_BOUNDS).get(0).getLineNumber(), 1);
+	}
+
+	@Test
+	public void testFindingsInLineOrder() {
+		GCodeAnalyzer.Session session = new GCodeAnalyzer(new MachineModel(), 2).newSession();
+		for (int i = 0; i < 40000; i++) session.add("G1 X1 Y1");
+		// in the second chunk, one finding before it sets the mode and one after
+		session.add("G1 X500 E1");
+		session.add("G90");
+		session.add("G1 X600 E1");
+		List<GCodeAnalyzer.Finding> findings = session.finish().getFindings(Rule.OUT_OF_BOUNDS);
+		assertEquals(findings.size(), 2);
+		assertEquals(findings.get(0).getLineNumber(), 40000);
+		assertEquals(findings.get(1).getLineNumber(), 40002);
+	}
+
+	@Test
+	public void testPeekMCodeSkipsLineNumber() {
+		assertEquals(GCodeScanner.peekMCode("M104 S220"), 104);
+		assertEquals(GCodeScanner.peekMCode("N123 M104 S220"), 104);
+		assertEquals(GCodeScanner.peekMCode("  N7\tM6 T0"), 6);
+		assertEquals(GCodeScanner.peekMCode("N8 G1 X1"), -1);
+		assertEquals(GCodeScanner.peekMCode("G1 M3"), -1);
+	}
+}
@@ -0,0 +1,241 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Vector;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.xml.sax.InputSource;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeIndex;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.FileGCodeSource;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+
+public class GCodeIndexTest {
+
+	private static final int LAYERS = 40;
+	private static final int MOVES = 500;
+
+	private File dir;
+	private File gcode;
+
+	@BeforeMethod
+	public void makeFile() throws IOException {
+		dir = File.createTempFile("index", "");
+		dir.delete();
+		dir.mkdir();
+		gcode = new File(dir, "part.gcode");
+		write(gcode, "\n");
+	}
+
+	@AfterMethod
+	public void removeDir() {
+		File[] children = dir.listFiles();
+		if (children != null) for (File c : children) c.delete();
+		dir.delete();
+	}
+
+	/** A print with a travel up to each layer, and a tool change halfway */
+	private static void write(File f, String newline) throws IOException {
+		Writer out = new FileWriter(f);
+		try {
+			out.write("(header)" + newline + "G21" + newline + "G90" + newline + "M6 T0" + newline);
+			out.write("G1 Z5 F1000" + newline + "G92 E0" + newline);
+			double e = 0;
+			for (int layer = 0; layer < LAYERS; layer++) {
+				if (layer == LAYERS / 2) out.write("M6 T1" + newline);
+				out.write("G1 Z" + (0.3 + layer * 0.2) + " F1000" + newline);
+				out.write("G1 X0 Y0 F3000" + newline);
+				for (int i = 0; i < MOVES; i++) {
+					e += 0.05;
+					out.write("G1 X" + (i % 2 == 0 ? 10 : 0) + " Y" + (i * 0.01) + " E" + e + newline);
+				}
+			}
+			// no terminator on the last line
+			out.write("M18");
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testLayersAndTools() throws Exception {
+		GCodeIndex index = GCodeIndex.build(gcode, null, 256);
+		List<String> lines = new FileGCodeSource(gcode).asList();
+		assertEquals(index.getLineCount(), lines.size());
+		assertEquals(index.getLayers().size(), LAYERS);
+		for (int i = 0; i < LAYERS; i++) {
+			GCodeIndex.LayerStart layer = index.getLayers().get(i);
+			assertTrue(lines.get(layer.line).startsWith("G1 Z"));
+			assertEquals(layer.z, 0.3 + i * 0.2, 1e-9);
+			assertEquals(index.getLayerForLine(layer.line), i);
+			assertEquals(index.getLayerForLine(layer.line + 1), i);
+			assertEquals(index.getLayerForLine(layer.line - 1), i - 1);
+		}
+		assertEquals(index.getToolChanges().size(), 2);
+		int change = index.getToolChanges().get(1).line;
+		assertEquals(lines.get(change), "M6 T1");
+		assertEquals(index.getToolAtLine(change - 1), 0);
+		assertEquals(index.getToolAtLine(change), 1);
+		assertTrue(!index.hasTimes());
+	}
+
+	@Test
+	public void testSeekingMatchesReading() throws Exception {
+		for (String newline : new String[] { "\n", "\r\n", "\r" }) {
+			write(gcode, newline);
+			GCodeIndex index = GCodeIndex.build(gcode, null, 100);
+			List<String> lines = new FileGCodeSource(gcode).asList();
+			assertEquals(index.getLineCount(), lines.size());
+			for (int line = 0; line < lines.size(); line += 97) {
+				BufferedReader reader = index.openAt(line);
+				try {
+					for (int i = line; i < Math.min(line + 3, lines.size()); i++) {
+						assertEquals(reader.readLine(), lines.get(i));
+					}
+				} finally {
+					reader.close();
+				}
+			}
+			BufferedReader reader = index.openAt(lines.size() - 1);
+			assertEquals(reader.readLine(), "M18");
+			assertNull(reader.readLine());
+			reader.close();
+		}
+	}
+
+	/** Files this process has open, or -1 where that can't be told */
+	private static int openFiles() {
+		String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	@Test
+	public void testIteratorsClosePartway() throws Exception {
+		FileGCodeSource source = new FileGCodeSource(gcode);
+		source.getIndex();
+		int before = openFiles();
+		for (int n = 0; n < 20; n++) {
+			Vector<GCodeSource> parts = new Vector<GCodeSource>();
+			parts.add(source);
+			parts.add(new FileGCodeSource(gcode));
+			for (Iterator<String> it : Arrays.asList(source.iterator(), source.iterator(1000),
+					new GCodeSourceCollection(parts).iterator())) {
+				assertTrue(it.hasNext());
+				it.next();
+				assertTrue(it instanceof Closeable);
+				((Closeable)it).close();
+				assertTrue(!it.hasNext());
+			}
+		}
+		assertEquals(openFiles(), before);
+	}
+
+	@Test
+	public void testSeekPastTheEndCloses() throws Exception {
+		FileGCodeSource source = new FileGCodeSource(gcode);
+		int lines = source.getLineCount();
+		int before = openFiles();
+		for (int n = 0; n < 20; n++) {
+			assertTrue(!source.iterator(lines + 1000).hasNext());
+		}
+		assertEquals(openFiles(), before);
+	}
+
+	/** A two headed machine, with the extruders on A and B */
+	private static MachineModel machine(double feedrate) throws Exception {
+		MachineModel model = new MachineModel();
+		for (int i = 0; i < 5; i++) model.getMaximumFeedrates().set(i, feedrate);
+		for (String axis : new String[] { "a", "b" }) {
+			String xml = "<tool name=\"" + axis + "\" motor=\"true\" stepper_axis=\"" + axis + "\"/>";
+			model.addTool(new ToolModel(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new InputSource(new StringReader(xml))).getDocumentElement()));
+		}
+		return model;
+	}
+
+	@Test
+	public void testSidecarIsReused() throws Exception {
+		MachineModel model = machine(5000);
+		GCodeIndex built = GCodeIndex.forFile(gcode, model);
+		assertTrue(GCodeIndex.sidecarFor(gcode).exists());
+		assertTrue(built.hasTimes());
+		double previous = -1;
+		for (GCodeIndex.LayerStart layer : built.getLayers()) {
+			assertTrue(layer.startMillis > previous);
+			previous = layer.startMillis;
+		}
+		assertTrue(built.getEstimatedMillis() > previous);
+
+		GCodeIndex loaded = GCodeIndex.load(gcode, model);
+		assertNotNull(loaded);
+		assertEquals(loaded.getLineCount(), built.getLineCount());
+		assertEquals(loaded.getLayers().size(), LAYERS);
+		assertEquals(loaded.getLayers().get(7).startMillis, built.getLayers().get(7).startMillis);
+		assertEquals(loaded.getEstimatedMillis(), built.getEstimatedMillis());
+		// good for reading without times, but not for another machine's
+		assertNotNull(GCodeIndex.load(gcode, null));
+		assertNull(GCodeIndex.load(gcode, machine(2500)));
+
+		// touched, but the same contents
+		assertTrue(gcode.setLastModified(gcode.lastModified() - 10000));
+		assertNotNull(GCodeIndex.load(gcode, model));
+
+		// changed
+		Writer out = new FileWriter(gcode, true);
+		out.write("\nM104 S0\n");
+		out.close();
+		assertNull(GCodeIndex.load(gcode, model));
+		assertEquals(GCodeIndex.forFile(gcode, model).getLineCount(), built.getLineCount() + 1);
+	}
+
+	@Test
+	public void testSeekingIsFasterThanReading() throws Exception {
+		FileGCodeSource source = new FileGCodeSource(gcode);
+		int last = source.getLineCount() - 1;
+		assertEquals(GCodeIndex.forFile(gcode, null).getLineCount(), last + 1);
+		// a fresh source finds the sidecar
+		source = new FileGCodeSource(gcode);
+		assertEquals(source.getLineCount(), last + 1);
+
+		long start = System.nanoTime();
+		String scanned = null;
+		for (int i = 0; i < 5; i++) {
+			Iterator<String> it = source.iterator();
+			for (int line = 0; line < last; line++) it.next();
+			scanned = it.next();
+		}
+		long scanNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		String seeked = null;
+		for (int i = 0; i < 5; i++) seeked = source.iterator(last).next();
+		long seekNanos = System.nanoTime() - start;
+
+		Base.logger.fine(String.format("Last of %d lines: %.1fms reading, %.1fms seeking",
+				last + 1, scanNanos / 5e6, seekNanos / 5e6));
+		assertEquals(seeked, scanned);
+		assertTrue(seekNanos < scanNanos);
+	}
+}
@@ -0,0 +1,128 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.GCodeScanner;
+import replicatorg.app.gcode.GCodeTransforms;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.ToolheadAlias;
+import replicatorg.model.FileGCodeSource;
+import replicatorg.model.GCodeSource;
+
+public class GCodePipelineTest {
+
+	/**
+	 * Collect what can be, and start counting the heap's peak from here.
+	 * @return the heap in use now, in kilobytes
+	 */
+	private static long resetPeakHeap() {
+		System.gc();
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP) continue;
+			pool.resetPeakUsage();
+			used += pool.getUsage().getUsed();
+		}
+		return used / 1024;
+	}
+
+	/** The most heap in use since {@link #resetPeakHeap()}, in kilobytes */
+	private static long peakHeapKB() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak / 1024;
+	}
+
+	@Test
+	public void testStagesRunInOrder() throws IOException {
+		List<String> out = new ArrayList<String>();
+		GCodePipeline pipeline = new GCodePipeline(new GCodePipeline.ListSink(out));
+		pipeline.add(new GCodePipeline.Filter() {
+			protected boolean accept(String line, GCodeScanner gcode) {
+				return !gcode.isEmpty();
+			}
+		});
+		pipeline.add(new GCodeTransforms.ToolheadSwap(ToolheadAlias.LEFT));
+		pipeline.add(new GCodeTransforms.ProgressUpdates(4));
+		pipeline.feed(Arrays.asList("M104 S220 T0", "(just a comment)", "G54", "G1 X1", "M6 T0"));
+		pipeline.finish();
+
+		assertEquals(out, Arrays.asList(
+				"M104 S220 T1",
+				"M73 P25 (display progress)",
+				"G55",
+				"M73 P50 (display progress)",
+				"G1 X1",
+				"M73 P75 (display progress)",
+				"M6 T1"));
+	}
+
+	@Test
+	public void testRewriteFileMatchesInMemoryProcessing() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 200000; i++) {
+			switch (i % 4) {
+			case 0: lines.add("G1 X" + (i % 50) + " Y" + (i % 30) + " E" + i); break;
+			case 1: lines.add("(<layer> " + i + " )"); break;
+			case 2: lines.add("M104 S220 T0"); break;
+			default: lines.add("G54 ; offset"); break;
+			}
+		}
+		List<String> startCode = Arrays.asList("(start)", "M73 P0");
+		List<String> endCode = Arrays.asList("M73 P100", "(end)");
+
+		File file = File.createTempFile("pipeline", ".gcode");
+		file.deleteOnExit();
+		new MutableGCodeSource(lines).writeToFile(file);
+
+		// The old way: load everything, then one full copy per step
+		long before = resetPeakHeap();
+		long start = System.currentTimeMillis();
+		MutableGCodeSource expected = new MutableGCodeSource(file);
+		expected.add(0, startCode);
+		expected.add(endCode);
+		expected.changeToolhead(ToolheadAlias.LEFT);
+		expected.addProgressUpdates();
+		long inMemory = System.currentTimeMillis() - start;
+		long inMemoryKB = peakHeapKB() - before;
+		List<String> expectedLines = expected.asList();
+		expected = null;
+
+		before = resetPeakHeap();
+		start = System.currentTimeMillis();
+		FileGCodeSource body = new FileGCodeSource(file);
+		List<GCodeSource> parts = new ArrayList<GCodeSource>();
+		parts.add(new MutableGCodeSource(startCode));
+		parts.add(body);
+		parts.add(new MutableGCodeSource(endCode));
+		List<GCodePipeline.Stage> stages = new ArrayList<GCodePipeline.Stage>();
+		stages.add(new GCodeTransforms.ToolheadSwap(ToolheadAlias.LEFT));
+		stages.add(new GCodeTransforms.ProgressUpdates(body.getLineCount() + startCode.size() + endCode.size()));
+		GCodePipeline.rewriteFile(file, Collections.<String>emptyList(), parts, stages);
+		long streamed = System.currentTimeMillis() - start;
+		long streamedKB = peakHeapKB() - before;
+
+		// how far the heap grew above what was live beforehand; the peaks
+		// include garbage not yet collected, so they're rough
+		Base.logger.info("Post-processing " + lines.size() + " lines: in memory " + inMemory
+				+ " ms, heap peak +" + inMemoryKB + " KB; streamed " + streamed + " ms, heap peak +"
+				+ streamedKB + " KB");
+		assertEquals(new FileGCodeSource(file).asList(), expectedLines);
+	}
+}
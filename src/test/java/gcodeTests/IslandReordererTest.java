@@ -0,0 +1,154 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.Test;
+import org.xml.sax.InputSource;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodePipeline;
+import replicatorg.app.gcode.GCodeScanner;
+import replicatorg.app.gcode.IslandReorderer;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+
+public class IslandReordererTest {
+
+	private static MachineModel machine() throws Exception {
+		MachineModel model = new MachineModel();
+		for (int i = 0; i < 5; i++) model.getMaximumFeedrates().set(i, 6000);
+		String xml = "<tool name=\"a\" motor=\"true\" stepper_axis=\"a\"/>";
+		model.addTool(new ToolModel(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new InputSource(new StringReader(xml))).getDocumentElement()));
+		return model;
+	}
+
+	/**
+	 * Layers of small squares scattered in a poor order, with a retract
+	 * before every travel
+	 */
+	private static List<String> scattered(int layers, String extraLine) {
+		List<String> code = new ArrayList<String>();
+		code.add("G21");
+		code.add("G90");
+		code.add("G92 X0 Y0 Z0 E0");
+		code.add("G1 F1800");
+		code.add("G1 E-1");
+		double e = -1;
+		Random r = new Random(49);
+		for (int l = 0; l < layers; l++) {
+			double z = 0.3 * (l + 1);
+			code.add(String.format("(<layer> %.2f )", z));
+			code.add(String.format("G1 Z%.2f F1200", z));
+			for (int i = 0; i < 12; i++) {
+				double x = (i % 2 == 0 ? -40 : 40) + r.nextInt(10);
+				double y = r.nextInt(80) - 40;
+				if (l == 1 && i == 5 && extraLine != null) code.add(extraLine);
+				code.add(String.format("G1 X%.1f Y%.1f F6000", x, y));
+				e += 1;
+				code.add(String.format("G1 E%.3f F1800", e));
+				double[][] corners = { { x + 5, y }, { x + 5, y + 5 }, { x, y + 5 }, { x, y } };
+				for (double[] c : corners) {
+					e += 0.2;
+					code.add(String.format("G1 X%.1f Y%.1f E%.3f", c[0], c[1], e));
+				}
+				e -= 1;
+				code.add(String.format("G1 E%.3f", e));
+			}
+			code.add("(</layer>)");
+		}
+		code.add("G1 Z10 F1200");
+		return code;
+	}
+
+	private static List<String> run(List<String> code, IslandReorderer stage) throws Exception {
+		List<String> out = new ArrayList<String>();
+		GCodePipeline pipeline = new GCodePipeline(new GCodePipeline.ListSink(out));
+		pipeline.add(stage);
+		pipeline.feed(code);
+		pipeline.finish();
+		return out;
+	}
+
+	/**
+	 * Every stretch of extrusion, where it ran and how much it laid down,
+	 * sorted; followed by where the machine ended up
+	 */
+	private static List<String> extrusions(List<String> code) {
+		List<String> result = new ArrayList<String>();
+		GCodeScanner gcode = new GCodeScanner();
+		double x = 0, y = 0, z = 0, e = 0, f = 0;
+		for (String line : code) {
+			gcode.scan(line);
+			if (gcode.getMainLetter() != 'G') continue;
+			if (gcode.getMainNumber() == 92) {
+				if (gcode.hasCode('E')) e = gcode.getCodeValue('E');
+				continue;
+			}
+			double nx = gcode.hasCode('X') ? gcode.getCodeValue('X') : x;
+			double ny = gcode.hasCode('Y') ? gcode.getCodeValue('Y') : y;
+			double ne = gcode.hasCode('E') ? gcode.getCodeValue('E') : e;
+			if (gcode.hasCode('F')) f = gcode.getCodeValue('F');
+			if (gcode.hasCode('Z')) z = gcode.getCodeValue('Z');
+			if (ne > e && (nx != x || ny != y)) {
+				result.add(String.format("%.1f,%.1f,%.1f to %.1f,%.1f +%.4f at F%.0f", x, y, z, nx, ny, ne - e, f));
+			}
+			x = nx;
+			y = ny;
+			e = ne;
+		}
+		Collections.sort(result);
+		result.add(String.format("ended at %.1f,%.1f,%.1f E%.4f F%.0f", x, y, z, e, f));
+		return result;
+	}
+
+	@Test
+	public void testReorderingKeepsEveryExtrusion() throws Exception {
+		List<String> code = scattered(4, null);
+		IslandReorderer stage = new IslandReorderer(machine(), 2);
+		List<String> out = run(code, stage);
+
+		assertFalse(out.equals(code));
+		assertEquals(extrusions(out), extrusions(code));
+		IslandReorderer.Stats stats = stage.getStats();
+		assertEquals(stats.getLayers(), 4);
+		assertEquals(stats.getReorderedLayers(), 4);
+		assertEquals(stats.getIslands(), 48);
+		assertTrue(stats.getTravelAfter() < stats.getTravelBefore() / 2, stats.toString());
+		assertTrue(stats.getMillisSaved() > 0, stats.toString());
+		Base.logger.fine(stats.toString());
+	}
+
+	@Test
+	public void testSameOutputOnAnyNumberOfThreads() throws Exception {
+		List<String> code = scattered(10, null);
+		List<String> serial = run(code, new IslandReorderer(null, 1));
+		assertEquals(run(code, new IslandReorderer(null, 4)), serial);
+	}
+
+	@Test
+	public void testLayerWithOtherCodesLeftAlone() throws Exception {
+		List<String> code = scattered(3, "M106");
+		IslandReorderer stage = new IslandReorderer(null, 1);
+		List<String> out = run(code, stage);
+		assertEquals(stage.getStats().getReorderedLayers(), 2);
+		assertEquals(extrusions(out), extrusions(code));
+
+		// the second layer comes through as it was
+		int start = code.indexOf("(<layer> 0.60 )");
+		int end = code.indexOf("(<layer> 0.90 )");
+		List<String> layer = code.subList(start, end);
+		int at = out.indexOf("(<layer> 0.60 )");
+		assertEquals(out.subList(at, at + layer.size()), layer);
+	}
+}
@@ -0,0 +1,192 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.Test;
+import org.xml.sax.InputSource;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeParser;
+import replicatorg.app.gcode.MoveCoalescer;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SelectTool;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.util.Point5d;
+
+public class MoveCoalescerTest {
+
+	private static final double TOLERANCE = 0.02;
+
+	/** What came out of the parser, with or without the coalescer */
+	static class Run {
+		final EstimationDriver driver = new EstimationDriver();
+		final List<DriverCommand> commands = new ArrayList<DriverCommand>();
+		final List<Point5d> moves = new ArrayList<Point5d>();
+		MoveCoalescer coalescer;
+
+		Run(List<String> code, boolean coalesce) throws Exception {
+			driver.setMachine(machine());
+			GCodeParser parser = new GCodeParser();
+			Queue<DriverCommand> parsed = new LinkedList<DriverCommand>();
+			Queue<DriverCommand> out = new LinkedList<DriverCommand>();
+			if (coalesce) {
+				coalescer = new MoveCoalescer(driver, TOLERANCE);
+				parser.init(coalescer);
+			} else {
+				parser.init(driver);
+			}
+			for (String line : code) {
+				parser.parse(line, parsed);
+				if (coalesce) coalescer.process(parsed, out);
+				else out.addAll(parsed);
+				parsed.clear();
+				drain(out);
+			}
+			if (coalesce) coalescer.flush(out);
+			drain(out);
+		}
+
+		private void drain(Queue<DriverCommand> out) throws Exception {
+			for (DriverCommand c : out) {
+				commands.add(c);
+				if (c instanceof QueuePoint) moves.add(new Point5d(((QueuePoint)c).getDestination()));
+				c.run(driver);
+			}
+			out.clear();
+		}
+	}
+
+	private static MachineModel machine() throws Exception {
+		MachineModel model = new MachineModel();
+		for (int i = 0; i < 5; i++) model.getMaximumFeedrates().set(i, 6000);
+		for (String axis : new String[] { "a", "b" }) {
+			String xml = "<tool name=\"" + axis + "\" motor=\"true\" stepper_axis=\"" + axis + "\"/>";
+			model.addTool(new ToolModel(DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new InputSource(new StringReader(xml))).getDocumentElement()));
+		}
+		return model;
+	}
+
+	private static List<String> header() {
+		List<String> code = new ArrayList<String>();
+		code.add("G21");
+		code.add("G90");
+		code.add("G92 X0 Y0 Z0 A0 B0");
+		code.add("G1 Z0.3 F1200");
+		return code;
+	}
+
+	/** A circle of tiny segments, extruding all the way round */
+	private static List<String> circle(int segments, double radius) {
+		List<String> code = header();
+		code.add("G1 X" + radius + " Y0 F1200");
+		double e = 0;
+		double step = 2 * Math.PI * radius / segments;
+		for (int i = 1; i <= segments; i++) {
+			double angle = 2 * Math.PI * i / segments;
+			e += step * 0.04;
+			code.add(String.format("G1 X%.4f Y%.4f E%.5f", radius * Math.cos(angle), radius * Math.sin(angle), e));
+		}
+		return code;
+	}
+
+	private static double offset(Point5d p, Point5d a, Point5d b) {
+		double cx = b.x() - a.x(), cy = b.y() - a.y();
+		double vx = p.x() - a.x(), vy = p.y() - a.y();
+		double t = (vx * cx + vy * cy) / (cx * cx + cy * cy);
+		double dx = vx - t * cx, dy = vy - t * cy;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	@Test
+	public void testCurveStaysWithinTolerance() throws Exception {
+		List<String> code = circle(2000, 20);
+		Run plain = new Run(code, false);
+		Run merged = new Run(code, true);
+		assertEquals(merged.coalescer.getMovesIn(), (long)plain.moves.size());
+		assertEquals(merged.coalescer.getMovesOut(), (long)merged.moves.size());
+		assertTrue(merged.moves.size() < plain.moves.size() / 3, merged.coalescer.toString());
+
+		// every merged move ends where one of the original moves did, and passes
+		// close to all the points in between; the extrusion comes out the same
+		int j = 0;
+		Point5d from = plain.moves.get(0);
+		for (Point5d to : merged.moves.subList(1, merged.moves.size())) {
+			while (!plain.moves.get(j).toString().equals(to.toString())) {
+				if (j > 0) assertTrue(offset(plain.moves.get(j), from, to) <= TOLERANCE + 1e-9);
+				j++;
+			}
+			from = to;
+		}
+		assertEquals(j, plain.moves.size() - 1);
+		Point5d last = merged.moves.get(merged.moves.size() - 1);
+		assertEquals(last.a(), plain.moves.get(plain.moves.size() - 1).a());
+
+		// the same time spent moving, without the time spent sending each segment
+		assertTrue(merged.driver.getBuildTime() < plain.driver.getBuildTime());
+		Base.logger.fine(String.format("%s; estimated %.1fs instead of %.1fs",
+				merged.coalescer, merged.driver.getBuildTime() / 1000, plain.driver.getBuildTime() / 1000));
+	}
+
+	@Test
+	public void testStraightRunBecomesOneMove() throws Exception {
+		List<String> code = header();
+		double e = 0;
+		for (int i = 1; i <= 20; i++) {
+			e += 0.02;
+			// wobbling by less than the tolerance
+			code.add(String.format("G1 X%.3f Y%.3f E%.3f F1800", i * 0.5, (i % 2) * 0.005, e));
+		}
+		Run merged = new Run(code, true);
+		// the move up to the layer, then the whole line
+		assertEquals(merged.moves.size(), 2);
+		assertEquals(merged.moves.get(1).x(), 10.0);
+		assertEquals(merged.moves.get(1).a(), 0.4, 1e-9);
+	}
+
+	@Test
+	public void testRunsEndAtBoundaries() throws Exception {
+		List<String> code = header();
+		code.add("G1 X1 Y0 E0.1 F1800");
+		code.add("G1 X2 Y0 E0.2");
+		// a fan coming on in the middle
+		code.add("M106");
+		code.add("G1 X3 Y0 E0.3");
+		code.add("G1 X4 Y0 E0.4");
+		// a different feedrate
+		code.add("G1 X5 Y0 E0.5 F900");
+		code.add("G1 X6 Y0 E0.6");
+		// stops extruding
+		code.add("G1 X7 Y0");
+		code.add("G1 X8 Y0");
+		// starts again, at a different rate
+		code.add("G1 X9 Y0 E0.8");
+		code.add("G1 X10 Y0 E1.0");
+		// another tool
+		code.add("T1");
+		code.add("G1 X11 Y0");
+		code.add("G1 X12 Y0");
+		Run merged = new Run(code, true);
+		Run plain = new Run(code, false);
+		List<String> ends = new ArrayList<String>();
+		for (Point5d p : merged.moves) ends.add((int)p.x() + "");
+		assertEquals(ends.toString(), "[0, 2, 4, 6, 8, 10, 12]");
+		boolean selected = false;
+		for (DriverCommand c : merged.commands) selected |= c instanceof SelectTool;
+		assertTrue(selected);
+		assertEquals(merged.driver.getCurrentPosition(false).toString(),
+				plain.driver.getCurrentPosition(false).toString());
+	}
+}
@@ -0,0 +1,117 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.GCodeCommand;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.DriverMetrics;
+import replicatorg.plugin.MCodePlugin;
+import replicatorg.plugin.MCodeRunner;
+import replicatorg.plugin.PluginEngine;
+import replicatorg.plugin.PluginEntry;
+
+public class PluginEngineTest {
+
+	/** Stands in for a plugin doing network I/O. */
+	static class SlowPlugin implements MCodePlugin {
+		final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+		final long delay;
+		SlowPlugin(long delay) { this.delay = delay; }
+
+		public int[] getAcceptedMCodes() { return new int[] { 998, 999, 998 }; }
+
+		public void processMCode(GCodeCommand mcode) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			seen.add(mcode.getCommand());
+		}
+	}
+
+	private static PluginEngine engine(List<String> lines, SlowPlugin plugin, int queue, MCodeRunner.Overflow overflow) {
+		PluginEngine engine = new PluginEngine();
+		engine.setParentSource(new MutableGCodeSource(lines));
+		Vector<PluginEntry> plugins = new Vector<PluginEntry>();
+		plugins.add(new PluginEntry("slow", "sleeps on every code", plugin));
+		plugins.add(new PluginEntry("other", "not an M-code plugin", new Object()));
+		engine.setPlugins(plugins, queue, overflow);
+		return engine;
+	}
+
+	private static List<String> build(int codes) {
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			if (i % 50 == 0 && lines.size() / 50 < codes) lines.add("M998 message '" + i + "'");
+			lines.add("G1 X" + i + " (Move along)");
+		}
+		lines.add("N501 M999");
+		lines.add("M104 S220");
+		return lines;
+	}
+
+	@Test
+	public void testSlowPluginDoesNotStallTheBuild() throws Exception {
+		SlowPlugin plugin = new SlowPlugin(40);
+		List<String> lines = build(10);
+		PluginEngine engine = engine(lines, plugin, 64, MCodeRunner.Overflow.DROP);
+
+		long start = System.currentTimeMillis();
+		assertEquals(engine.asList(), lines);
+		long elapsed = System.currentTimeMillis() - start;
+		// running the eleven codes inline would take at least 440ms
+		assertTrue(elapsed < 11 * 40, "took " + elapsed + "ms");
+
+		assertTrue(engine.awaitIdle(5000));
+		// in order, once each even though 998 is listed twice, and found after a line number
+		assertEquals(plugin.seen.size(), 11);
+		assertEquals(plugin.seen.get(0), "M998 message '0'");
+		assertEquals(plugin.seen.get(10), "N501 M999");
+
+		MCodeRunner runner = engine.getRunners().get(0);
+		assertEquals(engine.getRunners().size(), 1);
+		assertEquals(runner.getCompleted(), 11);
+		assertEquals(runner.getDropped(), 0);
+		assertTrue(runner.getMaxMillis() >= 30);
+		assertTrue(runner.getMeanMillis() >= 30);
+
+		// and the same figures over JMX, alongside the driver's
+		DriverMetrics metrics = new DriverMetrics();
+		assertEquals(metrics.getPluginLatencies().length, 0);
+		metrics.setPlugins(engine);
+		assertEquals(metrics.getPluginLatencies(), new String[] { runner.toString() });
+		engine.shutdown();
+	}
+
+	@Test
+	public void testOverflowPolicies() throws Exception {
+		List<String> lines = build(10);
+
+		SlowPlugin dropping = new SlowPlugin(100);
+		PluginEngine engine = engine(lines, dropping, 2, MCodeRunner.Overflow.DROP);
+		engine.asList();
+		assertTrue(engine.awaitIdle(5000));
+		MCodeRunner runner = engine.getRunners().get(0);
+		assertTrue(runner.getDropped() > 0);
+		assertEquals(runner.getCompleted() + runner.getDropped(), 11);
+		assertEquals(dropping.seen.size(), runner.getCompleted());
+		engine.shutdown();
+
+		SlowPlugin waiting = new SlowPlugin(5);
+		engine = engine(lines, waiting, 2, MCodeRunner.Overflow.WAIT);
+		engine.asList();
+		assertTrue(engine.awaitIdle(5000));
+		assertEquals(engine.getRunners().get(0).getDropped(), 0);
+		assertEquals(waiting.seen.size(), 11);
+		engine.shutdown();
+	}
+}
@@ -0,0 +1,160 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.BuildTimeTable;
+import replicatorg.app.gcode.CheckedCode;
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.app.gcode.GCodeTransforms;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolheadAlias;
+import replicatorg.model.FileGCodeSource;
+import replicatorg.plugin.toolpath.PostProcessingPlan;
+import replicatorg.plugin.toolpath.SlicerOutputFollower;
+
+public class SlicerOutputFollowerTest {
+
+	static final int LINES = 5000;
+
+	/** Stands in for a slicer, writing gcode a little at a time. */
+	public static class SlowSlicer {
+		public static void main(String[] args) throws Exception {
+			Writer out = new FileWriter(args[0]);
+			int lines = Integer.parseInt(args[1]);
+			int delay = Integer.parseInt(args[2]);
+			for (int i = 0; i < lines; i++) {
+				if (i % 500 == 0) out.write("(<layer> " + (i / 500) + " )");
+				else if (i % 250 == 0) out.write("M6 T0");
+				else out.write("G1 X" + (i % 40) + " Y" + (i % 30) + " F1200");
+				// mixed line endings, and no newline at the very end
+				if (i < lines - 1) out.write(i % 2 == 0 ? "\n" : "\r\n");
+				if (i % 100 == 0) {
+					out.flush();
+					Thread.sleep(delay);
+				}
+			}
+			out.close();
+			if (args.length > 3) System.exit(Integer.parseInt(args[3]));
+		}
+	}
+
+	private static PostProcessingPlan plan() {
+		PostProcessingPlan plan = new PostProcessingPlan();
+		plan.addHeader("(** test header **)");
+		plan.addBefore(new MutableGCodeSource(Arrays.asList("G21", "M6 T0")));
+		plan.addAfter(new MutableGCodeSource(Arrays.asList("M18")));
+		plan.addStage(new GCodeTransforms.ToolheadSwap(ToolheadAlias.LEFT));
+		plan.setProgress(PostProcessingPlan.Progress.LINES);
+		return plan;
+	}
+
+	private static Process startSlicer(File output, int lines, int delay) throws IOException {
+		return startSlicer(output, lines, delay, 0);
+	}
+
+	private static Process startSlicer(File output, int lines, int delay, int exitCode) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				SlowSlicer.class.getName(), output.getPath(), Integer.toString(lines), Integer.toString(delay),
+				Integer.toString(exitCode));
+		pb.redirectErrorStream(true);
+		return pb.start();
+	}
+
+	private static List<Integer> lineNumbers(List<GCodeAnalyzer.Finding> findings) {
+		List<Integer> lines = new ArrayList<Integer>();
+		for (GCodeAnalyzer.Finding f : findings) lines.add(f.getLineNumber());
+		return lines;
+	}
+
+	@Test
+	public void testMatchesPostProcessingAfterwards() throws Exception {
+		File dir = File.createTempFile("follower", "");
+		dir.delete();
+		dir.mkdir();
+		File streamed = new File(dir, "streamed.gcode");
+		File afterwards = new File(dir, "afterwards.gcode");
+		try {
+			MachineModel model = new MachineModel();
+			for (int i = 0; i < 5; i++) model.getMaximumFeedrates().set(i, 5000);
+			SlicerOutputFollower follower = new SlicerOutputFollower(streamed, plan(), model);
+			int exitCode = follower.follow(startSlicer(streamed, LINES, 5));
+			assertEquals(exitCode, 0);
+			assertTrue(follower.isComplete());
+			// most of the work was done before the slicer finished
+			assertTrue(follower.getLinesBeforeExit() > 0);
+			assertEquals(follower.getLineCount(), 1 + 2 + LINES + 1);
+			assertTrue(follower.getEstimatedBuildTime() > 0);
+			assertNotNull(follower.getReport());
+
+			// the same slicer output, post-processed the usual way once it's done
+			assertEquals(startSlicer(afterwards, LINES, 0).waitFor(), 0);
+			plan().rewrite(afterwards);
+
+			assertEquals(new FileGCodeSource(streamed).asList(), new FileGCodeSource(afterwards).asList());
+			assertEquals(new FileGCodeSource(streamed).asList().get(2), "M6 T1");
+			assertTrue(!new File(dir, "streamed.gcode.stream.tmp").exists());
+
+			// the estimate and check made while following fit the final output,
+			// progress updates and all
+			CheckedCode checked = follower.getCheckedCode();
+			assertNotNull(checked);
+			FileGCodeSource source = new FileGCodeSource(streamed);
+			assertTrue(checked.matches(model, source));
+			assertTrue(!checked.matches(new MachineModel(), source));
+			assertTrue(!checked.matches(model, new FileGCodeSource(new File(dir, "missing.gcode"))));
+			GCodeAnalyzer.Report report = new GCodeAnalyzer(model).analyze(source);
+			assertEquals(checked.getReport().getLineCount(), report.getLineCount());
+			for (GCodeAnalyzer.Rule rule : GCodeAnalyzer.Rule.values()) {
+				assertEquals(checked.getReport().getCount(rule), report.getCount(rule));
+				assertEquals(lineNumbers(checked.getReport().getFindings(rule)), lineNumbers(report.getFindings(rule)));
+			}
+			BuildTimeTable table = BuildTimeTable.estimate(model, source);
+			assertEquals(checked.getTimeTable().getLineCount(), table.getLineCount());
+			for (int line = 0; line <= table.getLineCount(); line += 97) {
+				assertEquals(checked.getTimeTable().getMillisAt(line), table.getMillisAt(line), 1);
+			}
+		} finally {
+			streamed.delete();
+			afterwards.delete();
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void testFailedSlicerKeepsOldOutput() throws Exception {
+		File dir = File.createTempFile("follower", "");
+		dir.delete();
+		dir.mkdir();
+		File output = new File(dir, "model.gcode");
+		File slicing = new File(dir, "model.gcode.slicing.tmp");
+		try {
+			Writer old = new FileWriter(output);
+			old.write("G21\nG1 X10 Y10\n");
+			old.close();
+			SlicerOutputFollower follower = new SlicerOutputFollower(slicing, output, plan(), null);
+			int exitCode = follower.follow(startSlicer(slicing, LINES, 0, 3));
+			assertEquals(exitCode, 3);
+			assertTrue(!follower.isComplete());
+			assertEquals(new FileGCodeSource(output).asList(), Arrays.asList("G21", "G1 X10 Y10"));
+			assertTrue(!new File(dir, "model.gcode.stream.tmp").exists());
+		} finally {
+			output.delete();
+			slicing.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.SkipException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.plugin.toolpath.SlicerWorkerPool;
+
+public class SlicerWorkerPoolTest {
+
+	private File dir;
+	private String python;
+
+	/** Stands in for a slicer: slow to import, and counts the jobs it has run */
+	private static final String SLICER =
+		"import sys, time\n" +
+		"time.sleep(0.3)\n" +
+		"jobs = 0\n" +
+		"def main():\n" +
+		"    global jobs\n" +
+		"    jobs += 1\n" +
+		"    if sys.argv[1] == 'crash':\n" +
+		"        raise ValueError('bad model')\n" +
+		"    if sys.argv[1] == 'exit':\n" +
+		"        sys.exit(3)\n" +
+		"    for i in range(3):\n" +
+		"        print('progress %d' % i)\n" +
+		"    out = open(sys.argv[2], 'w')\n" +
+		"    out.write('G1 X%d\\n' % jobs)\n" +
+		"    out.close()\n";
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		for (String path : System.getenv("PATH").split(File.pathSeparator)) {
+			for (String name : new String[] { "python", "python3", "python2" }) {
+				if (python == null && new File(path, name).canExecute()) python = new File(path, name).getPath();
+			}
+		}
+		if (python == null) throw new SkipException("No python to run a slicer worker");
+		dir = File.createTempFile("slicerworker", "");
+		dir.delete();
+		dir.mkdir();
+		FileWriter out = new FileWriter(new File(dir, "fakeslicer.py"));
+		out.write(SLICER);
+		out.close();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		if (dir != null) delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) for (File c : children) delete(c);
+		f.delete();
+	}
+
+	private SlicerWorkerPool pool(int workers, int jobsPerWorker) throws IOException {
+		File script = SlicerWorkerPool.installScript("/replicatorg/plugin/toolpath/slicer_worker.py",
+				new File(dir, "slicer_worker.py"));
+		List<String> command = Arrays.asList(python, "-u", script.getPath(), "fakeslicer");
+		return new SlicerWorkerPool(command, dir, workers, jobsPerWorker);
+	}
+
+	private static List<String> output(Process p) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null) lines.add(line);
+		return lines;
+	}
+
+	private static String read(File f) throws IOException {
+		BufferedReader in = new BufferedReader(new java.io.FileReader(f));
+		try {
+			return in.readLine();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Test
+	public void testWorkersStayWarmBetweenJobs() throws Exception {
+		SlicerWorkerPool pool = pool(1, 3);
+		try {
+			long[] times = new long[7];
+			for (int i = 0; i < times.length; i++) {
+				File gcode = new File(dir, "out" + i + ".gcode");
+				long start = System.nanoTime();
+				Process p = pool.submit(Arrays.asList("ok", gcode.getPath()));
+				assertEquals(output(p), Arrays.asList("progress 0", "progress 1", "progress 2"));
+				assertEquals(p.waitFor(), 0);
+				times[i] = System.nanoTime() - start;
+				// each worker starts counting again, so its state can't pile up
+				assertEquals(read(gcode), "G1 X" + (i % 3 + 1));
+			}
+			assertEquals(pool.getJobsRun(), 7);
+			assertEquals(pool.getWorkersStarted(), 3);
+			// a warm job doesn't wait for the import
+			assertTrue(times[1] < times[0]);
+			Base.logger.fine(String.format("Slicer worker: first job %.1fms, warm job %.1fms",
+					times[0] / 1e6, times[1] / 1e6));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testFailedJobsRetireTheirWorker() throws Exception {
+		SlicerWorkerPool pool = pool(1, 20);
+		try {
+			Process p = pool.submit(Arrays.asList("crash"));
+			List<String> lines = output(p);
+			assertEquals(p.waitFor(), 1);
+			assertTrue(lines.get(lines.size() - 1).contains("ValueError: bad model"));
+
+			p = pool.submit(Arrays.asList("exit"));
+			output(p);
+			assertEquals(p.exitValue(), 3);
+
+			File gcode = new File(dir, "out.gcode");
+			p = pool.submit(Arrays.asList("ok", gcode.getPath()));
+			output(p);
+			assertEquals(p.waitFor(), 0);
+			assertEquals(read(gcode), "G1 X1");
+			assertEquals(pool.getWorkersStarted(), 3);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testBrokenSlicerDoesNotStart() throws Exception {
+		FileWriter out = new FileWriter(new File(dir, "fakeslicer.py"));
+		out.write("import no_such_module\n");
+		out.close();
+		SlicerWorkerPool pool = pool(1, 20);
+		try {
+			pool.submit(Arrays.asList("ok"));
+			throw new AssertionError("A slicer that can't be imported should not take jobs");
+		} catch (IOException e) {
+			assertEquals(pool.getWorkersFailed(), 1);
+			assertEquals(pool.getWorkerCount(), 0);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.model.Build;
+import replicatorg.model.BuildCode;
+import replicatorg.model.BuildModel;
+import replicatorg.plugin.toolpath.SlicingService;
+import replicatorg.plugin.toolpath.ToolpathGenerator;
+import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorEvent;
+import replicatorg.plugin.toolpath.ToolpathGenerator.GeneratorListener;
+
+public class SlicingServiceTest {
+
+	private File dir;
+
+	@BeforeMethod
+	public void makeDir() throws IOException {
+		dir = File.createTempFile("slicing", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@AfterMethod
+	public void removeDir() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) for (File c : children) delete(c);
+		f.delete();
+	}
+
+	/** Stands in for a slicer: burns a fixed amount of CPU, then writes its output */
+	static class BusyGenerator extends ToolpathGenerator {
+		static final AtomicInteger running = new AtomicInteger();
+		static final AtomicInteger peak = new AtomicInteger();
+		static volatile long sink;
+		private final long work;
+		private final boolean fail;
+		private BuildCode output;
+
+		BusyGenerator(long work, boolean fail) {
+			this.work = work;
+			this.fail = fail;
+		}
+
+		public BuildCode generateToolpath() {
+			int now = running.incrementAndGet();
+			synchronized (peak) {
+				if (now > peak.get()) peak.set(now);
+			}
+			try {
+				emitUpdate("Slicing");
+				long x = 1;
+				for (long i = 0; i < work; i++) x = x * 6364136223846793005L + 1442695040888963407L;
+				sink = x;
+				if (fail) return null;
+				File file = getOutputFile();
+				FileWriter out = new FileWriter(file);
+				out.write("G1 X1\n");
+				out.close();
+				String path = file.getPath();
+				output = new BuildCode(path.substring(0, path.length() - ".gcode".length()), file);
+				return output;
+			} catch (IOException e) {
+				return null;
+			} finally {
+				running.decrementAndGet();
+			}
+		}
+
+		public BuildCode getGeneratedToolpath() { return output; }
+
+		protected void setGeneratedToolpath(BuildCode code) { output = code; }
+	}
+
+	private List<BuildModel> models(int count) throws IOException {
+		List<BuildModel> models = new ArrayList<BuildModel>();
+		for (int i = 0; i < count; i++) {
+			File stl = new File(dir, "part" + i + ".stl");
+			FileWriter out = new FileWriter(stl);
+			out.write("solid part" + i + "\nendsolid\n");
+			out.close();
+			models.add(new Build(stl.getPath()).getModel());
+		}
+		return models;
+	}
+
+	private static List<ToolpathGenerator> generators(int count, long work, int failing) {
+		List<ToolpathGenerator> generators = new ArrayList<ToolpathGenerator>();
+		for (int i = 0; i < count; i++) generators.add(new BusyGenerator(work, i == failing));
+		return generators;
+	}
+
+	/** Run a batch, and return how long it took */
+	private long runBatch(SlicingService service, int jobs, long work) throws Exception {
+		long start = System.nanoTime();
+		SlicingService.await(service.submitAll(generators(jobs, work, -1), models(jobs), null));
+		return System.nanoTime() - start;
+	}
+
+	@Test
+	public void testDefaultConcurrencyFitsTheMachine() {
+		// either known, or -1 on a JVM without the bean; never an error
+		long memory = SlicingService.getPhysicalMemory();
+		assertTrue(memory > 0 || memory == -1, "memory " + memory);
+		int slots = SlicingService.getDefaultConcurrency();
+		assertTrue(slots >= 1 && slots <= Runtime.getRuntime().availableProcessors(), "slots " + slots);
+	}
+
+	@Test
+	public void testBatchReportsThroughOneListener() throws Exception {
+		SlicingService service = new SlicingService(2);
+		try {
+			final List<String> messages = new ArrayList<String>();
+			final List<GeneratorListener.Completion> completions = new ArrayList<GeneratorListener.Completion>();
+			final CountDownLatch done = new CountDownLatch(1);
+			GeneratorListener listener = new GeneratorListener() {
+				public synchronized void updateGenerator(GeneratorEvent evt) {
+					messages.add(evt.getMessage());
+				}
+				public synchronized void generationComplete(GeneratorEvent evt) {
+					completions.add(evt.getCompletion());
+					done.countDown();
+				}
+			};
+			BusyGenerator.peak.set(0);
+			List<Future<BuildCode>> results = service.submitAll(generators(5, 100000, 3), models(5), listener);
+			List<BuildCode> codes = SlicingService.await(results);
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertEquals(codes.size(), 5);
+			for (int i = 0; i < 5; i++) {
+				if (i == 3) assertNull(codes.get(i));
+				else assertTrue(codes.get(i).file.getName().equals("part" + i + ".gcode"));
+			}
+			synchronized (listener) {
+				assertEquals(completions.size(), 1);
+				assertEquals(completions.get(0), GeneratorListener.Completion.FAILURE);
+				assertTrue(messages.contains("[2/5 part1.stl] Slicing"));
+				assertTrue(messages.contains("Finished 5 of 5"));
+			}
+			assertTrue(service.getPeakConcurrency() <= 2);
+			assertTrue(BusyGenerator.peak.get() <= 2);
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentSlicingScales() throws Exception {
+		int cores = Math.min(4, Runtime.getRuntime().availableProcessors());
+		int jobs = 8;
+		long work = 20000000;
+		// warm up the JIT, so the first run isn't penalised
+		SlicingService warm = new SlicingService(1);
+		runBatch(warm, 2, work);
+		warm.shutdown();
+
+		StringBuilder report = new StringBuilder("Slicing " + jobs + " jobs:");
+		long serial = 0;
+		long parallel = 0;
+		for (int slots = 1; slots <= cores; slots *= 2) {
+			SlicingService service = new SlicingService(slots);
+			try {
+				long nanos = runBatch(service, jobs, work);
+				assertTrue(service.getPeakConcurrency() <= slots);
+				report.append(String.format(" %d at once %.0fms;", slots, nanos / 1e6));
+				if (slots == 1) serial = nanos;
+				parallel = nanos;
+			} finally {
+				service.shutdown();
+			}
+		}
+		Base.logger.fine(report.toString());
+		if (cores > 1) assertTrue(parallel < serial);
+	}
+}
@@ -0,0 +1,125 @@
+package gcodeTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.model.FileGCodeSource;
+import replicatorg.plugin.toolpath.ToolpathCache;
+
+public class ToolpathCacheTest {
+
+	private File dir;
+
+	@BeforeMethod
+	public void makeDir() throws IOException {
+		dir = File.createTempFile("toolpathcache", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@AfterMethod
+	public void removeDir() {
+		delete(dir);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) for (File c : children) delete(c);
+		f.delete();
+	}
+
+	private File write(String name, String... lines) throws IOException {
+		File f = new File(dir, name);
+		FileWriter w = new FileWriter(f);
+		for (String line : lines) w.write(line + "\n");
+		w.close();
+		return f;
+	}
+
+	@Test
+	public void testHitMissAndPersistence() throws IOException {
+		File cacheDir = new File(dir, "cache");
+		ToolpathCache cache = new ToolpathCache(cacheDir, 1 << 20);
+		File out = new File(dir, "out.gcode");
+
+		assertFalse(cache.restore("abc", out));
+		cache.store("abc", write("generated.gcode", "G21", "G1 X1"));
+		assertTrue(cache.restore("abc", out));
+		assertEquals(new FileGCodeSource(out).asList(), Arrays.asList("G21", "G1 X1"));
+		assertEquals(cache.getHits(), 1);
+		assertEquals(cache.getMisses(), 1);
+
+		// a fresh instance picks up what's on disk
+		ToolpathCache reopened = new ToolpathCache(cacheDir, 1 << 20);
+		assertEquals(reopened.getEntryCount(), 1);
+		assertTrue(reopened.restore("abc", new File(dir, "again.gcode")));
+	}
+
+	@Test
+	public void testDamagedEntryIsDiscarded() throws IOException {
+		File cacheDir = new File(dir, "cache");
+		ToolpathCache cache = new ToolpathCache(cacheDir, 1 << 20);
+		cache.store("abc", write("generated.gcode", "G21", "G1 X1"));
+
+		// flip a byte without changing the length
+		RandomAccessFile raf = new RandomAccessFile(new File(cacheDir, "abc.gcode"), "rw");
+		raf.seek(4);
+		raf.write('Y');
+		raf.close();
+
+		File out = write("out.gcode", "old contents");
+		assertFalse(cache.restore("abc", out));
+		assertEquals(cache.getCorruptCount(), 1);
+		assertEquals(cache.getEntryCount(), 0);
+		// the destination is left alone
+		assertEquals(new FileGCodeSource(out).asList(), Arrays.asList("old contents"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() throws IOException {
+		File generated = write("generated.gcode", "G1 X0123456789");
+		long size = generated.length();
+		ToolpathCache cache = new ToolpathCache(new File(dir, "cache"), size * 2);
+		File out = new File(dir, "out.gcode");
+
+		cache.store("a", generated);
+		cache.store("b", generated);
+		assertTrue(cache.restore("a", out));
+		cache.store("c", generated);
+
+		assertEquals(cache.getEvictionCount(), 1);
+		assertTrue(cache.restore("a", out));
+		assertFalse(cache.restore("b", out));
+		assertTrue(cache.restore("c", out));
+		assertEquals(cache.getTotalBytes(), size * 2);
+	}
+
+	@Test
+	public void testKeyFollowsContents() throws IOException {
+		File profile = new File(dir, "profile");
+		profile.mkdir();
+		File config = new File(profile, "config.ini");
+		FileWriter w = new FileWriter(config);
+		w.write("layer_height = 0.2\n");
+		w.close();
+
+		String first = new ToolpathCache.Key().add("gen").addFile(profile).toString();
+		assertEquals(new ToolpathCache.Key().add("gen").addFile(profile).toString(), first);
+
+		w = new FileWriter(config);
+		w.write("layer_height = 0.3\n");
+		w.close();
+		assertFalse(new ToolpathCache.Key().add("gen").addFile(profile).toString().equals(first));
+	}
+}
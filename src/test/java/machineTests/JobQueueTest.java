@@ -0,0 +1,199 @@
+package machineTests;
+
+import static machineTests.TestMachines.job;
+import static machineTests.TestMachines.nullMachine;
+import static machineTests.TestMachines.waitFor;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.JobQueue;
+import replicatorg.machine.JobQueue.Job;
+import replicatorg.machine.JobQueue.Status;
+import replicatorg.machine.MachineFarm;
+import replicatorg.machine.MachineState.State;
+import replicatorg.machine.model.MachineType;
+
+public class JobQueueTest {
+
+	private File dir;
+	private MachineFarm farm;
+
+	@BeforeMethod
+	public void setUp() throws Exception {
+		dir = File.createTempFile("jobqueue", "");
+		dir.delete();
+		farm = new MachineFarm(2);
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		farm.dispose();
+		File[] files = dir.listFiles();
+		if (files != null) for (File f : files) f.delete();
+		dir.delete();
+	}
+
+	private static boolean waitForIdle(JobQueue queue, long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (!queue.getQueued().isEmpty() || !queue.getRunning().isEmpty()) {
+			if (System.currentTimeMillis() > deadline) return false;
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	@Test
+	public void testPriorityThenLongestFirst() throws Exception {
+		farm.add("rep", nullMachine("Replicator 2 Test"));
+		JobQueue queue = new JobQueue(farm, dir);
+		try {
+			Job small = queue.submit("small", job(50), null, 0);
+			Job large = queue.submit("large", job(400), MachineType.REPLICATOR_2, 0);
+			Job urgent = queue.submit("urgent", job(50), null, 5);
+			Job elsewhere = queue.submit("cupcake only", job(50), MachineType.CUPCAKE, 9);
+			// nothing runs until there's a machine to run it on
+			Thread.sleep(100);
+			assertEquals(queue.getQueued().size(), 4);
+
+			farm.connect("rep", null);
+			assertTrue(waitFor(farm, "rep", State.READY, 5000));
+			long deadline = System.currentTimeMillis() + 10000;
+			while (queue.getHistory().size() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+			List<Job> history = queue.getHistory();
+			assertEquals(history.size(), 3);
+			assertEquals(history.get(0), urgent);
+			assertEquals(history.get(1), large);
+			assertEquals(history.get(2), small);
+			for (Job j : history) {
+				assertEquals(j.getStatus(), Status.DONE);
+				assertEquals(j.getMachineId(), "rep");
+			}
+			assertTrue(large.getEstimate() > small.getEstimate());
+			assertEquals(queue.getQueued().size(), 1);
+			assertEquals(elsewhere.getStatus(), Status.QUEUED);
+
+			farm.add("cup", nullMachine("Cupcake Test"));
+			farm.connect("cup", null);
+			assertTrue(waitForIdle(queue, 10000));
+			assertEquals(elsewhere.getStatus(), Status.DONE);
+			assertEquals(elsewhere.getMachineId(), "cup");
+			// finished jobs don't stay on disk
+			assertEquals(dir.list().length, 0);
+		} finally {
+			queue.dispose();
+		}
+	}
+
+	@Test
+	public void testJobsAreSpreadAndChecked() throws Exception {
+		JobQueue queue = new JobQueue(farm, dir);
+		try {
+			for (int i = 0; i < 3; i++) {
+				farm.add("bot" + i, nullMachine("Replicator 2 Bot " + i));
+				farm.connect("bot" + i, null);
+			}
+			for (String id : farm.getIds()) assertTrue(waitFor(farm, id, State.READY, 5000), id);
+			MutableGCodeSource badTool = new MutableGCodeSource(job(10));
+			badTool.add("M6 T3"); // no such toolhead
+			Job bad = queue.submit("bad", badTool, null, 1);
+			for (int i = 0; i < 6; i++) queue.submit("part " + i, job(2000), null, 0);
+			assertTrue(waitForIdle(queue, 20000));
+
+			assertEquals(bad.getStatus(), Status.FAILED);
+			assertEquals(queue.getFailed().size(), 1);
+			assertEquals(queue.getHistory().size(), 6);
+			boolean[] used = new boolean[3];
+			for (Job j : queue.getHistory()) {
+				assertEquals(j.getStatus(), Status.DONE);
+				used[j.getMachineId().charAt(3) - '0'] = true;
+			}
+			assertTrue(used[0] && used[1] && used[2], "jobs should go to every machine");
+		} finally {
+			queue.dispose();
+		}
+	}
+
+	@Test
+	public void testCancelWaitsForTheMachineToStop() throws Exception {
+		farm.add("rep", nullMachine("Replicator 2 Test"));
+		farm.connect("rep", null);
+		assertTrue(waitFor(farm, "rep", State.READY, 5000));
+		JobQueue queue = new JobQueue(farm, dir);
+		try {
+			Job big = queue.submit("big", job(500000), null, 1);
+			assertTrue(waitFor(farm, "rep", State.BUILDING, 20000));
+			assertTrue(queue.cancel(big.getId()));
+			assertEquals(big.getStatus(), Status.CANCELLED);
+			// can't be cancelled twice
+			assertTrue(!queue.cancel(big.getId()));
+			Job next = queue.submit("next", job(20), null, 0);
+
+			assertTrue(waitForIdle(queue, 20000));
+			assertEquals(queue.getHistory().get(0), big);
+			assertEquals(big.getStatus(), Status.CANCELLED);
+			assertEquals(next.getStatus(), Status.DONE);
+			assertEquals(dir.list().length, 0);
+		} finally {
+			queue.dispose();
+		}
+	}
+
+	@Test
+	public void testAvailabilityWindow() throws Exception {
+		farm.add("rep", nullMachine("Replicator 2 Test"));
+		JobQueue queue = new JobQueue(farm, dir);
+		try {
+			queue.setAvailableUntil("rep", System.currentTimeMillis() + 60 * 60 * 1000);
+			Job overnight = queue.submit("overnight", job(200000), null, 5);
+			Job quick = queue.submit("quick", job(100), null, 0);
+			farm.connect("rep", null);
+			assertTrue(waitFor(farm, "rep", State.READY, 5000));
+
+			long deadline = System.currentTimeMillis() + 10000;
+			while (quick.getStatus() != Status.DONE && System.currentTimeMillis() < deadline) Thread.sleep(5);
+			assertEquals(quick.getStatus(), Status.DONE);
+			// too long for the time left, even though it's more urgent
+			assertTrue(overnight.getEstimate() > 60 * 60 * 1000, "estimate " + overnight.getEstimate());
+			assertEquals(overnight.getStatus(), Status.QUEUED);
+
+			assertTrue(queue.cancel(overnight.getId()));
+			assertEquals(overnight.getStatus(), Status.CANCELLED);
+		} finally {
+			queue.dispose();
+		}
+	}
+
+	@Test
+	public void testQueueSurvivesRestart() throws Exception {
+		JobQueue queue = new JobQueue(farm, dir);
+		Job first = queue.submit("first", job(20), MachineType.THINGOMATIC, 2);
+		queue.submit("second", job(30), null, 0);
+		queue.dispose();
+
+		queue = new JobQueue(farm, dir);
+		try {
+			List<Job> jobs = queue.getQueued();
+			assertEquals(jobs.size(), 2);
+			assertEquals(jobs.get(0).getName(), "first");
+			assertEquals(jobs.get(0).getPriority(), 2);
+			assertEquals(jobs.get(0).getMachineType(), MachineType.THINGOMATIC);
+			assertEquals(jobs.get(0).getSource().asList(), job(20).asList());
+			assertNull(jobs.get(1).getMachineType());
+			// new jobs don't reuse the old ids
+			Job third = queue.submit("third", job(5), null, 0);
+			assertTrue(third.getId() > first.getId() + 1);
+		} finally {
+			queue.dispose();
+		}
+	}
+}
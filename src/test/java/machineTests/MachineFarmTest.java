@@ -0,0 +1,158 @@
+package machineTests;
+
+import static machineTests.TestMachines.job;
+import static machineTests.TestMachines.nullMachine;
+import static machineTests.TestMachines.waitFor;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.testng.annotations.Test;
+
+import replicatorg.app.Base;
+import replicatorg.app.gcode.GCodeAnalyzer;
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.drivers.DriverMetrics;
+import replicatorg.machine.MachineFarm;
+import replicatorg.machine.MachineState.State;
+
+public class MachineFarmTest {
+
+	@Test
+	public void testJobsRunIndependently() throws Exception {
+		MachineFarm farm = new MachineFarm(2);
+		try {
+			for (int i = 0; i < 3; i++) {
+				assertNotNull(farm.add("bot" + i, nullMachine("Farm Bot " + i)));
+				farm.connect("bot" + i, null);
+			}
+			for (String id : farm.getIds()) assertTrue(waitFor(farm, id, State.READY, 5000), id);
+			assertEquals(farm.getIdsInState(State.READY).size(), 3);
+
+			// two short jobs run side by side
+			GCodeAnalyzer.Report r0 = farm.startJob("bot0", job(200), false).get();
+			GCodeAnalyzer.Report r1 = farm.startJob("bot1", job(300), false).get();
+			assertTrue(r0.isEmpty());
+			assertTrue(r1.isEmpty());
+			assertTrue(waitFor(farm, "bot0", State.READY, 10000));
+			assertTrue(waitFor(farm, "bot1", State.READY, 10000));
+
+			// a job that fails its check is held back unless forced
+			MutableGCodeSource badTool = new MutableGCodeSource(job(10));
+			badTool.add("M6 T3"); // no such toolhead
+			assertFalse(farm.startJob("bot2", badTool, false).get().isEmpty());
+			assertEquals(farm.getState("bot2").getState(), State.READY);
+
+			// a long job can be paused, resumed and stopped on its own
+			farm.startJob("bot2", job(20000), false).get();
+			assertTrue(waitFor(farm, "bot2", State.BUILDING, 5000));
+			farm.pauseJob("bot2");
+			assertTrue(waitFor(farm, "bot2", State.PAUSED, 5000));
+			assertEquals(farm.getState("bot0").getState(), State.READY);
+			farm.resumeJob("bot2");
+			assertTrue(waitFor(farm, "bot2", State.BUILDING, 5000));
+			farm.stopJob("bot2");
+			assertTrue(waitFor(farm, "bot2", State.READY, 5000));
+
+			farm.remove("bot1");
+			assertEquals(farm.getIds().size(), 2);
+		} finally {
+			farm.dispose();
+		}
+	}
+
+	@Test
+	public void testMetricsRegisteredWhileConnected() throws Exception {
+		MachineFarm farm = new MachineFarm(1);
+		try {
+			DriverMetrics metrics = farm.add("bot", nullMachine("Metrics Bot")).getDriver().getMetrics();
+			assertNull(metrics.getObjectName());
+			farm.connect("bot", null);
+			assertTrue(waitFor(farm, "bot", State.READY, 5000));
+			assertNotNull(metrics.getObjectName());
+			farm.disconnect("bot");
+			assertTrue(waitFor(farm, "bot", State.NOT_ATTACHED, 5000));
+			assertNull(metrics.getObjectName());
+		} finally {
+			farm.dispose();
+		}
+	}
+
+	/**
+	 * Measures what each extra machine costs while idle; the figures are
+	 * printed so they can be compared as the farm grows.
+	 */
+	@Test
+	public void testOverheadPerMachine() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Runtime rt = Runtime.getRuntime();
+		MachineFarm farm = new MachineFarm(2);
+		try {
+			long heapBase = 0;
+			int added = 0;
+			for (int n : new int[] { 1, 4, 16 }) {
+				for (; added < n; added++) {
+					farm.add("bot" + added, nullMachine("Farm Bot " + added));
+					farm.connect("bot" + added, null);
+				}
+				for (String id : farm.getIds()) assertTrue(waitFor(farm, id, State.READY, 5000), id);
+
+				long cpuBefore = farmCpuNanos(threads);
+				Thread.sleep(1500);
+				long cpu = farmCpuNanos(threads) - cpuBefore;
+
+				// measured against the first machine, so class loading isn't counted
+				long heap = usedHeap(rt);
+				if (n == 1) {
+					heapBase = heap;
+				} else {
+					Base.logger.fine("MachineFarm with " + n + " machines: " +
+							((heap - heapBase) / 1024 / (n - 1)) + "kB heap per added machine");
+				}
+				Base.logger.fine("MachineFarm with " + n + " machines: " + threads.getThreadCount() + " threads, " +
+						(cpu / 1000 / n) + "us CPU per machine over 1.5s idle");
+				// the only thread a machine adds is its own MachineThread
+				assertEquals(countMachineThreads(), n);
+			}
+		} finally {
+			farm.dispose();
+		}
+	}
+
+	/** the least seen over a few collections, to keep out garbage made in between */
+	private static long usedHeap(Runtime rt) throws InterruptedException {
+		long least = Long.MAX_VALUE;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(50);
+			least = Math.min(least, rt.totalMemory() - rt.freeMemory());
+		}
+		return least;
+	}
+
+	private static int countMachineThreads() {
+		int count = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith("Machine Thread: bot")) count++;
+			assertFalse(t.getName().equals("Assess Status") && t.isAlive(), "farm machines shouldn't poll on their own");
+		}
+		return count;
+	}
+
+	private static long farmCpuNanos(ThreadMXBean threads) {
+		long total = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().startsWith("Machine Thread: bot") || t.getName().startsWith("Machine Farm")
+					|| t.getName().equals("Machine Callback Handler")) {
+				long cpu = threads.getThreadCpuTime(t.getId());
+				if (cpu > 0) total += cpu;
+			}
+		}
+		return total;
+	}
+}
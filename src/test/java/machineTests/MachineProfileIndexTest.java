@@ -0,0 +1,166 @@
+package machineTests;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import replicatorg.app.Base;
+import replicatorg.machine.MachineProfileIndex;
+import replicatorg.machine.model.MachineModel;
+
+public class MachineProfileIndexTest {
+
+	private File root;
+	private File appDir;
+	private File userDir;
+	private File indexFile;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		root = File.createTempFile("machines", "");
+		root.delete();
+		appDir = new File(root, "app");
+		userDir = new File(root, "user");
+		appDir.mkdirs();
+		userDir.mkdirs();
+		indexFile = new File(root, "machines.index");
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		delete(root);
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) for (File c : children) delete(c);
+		f.delete();
+	}
+
+	private static String machine(String name, boolean experimental) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<machine").append(experimental ? " experimental=\"1\"" : "").append(">");
+		sb.append("<name>").append(name).append("</name>");
+		sb.append("<geometry type=\"cartesian\">");
+		for (String axis : new String[] { "x", "y", "z" }) {
+			sb.append("<axis id=\"").append(axis).append("\" length=\"200\" maxfeedrate=\"5000\" stepspermm=\"94.1\"/>");
+		}
+		sb.append("</geometry><tools>");
+		for (int t = 0; t < 2; t++) {
+			sb.append("<tool name=\"Extruder ").append(t).append("\" type=\"extruder\" material=\"abs\" motor=\"true\" heater=\"true\" index=\"")
+				.append(t).append("\"/>");
+		}
+		sb.append("</tools><clamps></clamps>");
+		sb.append("<driver name=\"sanguino3g\"><rate>115200</rate><portname>/dev/ttyUSB0</portname></driver>");
+		sb.append("<warmup>(a comment to pad things out a little)\nM104 S220 T0\nM109 S110 T0</warmup>");
+		sb.append("</machine>");
+		return sb.toString();
+	}
+
+	private static void write(File f, String... machines) throws IOException {
+		FileWriter out = new FileWriter(f);
+		out.write("<?xml version=\"1.0\"?>\n<machines>\n");
+		for (String m : machines) out.write(m + "\n");
+		out.write("</machines>\n");
+		out.close();
+	}
+
+	private List<File> dirs() {
+		return Arrays.asList(appDir, userDir);
+	}
+
+	@Test
+	public void testUnchangedFilesComeFromTheIndex() throws Exception {
+		int count = 300;
+		for (int i = 0; i < count; i++) {
+			write(new File(appDir, "profile" + i + ".xml"),
+					machine("Bot " + i, false), machine("Bot " + i + " (experimental)", true));
+		}
+
+		long start = System.nanoTime();
+		MachineProfileIndex cold = new MachineProfileIndex(indexFile);
+		cold.scan(dirs());
+		long coldNanos = System.nanoTime() - start;
+		assertEquals(cold.getFilesParsed(), count);
+		assertTrue(indexFile.exists());
+
+		start = System.nanoTime();
+		MachineProfileIndex warm = new MachineProfileIndex(indexFile);
+		warm.scan(dirs());
+		long warmNanos = System.nanoTime() - start;
+		Base.logger.fine(String.format("Machine index, %d files: %.1fms parsing, %.1fms from the index",
+				count, coldNanos / 1e6, warmNanos / 1e6));
+
+		assertEquals(warm.getFilesParsed(), 0);
+		assertEquals(warm.getFilesReused(), count);
+		assertEquals(warm.getNames(false), cold.getNames(false));
+		assertEquals(warm.getNames(true).size(), 2 * count);
+		assertEquals(warm.getNames(false).size(), count);
+		assertFalse(warm.getNames(false).contains("Bot 7 (experimental)"));
+		assertTrue(warmNanos < coldNanos);
+
+		// only the machine asked for is turned back into a DOM
+		assertEquals(warm.getMachinesParsed(), 0);
+		Element e = warm.getMachine("Bot 42");
+		assertEquals(warm.getMachinesParsed(), 1);
+		assertTrue(warm.getMachine("Bot 42") == e);
+		MachineModel model = new MachineModel();
+		model.loadXML(e);
+		assertEquals(model.getTools().size(), 2);
+		assertNull(warm.getMachine("No such bot"));
+	}
+
+	@Test
+	public void testChangesArePickedUp() throws Exception {
+		File a = new File(appDir, "a.xml");
+		File b = new File(appDir, "b.xml");
+		write(a, machine("Alpha", false));
+		write(b, machine("Beta", false));
+		// a user profile with the same name wins
+		write(new File(userDir, "mine.xml"), machine("Beta", false).replace("5000", "9000"));
+		MachineProfileIndex index = new MachineProfileIndex(indexFile);
+		index.scan(dirs());
+		assertEquals(index.getNames(false), Arrays.asList("Alpha", "Beta"));
+		assertTrue(index.getMachine("Beta").getElementsByTagName("axis").item(0).getAttributes()
+				.getNamedItem("maxfeedrate").getNodeValue().equals("9000"));
+
+		// touched but not changed: hashed, not parsed
+		a.setLastModified(a.lastModified() - 10000);
+		// changed
+		write(b, machine("Beta", false), machine("Gamma", false));
+		b.setLastModified(b.lastModified() - 20000);
+		index = new MachineProfileIndex(indexFile);
+		index.scan(dirs());
+		assertEquals(index.getFilesRehashed(), 1);
+		assertEquals(index.getFilesParsed(), 1);
+		assertEquals(index.getFilesReused(), 1);
+		assertEquals(index.getNames(false), Arrays.asList("Alpha", "Beta", "Gamma"));
+
+		// removed
+		assertTrue(a.delete());
+		index.scan(dirs());
+		assertEquals(index.getNames(false), Arrays.asList("Beta", "Gamma"));
+		assertEquals(index.getFilesReused(), 2);
+
+		// a damaged index is just read from scratch
+		FileWriter out = new FileWriter(indexFile);
+		out.write("garbage");
+		out.close();
+		index = new MachineProfileIndex(indexFile);
+		index.scan(dirs());
+		assertEquals(index.getFilesParsed(), 2);
+		assertEquals(index.getNames(false), Arrays.asList("Beta", "Gamma"));
+	}
+}
@@ -0,0 +1,52 @@
+package machineTests;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.gcode.MutableGCodeSource;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineFarm;
+import replicatorg.model.GCodeSource;
+
+/** Machine descriptors and jobs for tests that don't need real hardware. */
+class TestMachines {
+
+	/** A small machine on the null driver, so it connects and builds instantly. */
+	static Node nullMachine(String name) throws Exception {
+		String xml = "<machine><name>" + name + "</name>" +
+			"<geometry type=\"cartesian\">" +
+			"<axis id=\"x\" length=\"200\" maxfeedrate=\"5000\" stepspermm=\"47\"/>" +
+			"<axis id=\"y\" length=\"200\" maxfeedrate=\"5000\" stepspermm=\"47\"/>" +
+			"<axis id=\"z\" length=\"150\" maxfeedrate=\"1000\" stepspermm=\"400\"/>" +
+			"</geometry>" +
+			"<tools><tool name=\"Extruder\" type=\"extruder\" material=\"abs\" motor=\"true\" heater=\"true\"/></tools>" +
+			"<driver name=\"null\"/></machine>";
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+	}
+
+	/** A job that stays inside the null machine's build volume. */
+	static GCodeSource job(int moves) {
+		List<String> lines = new ArrayList<String>();
+		lines.add("G21");
+		lines.add("G90");
+		for (int i = 0; i < moves; i++) {
+			lines.add("G1 X" + (i % 40) + " Y" + (i % 30) + " Z1 F1200");
+		}
+		return new MutableGCodeSource(lines);
+	}
+
+	static boolean waitFor(MachineFarm farm, String id, MachineState.State state, long millis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + millis;
+		while (farm.getState(id).getState() != state) {
+			if (System.currentTimeMillis() > deadline) return false;
+			Thread.sleep(5);
+		}
+		return true;
+	}
+}